@@ -16,14 +16,14 @@ subprojects {
             }
             tasks.withType<JavaCompile>().configureEach {
                 options.encoding = "UTF-8"
-                options.compilerArgs.add("--enable-preview")
+                options.compilerArgs.addAll(listOf("--enable-preview", "--add-modules", "jdk.incubator.vector"))
             }
             tasks.withType<Test>().configureEach {
                 useJUnitPlatform()
-                jvmArgs("--enable-preview")
+                jvmArgs("--enable-preview", "--add-modules", "jdk.incubator.vector")
             }
             tasks.withType<JavaExec>().configureEach {
-                jvmArgs("--enable-preview")
+                jvmArgs("--enable-preview", "--add-modules", "jdk.incubator.vector")
             }
         }
     }
@@ -0,0 +1,105 @@
+import groovy.json.JsonOutput
+import groovy.json.JsonSlurper
+
+plugins {
+    java
+    id("me.champeau.jmh") version "0.7.2"
+}
+
+dependencies {
+    implementation(project(":llamapanama-core"))
+    runtimeOnly("org.slf4j:slf4j-nop:2.0.13")
+}
+
+val jmhResults = layout.buildDirectory.file("results/jmh/results.json")
+val jmhBaseline = layout.projectDirectory.file("baseline/jmh-stub.json")
+
+jmh {
+    jmhVersion.set("1.37")
+    jvmArgsAppend.add("--enable-preview")
+    jvmArgsAppend.add("--enable-native-access=ALL-UNNAMED")
+    jvmArgsAppend.addAll("--add-modules", "jdk.incubator.vector")
+    profilers.add("gc")
+    resultFormat.set("JSON")
+    resultsFile.set(jmhResults)
+    // -Pjmh.includes=NativeBindings limits a run to matching benchmark classes
+    providers.gradleProperty("jmh.includes").orNull?.let { includes.add(it) }
+    // -Pjmh.params='size=50000;ef=64,256' overrides @Param values
+    providers.gradleProperty("jmh.params").orNull?.split(";")?.filter { it.isNotBlank() }?.forEach { entry ->
+        val (name, values) = entry.split("=", limit = 2)
+        benchmarkParameters.put(name.trim(), objects.listProperty<String>().value(values.split(",").map { it.trim() }))
+    }
+}
+
+tasks.named<me.champeau.jmh.JmhBytecodeGeneratorTask>("jmhRunBytecodeGenerator") {
+    jvmArgs.addAll("--enable-preview", "--add-modules", "jdk.incubator.vector")
+}
+
+tasks.register("jmhSaveBaseline") {
+    description = "Records the latest JMH results as the regression baseline."
+    val resultsFile = jmhResults.get().asFile
+    val baselineFile = jmhBaseline.asFile
+    inputs.file(resultsFile)
+    outputs.file(baselineFile)
+    doLast {
+        @Suppress("UNCHECKED_CAST")
+        val runs = JsonSlurper().parse(resultsFile) as List<MutableMap<String, Any?>>
+        // drop the machine-specific JVM path and temp directory
+        for (run in runs) {
+            run.remove("jvm")
+            run["jvmArgs"] = (run["jvmArgs"] as List<*>?)?.filterNot { it.toString().startsWith("-Djava.io.tmpdir=") }
+        }
+        baselineFile.writeText(JsonOutput.prettyPrint(JsonOutput.toJson(runs)) + "\n")
+    }
+}
+
+tasks.register("jmhCompare") {
+    description = "Compares the latest JMH results with the baseline; fails on regressions beyond -Pjmh.threshold (default 0.15)."
+    mustRunAfter("jmh")
+    val resultsFile = jmhResults.get().asFile
+    val baselineFile = jmhBaseline.asFile
+    val threshold = providers.gradleProperty("jmh.threshold").map { it.toDouble() }.orElse(0.15)
+    inputs.files(resultsFile, baselineFile)
+    doLast {
+        fun load(file: File): Map<String, Map<*, *>> {
+            @Suppress("UNCHECKED_CAST")
+            val runs = JsonSlurper().parse(file) as List<Map<String, Any?>>
+            return runs.associate { run ->
+                val params = (run["params"] as Map<*, *>?)?.entries?.joinToString(",") { "${it.key}=${it.value}" }
+                (if (params == null) run["benchmark"].toString() else "${run["benchmark"]}($params)") to run
+            }
+        }
+        fun score(metric: Map<*, *>?) = (metric?.get("score") as Number?)?.toDouble()
+        val baseline = load(baselineFile)
+        val current = load(resultsFile)
+        val limit = threshold.get()
+        val regressions = mutableListOf<String>()
+        val missing = current.keys - baseline.keys
+        if (missing.isNotEmpty()) {
+            throw GradleException("No baseline in ${baselineFile.name} for:\n" + missing.joinToString("\n") +
+                    "\nRecord one with jmhSaveBaseline, or run with the -Pjmh.params the baseline was recorded with")
+        }
+        for ((name, run) in current) {
+            val base = baseline.getValue(name)
+            val primary = run["primaryMetric"] as Map<*, *>
+            val unit = primary["scoreUnit"].toString()
+            val now = score(primary) ?: continue
+            val before = score(base["primaryMetric"] as Map<*, *>) ?: continue
+            // time-per-op units regress upwards, throughput units regress downwards
+            val change = if (unit.startsWith("ops/")) (before - now) / before else (now - before) / before
+            val alloc = "gc.alloc.rate.norm"
+            val allocNow = score((run["secondaryMetrics"] as Map<*, *>?)?.get(alloc) as Map<*, *>?)
+            val allocBefore = score((base["secondaryMetrics"] as Map<*, *>?)?.get(alloc) as Map<*, *>?)
+            val allocText = if (allocNow == null || allocBefore == null) "" else
+                String.format(" alloc %.1f -> %.1f B/op", allocBefore, allocNow)
+            val line = String.format("%-90s %12.3f -> %12.3f %s (%+.1f%%)%s", name, before, now, unit, change * 100, allocText)
+            logger.lifecycle(line)
+            if (change > limit || (allocNow != null && allocBefore != null && allocNow > allocBefore + 16)) {
+                regressions.add(line)
+            }
+        }
+        if (regressions.isNotEmpty()) {
+            throw GradleException("JMH regressions against ${baselineFile.name}:\n" + regressions.joinToString("\n"))
+        }
+    }
+}
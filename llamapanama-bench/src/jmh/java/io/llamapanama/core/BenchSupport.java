@@ -0,0 +1,10 @@
+package io.llamapanama.core;
+
+final class BenchSupport {
+    private BenchSupport() {}
+
+    static String modelPath() {
+        String path = System.getenv("MODEL_PATH");
+        return path == null || path.isBlank() ? "stub.gguf" : path;
+    }
+}
@@ -0,0 +1,112 @@
+package io.llamapanama.core;
+
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class DecodeLoopBenchmark {
+    private static final String PROMPT = "Explain Panama bindings";
+
+    private final SamplerParams sampler = SamplerParams.defaults();
+    private final byte[] piece = new byte[GenerateBuffer.MAX_PIECE_BYTES];
+    private Model model;
+    private Context context;
+    private SamplerState samplerState;
+    private Embeddings embeddings;
+    private int[] promptTokens;
+    private int token;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        model = new Model(BenchSupport.modelPath());
+        context = new Context(model, 512, 1);
+        samplerState = context.newSamplerState(sampler);
+        embeddings = context.createEmbeddings();
+        promptTokens = context.tokenize(PROMPT, true);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        context.close();
+        model.close();
+    }
+
+    @Benchmark
+    public int[] tokenize() {
+        return context.tokenize(PROMPT, true);
+    }
+
+    @Benchmark
+    public void eval() {
+        context.eval(promptTokens);
+    }
+
+    @Benchmark
+    public int sample() {
+        if (context.cachedTokenCount() >= 256) {
+            context.reset();
+        }
+        return context.sample(sampler, samplerState);
+    }
+
+    @Benchmark
+    public int tokenToPieceBytes() {
+        token = token >= 5 ? 1 : token + 1;
+        return context.tokenToPieceBytes(token, piece);
+    }
+
+    @Benchmark
+    public void streamText(Session state, Blackhole blackhole) {
+        state.session.stream(PROMPT, blackhole::consume);
+    }
+
+    @Benchmark
+    public void streamBytes(Session state, Blackhole blackhole) {
+        state.session.streamBytes(PROMPT, blackhole::consume);
+    }
+
+    @Benchmark
+    public float[] embed() {
+        return embeddings.embed(PROMPT);
+    }
+
+    @State(Scope.Thread)
+    public static class Session {
+        @Param({"1", "8"})
+        public int tokensPerCall;
+
+        private Model model;
+        private ChatSession session;
+
+        @Setup(Level.Trial)
+        public void setUp() {
+            model = new Model(BenchSupport.modelPath());
+            session = new ChatSession(model, SamplerParams.defaults(), 512, 1);
+            session.setTokensPerCall(tokensPerCall);
+        }
+
+        @TearDown(Level.Trial)
+        public void tearDown() {
+            session.close();
+            model.close();
+        }
+    }
+}
@@ -0,0 +1,68 @@
+package io.llamapanama.core;
+
+import java.lang.foreign.Arena;
+import java.lang.foreign.MemorySegment;
+import java.lang.foreign.ValueLayout;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class DetokenizeBenchmark {
+    private Model model;
+    private VocabTable vocab;
+    private Arena arena;
+    private MemorySegment nativeBuffer;
+    private MemorySegment errOut;
+    private final byte[] piece = new byte[512];
+    private int token;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        model = new Model(BenchSupport.modelPath());
+        vocab = model.vocab();
+        arena = Arena.ofConfined();
+        nativeBuffer = arena.allocate(piece.length);
+        errOut = arena.allocate(ValueLayout.JAVA_INT);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        arena.close();
+        model.close();
+    }
+
+    @Benchmark
+    public int perTokenDowncall() {
+        token = nextToken();
+        int len = NativeBindings.tokenToPieceBytes(model.handle(), token, nativeBuffer, piece.length, errOut);
+        MemorySegment.copy(nativeBuffer, ValueLayout.JAVA_BYTE, 0, piece, 0, len);
+        return len;
+    }
+
+    @Benchmark
+    public int vocabTableCopy() {
+        token = nextToken();
+        return vocab.copyPiece(token, piece, 0);
+    }
+
+    private int nextToken() {
+        int next = token + 1;
+        return next >= vocab.size() ? 1 : next;
+    }
+}
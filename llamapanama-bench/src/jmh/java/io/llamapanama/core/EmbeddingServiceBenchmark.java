@@ -0,0 +1,60 @@
+package io.llamapanama.core;
+
+import java.time.Duration;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Threads(Threads.MAX)
+@Fork(1)
+public class EmbeddingServiceBenchmark {
+    @Param({"1", "2", "4", "8"})
+    public int workers;
+
+    private Model model;
+    private Context context;
+    private Embeddings synchronizedEmbeddings;
+    private EmbeddingService service;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        model = new Model(BenchSupport.modelPath());
+        context = new Context(model, 512, 1);
+        synchronizedEmbeddings = context.createEmbeddings();
+        service = new EmbeddingService(model, workers, 512, 1, 32, Duration.ofMillis(1), EmbeddingOptions.defaults());
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        service.close();
+        context.close();
+        model.close();
+    }
+
+    @Benchmark
+    public float[] singleContext() {
+        return synchronizedEmbeddings.embed("The quick brown fox jumps over the lazy dog").clone();
+    }
+
+    @Benchmark
+    public float[] service() {
+        return service.embed("The quick brown fox jumps over the lazy dog");
+    }
+}
@@ -0,0 +1,238 @@
+package io.llamapanama.core;
+
+import java.lang.foreign.Arena;
+import java.lang.foreign.MemorySegment;
+import java.lang.foreign.SegmentAllocator;
+import java.lang.foreign.ValueLayout;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+// one benchmark per NativeBindings entry point
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class NativeBindingsBenchmark {
+    private static final int SEQUENCES = 4;
+    private static final int DRAFT = 4;
+    private static final String GRAMMAR = "root ::= \"{\" space pair ( \",\" space pair )* \"}\"\npair ::= [a-z]+ \":\" space [0-9]+\nspace ::= \" \"?\n";
+    private static final List<String> TEXTS = List.of("alpha", "beta", "gamma", "delta", "epsilon", "zeta", "eta", "theta");
+    private final SamplerParams sampler = SamplerParams.defaults();
+    private final SamplerState samplerState = new SamplerState(sampler.seed());
+    private Model model;
+    private MemorySegment context;
+    private MemorySegment batchContext;
+    private Arena arena;
+    private MemorySegment scratch;
+    private MemorySegment tokens;
+    private MemorySegment offsets;
+    private MemorySegment piece;
+    private MemorySegment embedding;
+    private MemorySegment embeddingBatch;
+    private MemorySegment pos;
+    private MemorySegment errOut;
+    private MemorySegment cancelFlag;
+    private MemorySegment seqIds;
+    private MemorySegment positions;
+    private MemorySegment logits;
+    private MemorySegment seqParams;
+    private MemorySegment outTokens;
+    private MemorySegment verified;
+    private MemorySegment candidates;
+    private MemorySegment candidateLogprobs;
+    private MemorySegment state;
+    private MemorySegment grammar;
+    private GenerateBuffer generateBuffer;
+    private int token;
+    private int kvUsed;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        model = new Model(BenchSupport.modelPath());
+        arena = Arena.ofConfined();
+        context = NativeBindings.createContext(model.handle(), 512, 1, arena);
+        batchContext = NativeBindings.createContext(model.handle(), 512, 1, SEQUENCES, arena);
+        scratch = arena.allocate(4096, 8);
+        tokens = arena.allocateArray(ValueLayout.JAVA_INT, 512);
+        offsets = arena.allocateArray(ValueLayout.JAVA_INT, TEXTS.size() + 1);
+        piece = arena.allocate(GenerateBuffer.MAX_PIECE_BYTES);
+        int dim = NativeBindings.embeddingsDim(model.handle(), arena);
+        embedding = arena.allocateArray(ValueLayout.JAVA_FLOAT, dim);
+        embeddingBatch = arena.allocateArray(ValueLayout.JAVA_FLOAT, (long) dim * TEXTS.size());
+        pos = arena.allocate(ValueLayout.JAVA_INT);
+        errOut = arena.allocate(ValueLayout.JAVA_INT);
+        cancelFlag = arena.allocate(ValueLayout.JAVA_INT);
+        seqIds = arena.allocateArray(ValueLayout.JAVA_INT, SEQUENCES);
+        positions = arena.allocateArray(ValueLayout.JAVA_INT, SEQUENCES);
+        logits = arena.allocateArray(ValueLayout.JAVA_INT, SEQUENCES);
+        seqParams = arena.allocateArray(NativeBindings.SAMPLER_PARAMS_LAYOUT, SEQUENCES);
+        outTokens = arena.allocateArray(ValueLayout.JAVA_INT, SEQUENCES);
+        verified = arena.allocateArray(ValueLayout.JAVA_INT, DRAFT + 1);
+        candidates = arena.allocateArray(ValueLayout.JAVA_INT, SEQUENCES);
+        candidateLogprobs = arena.allocateArray(ValueLayout.JAVA_FLOAT, SEQUENCES);
+        for (int i = 0; i < SEQUENCES; i++) {
+            seqIds.setAtIndex(ValueLayout.JAVA_INT, i, i);
+            logits.setAtIndex(ValueLayout.JAVA_INT, i, 1);
+            NativeBindings.writeSamplerParams(seqParams, i, sampler, 0);
+        }
+        generateBuffer = new GenerateBuffer(arena, 16);
+        state = arena.allocate(NativeBindings.stateSize(context, errOut), Long.BYTES);
+        NativeBindings.stateWrite(context, state, errOut);
+        NativeBindings.tokenize(model.handle(), "Hello world", true, tokens, 512, arena);
+        NativeBindings.decodeBatch(batchContext, seqIds, tokens, positions, logits, SEQUENCES, seqParams, outTokens, errOut);
+        grammar = NativeBindings.compileGrammar(GRAMMAR, arena);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        NativeBindings.freeGrammar(grammar);
+        NativeBindings.freeContext(batchContext);
+        NativeBindings.freeContext(context);
+        arena.close();
+        model.close();
+    }
+
+    // a fresh slicing allocator per call keeps the per-call err/string scratch off the GC profile
+    private SegmentAllocator allocator() {
+        return SegmentAllocator.slicingAllocator(scratch);
+    }
+
+    @Benchmark
+    public int vocabSize() {
+        return NativeBindings.vocabSize(model.handle(), allocator());
+    }
+
+    @Benchmark
+    public int embeddingsDim() {
+        return NativeBindings.embeddingsDim(model.handle(), allocator());
+    }
+
+    @Benchmark
+    public int tokenize() {
+        return NativeBindings.tokenize(model.handle(), "The quick brown fox jumps over the lazy dog", true, tokens, 512, allocator());
+    }
+
+    @Benchmark
+    public int tokenizeBatch() {
+        SegmentAllocator allocator = allocator();
+        MemorySegment cTexts = allocator.allocateArray(ValueLayout.ADDRESS, TEXTS.size());
+        for (int i = 0; i < TEXTS.size(); i++) {
+            cTexts.setAtIndex(ValueLayout.ADDRESS, i, allocator.allocateUtf8String(TEXTS.get(i)));
+        }
+        return NativeBindings.tokenizeBatch(model.handle(), cTexts, TEXTS.size(), true, tokens, 512, offsets, errOut);
+    }
+
+    @Benchmark
+    public int[] countTokens() {
+        return model.countTokens(TEXTS, true);
+    }
+
+    @Benchmark
+    public void evalAt() {
+        NativeBindings.evalAt(context, tokens, 4, 0, allocator());
+    }
+
+    @Benchmark
+    public void kvTruncate() {
+        NativeBindings.kvTruncate(context, 0, allocator());
+    }
+
+    @Benchmark
+    public int sample() {
+        recycle(1);
+        return NativeBindings.sample(context, sampler, samplerState, MemorySegment.NULL, pos, errOut);
+    }
+
+    @Benchmark
+    public int generate() {
+        recycle(generateBuffer.capacity());
+        return NativeBindings.generate(context, sampler, samplerState, MemorySegment.NULL, generateBuffer.capacity(),
+                cancelFlag, generateBuffer, pos, errOut);
+    }
+
+    @Benchmark
+    public int verifyDraft() {
+        recycle(DRAFT + 1);
+        return NativeBindings.verifyDraft(context, sampler, samplerState, MemorySegment.NULL, tokens, DRAFT, verified, pos, errOut);
+    }
+
+    @Benchmark
+    public int decodeBatch() {
+        return NativeBindings.decodeBatch(batchContext, seqIds, tokens, positions, logits, SEQUENCES, seqParams, outTokens, errOut);
+    }
+
+    @Benchmark
+    public void kvSeqCopy() {
+        NativeBindings.kvSeqCopy(batchContext, 0, 1, 0, -1, errOut);
+    }
+
+    @Benchmark
+    public int seqTopTokens() {
+        return NativeBindings.seqTopTokens(batchContext, 0, SEQUENCES, candidates, candidateLogprobs, errOut);
+    }
+
+    @Benchmark
+    public void compileGrammar() {
+        NativeBindings.freeGrammar(NativeBindings.compileGrammar(GRAMMAR, allocator()));
+    }
+
+    @Benchmark
+    public void seqSetGrammar() {
+        NativeBindings.seqSetGrammar(batchContext, SEQUENCES - 1, grammar, errOut);
+    }
+
+    @Benchmark
+    public int tokenToPieceBytes() {
+        token = token >= 5 ? 1 : token + 1;
+        return NativeBindings.tokenToPieceBytes(model.handle(), token, piece, (int) piece.byteSize(), errOut);
+    }
+
+    @Benchmark
+    public int computeEmbeddings() {
+        return NativeBindings.computeEmbeddings(context, "The quick brown fox", embedding, (int) (embedding.byteSize() / Float.BYTES), allocator());
+    }
+
+    @Benchmark
+    public int computeEmbeddingsBatch() {
+        return NativeBindings.computeEmbeddingsBatch(context, TEXTS, 0, TEXTS.size(), EmbeddingOptions.defaults(),
+                embeddingBatch, allocator());
+    }
+
+    @Benchmark
+    public long stateWrite() {
+        return NativeBindings.stateWrite(context, state, errOut);
+    }
+
+    @Benchmark
+    public long stateRead() {
+        return NativeBindings.stateRead(context, state, errOut);
+    }
+
+    @Benchmark
+    public InferenceStats fetchStats() {
+        return NativeBindings.fetchStats(context, allocator());
+    }
+
+    // sampling appends to the KV cache, so clear it well before the context fills up
+    private void recycle(int tokens) {
+        kvUsed += tokens;
+        if (kvUsed > 256) {
+            NativeBindings.kvTruncate(context, 0, allocator());
+            kvUsed = tokens;
+        }
+    }
+}
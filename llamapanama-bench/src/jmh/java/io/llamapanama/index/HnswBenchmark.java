@@ -0,0 +1,145 @@
+package io.llamapanama.index;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 2, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = {"-Xmx8g"})
+public class HnswBenchmark {
+    private static final int QUERIES = 1000;
+    private static final int RECALL_QUERIES = 200;
+    private static final int K = 10;
+
+    @Param({"1000000"})
+    public int size;
+
+    @Param({"128"})
+    public int dim;
+
+    @Param({"64", "256"})
+    public int ef;
+
+    private HnswIndex index;
+    private float[][] queries;
+    private int next;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        index = new HnswIndex(dim, Metric.L2, size);
+        int threads = Runtime.getRuntime().availableProcessors();
+        ExecutorService pool = Executors.newFixedThreadPool(threads);
+        try {
+            List<Future<?>> parts = new ArrayList<>();
+            for (int t = 0; t < threads; t++) {
+                long seed = t;
+                int count = size / threads + (t < size % threads ? 1 : 0);
+                parts.add(pool.submit(() -> {
+                    Random random = new Random(seed);
+                    float[] vector = new float[dim];
+                    for (int i = 0; i < count; i++) {
+                        fill(random, vector);
+                        index.add(vector);
+                    }
+                }));
+            }
+            for (Future<?> part : parts) {
+                part.get();
+            }
+        } finally {
+            pool.shutdown();
+        }
+        index.setEfSearch(ef);
+        Random random = new Random(-1);
+        queries = new float[QUERIES][dim];
+        for (float[] query : queries) {
+            fill(random, query);
+        }
+        System.out.printf("%nrecall@%d=%.4f (size=%d, dim=%d, ef=%d)%n", K, recall(), size, dim, ef);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        index.close();
+    }
+
+    @Benchmark
+    public Object hnswSearch() {
+        return index.search(nextQuery(), K);
+    }
+
+    @Benchmark
+    public Object bruteForceSearch() {
+        return bruteForce(nextQuery());
+    }
+
+    private float[] nextQuery() {
+        float[] query = queries[next];
+        next = (next + 1) % QUERIES;
+        return query;
+    }
+
+    private double recall() {
+        int hits = 0;
+        for (int q = 0; q < RECALL_QUERIES; q++) {
+            int[] truth = bruteForce(queries[q]);
+            for (Neighbor neighbor : index.search(queries[q], K)) {
+                for (int id : truth) {
+                    if (id == neighbor.id()) {
+                        hits++;
+                        break;
+                    }
+                }
+            }
+        }
+        return hits / (double) (RECALL_QUERIES * K);
+    }
+
+    private int[] bruteForce(float[] query) {
+        int[] ids = new int[K];
+        float[] distances = new float[K];
+        Arrays.fill(distances, Float.MAX_VALUE);
+        for (int id = 0; id < index.size(); id++) {
+            float d = index.metric().distance(query, index.vectors(), (long) id * dim * Float.BYTES, dim);
+            if (d < distances[K - 1]) {
+                int i = K - 1;
+                while (i > 0 && distances[i - 1] > d) {
+                    distances[i] = distances[i - 1];
+                    ids[i] = ids[i - 1];
+                    i--;
+                }
+                distances[i] = d;
+                ids[i] = id;
+            }
+        }
+        return ids;
+    }
+
+    private static void fill(Random random, float[] vector) {
+        for (int i = 0; i < vector.length; i++) {
+            vector[i] = random.nextFloat() * 2 - 1;
+        }
+    }
+}
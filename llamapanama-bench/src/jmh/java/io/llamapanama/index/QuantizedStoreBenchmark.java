@@ -0,0 +1,106 @@
+package io.llamapanama.index;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 2, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = {"-Xmx4g"})
+public class QuantizedStoreBenchmark {
+    private static final int QUERIES = 256;
+    private static final int RECALL_QUERIES = 100;
+    private static final int K = 10;
+
+    @Param({"INT8", "BINARY"})
+    public Quantization quantization;
+
+    @Param({"200000"})
+    public int size;
+
+    @Param({"384"})
+    public int dim;
+
+    @Param({"100", "1000"})
+    public int rerank;
+
+    private Path file;
+    private QuantizedStore store;
+    private float[][] queries;
+    private int next;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        file = Files.createTempFile("llamapanama-quantized", ".vec");
+        store = new QuantizedStore(file, dim, Metric.COSINE, quantization, size);
+        Random random = new Random(1);
+        float[] vector = new float[dim];
+        for (int i = 0; i < size; i++) {
+            fill(random, vector);
+            store.add(vector);
+        }
+        queries = new float[QUERIES][dim];
+        for (float[] query : queries) {
+            fill(random, query);
+        }
+        int hits = 0;
+        for (int q = 0; q < RECALL_QUERIES; q++) {
+            List<Neighbor> exact = store.searchExact(queries[q], K);
+            for (Neighbor neighbor : store.search(queries[q], K, rerank)) {
+                if (exact.contains(neighbor)) {
+                    hits++;
+                }
+            }
+        }
+        System.out.printf("%n%s: resident codes %.1f MiB vs float32 %.1f MiB (%.1fx smaller), recall@%d=%.4f with rerank=%d%n",
+                quantization, store.codeBytes() / 1048576.0, store.vectorBytes() / 1048576.0,
+                store.vectorBytes() / (double) store.codeBytes(), K, hits / (double) (RECALL_QUERIES * K), rerank);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        store.close();
+        Files.deleteIfExists(file);
+    }
+
+    @Benchmark
+    public Object quantizedSearch() {
+        return store.search(nextQuery(), K, rerank);
+    }
+
+    @Benchmark
+    public Object exactScan() {
+        return store.searchExact(nextQuery(), K);
+    }
+
+    private float[] nextQuery() {
+        float[] query = queries[next];
+        next = (next + 1) % QUERIES;
+        return query;
+    }
+
+    private static void fill(Random random, float[] vector) {
+        for (int i = 0; i < vector.length; i++) {
+            vector[i] = (float) random.nextGaussian();
+        }
+    }
+}
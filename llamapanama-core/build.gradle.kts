@@ -1,3 +1,6 @@
+import java.security.MessageDigest
+import java.util.HexFormat
+
 plugins {
     `java-library`
 }
@@ -12,12 +15,36 @@ val nativeBuild = tasks.register("nativeBuild") {
     dependsOn(project(":llamapanama-native").tasks.named("cmakeBuild"))
 }
 
+val nativeArtifacts = project(":llamapanama-native").layout.buildDirectory.dir("cmake/artifacts")
+val nativeDigestDir = layout.buildDirectory.dir("generated/native-digests")
+
+// <library>.sha256 beside each bundled library keys the loader's extraction cache
+val nativeDigests = tasks.register("nativeDigests") {
+    dependsOn(nativeBuild)
+    val artifacts = nativeArtifacts.get().asFile
+    val digests = nativeDigestDir.get().asFile
+    inputs.dir(nativeArtifacts)
+    outputs.dir(nativeDigestDir)
+    doLast {
+        digests.deleteRecursively()
+        artifacts.walkTopDown()
+            .filter { it.isFile && it.extension in setOf("so", "dylib", "dll") }
+            .forEach { library ->
+                val digest = HexFormat.of().formatHex(MessageDigest.getInstance("SHA-256").digest(library.readBytes()))
+                val target = digests.resolve(library.relativeTo(artifacts).path + ".sha256")
+                target.parentFile.mkdirs()
+                target.writeText("$digest  ${library.name}\n")
+            }
+    }
+}
+
 sourceSets {
     val main by getting {
-        resources.srcDir(project(":llamapanama-native").layout.buildDirectory.dir("cmake/artifacts"))
+        resources.srcDir(nativeArtifacts)
+        resources.srcDir(nativeDigestDir)
     }
 }
 
 tasks.processResources {
-    dependsOn(nativeBuild)
+    dependsOn(nativeBuild, nativeDigests)
 }
@@ -0,0 +1,603 @@
+package io.llamapanama.core;
+
+import java.lang.foreign.Arena;
+import java.lang.foreign.MemorySegment;
+import java.lang.foreign.ValueLayout;
+import java.io.ByteArrayOutputStream;
+import java.lang.ref.Cleaner;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Objects;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+public final class BatchContext implements AutoCloseable {
+    private static final Cleaner CLEANER = Cleaner.create();
+    private static final int DEFAULT_BATCH_TOKENS = 512;
+    private final MemorySegment handle;
+    private final Model model;
+    private final Cleaner.Cleanable cleanable;
+    private final int maxContextTokens;
+    private final int batchCapacity;
+    private final MemorySegment seqIds;
+    private final MemorySegment tokens;
+    private final MemorySegment positions;
+    private final MemorySegment logits;
+    private final MemorySegment seqParams;
+    private final MemorySegment outTokens;
+    private final MemorySegment errOut;
+    private final Sequence[] sequences;
+    private final AtomicBoolean closed = new AtomicBoolean(false);
+    private int usedCells;
+    private int cursor;
+
+    public BatchContext(Model model, int ctx, int threads, int maxSequences) {
+        this(model, ctx, threads, maxSequences, Math.min(ctx, DEFAULT_BATCH_TOKENS));
+    }
+
+    public BatchContext(Model model, int ctx, int threads, int maxSequences, int batchTokens) {
+        this.model = Objects.requireNonNull(model, "model");
+        if (maxSequences <= 0) {
+            throw new IllegalArgumentException("maxSequences must be positive");
+        }
+        if (batchTokens < maxSequences) {
+            throw new IllegalArgumentException("batchTokens must be at least maxSequences");
+        }
+        this.maxContextTokens = ctx;
+        this.batchCapacity = batchTokens;
+        this.sequences = new Sequence[maxSequences];
+        InferenceEvents.ContextCreate event = new InferenceEvents.ContextCreate();
+        event.begin();
+        Arena arena = Arena.ofShared();
+        this.seqIds = arena.allocateArray(ValueLayout.JAVA_INT, batchTokens);
+        this.tokens = arena.allocateArray(ValueLayout.JAVA_INT, batchTokens);
+        this.positions = arena.allocateArray(ValueLayout.JAVA_INT, batchTokens);
+        this.logits = arena.allocateArray(ValueLayout.JAVA_INT, batchTokens);
+        this.seqParams = arena.allocateArray(NativeBindings.SAMPLER_PARAMS_LAYOUT, maxSequences);
+        this.outTokens = arena.allocateArray(ValueLayout.JAVA_INT, maxSequences);
+        this.errOut = arena.allocate(ValueLayout.JAVA_INT);
+        MemorySegment nativeHandle;
+        model.retain();
+        try {
+            nativeHandle = NativeBindings.createContext(model.handle(), ctx, threads, maxSequences, arena);
+        } catch (RuntimeException e) {
+            arena.close();
+            model.release();
+            throw e;
+        }
+        this.handle = nativeHandle;
+        this.cleanable = CLEANER.register(this, () -> {
+            NativeBindings.freeContext(nativeHandle);
+            arena.close();
+            model.release();
+        });
+        event.contextTokens = ctx;
+        event.threads = threads;
+        event.sequences = maxSequences;
+        event.commit();
+    }
+
+    public Sequence openSequence(SamplerParams params) {
+        ensureOpen();
+        SamplerParams sampler = params == null ? SamplerParams.defaults() : params;
+        for (int i = 0; i < sequences.length; i++) {
+            if (sequences[i] == null) {
+                // also drops whatever parse state the slot's previous sequence left behind
+                Grammar.bind(handle, i, sampler.grammar(), errOut);
+                Sequence sequence = new Sequence(i, sampler);
+                sequences[i] = sequence;
+                return sequence;
+            }
+        }
+        throw new IllegalStateException("No free sequence slots (max " + sequences.length + ")");
+    }
+
+    public int step() {
+        ensureOpen();
+        // a step that threw must not leave counts behind for sequences the next step skips
+        for (Sequence sequence : sequences) {
+            if (sequence != null) {
+                sequence.submitted = 0;
+            }
+        }
+        int entries = 0;
+        for (int k = 0; k < sequences.length && entries < batchCapacity; k++) {
+            Sequence sequence = sequences[(cursor + k) % sequences.length];
+            if (sequence == null || sequence.pendingCount == 0) {
+                continue;
+            }
+            int take = Math.min(sequence.pendingCount, batchCapacity - entries);
+            boolean complete = take == sequence.pendingCount;
+            for (int j = 0; j < take; j++) {
+                seqIds.setAtIndex(ValueLayout.JAVA_INT, entries, sequence.id);
+                tokens.setAtIndex(ValueLayout.JAVA_INT, entries, sequence.pending[sequence.pendingStart + j]);
+                positions.setAtIndex(ValueLayout.JAVA_INT, entries, sequence.position + j);
+                logits.setAtIndex(ValueLayout.JAVA_INT, entries, complete && j == take - 1 ? 1 : 0);
+                entries++;
+            }
+            sequence.submitted = take;
+            NativeBindings.writeSamplerParams(seqParams, sequence.id, sequence.params, sequence.state.nextPosition());
+        }
+        cursor = (cursor + 1) % sequences.length;
+        if (entries == 0) {
+            return 0;
+        }
+        if (usedCells + entries > maxContextTokens) {
+            throw new IllegalStateException("Context window exhausted");
+        }
+        int sampled = NativeBindings.decodeBatch(handle, seqIds, tokens, positions, logits, entries, seqParams, outTokens, errOut);
+        usedCells += entries;
+        for (Sequence sequence : sequences) {
+            if (sequence == null || sequence.submitted == 0) {
+                continue;
+            }
+            sequence.consume(sequence.submitted);
+            int token = outTokens.getAtIndex(ValueLayout.JAVA_INT, sequence.id);
+            if (token >= 0 && !sequence.scoring) {
+                sequence.state.updatePosition(NativeBindings.readSamplerStatePos(seqParams, sequence.id));
+                sequence.accept(token);
+            }
+        }
+        return sampled;
+    }
+
+    public List<String> generateN(String prompt, int n) {
+        return generateN(prompt, n, null);
+    }
+
+    // n samples of one prompt, branch i seeded with seed + i; the prompt is decoded once and shared by every branch
+    public List<String> generateN(String prompt, int n, SamplerParams params) {
+        ensureOpen();
+        Objects.requireNonNull(prompt, "prompt");
+        if (n <= 0 || n > freeSequences()) {
+            throw new IllegalArgumentException("n must be between 1 and the free sequence slots (" + freeSequences() + ")");
+        }
+        SamplerParams sampler = params == null ? SamplerParams.defaults() : params;
+        int[] promptTokens = tokenize(prompt, true);
+        int last = promptTokens[promptTokens.length - 1];
+        List<Sequence> branches = new ArrayList<>(n);
+        try {
+            Sequence root = openSequence(sampler);
+            branches.add(root);
+            // each branch decodes the final prompt token itself so it samples from its own logits row
+            root.append(Arrays.copyOf(promptTokens, promptTokens.length - 1));
+            while (root.pendingCount > 0) {
+                step();
+            }
+            for (int i = 1; i < n; i++) {
+                branches.add(root.fork(sampler.withSeed(sampler.seed() + i)));
+            }
+            int[][] outputs = new int[n][sampler.maxTokens()];
+            int[] lengths = new int[n];
+            for (Sequence branch : branches) {
+                branch.prompt(new int[]{last});
+            }
+            boolean running = true;
+            while (running) {
+                step();
+                running = false;
+                for (int i = 0; i < n; i++) {
+                    Sequence branch = branches.get(i);
+                    if (branch.produced > lengths[i]) {
+                        outputs[i][lengths[i]++] = branch.lastToken;
+                    }
+                    running |= !branch.finished;
+                }
+            }
+            List<String> texts = new ArrayList<>(n);
+            for (int i = 0; i < n; i++) {
+                texts.add(detokenize(outputs[i], lengths[i]));
+            }
+            return texts;
+        } finally {
+            for (Sequence branch : branches) {
+                branch.close();
+            }
+        }
+    }
+
+    public List<Beam> beamSearch(String prompt, int width, int maxTokens) {
+        ensureOpen();
+        Objects.requireNonNull(prompt, "prompt");
+        if (width <= 0 || width > freeSequences()) {
+            throw new IllegalArgumentException("width must be between 1 and the free sequence slots (" + freeSequences() + ")");
+        }
+        if (maxTokens <= 0) {
+            throw new IllegalArgumentException("maxTokens must be positive");
+        }
+        List<Beam> done = new ArrayList<>();
+        List<Hypothesis> live = new ArrayList<>();
+        int[] ids = new int[width];
+        float[] logprobs = new float[width];
+        SamplerParams sampler = SamplerParams.defaults();
+        int forks = 0;
+        try {
+            Sequence root = openSequence(sampler);
+            live.add(new Hypothesis(root, new int[0], 0.0));
+            root.append(tokenize(prompt, true));
+            decode(live);
+            for (int step = 0; step < maxTokens && !live.isEmpty(); step++) {
+                List<Hypothesis> candidates = new ArrayList<>();
+                for (Hypothesis parent : live) {
+                    int count = parent.sequence.topTokens(width, ids, logprobs);
+                    for (int i = 0; i < count; i++) {
+                        int[] extended = Arrays.copyOf(parent.tokens, parent.tokens.length + 1);
+                        extended[parent.tokens.length] = ids[i];
+                        Hypothesis candidate = new Hypothesis(parent.sequence, extended, parent.score + logprobs[i]);
+                        candidate.parent = parent;
+                        candidates.add(candidate);
+                    }
+                }
+                candidates.sort(Comparator.comparingDouble((Hypothesis h) -> h.score).reversed());
+                List<Hypothesis> next = new ArrayList<>(width);
+                for (Hypothesis candidate : candidates.subList(0, Math.min(width, candidates.size()))) {
+                    int token = candidate.tokens[candidate.tokens.length - 1];
+                    if (token == 0) {
+                        done.add(toBeam(candidate.parent.tokens, candidate.score));
+                    } else {
+                        candidate.parent.extensions++;
+                        next.add(candidate);
+                    }
+                }
+                // free the dropped beams first so their slots can host forks of the survivors
+                for (Hypothesis parent : live) {
+                    if (parent.extensions == 0) {
+                        parent.sequence.close();
+                    }
+                }
+                live = next;
+                // every fork must copy its parent before the parent's own next token is queued
+                for (Hypothesis candidate : next) {
+                    Hypothesis parent = candidate.parent;
+                    if (--parent.extensions > 0) {
+                        // per-beam seeds, as in generateN
+                        candidate.sequence = parent.sequence.fork(sampler.withSeed(sampler.seed() + ++forks));
+                    }
+                    candidate.parent = null;
+                }
+                for (Hypothesis candidate : next) {
+                    candidate.sequence.append(new int[]{candidate.tokens[candidate.tokens.length - 1]});
+                }
+                decode(live);
+            }
+            for (Hypothesis hypothesis : live) {
+                done.add(toBeam(hypothesis.tokens, hypothesis.score));
+            }
+        } finally {
+            for (Hypothesis hypothesis : live) {
+                hypothesis.sequence.close();
+            }
+        }
+        done.sort(Comparator.comparingDouble(Beam::logProbability).reversed());
+        return List.copyOf(done.subList(0, Math.min(width, done.size())));
+    }
+
+    public int maxSequences() {
+        return sequences.length;
+    }
+
+    public int activeSequences() {
+        int active = 0;
+        for (Sequence sequence : sequences) {
+            if (sequence != null && !sequence.finished) {
+                active++;
+            }
+        }
+        return active;
+    }
+
+    public int freeCells() {
+        return maxContextTokens - usedCells;
+    }
+
+    private int freeSequences() {
+        int free = 0;
+        for (Sequence sequence : sequences) {
+            if (sequence == null) {
+                free++;
+            }
+        }
+        return free;
+    }
+
+    private void decode(List<Hypothesis> hypotheses) {
+        boolean pending = true;
+        while (pending) {
+            step();
+            pending = false;
+            for (Hypothesis hypothesis : hypotheses) {
+                pending |= hypothesis.sequence.pendingCount > 0;
+            }
+        }
+    }
+
+    private Beam toBeam(int[] ids, double score) {
+        return new Beam(detokenize(ids, ids.length), ids, score);
+    }
+
+    private String detokenize(int[] ids, int count) {
+        VocabTable vocab = model.vocab();
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        for (int i = 0; i < count; i++) {
+            int token = ids[i];
+            if (vocab.contains(token)) {
+                byte[] piece = new byte[vocab.pieceLength(token)];
+                vocab.copyPiece(token, piece, 0);
+                bytes.writeBytes(piece);
+            } else {
+                bytes.writeBytes(tokenToPiece(token).getBytes(StandardCharsets.UTF_8));
+            }
+        }
+        return bytes.toString(StandardCharsets.UTF_8);
+    }
+
+    void appendPiece(Utf8Stream out, int token) {
+        VocabTable vocab = model.vocab();
+        if (vocab.contains(token)) {
+            out.appendPiece(vocab, token);
+        } else {
+            byte[] piece = tokenToPiece(token).getBytes(StandardCharsets.UTF_8);
+            System.arraycopy(piece, 0, out.reserve(piece.length), out.length(), piece.length);
+            out.tokenAppended(piece.length);
+        }
+    }
+
+    public String tokenToPiece(int token) {
+        ensureOpen();
+        try (Arena arena = Arena.ofConfined()) {
+            return NativeBindings.tokenToPiece(model.handle(), token, arena);
+        }
+    }
+
+    public InferenceStats getLastStats() {
+        ensureOpen();
+        try (Arena arena = Arena.ofConfined()) {
+            return NativeBindings.fetchStats(handle, arena);
+        }
+    }
+
+    int[] tokenize(String text, boolean addBos) {
+        ensureOpen();
+        return model.tokenize(text, addBos, maxContextTokens);
+    }
+
+    private void ensureOpen() {
+        if (closed.get()) {
+            throw new IllegalStateException("BatchContext already closed");
+        }
+    }
+
+    @Override
+    public void close() {
+        if (closed.compareAndSet(false, true)) {
+            cleanable.clean();
+        }
+    }
+
+    private static final class Hypothesis {
+        private final int[] tokens;
+        private final double score;
+        private Sequence sequence;
+        private Hypothesis parent;
+        private int extensions;
+
+        private Hypothesis(Sequence sequence, int[] tokens, double score) {
+            this.sequence = sequence;
+            this.tokens = tokens;
+            this.score = score;
+        }
+    }
+
+    public final class Sequence implements AutoCloseable {
+        private final int id;
+        private final SamplerParams params;
+        private final SamplerState state;
+        private int[] pending = new int[16];
+        private int pendingStart;
+        private int pendingCount;
+        private int submitted;
+        private int position;
+        private int produced;
+        private int lastToken = -1;
+        private boolean finished;
+        private boolean released;
+        private boolean scoring;
+        // the first shared cells belong to source and were never decoded by this sequence
+        private Sequence source;
+        private int shared;
+
+        private Sequence(int id, SamplerParams params) {
+            this.id = id;
+            this.params = params;
+            this.state = new SamplerState(params.seed());
+        }
+
+        public void prompt(String text) {
+            Objects.requireNonNull(text, "text");
+            prompt(tokenize(text, position == 0));
+        }
+
+        public void prompt(int[] promptTokens) {
+            Objects.requireNonNull(promptTokens, "promptTokens");
+            ensureUsable();
+            if (params.grammar() != null && position > 0) {
+                // a new turn starts a new constrained reply
+                Grammar.bind(handle, id, params.grammar(), errOut);
+            }
+            enqueue(promptTokens, promptTokens.length);
+            produced = 0;
+            finished = false;
+            scoring = false;
+        }
+
+        // decodes tokens without sampling after them; topTokens then reads the logits of the last one
+        public void append(int[] values) {
+            Objects.requireNonNull(values, "values");
+            ensureUsable();
+            enqueue(values, values.length);
+            scoring = true;
+        }
+
+        public Sequence fork() {
+            return fork(null);
+        }
+
+        // shares the decoded cells; pending tokens are queued on both
+        public Sequence fork(SamplerParams forkParams) {
+            ensureUsable();
+            Sequence child = openSequence(forkParams == null ? params : forkParams);
+            try {
+                NativeBindings.kvSeqCopy(handle, id, child.id, 0, position, errOut);
+            } catch (RuntimeException e) {
+                sequences[child.id] = null;
+                child.released = true;
+                throw e;
+            }
+            if (!Objects.equals(child.params.grammar(), params.grammar())) {
+                // the copied parse state only fits the same grammar
+                Grammar.bind(handle, child.id, child.params.grammar(), errOut);
+            }
+            child.position = position;
+            child.source = this;
+            child.shared = position;
+            child.enqueue(Arrays.copyOfRange(pending, pendingStart, pendingStart + pendingCount), pendingCount);
+            child.produced = produced;
+            child.lastToken = lastToken;
+            child.finished = finished;
+            child.scoring = scoring;
+            child.state.updatePosition(state.nextPosition());
+            return child;
+        }
+
+        public int topTokens(int k, int[] outTokens, float[] outLogprobs) {
+            Objects.requireNonNull(outTokens, "outTokens");
+            Objects.requireNonNull(outLogprobs, "outLogprobs");
+            ensureUsable();
+            if (k <= 0 || k > outTokens.length || k > outLogprobs.length) {
+                throw new IllegalArgumentException("k must be between 1 and the output array lengths");
+            }
+            if (pendingCount > 0) {
+                throw new IllegalStateException("Sequence has tokens waiting to be decoded");
+            }
+            try (Arena arena = Arena.ofConfined()) {
+                MemorySegment ids = arena.allocateArray(ValueLayout.JAVA_INT, k);
+                MemorySegment logprobs = arena.allocateArray(ValueLayout.JAVA_FLOAT, k);
+                int count = NativeBindings.seqTopTokens(handle, id, k, ids, logprobs, errOut);
+                MemorySegment.copy(ids, ValueLayout.JAVA_INT, 0, outTokens, 0, count);
+                MemorySegment.copy(logprobs, ValueLayout.JAVA_FLOAT, 0, outLogprobs, 0, count);
+                return count;
+            }
+        }
+
+        public int id() {
+            return id;
+        }
+
+        public int position() {
+            return position;
+        }
+
+        public int lastToken() {
+            return lastToken;
+        }
+
+        public int produced() {
+            return produced;
+        }
+
+        public boolean isFinished() {
+            return finished;
+        }
+
+        public SamplerState samplerState() {
+            return state;
+        }
+
+        private void accept(int token) {
+            lastToken = token;
+            if (token == 0) {
+                finished = true;
+                return;
+            }
+            produced++;
+            if (produced >= params.maxTokens()) {
+                finished = true;
+            } else {
+                enqueue(token);
+            }
+        }
+
+        private void enqueue(int[] values, int count) {
+            if (pendingStart > 0) {
+                System.arraycopy(pending, pendingStart, pending, 0, pendingCount);
+                pendingStart = 0;
+            }
+            if (pendingCount + count > pending.length) {
+                pending = Arrays.copyOf(pending, Math.max(pendingCount + count, pending.length * 2));
+            }
+            System.arraycopy(values, 0, pending, pendingCount, count);
+            pendingCount += count;
+        }
+
+        private void enqueue(int token) {
+            if (pendingStart + pendingCount == pending.length) {
+                enqueue(new int[]{token}, 1);
+                return;
+            }
+            pending[pendingStart + pendingCount] = token;
+            pendingCount++;
+        }
+
+        private void consume(int count) {
+            position += count;
+            pendingStart += count;
+            pendingCount -= count;
+            if (pendingCount == 0) {
+                pendingStart = 0;
+            }
+            submitted = 0;
+        }
+
+        private void ensureUsable() {
+            ensureOpen();
+            if (released) {
+                throw new IllegalStateException("Sequence already closed");
+            }
+        }
+
+        @Override
+        public void close() {
+            if (released) {
+                return;
+            }
+            released = true;
+            sequences[id] = null;
+            if (!closed.get()) {
+                try (Arena arena = Arena.ofConfined()) {
+                    NativeBindings.kvSeqTruncate(handle, id, 0, arena);
+                }
+            }
+            // cells a fork still shares stay in the cache
+            Sequence heir = null;
+            for (Sequence other : sequences) {
+                if (other != null && other.source == this && (heir == null || other.shared > heir.shared)) {
+                    heir = other;
+                }
+            }
+            if (heir == null) {
+                usedCells -= position - shared;
+                return;
+            }
+            for (Sequence other : sequences) {
+                if (other != null && other != heir && other.source == this) {
+                    other.source = heir;
+                }
+            }
+            usedCells -= position - heir.shared;
+            heir.shared = shared;
+            heir.source = source;
+        }
+    }
+}
@@ -0,0 +1,11 @@
+package io.llamapanama.core;
+
+import java.util.Objects;
+
+// logProbability sums the per-token log-probabilities, without length normalisation
+public record Beam(String text, int[] tokens, double logProbability) {
+    public Beam {
+        Objects.requireNonNull(text, "text");
+        Objects.requireNonNull(tokens, "tokens");
+    }
+}
@@ -0,0 +1,9 @@
+package io.llamapanama.core;
+
+import java.nio.ByteBuffer;
+
+@FunctionalInterface
+public interface ByteTokenListener {
+    // complete UTF-8 code points; the read-only buffer is only valid during the call
+    void onBytes(ByteBuffer utf8);
+}
@@ -0,0 +1,387 @@
+package io.llamapanama.core;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.lang.foreign.Arena;
+import java.lang.foreign.MemorySegment;
+import java.lang.foreign.ValueLayout;
+import java.lang.ref.Cleaner;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
+
+public final class CachingEmbeddings implements Embeddings, AutoCloseable {
+    private static final Cleaner CLEANER = Cleaner.create();
+    private static final int FILE_MAGIC = 0x4C504543;
+    private static final int FILE_VERSION = 1;
+    private static final long FILE_HEADER_BYTES = 64;
+    private static final long SLOT_HEADER_BYTES = 24;
+    private static final int SLOT_USED = 1;
+    private static final ThreadLocal<MessageDigest> SHA256 = ThreadLocal.withInitial(() -> {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 unavailable", e);
+        }
+    });
+    private final Embeddings delegate;
+    private final byte[] modelId;
+    private final long maxBytes;
+    private final Path file;
+    private final Arena arena = Arena.ofShared();
+    private final Cleaner.Cleanable cleanable;
+    private final LinkedHashMap<Key, Integer> index = new LinkedHashMap<>(16, 0.75f, true);
+    private final ArrayDeque<Integer> freeSlots = new ArrayDeque<>();
+    private final ConcurrentHashMap<Key, CompletableFuture<float[]>> inFlight = new ConcurrentHashMap<>();
+    private final AtomicBoolean closed = new AtomicBoolean(false);
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+    private final LongAdder coalesced = new LongAdder();
+    private MemorySegment slab;
+    private int dim;
+    private int slotCount;
+    private long slotBytes;
+
+    public CachingEmbeddings(Embeddings delegate, String modelId, long maxBytes) {
+        this(delegate, modelId, maxBytes, null);
+    }
+
+    public CachingEmbeddings(Embeddings delegate, String modelId, long maxBytes, Path file) {
+        this.delegate = Objects.requireNonNull(delegate, "delegate");
+        this.modelId = Objects.requireNonNull(modelId, "modelId").getBytes(StandardCharsets.UTF_8);
+        if (maxBytes <= 0) {
+            throw new IllegalArgumentException("maxBytes must be positive");
+        }
+        this.maxBytes = maxBytes;
+        this.file = file;
+        this.cleanable = CLEANER.register(this, arena::close);
+        if (file != null && Files.exists(file)) {
+            reopen(file);
+        }
+    }
+
+    @Override
+    public Pooling pooling() {
+        return delegate.pooling();
+    }
+
+    @Override
+    public float[] embed(String text) {
+        Objects.requireNonNull(text, "text");
+        ensureOpen();
+        // embed applies the delegate's pooling without normalizing, the same as embedBatch with those options
+        Key key = key(text, new EmbeddingOptions(delegate.pooling(), false));
+        float[] cached = lookup(key);
+        if (cached != null) {
+            return cached;
+        }
+        CompletableFuture<float[]> mine = new CompletableFuture<>();
+        CompletableFuture<float[]> running = inFlight.putIfAbsent(key, mine);
+        if (running != null) {
+            coalesced.increment();
+            return await(running).clone();
+        }
+        try {
+            misses.increment();
+            float[] vector = delegate.embed(text).clone();
+            store(key, vector);
+            mine.complete(vector);
+            return vector.clone();
+        } catch (RuntimeException e) {
+            mine.completeExceptionally(e);
+            throw e;
+        } finally {
+            inFlight.remove(key, mine);
+        }
+    }
+
+    @Override
+    public EmbeddingMatrix embedBatch(List<String> texts, EmbeddingOptions options) {
+        Objects.requireNonNull(texts, "texts");
+        Objects.requireNonNull(options, "options");
+        if (texts.isEmpty()) {
+            throw new IllegalArgumentException("texts must not be empty");
+        }
+        ensureOpen();
+        Key[] keys = new Key[texts.size()];
+        float[][] rows = new float[texts.size()][];
+        Map<Key, CompletableFuture<float[]>> owned = new HashMap<>();
+        Map<Key, CompletableFuture<float[]>> waiting = new HashMap<>();
+        List<String> missTexts = new ArrayList<>();
+        List<Key> missKeys = new ArrayList<>();
+        for (int i = 0; i < texts.size(); i++) {
+            Key key = key(Objects.requireNonNull(texts.get(i), "text"), options);
+            keys[i] = key;
+            if (owned.containsKey(key) || waiting.containsKey(key)) {
+                continue;
+            }
+            rows[i] = lookup(key);
+            if (rows[i] != null) {
+                continue;
+            }
+            CompletableFuture<float[]> mine = new CompletableFuture<>();
+            CompletableFuture<float[]> running = inFlight.putIfAbsent(key, mine);
+            if (running != null) {
+                coalesced.increment();
+                waiting.put(key, running);
+            } else {
+                misses.increment();
+                owned.put(key, mine);
+                missTexts.add(texts.get(i));
+                missKeys.add(key);
+            }
+        }
+        if (!missTexts.isEmpty()) {
+            try (EmbeddingMatrix computed = delegate.embedBatch(missTexts, options)) {
+                for (int i = 0; i < missKeys.size(); i++) {
+                    float[] vector = computed.rowArray(i);
+                    store(missKeys.get(i), vector);
+                    owned.get(missKeys.get(i)).complete(vector);
+                }
+            } catch (RuntimeException e) {
+                owned.values().forEach(f -> f.completeExceptionally(e));
+                throw e;
+            } finally {
+                owned.forEach(inFlight::remove);
+            }
+        }
+        for (int i = 0; i < keys.length; i++) {
+            if (rows[i] == null) {
+                rows[i] = resolve(keys[i], owned, waiting);
+            }
+        }
+        EmbeddingMatrix matrix = new EmbeddingMatrix(rows.length, rows[0].length);
+        for (int i = 0; i < rows.length; i++) {
+            MemorySegment.copy(rows[i], 0, matrix.row(i), ValueLayout.JAVA_FLOAT, 0, rows[i].length);
+        }
+        return matrix;
+    }
+
+    public Stats stats() {
+        synchronized (index) {
+            return new Stats(hits.sum(), misses.sum(), evictions.sum(), coalesced.sum(), index.size(),
+                    (long) index.size() * slotBytes);
+        }
+    }
+
+    public void clear() {
+        synchronized (index) {
+            for (int slot : index.values()) {
+                slab.set(ValueLayout.JAVA_INT, slotOffset(slot), 0);
+                freeSlots.addLast(slot);
+            }
+            index.clear();
+        }
+    }
+
+    private static float[] resolve(Key key, Map<Key, CompletableFuture<float[]>> owned,
+                                   Map<Key, CompletableFuture<float[]>> waiting) {
+        CompletableFuture<float[]> future = owned.get(key);
+        return await(future != null ? future : waiting.get(key));
+    }
+
+    private float[] lookup(Key key) {
+        synchronized (index) {
+            Integer slot = slab == null ? null : index.get(key);
+            if (slot == null) {
+                return null;
+            }
+            hits.increment();
+            float[] vector = new float[dim];
+            MemorySegment.copy(slab, ValueLayout.JAVA_FLOAT, slotOffset(slot) + SLOT_HEADER_BYTES, vector, 0, dim);
+            return vector;
+        }
+    }
+
+    private void store(Key key, float[] vector) {
+        synchronized (index) {
+            if (closed.get()) {
+                return;
+            }
+            if (slab == null) {
+                allocate(vector.length);
+            }
+            if (vector.length != dim) {
+                throw new IllegalStateException("Embedding dimension changed from " + dim + " to " + vector.length);
+            }
+            if (slotCount == 0 || index.containsKey(key)) {
+                return;
+            }
+            Integer slot = freeSlots.pollFirst();
+            if (slot == null) {
+                Iterator<Map.Entry<Key, Integer>> eldest = index.entrySet().iterator();
+                slot = eldest.next().getValue();
+                eldest.remove();
+                evictions.increment();
+            }
+            long offset = slotOffset(slot);
+            slab.set(ValueLayout.JAVA_INT, offset, SLOT_USED);
+            slab.set(ValueLayout.JAVA_LONG_UNALIGNED, offset + 8, key.high());
+            slab.set(ValueLayout.JAVA_LONG_UNALIGNED, offset + 16, key.low());
+            MemorySegment.copy(vector, 0, slab, ValueLayout.JAVA_FLOAT, offset + SLOT_HEADER_BYTES, dim);
+            index.put(key, slot);
+        }
+    }
+
+    private void allocate(int dimension) {
+        this.dim = dimension;
+        this.slotBytes = SLOT_HEADER_BYTES + (long) dimension * Float.BYTES;
+        this.slotCount = (int) Math.min(Integer.MAX_VALUE, maxBytes / slotBytes);
+        long size = FILE_HEADER_BYTES + slotCount * slotBytes;
+        if (file == null) {
+            slab = arena.allocate(size, 8);
+        } else {
+            slab = map(file, size, 0, arena);
+            slab.set(ValueLayout.JAVA_INT, 0, FILE_MAGIC);
+            slab.set(ValueLayout.JAVA_INT, 4, FILE_VERSION);
+            slab.set(ValueLayout.JAVA_INT, 8, dim);
+            slab.set(ValueLayout.JAVA_INT, 12, slotCount);
+        }
+        for (int i = 0; i < slotCount; i++) {
+            freeSlots.addLast(i);
+        }
+    }
+
+    private void reopen(Path path) {
+        try (Arena scan = Arena.ofConfined()) {
+            MemorySegment existing = map(path, -1, -1, scan);
+            if (existing.byteSize() < FILE_HEADER_BYTES
+                    || existing.get(ValueLayout.JAVA_INT, 0) != FILE_MAGIC
+                    || existing.get(ValueLayout.JAVA_INT, 4) != FILE_VERSION) {
+                throw new IllegalStateException("Not an embedding cache file: " + path);
+            }
+            int fileDim = existing.get(ValueLayout.JAVA_INT, 8);
+            int fileSlots = existing.get(ValueLayout.JAVA_INT, 12);
+            long fileSlotBytes = SLOT_HEADER_BYTES + (long) fileDim * Float.BYTES;
+            if (fileDim <= 0 || fileSlots < 0 || existing.byteSize() < FILE_HEADER_BYTES + fileSlots * fileSlotBytes) {
+                throw new IllegalStateException("Corrupt embedding cache file: " + path);
+            }
+            this.dim = fileDim;
+            this.slotBytes = fileSlotBytes;
+            this.slotCount = (int) Math.min(fileSlots, maxBytes / fileSlotBytes);
+            if (slotCount < fileSlots) {
+                shrink(existing, fileSlots);
+            }
+        }
+        // the scan mapping is gone, so the file can be cut back to the budget
+        long size = FILE_HEADER_BYTES + slotCount * slotBytes;
+        this.slab = map(path, size, size, arena);
+        for (int slot = 0; slot < slotCount; slot++) {
+            long offset = slotOffset(slot);
+            if (slab.get(ValueLayout.JAVA_INT, offset) == SLOT_USED) {
+                index.put(new Key(slab.get(ValueLayout.JAVA_LONG_UNALIGNED, offset + 8),
+                        slab.get(ValueLayout.JAVA_LONG_UNALIGNED, offset + 16)), slot);
+            } else {
+                freeSlots.addLast(slot);
+            }
+        }
+    }
+
+    // moves entries above the budget into free slots below it and evicts the rest
+    private void shrink(MemorySegment existing, int fileSlots) {
+        int free = 0;
+        for (int slot = slotCount; slot < fileSlots; slot++) {
+            long offset = slotOffset(slot);
+            if (existing.get(ValueLayout.JAVA_INT, offset) != SLOT_USED) {
+                continue;
+            }
+            while (free < slotCount && existing.get(ValueLayout.JAVA_INT, slotOffset(free)) == SLOT_USED) {
+                free++;
+            }
+            if (free < slotCount) {
+                MemorySegment.copy(existing, offset, existing, slotOffset(free), slotBytes);
+                free++;
+            } else {
+                evictions.increment();
+            }
+        }
+        existing.set(ValueLayout.JAVA_INT, 12, slotCount);
+        existing.force();
+    }
+
+    private static MemorySegment map(Path path, long size, long truncateTo, Arena arena) {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                StandardOpenOption.WRITE)) {
+            if (truncateTo >= 0 && channel.size() > truncateTo) {
+                channel.truncate(truncateTo);
+            }
+            long length = size < 0 ? channel.size() : size;
+            return channel.map(FileChannel.MapMode.READ_WRITE, 0, length, arena);
+        } catch (IOException e) {
+            throw new UncheckedIOException("Failed to map embedding cache " + path, e);
+        }
+    }
+
+    private long slotOffset(int slot) {
+        return FILE_HEADER_BYTES + slot * slotBytes;
+    }
+
+    private Key key(String text, EmbeddingOptions options) {
+        MessageDigest digest = SHA256.get();
+        digest.reset();
+        digest.update(modelId);
+        digest.update((byte) 0);
+        digest.update((byte) options.pooling().ordinal());
+        digest.update((byte) (options.normalize() ? 1 : 0));
+        digest.update(text.getBytes(StandardCharsets.UTF_8));
+        ByteBuffer hash = ByteBuffer.wrap(digest.digest());
+        return new Key(hash.getLong(), hash.getLong());
+    }
+
+    private static float[] await(CompletableFuture<float[]> future) {
+        try {
+            return future.join();
+        } catch (CompletionException e) {
+            if (e.getCause() instanceof RuntimeException cause) {
+                throw cause;
+            }
+            throw e;
+        }
+    }
+
+    private void ensureOpen() {
+        if (closed.get()) {
+            throw new IllegalStateException("CachingEmbeddings already closed");
+        }
+    }
+
+    @Override
+    public void close() {
+        if (closed.compareAndSet(false, true)) {
+            synchronized (index) {
+                if (file != null && slab != null) {
+                    slab.force();
+                }
+                index.clear();
+                freeSlots.clear();
+                slab = null;
+            }
+            cleanable.clean();
+        }
+    }
+
+    public record Stats(long hits, long misses, long evictions, long coalesced, int entries, long bytes) {
+    }
+
+    private record Key(long high, long low) {
+    }
+}
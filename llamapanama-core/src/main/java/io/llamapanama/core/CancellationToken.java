@@ -1,9 +1,13 @@
 package io.llamapanama.core;
 
+import java.lang.foreign.Arena;
+import java.lang.foreign.MemorySegment;
+import java.lang.foreign.ValueLayout;
 import java.util.concurrent.atomic.AtomicBoolean;
 
 public final class CancellationToken {
     private final AtomicBoolean cancelled;
+    private volatile MemorySegment nativeFlag;
 
     public CancellationToken() {
         this(false);
@@ -19,9 +23,30 @@ public final class CancellationToken {
 
     public void cancel() {
         cancelled.set(true);
+        MemorySegment flag = nativeFlag;
+        if (flag != null) {
+            flag.set(ValueLayout.JAVA_INT, 0, 1);
+        }
     }
 
     public boolean isCancelled() {
         return cancelled.get();
     }
+
+    MemorySegment nativeFlag() {
+        MemorySegment flag = nativeFlag;
+        if (flag == null) {
+            synchronized (this) {
+                flag = nativeFlag;
+                if (flag == null) {
+                    flag = Arena.ofAuto().allocate(ValueLayout.JAVA_INT);
+                    nativeFlag = flag;
+                    if (cancelled.get()) {
+                        flag.set(ValueLayout.JAVA_INT, 0, 1);
+                    }
+                }
+            }
+        }
+        return flag;
+    }
 }
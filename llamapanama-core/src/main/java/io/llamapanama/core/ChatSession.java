@@ -1,29 +1,39 @@
 package io.llamapanama.core;
 
-import java.nio.ByteBuffer;
-import java.nio.CharBuffer;
-import java.nio.charset.CharsetDecoder;
-import java.nio.charset.CoderResult;
-import java.nio.charset.CodingErrorAction;
-import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.Arrays;
 import java.util.Objects;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Flow;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 public final class ChatSession implements AutoCloseable {
     private static final Logger LOG = LoggerFactory.getLogger(ChatSession.class);
-    private static final int STREAM_BATCH_CHARS = 32;
-    private static final int TOKEN_PIECE_BYTES = 512;
-    private static final int UTF8_BUFFER_BYTES = 4096;
     private final Context context;
+    private final boolean ownsContext;
     private final SamplerParams sampler;
     private final SamplerState samplerState;
     private volatile InferenceStats lastStats;
+    private final Utf8Stream utf8 = new Utf8Stream();
+    private volatile int tokensPerCall = 1;
+    private volatile FlushPolicy flushPolicy = FlushPolicy.defaults();
+    private volatile Draft draft;
+    // the generation whose tokens the context currently holds
+    private Generation active;
 
     public ChatSession(Model model, SamplerParams sampler, int ctxTokens, int threads) {
         Objects.requireNonNull(model, "model");
         this.sampler = sampler == null ? SamplerParams.defaults() : sampler;
         this.context = new Context(model, ctxTokens, threads);
+        this.ownsContext = true;
+        this.samplerState = context.newSamplerState(this.sampler);
+    }
+
+    public ChatSession(Context context, SamplerParams sampler) {
+        this.context = Objects.requireNonNull(context, "context");
+        this.ownsContext = false;
+        this.sampler = sampler == null ? SamplerParams.defaults() : sampler;
         this.samplerState = context.newSamplerState(this.sampler);
     }
 
@@ -37,137 +47,292 @@ public final class ChatSession implements AutoCloseable {
         stream(prompt, listener, CancellationToken.none());
     }
 
-    public void stream(String prompt, TokenListener listener, CancellationToken token) {
-        Objects.requireNonNull(prompt, "prompt");
+    public synchronized void stream(String prompt, TokenListener listener, CancellationToken token) {
+        Objects.requireNonNull(listener, "listener");
+        utf8.begin(listener, flushPolicy);
+        run(prompt, token);
+    }
+
+    public void streamBytes(String prompt, ByteTokenListener listener) {
+        streamBytes(prompt, listener, CancellationToken.none());
+    }
+
+    public synchronized void streamBytes(String prompt, ByteTokenListener listener, CancellationToken token) {
         Objects.requireNonNull(listener, "listener");
-        Objects.requireNonNull(token, "token");
-        samplerState.reset();
-        long start = System.nanoTime();
-        int[] tokens = context.tokenize(prompt, true);
-        context.eval(tokens);
-        int produced = 0;
-        StringBuilder batch = new StringBuilder();
-        CharsetDecoder decoder = StandardCharsets.UTF_8.newDecoder()
-                .onMalformedInput(CodingErrorAction.REPLACE)
-                .onUnmappableCharacter(CodingErrorAction.REPLACE);
-        byte[] pieceBuffer = new byte[TOKEN_PIECE_BYTES];
-        byte[] pendingBytes = new byte[UTF8_BUFFER_BYTES];
-        int[] pendingLenHolder = new int[]{0};
-        while (produced < sampler.maxTokens() && !token.isCancelled()) {
-            int tokenId = context.sample(sampler, samplerState);
-            if (tokenId == 0) {
-                break;
+        utf8.begin(listener, flushPolicy);
+        run(prompt, token);
+    }
+
+    public Flow.Publisher<TokenChunk> publish(String prompt) {
+        return publish(prompt, TokenPublisher.DECODE_EXECUTOR);
+    }
+
+    public Flow.Publisher<TokenChunk> publish(String prompt, Executor executor) {
+        Objects.requireNonNull(prompt, "prompt");
+        Objects.requireNonNull(executor, "executor");
+        return new TokenPublisher((listener, token) -> open(prompt, listener, token), executor);
+    }
+
+    private void run(String prompt, CancellationToken token) {
+        try {
+            Generation generation = new Generation(prompt, token, utf8);
+            while (generation.step()) {
             }
-            int pieceLen = context.tokenToPieceBytes(tokenId, pieceBuffer);
-            if (pieceLen > 0) {
-                pendingBytes = appendBytes(pendingBytes, pendingLenHolder[0], pieceBuffer, pieceLen);
-                pendingLenHolder[0] += pieceLen;
-                String decoded = decodeAvailable(decoder, pendingBytes, pendingLenHolder);
-                if (!decoded.isEmpty()) {
-                    batch.append(decoded);
-                    if (shouldFlushBatch(batch, decoded, produced)) {
-                        listener.onToken(batch.toString());
-                        batch.setLength(0);
-                    }
+            generation.finish();
+        } finally {
+            utf8.clear();
+        }
+    }
+
+    // locks per step, so a paused subscriber holds neither the lock nor a thread
+    private synchronized TokenPublisher.Generation open(String prompt, TokenListener listener, CancellationToken token) {
+        Utf8Stream stream = new Utf8Stream();
+        stream.begin(listener, flushPolicy);
+        Generation generation = new Generation(prompt, token, stream);
+        return new TokenPublisher.Generation() {
+            @Override
+            public boolean step() {
+                synchronized (ChatSession.this) {
+                    generation.resume();
+                    return generation.step();
                 }
             }
-            produced++;
-        }
-        String tail = flushDecoder(decoder, pendingBytes, pendingLenHolder[0]);
-        if (!tail.isEmpty()) {
-            batch.append(tail);
+
+            @Override
+            public void finish() {
+                synchronized (ChatSession.this) {
+                    generation.finish();
+                }
+            }
+        };
+    }
+
+    private final class Generation {
+        private final CancellationToken cancel;
+        private final Utf8Stream out;
+        private final long start;
+        // no clock calls per token while metrics are off
+        private final InferenceMetrics metrics = context.metrics();
+        private final boolean timed = metrics.isEnabled();
+        private final int perCall = tokensPerCall;
+        private final Draft speculative = draft;
+        private final int[] proposed = speculative == null ? null : new int[speculative.tokens()];
+        private final int[] verified = speculative == null ? null : new int[speculative.tokens() + 1];
+        // the prompt followed by every token produced so far
+        private final int[] sequence;
+        private int length;
+        private int produced;
+        private long lastTokenAt;
+        private int position;
+        private boolean done;
+
+        private Generation(String prompt, CancellationToken cancel, Utf8Stream out) {
+            Objects.requireNonNull(prompt, "prompt");
+            this.cancel = Objects.requireNonNull(cancel, "cancel");
+            this.out = out;
+            samplerState.reset();
+            this.start = System.nanoTime();
+            this.lastTokenAt = start;
+            int[] tokens = context.tokenize(prompt, true);
+            context.evalIncremental(tokens);
+            this.sequence = Arrays.copyOf(tokens, tokens.length + sampler.maxTokens() + 1);
+            this.length = tokens.length;
+            if (speculative != null) {
+                speculative.context().evalIncremental(sequence, length);
+            }
+            active = this;
         }
-        if (batch.length() > 0) {
-            listener.onToken(batch.toString());
+
+        // puts the context back where this generation left it if another one ran in between
+        void resume() {
+            if (active == this) {
+                return;
+            }
+            context.evalIncremental(sequence, length);
+            if (speculative != null) {
+                speculative.context().evalIncremental(sequence, length);
+            }
+            samplerState.updatePosition(position);
+            active = this;
         }
-        long end = System.nanoTime();
-        lastStats = context.getLastStats();
-        LOG.info("first_token_ms={} tokens_per_sec={} total_ms={} emitted={} wall_ms={}",
-                lastStats.firstTokenMs(), lastStats.tokensPerSecond(), lastStats.totalMs(),
-                lastStats.tokensEmitted(), (end - start) / 1_000_000.0);
-    }
 
-    public InferenceStats getLastStats() {
-        return lastStats;
-    }
+        // decodes one sample, one fused call or one speculative round; false once the generation is over
+        boolean step() {
+            if (done || produced >= sampler.maxTokens() || cancel.isCancelled()) {
+                return false;
+            }
+            if (speculative != null) {
+                done = !speculate();
+            } else if (perCall > 1) {
+                GenerateBuffer fused = context.generateBuffer(perCall);
+                int count = context.generate(sampler, samplerState, sampler.maxTokens() - produced, cancel, fused);
+                if (timed && count > 0) {
+                    lastTokenAt = recordTokens(metrics, produced, count, lastTokenAt, start);
+                }
+                long offset = 0;
+                for (int i = 0; i < count; i++) {
+                    int pieceLen = fused.pieceLength(i);
+                    if (pieceLen > 0) {
+                        out.append(fused.bytes(), offset, pieceLen);
+                    }
+                    offset += pieceLen;
+                    sequence[length++] = fused.token(i);
+                }
+                produced += count;
+                int reason = fused.stopReason();
+                done = reason == GenerateBuffer.STATUS_EOS || reason == GenerateBuffer.STATUS_CANCELLED;
+            } else {
+                int tokenId = context.sample(sampler, samplerState);
+                if (tokenId == 0) {
+                    done = true;
+                } else {
+                    if (timed) {
+                        lastTokenAt = recordTokens(metrics, produced, 1, lastTokenAt, start);
+                    }
+                    appendPiece(out, tokenId);
+                    sequence[length++] = tokenId;
+                    produced++;
+                }
+            }
+            position = samplerState.nextPosition();
+            return !done;
+        }
 
-    private boolean shouldFlushBatch(StringBuilder batch, String lastPiece, int produced) {
-        if (batch.length() >= STREAM_BATCH_CHARS) {
+        // the target verifies the draft's tokens in one call and decides every emitted token
+        private boolean speculate() {
+            Context drafter = speculative.context();
+            int budget = Math.min(speculative.tokens(), sampler.maxTokens() - produced - 1);
+            speculative.state().updatePosition(samplerState.nextPosition());
+            int proposals = 0;
+            while (proposals < budget) {
+                int proposal = drafter.sample(speculative.sampler(), speculative.state());
+                if (proposal == 0) {
+                    break;
+                }
+                proposed[proposals++] = proposal;
+            }
+            int count = context.verifyDraft(sampler, samplerState, proposed, proposals, verified);
+            int emitted = 0;
+            while (emitted < count && verified[emitted] != 0) {
+                appendPiece(out, verified[emitted]);
+                sequence[length++] = verified[emitted];
+                emitted++;
+            }
+            if (timed && emitted > 0) {
+                lastTokenAt = recordTokens(metrics, produced, emitted, lastTokenAt, start);
+            }
+            produced += emitted;
+            if (emitted < count) {
+                return false;
+            }
+            // re-evaluating from the divergence drops the rejected tail
+            drafter.evalIncremental(sequence, length);
             return true;
         }
-        if (produced == 0) {
-            return false;
-        }
-        if (!lastPiece.isEmpty()) {
-            char last = lastPiece.charAt(lastPiece.length() - 1);
-            return last == '.' || last == '!' || last == '?' || last == '\n';
+
+        void finish() {
+            out.finish();
+            long end = System.nanoTime();
+            if (timed) {
+                metrics.recordRequest(produced, end - start);
+            }
+            lastStats = context.getLastStats();
+            if (LOG.isDebugEnabled()) {
+                LOG.debug("first_token_ms={} tokens_per_sec={} total_ms={} emitted={} prompt_reused={} prompt_evaluated={} "
+                                + "prompt_eval_ms={} decode_ms={} inter_token_p99_ns={} kv_cells={}/{} ffm_calls={} draft_accepted={}/{} wall_ms={}",
+                        lastStats.firstTokenMs(), lastStats.tokensPerSecond(), lastStats.totalMs(),
+                        lastStats.tokensEmitted(), lastStats.promptTokensReused(), lastStats.promptTokensEvaluated(),
+                        lastStats.promptEvalMs(), lastStats.decodeMs(), lastStats.interTokenP99Ns(),
+                        lastStats.kvCellsUsed(), lastStats.kvCellsTotal(), lastStats.ffmCalls(), lastStats.draftTokensAccepted(),
+                        lastStats.draftTokens(), (end - start) / 1_000_000.0);
+            }
         }
-        return false;
     }
 
-    private static byte[] appendBytes(byte[] target, int targetLen, byte[] source, int sourceLen) {
-        int needed = targetLen + sourceLen;
-        if (needed > target.length) {
-            int newSize = Math.max(needed, target.length * 2);
-            byte[] resized = new byte[newSize];
-            System.arraycopy(target, 0, resized, 0, targetLen);
-            target = resized;
+    private void appendPiece(Utf8Stream out, int tokenId) {
+        byte[] buffer = out.reserve(GenerateBuffer.MAX_PIECE_BYTES);
+        int pieceLen = context.tokenToPieceBytes(tokenId, buffer, out.length());
+        if (pieceLen > 0) {
+            out.tokenAppended(pieceLen);
         }
-        System.arraycopy(source, 0, target, targetLen, sourceLen);
-        return target;
     }
 
-    private static String decodeAvailable(CharsetDecoder decoder, byte[] pending, int[] pendingLenHolder) {
-        if (pendingLenHolder[0] == 0) {
-            return "";
-        }
-        ByteBuffer byteBuffer = ByteBuffer.wrap(pending, 0, pendingLenHolder[0]);
-        CharBuffer charBuffer = CharBuffer.allocate(1024);
-        StringBuilder decoded = new StringBuilder();
-        while (true) {
-            CoderResult result = decoder.decode(byteBuffer, charBuffer, false);
-            charBuffer.flip();
-            if (charBuffer.hasRemaining()) {
-                decoded.append(charBuffer);
-            }
-            charBuffer.clear();
-            if (result.isOverflow()) {
-                continue;
+    private static long recordTokens(InferenceMetrics metrics, int producedBefore, int count, long lastTokenAt, long start) {
+        long now = System.nanoTime();
+        long elapsed = now - lastTokenAt;
+        if (producedBefore == 0) {
+            metrics.recordFirstToken(now - start);
+            if (count > 1) {
+                metrics.recordInterToken(elapsed / count * (count - 1), count - 1);
             }
-            break;
+        } else {
+            metrics.recordInterToken(elapsed, count);
         }
-        int remaining = byteBuffer.remaining();
-        if (remaining > 0) {
-            System.arraycopy(pending, pendingLenHolder[0] - remaining, pending, 0, remaining);
-        }
-        pendingLenHolder[0] = remaining;
-        return decoded.toString();
+        return now;
+    }
+
+    public InferenceStats getLastStats() {
+        return lastStats;
     }
 
-    private static String flushDecoder(CharsetDecoder decoder, byte[] pending, int pendingLen) {
-        if (pendingLen == 0) {
-            return "";
+    // every generation restarts the sampler, so only the tokens and KV cache are worth saving
+    public synchronized void saveState(Path path) {
+        context.saveState(path);
+    }
+
+    // the next prompt that extends the saved conversation only evaluates its new suffix
+    public synchronized void restoreState(Path path) {
+        context.restoreState(path);
+        active = null;
+    }
+
+    public int getTokensPerCall() {
+        return tokensPerCall;
+    }
+
+    public void setTokensPerCall(int tokensPerCall) {
+        if (tokensPerCall <= 0) {
+            throw new IllegalArgumentException("tokensPerCall must be positive");
         }
-        ByteBuffer byteBuffer = ByteBuffer.wrap(pending, 0, pendingLen);
-        CharBuffer charBuffer = CharBuffer.allocate(1024);
-        StringBuilder decoded = new StringBuilder();
-        CoderResult result = decoder.decode(byteBuffer, charBuffer, true);
-        while (result.isOverflow()) {
-            charBuffer.flip();
-            decoded.append(charBuffer);
-            charBuffer.clear();
-            result = decoder.decode(byteBuffer, charBuffer, true);
+        this.tokensPerCall = tokensPerCall;
+    }
+
+    // the draft must share the target's vocabulary and stays owned by the caller
+    public void setDraft(Context draftContext, int draftTokens) {
+        setDraft(draftContext, sampler, draftTokens);
+    }
+
+    public void setDraft(Context draftContext, SamplerParams draftSampler, int draftTokens) {
+        Objects.requireNonNull(draftContext, "draftContext");
+        Objects.requireNonNull(draftSampler, "draftSampler");
+        if (draftContext == context) {
+            throw new IllegalArgumentException("draft context must differ from the session context");
         }
-        decoder.flush(charBuffer);
-        charBuffer.flip();
-        if (charBuffer.hasRemaining()) {
-            decoded.append(charBuffer);
+        if (draftTokens <= 0) {
+            throw new IllegalArgumentException("draftTokens must be positive");
         }
-        return decoded.toString();
+        this.draft = new Draft(draftContext, draftSampler, draftContext.newSamplerState(draftSampler), draftTokens);
+    }
+
+    public void clearDraft() {
+        this.draft = null;
+    }
+
+    public FlushPolicy getFlushPolicy() {
+        return flushPolicy;
+    }
+
+    public void setFlushPolicy(FlushPolicy flushPolicy) {
+        this.flushPolicy = Objects.requireNonNull(flushPolicy, "flushPolicy");
     }
 
     @Override
     public void close() {
-        context.close();
+        if (ownsContext) {
+            context.close();
+        }
+    }
+
+    private record Draft(Context context, SamplerParams sampler, SamplerState state, int tokens) {
     }
 }
@@ -3,84 +3,331 @@ package io.llamapanama.core;
 import java.lang.foreign.Arena;
 import java.lang.foreign.MemorySegment;
 import java.lang.foreign.ValueLayout;
+import java.io.IOException;
+import java.io.UncheckedIOException;
 import java.lang.ref.Cleaner;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.List;
 import java.util.Objects;
 import java.util.concurrent.atomic.AtomicBoolean;
 
 public final class Context implements AutoCloseable {
     private static final Cleaner CLEANER = Cleaner.create();
+    private static final int PIECE_SCRATCH_BYTES = 512;
+    private static final int EMBED_BATCH_TEXTS = 64;
+    private static final int STATE_MAGIC = 0x4C505353;
+    private static final int STATE_VERSION = 1;
+    private static final long STATE_HEADER_BYTES = 64;
+    private static final int GENERATE_ARENA = 0;
+    private static final int DRAFT_ARENA = 1;
     private final MemorySegment handle;
     private final Model model;
     private final Cleaner.Cleanable cleanable;
     private final int maxContextTokens;
+    private final int[] cachedTokens;
+    private int cachedCount;
+    private int promptTokensReused;
+    private int promptTokensEvaluated;
+    private final MemorySegment errScratch;
+    private final MemorySegment posScratch;
+    private final MemorySegment pieceScratch;
+    // the grammar sequence 0 holds a native parse state for
+    private String boundGrammar;
+    private final Arena arena;
+    // grown buffers get their own arena, closed when replaced
+    private final Arena[] grownArenas = new Arena[2];
+    private GenerateBuffer generateBuffer;
+    private MemorySegment draftScratch;
     private final AtomicBoolean closed = new AtomicBoolean(false);
     private volatile InferenceStats lastStats;
 
     public Context(Model model, int ctx, int threads) {
         this.model = Objects.requireNonNull(model, "model");
         this.maxContextTokens = ctx;
+        this.cachedTokens = new int[ctx];
+        InferenceEvents.ContextCreate event = new InferenceEvents.ContextCreate();
+        event.begin();
         Arena arena = Arena.ofShared();
-        this.handle = NativeBindings.createContext(model.handle(), ctx, threads, arena);
-        this.cleanable = CLEANER.register(this, () -> NativeBindings.freeContext(handle));
+        MemorySegment nativeHandle;
+        model.retain();
+        try {
+            nativeHandle = NativeBindings.createContext(model.handle(), ctx, threads, arena);
+        } catch (RuntimeException e) {
+            arena.close();
+            model.release();
+            throw e;
+        }
+        this.handle = nativeHandle;
+        this.arena = arena;
+        this.errScratch = arena.allocate(ValueLayout.JAVA_INT);
+        this.posScratch = arena.allocate(ValueLayout.JAVA_INT);
+        this.pieceScratch = arena.allocate(PIECE_SCRATCH_BYTES);
+        Arena[] grown = grownArenas;
+        this.cleanable = CLEANER.register(this, () -> {
+            NativeBindings.freeContext(nativeHandle);
+            arena.close();
+            for (Arena buffers : grown) {
+                if (buffers != null) {
+                    buffers.close();
+                }
+            }
+            model.release();
+        });
+        event.contextTokens = ctx;
+        event.threads = threads;
+        event.sequences = 1;
+        event.commit();
     }
 
     int[] tokenize(String text, boolean addBos) {
         ensureOpen();
-        try (Arena arena = Arena.ofConfined()) {
-            MemorySegment buffer = arena.allocateArray(ValueLayout.JAVA_INT, maxContextTokens);
-            int count = NativeBindings.tokenize(model.handle(), text, addBos, buffer, maxContextTokens, arena);
-            int[] tokens = new int[count];
-            for (int i = 0; i < count; i++) {
-                tokens[i] = buffer.getAtIndex(ValueLayout.JAVA_INT, i);
-            }
-            return tokens;
-        }
+        return model.tokenize(text, addBos, maxContextTokens);
     }
 
     void eval(int[] tokens) {
         ensureOpen();
+        evalFrom(tokens, tokens.length, 0);
+    }
+
+    int evalIncremental(int[] tokens) {
+        return evalIncremental(tokens, tokens.length);
+    }
+
+    // evaluates tokens[0, length), truncating the KV cache back to the prefix it already holds
+    int evalIncremental(int[] tokens, int length) {
+        ensureOpen();
+        int common = commonPrefix(tokens, length);
+        if (common == length && common > 0) {
+            // the last prompt token must be re-evaluated so the sampler has fresh logits
+            common--;
+        }
+        evalFrom(tokens, length, common);
+        return common;
+    }
+
+    private void evalFrom(int[] tokens, int length, int nPast) {
+        if (length > maxContextTokens) {
+            throw new IllegalArgumentException("Prompt has " + length + " tokens but context holds " + maxContextTokens);
+        }
+        int suffix = length - nPast;
+        InferenceEvents.PromptEval event = InferenceEvents.recording() ? new InferenceEvents.PromptEval() : null;
+        if (event != null) {
+            event.begin();
+        }
         try (Arena arena = Arena.ofConfined()) {
-            MemorySegment nativeTokens = arena.allocateArray(ValueLayout.JAVA_INT, tokens.length);
-            for (int i = 0; i < tokens.length; i++) {
-                nativeTokens.setAtIndex(ValueLayout.JAVA_INT, i, tokens[i]);
-            }
-            NativeBindings.eval(handle, nativeTokens, tokens.length, arena);
+            MemorySegment nativeTokens = arena.allocateArray(ValueLayout.JAVA_INT, Math.max(suffix, 1));
+            MemorySegment.copy(tokens, nPast, nativeTokens, ValueLayout.JAVA_INT, 0, suffix);
+            NativeBindings.evalAt(handle, nativeTokens, suffix, nPast, arena);
+            System.arraycopy(tokens, nPast, cachedTokens, nPast, suffix);
+            cachedCount = length;
+            promptTokensReused = nPast;
+            promptTokensEvaluated = suffix;
             lastStats = null;
         }
+        if (event != null && event.shouldCommit()) {
+            event.evaluated = suffix;
+            event.reused = nPast;
+            event.commit();
+        }
     }
 
-    int sample(SamplerParams params, SamplerState state) {
+    private int commonPrefix(int[] tokens, int length) {
+        int limit = Math.min(cachedCount, length);
+        int i = 0;
+        while (i < limit && cachedTokens[i] == tokens[i]) {
+            i++;
+        }
+        return i;
+    }
+
+    void truncate(int pos) {
         ensureOpen();
+        if (pos < 0) {
+            throw new IllegalArgumentException("pos must be >= 0");
+        }
         try (Arena arena = Arena.ofConfined()) {
-            return NativeBindings.sample(handle, params, state, arena);
+            NativeBindings.kvTruncate(handle, pos, arena);
+        }
+        cachedCount = Math.min(cachedCount, pos);
+        lastStats = null;
+    }
+
+    public void reset() {
+        truncate(0);
+        promptTokensReused = 0;
+        promptTokensEvaluated = 0;
+    }
+
+    InferenceMetrics metrics() {
+        return model.metrics();
+    }
+
+    int cachedTokenCount() {
+        return cachedCount;
+    }
+
+    int sample(SamplerParams params, SamplerState state) {
+        ensureOpen();
+        bindGrammar(params.grammar());
+        InferenceEvents.Sample event = InferenceEvents.recording() ? new InferenceEvents.Sample() : null;
+        if (event != null) {
+            event.begin();
+        }
+        int token = NativeBindings.sample(handle, params, state, MemorySegment.NULL, posScratch, errScratch);
+        if (event != null && event.shouldCommit()) {
+            event.token = token;
+            event.produced = 1;
+            event.commit();
+        }
+        if (token != 0 && cachedCount < cachedTokens.length) {
+            cachedTokens[cachedCount++] = token;
+        }
+        return token;
+    }
+
+    int generate(SamplerParams params, SamplerState state, int maxTokens, CancellationToken cancellation, GenerateBuffer out) {
+        ensureOpen();
+        bindGrammar(params.grammar());
+        InferenceEvents.Sample event = InferenceEvents.recording() ? new InferenceEvents.Sample() : null;
+        if (event != null) {
+            event.begin();
+        }
+        int produced = NativeBindings.generate(handle, params, state, MemorySegment.NULL, Math.min(maxTokens, out.capacity()),
+                cancellation.nativeFlag(), out, posScratch, errScratch);
+        if (event != null && event.shouldCommit()) {
+            event.token = produced > 0 ? out.token(produced - 1) : -1;
+            event.produced = produced;
+            event.commit();
+        }
+        for (int i = 0; i < produced && cachedCount < cachedTokens.length; i++) {
+            cachedTokens[cachedCount++] = out.token(i);
+        }
+        return produced;
+    }
+
+    // out needs nDraft + 1 slots; returns how many target tokens it received
+    int verifyDraft(SamplerParams params, SamplerState state, int[] draft, int nDraft, int[] out) {
+        ensureOpen();
+        bindGrammar(params.grammar());
+        long half = (long) (nDraft + 1) * Integer.BYTES;
+        MemorySegment scratch = draftScratch(2 * half);
+        MemorySegment nativeDraft = scratch.asSlice(0, half);
+        MemorySegment nativeOut = scratch.asSlice(half, half);
+        MemorySegment.copy(draft, 0, nativeDraft, ValueLayout.JAVA_INT, 0, nDraft);
+        InferenceEvents.Sample event = InferenceEvents.recording() ? new InferenceEvents.Sample() : null;
+        if (event != null) {
+            event.begin();
+        }
+        int count = NativeBindings.verifyDraft(handle, params, state, MemorySegment.NULL, nativeDraft, nDraft, nativeOut,
+                posScratch, errScratch);
+        MemorySegment.copy(nativeOut, ValueLayout.JAVA_INT, 0, out, 0, count);
+        if (event != null && event.shouldCommit()) {
+            event.token = out[count - 1];
+            event.produced = count;
+            event.commit();
+        }
+        // the native side already rolled the rejected draft tail out of the KV cache
+        for (int i = 0; i < count && out[i] != 0 && cachedCount < cachedTokens.length; i++) {
+            cachedTokens[cachedCount++] = out[i];
+        }
+        return count;
+    }
+
+    private MemorySegment draftScratch(long bytes) {
+        MemorySegment scratch = draftScratch;
+        if (scratch == null || scratch.byteSize() < bytes) {
+            scratch = replaceArena(DRAFT_ARENA).allocate(bytes, Integer.BYTES);
+            draftScratch = scratch;
         }
+        return scratch;
+    }
+
+    GenerateBuffer generateBuffer(int capacity) {
+        ensureOpen();
+        GenerateBuffer buffer = generateBuffer;
+        if (buffer == null || buffer.capacity() < capacity) {
+            buffer = new GenerateBuffer(replaceArena(GENERATE_ARENA), capacity);
+            generateBuffer = buffer;
+        }
+        return buffer;
+    }
+
+    // shared, because a session's steps can run on different threads
+    private Arena replaceArena(int slot) {
+        Arena previous = grownArenas[slot];
+        grownArenas[slot] = Arena.ofShared();
+        if (previous != null) {
+            previous.close();
+        }
+        return grownArenas[slot];
     }
 
     String tokenToPiece(int token) {
         ensureOpen();
+        VocabTable vocab = model.vocab();
+        if (vocab.contains(token)) {
+            byte[] piece = new byte[vocab.pieceLength(token)];
+            vocab.copyPiece(token, piece, 0);
+            return new String(piece, StandardCharsets.UTF_8);
+        }
         try (Arena arena = Arena.ofConfined()) {
             return NativeBindings.tokenToPiece(model.handle(), token, arena);
         }
     }
 
     int tokenToPieceBytes(int token, byte[] buffer) {
+        return tokenToPieceBytes(token, buffer, 0);
+    }
+
+    int tokenToPieceBytes(int token, byte[] buffer, int offset) {
         ensureOpen();
         Objects.requireNonNull(buffer, "buffer");
+        InferenceEvents.Detokenize event = InferenceEvents.recording() ? new InferenceEvents.Detokenize() : null;
+        if (event != null) {
+            event.begin();
+        }
+        VocabTable vocab = model.vocab();
+        int len;
+        if (vocab.contains(token)) {
+            len = vocab.copyPiece(token, buffer, offset);
+        } else {
+            int capacity = Math.min(buffer.length - offset, PIECE_SCRATCH_BYTES);
+            len = NativeBindings.tokenToPieceBytes(model.handle(), token, pieceScratch, capacity, errScratch);
+            MemorySegment.copy(pieceScratch, ValueLayout.JAVA_BYTE, 0, buffer, offset, len);
+        }
+        if (event != null && event.shouldCommit()) {
+            event.token = token;
+            event.bytes = len;
+            event.commit();
+        }
+        return len;
+    }
+
+    int embeddingDim() {
         try (Arena arena = Arena.ofConfined()) {
-            MemorySegment nativeBuffer = arena.allocate(buffer.length);
-            int len = NativeBindings.tokenToPieceBytes(model.handle(), token, nativeBuffer, buffer.length, arena);
-            MemorySegment heapBuffer = MemorySegment.ofArray(buffer);
-            MemorySegment.copy(nativeBuffer, 0, heapBuffer, 0, len);
-            return len;
+            return NativeBindings.embeddingsDim(model.handle(), arena);
         }
     }
 
-    public Embeddings createEmbeddings() {
+    // fills consecutive rows of dim floats; the caller owns the target and keeps it alive
+    void computeEmbeddings(List<String> texts, EmbeddingOptions options, int dim, MemorySegment rows) {
         ensureOpen();
-        int dim;
-        try (Arena arena = Arena.ofConfined()) {
-            dim = NativeBindings.embeddingsDim(model.handle(), arena);
+        for (int from = 0; from < texts.size(); from += EMBED_BATCH_TEXTS) {
+            int to = Math.min(texts.size(), from + EMBED_BATCH_TEXTS);
+            try (Arena arena = Arena.ofConfined()) {
+                NativeBindings.computeEmbeddingsBatch(handle, texts, from, to, options,
+                        rows.asSlice((long) from * dim * Float.BYTES), arena);
+            }
         }
+    }
+
+    public Embeddings createEmbeddings() {
+        ensureOpen();
+        int dim = embeddingDim();
         return new Embeddings() {
             private final ThreadLocal<float[]> buffers = ThreadLocal.withInitial(() -> new float[dim]);
             private final Arena nativeArena = Arena.ofShared();
@@ -94,20 +341,106 @@ public final class Context implements AutoCloseable {
                 try (Arena arena = Arena.ofConfined()) {
                     int written = NativeBindings.computeEmbeddings(handle, text, nativeBuffer, dim, arena);
                     float[] buffer = buffers.get();
-                    for (int i = 0; i < written; i++) {
-                        buffer[i] = nativeBuffer.getAtIndex(ValueLayout.JAVA_FLOAT, i);
-                    }
+                    MemorySegment.copy(nativeBuffer, ValueLayout.JAVA_FLOAT, 0, buffer, 0, written);
                     if (written < buffer.length) {
-                        for (int i = written; i < buffer.length; i++) {
-                            buffer[i] = 0f;
-                        }
+                        Arrays.fill(buffer, written, buffer.length, 0f);
                     }
                     return buffer;
                 }
             }
+
+            @Override
+            public synchronized EmbeddingMatrix embedBatch(List<String> texts, EmbeddingOptions options) {
+                Objects.requireNonNull(texts, "texts");
+                Objects.requireNonNull(options, "options");
+                if (texts.isEmpty()) {
+                    throw new IllegalArgumentException("texts must not be empty");
+                }
+                ensureOpen();
+                EmbeddingMatrix matrix = new EmbeddingMatrix(texts.size(), dim);
+                try {
+                    computeEmbeddings(texts, options, dim, matrix.rowsFrom(0));
+                } catch (RuntimeException e) {
+                    matrix.close();
+                    throw e;
+                }
+                return matrix;
+            }
         };
     }
 
+    public void saveState(Path path) {
+        saveState(path, null);
+    }
+
+    // header, cached prompt tokens, then the native KV/sampler blob
+    public void saveState(Path path, SamplerState state) {
+        Objects.requireNonNull(path, "path");
+        ensureOpen();
+        long nativeBytes = NativeBindings.stateSize(handle, errScratch);
+        long tokenBytes = align((long) cachedCount * Integer.BYTES);
+        long total = STATE_HEADER_BYTES + tokenBytes + nativeBytes;
+        try (Arena arena = Arena.ofConfined();
+             FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                     StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            MemorySegment file = channel.map(FileChannel.MapMode.READ_WRITE, 0, total, arena);
+            file.set(ValueLayout.JAVA_INT, 0, STATE_MAGIC);
+            file.set(ValueLayout.JAVA_INT, 4, STATE_VERSION);
+            file.set(ValueLayout.JAVA_INT, 8, cachedCount);
+            file.set(ValueLayout.JAVA_INT, 12, state == null ? -1 : state.nextPosition());
+            file.set(ValueLayout.JAVA_LONG, 16, nativeBytes);
+            MemorySegment.copy(cachedTokens, 0, file, ValueLayout.JAVA_INT, STATE_HEADER_BYTES, cachedCount);
+            NativeBindings.stateWrite(handle, file.asSlice(STATE_HEADER_BYTES + tokenBytes, nativeBytes), errScratch);
+            file.force();
+        } catch (IOException e) {
+            throw new UncheckedIOException("Failed to save context state to " + path, e);
+        }
+    }
+
+    public void restoreState(Path path) {
+        restoreState(path, null);
+    }
+
+    public void restoreState(Path path, SamplerState state) {
+        Objects.requireNonNull(path, "path");
+        ensureOpen();
+        try (Arena arena = Arena.ofConfined();
+             FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            MemorySegment file = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size(), arena);
+            if (file.byteSize() < STATE_HEADER_BYTES || file.get(ValueLayout.JAVA_INT, 0) != STATE_MAGIC
+                    || file.get(ValueLayout.JAVA_INT, 4) != STATE_VERSION) {
+                throw new IllegalStateException("Not a context state file: " + path);
+            }
+            int count = file.get(ValueLayout.JAVA_INT, 8);
+            int position = file.get(ValueLayout.JAVA_INT, 12);
+            long nativeBytes = file.get(ValueLayout.JAVA_LONG, 16);
+            long tokenBytes = align((long) count * Integer.BYTES);
+            if (count < 0 || count > maxContextTokens) {
+                throw new IllegalStateException("State holds " + count + " tokens but context holds " + maxContextTokens);
+            }
+            if (STATE_HEADER_BYTES + tokenBytes + nativeBytes > file.byteSize()) {
+                throw new IllegalStateException("Truncated context state file: " + path);
+            }
+            NativeBindings.stateRead(handle, file.asSlice(STATE_HEADER_BYTES + tokenBytes, nativeBytes), errScratch);
+            MemorySegment.copy(file, ValueLayout.JAVA_INT, STATE_HEADER_BYTES, cachedTokens, 0, count);
+            cachedCount = count;
+            // restore drops native parse states
+            boundGrammar = null;
+            promptTokensReused = 0;
+            promptTokensEvaluated = 0;
+            lastStats = null;
+            if (state != null && position >= 0) {
+                state.updatePosition(position);
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException("Failed to restore context state from " + path, e);
+        }
+    }
+
+    private static long align(long bytes) {
+        return (bytes + Long.BYTES - 1) & -Long.BYTES;
+    }
+
     public InferenceStats getLastStats() {
         ensureOpen();
         InferenceStats stats = lastStats;
@@ -115,7 +448,7 @@ public final class Context implements AutoCloseable {
             return stats;
         }
         try (Arena arena = Arena.ofConfined()) {
-            lastStats = NativeBindings.fetchStats(handle, arena);
+            lastStats = NativeBindings.fetchStats(handle, arena).withPromptCache(promptTokensReused, promptTokensEvaluated);
             return lastStats;
         }
     }
@@ -124,6 +457,15 @@ public final class Context implements AutoCloseable {
         return new SamplerState(params.seed());
     }
 
+    // only a change of grammar reaches the native side; sampling itself passes no grammar text
+    private void bindGrammar(String grammar) {
+        if (grammar != boundGrammar && (grammar == null || !grammar.equals(boundGrammar))) {
+            Grammar.bind(handle, 0, grammar, errScratch);
+        }
+        // keep the caller's instance so the next call matches by identity
+        boundGrammar = grammar;
+    }
+
     private void ensureOpen() {
         if (closed.get()) {
             throw new IllegalStateException("Context already closed");
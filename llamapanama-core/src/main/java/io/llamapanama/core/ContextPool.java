@@ -0,0 +1,207 @@
+package io.llamapanama.core;
+
+import java.time.Duration;
+import java.util.Iterator;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+public final class ContextPool implements AutoCloseable {
+    private static final Logger LOG = LoggerFactory.getLogger(ContextPool.class);
+    private final Model model;
+    private final int ctxTokens;
+    private final int threads;
+    private final int minIdle;
+    private final int maxSize;
+    private final long idleTimeoutNanos;
+    private final Semaphore permits;
+    private final ConcurrentLinkedDeque<Idle> idle = new ConcurrentLinkedDeque<>();
+    private final ScheduledExecutorService evictor;
+    private final AtomicBoolean closed = new AtomicBoolean(false);
+    private final AtomicInteger leased = new AtomicInteger();
+    private final AtomicInteger created = new AtomicInteger();
+    private final AtomicInteger evicted = new AtomicInteger();
+    private final LongAdder leases = new LongAdder();
+    private final LongAdder waitNanos = new LongAdder();
+    private final AtomicLong maxWaitNanos = new AtomicLong();
+
+    public ContextPool(Model model, int ctxTokens, int threads, int maxSize) {
+        this(model, ctxTokens, threads, maxSize, maxSize, null);
+    }
+
+    public ContextPool(Model model, int ctxTokens, int threads, int minIdle, int maxSize, Duration idleTimeout) {
+        this.model = Objects.requireNonNull(model, "model");
+        if (maxSize <= 0) {
+            throw new IllegalArgumentException("maxSize must be positive");
+        }
+        if (minIdle < 0 || minIdle > maxSize) {
+            throw new IllegalArgumentException("minIdle must be between 0 and maxSize");
+        }
+        this.ctxTokens = ctxTokens;
+        this.threads = threads;
+        this.minIdle = minIdle;
+        this.maxSize = maxSize;
+        this.idleTimeoutNanos = idleTimeout == null ? 0 : idleTimeout.toNanos();
+        this.permits = new Semaphore(maxSize, true);
+        for (int i = 0; i < minIdle; i++) {
+            idle.addFirst(new Idle(newContext(), System.nanoTime()));
+        }
+        if (idleTimeoutNanos > 0) {
+            this.evictor = Executors.newSingleThreadScheduledExecutor(r -> {
+                Thread thread = new Thread(r, "llamapanama-context-pool-evictor");
+                thread.setDaemon(true);
+                return thread;
+            });
+            long period = Math.max(TimeUnit.NANOSECONDS.toMillis(idleTimeoutNanos) / 2, 1);
+            evictor.scheduleWithFixedDelay(this::evictIdle, period, period, TimeUnit.MILLISECONDS);
+        } else {
+            this.evictor = null;
+        }
+    }
+
+    public Lease lease(Duration timeout) {
+        Objects.requireNonNull(timeout, "timeout");
+        ensureOpen();
+        long start = System.nanoTime();
+        boolean acquired;
+        try {
+            acquired = permits.tryAcquire(timeout.toNanos(), TimeUnit.NANOSECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while waiting for a context", e);
+        }
+        long waited = System.nanoTime() - start;
+        waitNanos.add(waited);
+        maxWaitNanos.accumulateAndGet(waited, Math::max);
+        if (!acquired) {
+            throw new IllegalStateException("Timed out after " + timeout.toMillis() + " ms waiting for a context");
+        }
+        Context context;
+        try {
+            ensureOpen();
+            Idle entry = idle.pollFirst();
+            context = entry != null ? entry.context : newContext();
+        } catch (RuntimeException e) {
+            permits.release();
+            throw e;
+        }
+        leased.incrementAndGet();
+        leases.increment();
+        return new Lease(context);
+    }
+
+    public Stats stats() {
+        long count = leases.sum();
+        double avgWaitMs = count == 0 ? 0.0 : waitNanos.sum() / (double) count / 1_000_000.0;
+        return new Stats(leased.get(), idle.size(), created.get(), evicted.get(), count,
+                avgWaitMs, maxWaitNanos.get() / 1_000_000.0);
+    }
+
+    public int maxSize() {
+        return maxSize;
+    }
+
+    void evictIdle() {
+        if (idleTimeoutNanos <= 0) {
+            return;
+        }
+        long now = System.nanoTime();
+        Iterator<Idle> oldestFirst = idle.descendingIterator();
+        while (oldestFirst.hasNext() && idle.size() > minIdle) {
+            Idle entry = oldestFirst.next();
+            if (now - entry.since < idleTimeoutNanos) {
+                break;
+            }
+            if (idle.removeLastOccurrence(entry)) {
+                entry.context.close();
+                evicted.incrementAndGet();
+            }
+        }
+    }
+
+    private Context newContext() {
+        Context context = new Context(model, ctxTokens, threads);
+        created.incrementAndGet();
+        return context;
+    }
+
+    private void release(Context context, boolean reusable) {
+        leased.decrementAndGet();
+        try {
+            if (reusable && !closed.get()) {
+                try {
+                    context.reset();
+                    idle.addFirst(new Idle(context, System.nanoTime()));
+                    return;
+                } catch (RuntimeException e) {
+                    LOG.warn("Discarding context that failed to reset", e);
+                }
+            }
+            context.close();
+        } finally {
+            permits.release();
+        }
+    }
+
+    private void ensureOpen() {
+        if (closed.get()) {
+            throw new IllegalStateException("ContextPool already closed");
+        }
+    }
+
+    @Override
+    public void close() {
+        if (closed.compareAndSet(false, true)) {
+            if (evictor != null) {
+                evictor.shutdownNow();
+            }
+            Idle entry;
+            while ((entry = idle.pollFirst()) != null) {
+                entry.context.close();
+            }
+        }
+    }
+
+    public record Stats(int leased, int idle, int created, int evicted, long leases, double avgWaitMs, double maxWaitMs) {
+    }
+
+    private record Idle(Context context, long since) {
+    }
+
+    public final class Lease implements AutoCloseable {
+        private final Context context;
+        private final AtomicBoolean returned = new AtomicBoolean(false);
+        private volatile boolean broken;
+
+        private Lease(Context context) {
+            this.context = context;
+        }
+
+        public Context context() {
+            if (returned.get()) {
+                throw new IllegalStateException("Lease already returned");
+            }
+            return context;
+        }
+
+        public void invalidate() {
+            broken = true;
+        }
+
+        @Override
+        public void close() {
+            if (returned.compareAndSet(false, true)) {
+                release(context, !broken);
+            }
+        }
+    }
+}
@@ -0,0 +1,104 @@
+package io.llamapanama.core;
+
+import java.lang.foreign.Arena;
+import java.lang.foreign.MemorySegment;
+import java.lang.foreign.ValueLayout;
+import java.lang.ref.Cleaner;
+import java.util.Objects;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+public final class EmbeddingMatrix implements AutoCloseable {
+    private static final Cleaner CLEANER = Cleaner.create();
+    private final int rows;
+    private final int dim;
+    private final MemorySegment data;
+    private final Cleaner.Cleanable cleanable;
+    private final AtomicBoolean closed = new AtomicBoolean(false);
+
+    EmbeddingMatrix(int rows, int dim) {
+        if (rows < 0 || dim <= 0) {
+            throw new IllegalArgumentException("Invalid matrix shape " + rows + "x" + dim);
+        }
+        Arena arena = Arena.ofShared();
+        this.rows = rows;
+        this.dim = dim;
+        this.data = arena.allocateArray(ValueLayout.JAVA_FLOAT, Math.max(1L, (long) rows * dim));
+        this.cleanable = CLEANER.register(this, arena::close);
+    }
+
+    public int rows() {
+        return rows;
+    }
+
+    public int dim() {
+        return dim;
+    }
+
+    public MemorySegment segment() {
+        ensureOpen();
+        return data.asSlice(0, (long) rows * dim * Float.BYTES);
+    }
+
+    public MemorySegment row(int row) {
+        checkRow(row);
+        return data.asSlice(rowOffset(row), (long) dim * Float.BYTES);
+    }
+
+    public float get(int row, int column) {
+        checkRow(row);
+        Objects.checkIndex(column, dim);
+        return data.getAtIndex(ValueLayout.JAVA_FLOAT, (long) row * dim + column);
+    }
+
+    public float[] rowArray(int row) {
+        float[] out = new float[dim];
+        copyRow(row, out, 0);
+        return out;
+    }
+
+    public void copyRow(int row, float[] target, int offset) {
+        checkRow(row);
+        Objects.requireNonNull(target, "target");
+        MemorySegment.copy(data, ValueLayout.JAVA_FLOAT, rowOffset(row), target, offset, dim);
+    }
+
+    public float[] toArray() {
+        ensureOpen();
+        int length;
+        try {
+            length = Math.multiplyExact(rows, dim);
+        } catch (ArithmeticException e) {
+            throw new IllegalStateException("Matrix of " + rows + "x" + dim + " floats does not fit in a Java array; use segment()", e);
+        }
+        float[] out = new float[length];
+        MemorySegment.copy(data, ValueLayout.JAVA_FLOAT, 0, out, 0, out.length);
+        return out;
+    }
+
+    MemorySegment rowsFrom(int row) {
+        checkRow(row);
+        return data.asSlice(rowOffset(row));
+    }
+
+    private long rowOffset(int row) {
+        return (long) row * dim * Float.BYTES;
+    }
+
+    private void checkRow(int row) {
+        ensureOpen();
+        Objects.checkIndex(row, rows);
+    }
+
+    private void ensureOpen() {
+        if (closed.get()) {
+            throw new IllegalStateException("EmbeddingMatrix already closed");
+        }
+    }
+
+    @Override
+    public void close() {
+        if (closed.compareAndSet(false, true)) {
+            cleanable.clean();
+        }
+    }
+}
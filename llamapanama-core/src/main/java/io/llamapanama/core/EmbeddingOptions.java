@@ -0,0 +1,21 @@
+package io.llamapanama.core;
+
+import java.util.Objects;
+
+public record EmbeddingOptions(Pooling pooling, boolean normalize) {
+    public static EmbeddingOptions defaults() {
+        return new EmbeddingOptions(Pooling.MEAN, false);
+    }
+
+    public EmbeddingOptions {
+        Objects.requireNonNull(pooling, "pooling");
+    }
+
+    public EmbeddingOptions withPooling(Pooling pooling) {
+        return new EmbeddingOptions(pooling, normalize);
+    }
+
+    public EmbeddingOptions withNormalize(boolean normalize) {
+        return new EmbeddingOptions(pooling, normalize);
+    }
+}
@@ -0,0 +1,288 @@
+package io.llamapanama.core;
+
+import java.lang.foreign.Arena;
+import java.lang.foreign.MemorySegment;
+import java.lang.foreign.ValueLayout;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Objects;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+public final class EmbeddingService implements Embeddings, AutoCloseable {
+    private static final Logger LOG = LoggerFactory.getLogger(EmbeddingService.class);
+    private static final int DEFAULT_MAX_BATCH = 32;
+    private static final Duration DEFAULT_BATCH_WINDOW = Duration.ofMillis(2);
+    private final int maxBatch;
+    private final long batchWindowNanos;
+    private final EmbeddingOptions options;
+    private final LinkedBlockingQueue<Request> queue = new LinkedBlockingQueue<>();
+    private final List<Thread> workers = new ArrayList<>();
+    private final AtomicBoolean closed = new AtomicBoolean(false);
+    private final long startNanos = System.nanoTime();
+    private final LongAdder requests = new LongAdder();
+    private final LongAdder texts = new LongAdder();
+    private final LongAdder batches = new LongAdder();
+    private final LongAdder queueWaitNanos = new LongAdder();
+
+    public EmbeddingService(Model model, int workers, int ctxTokens, int threads) {
+        this(model, workers, ctxTokens, threads, DEFAULT_MAX_BATCH, DEFAULT_BATCH_WINDOW, EmbeddingOptions.defaults());
+    }
+
+    public EmbeddingService(Model model, int workers, int ctxTokens, int threads, int maxBatch, Duration batchWindow,
+                            EmbeddingOptions options) {
+        Objects.requireNonNull(model, "model");
+        Objects.requireNonNull(batchWindow, "batchWindow");
+        if (workers <= 0) {
+            throw new IllegalArgumentException("workers must be positive");
+        }
+        if (maxBatch <= 0) {
+            throw new IllegalArgumentException("maxBatch must be positive");
+        }
+        this.maxBatch = maxBatch;
+        this.batchWindowNanos = batchWindow.toNanos();
+        this.options = Objects.requireNonNull(options, "options");
+        List<Context> contexts = new ArrayList<>(workers);
+        try {
+            for (int i = 0; i < workers; i++) {
+                contexts.add(new Context(model, ctxTokens, threads));
+            }
+        } catch (RuntimeException e) {
+            contexts.forEach(Context::close);
+            throw e;
+        }
+        for (int i = 0; i < workers; i++) {
+            Context context = contexts.get(i);
+            Thread thread = new Thread(() -> runWorker(context), "llamapanama-embed-" + i);
+            thread.setDaemon(true);
+            this.workers.add(thread);
+        }
+        this.workers.forEach(Thread::start);
+    }
+
+    public CompletableFuture<float[]> submit(String text) {
+        return submit(text, options);
+    }
+
+    public CompletableFuture<float[]> submit(String text, EmbeddingOptions options) {
+        Objects.requireNonNull(text, "text");
+        Objects.requireNonNull(options, "options");
+        Request request = new Request(List.of(text), options, false);
+        enqueue(request);
+        return request.single;
+    }
+
+    public CompletableFuture<EmbeddingMatrix> submitBatch(List<String> texts) {
+        return submitBatch(texts, options);
+    }
+
+    public CompletableFuture<EmbeddingMatrix> submitBatch(List<String> texts, EmbeddingOptions options) {
+        Objects.requireNonNull(texts, "texts");
+        Objects.requireNonNull(options, "options");
+        if (texts.isEmpty()) {
+            throw new IllegalArgumentException("texts must not be empty");
+        }
+        Request request = new Request(List.copyOf(texts), options, true);
+        enqueue(request);
+        return request.matrix;
+    }
+
+    @Override
+    public float[] embed(String text) {
+        return await(submit(text));
+    }
+
+    @Override
+    public Pooling pooling() {
+        return options.pooling();
+    }
+
+    @Override
+    public EmbeddingMatrix embedBatch(List<String> texts, EmbeddingOptions options) {
+        return await(submitBatch(texts, options));
+    }
+
+    public Stats stats() {
+        long batchCount = batches.sum();
+        long textCount = texts.sum();
+        long requestCount = requests.sum();
+        double elapsedSeconds = (System.nanoTime() - startNanos) / 1_000_000_000.0;
+        return new Stats(workers.size(), queue.size(), requestCount, textCount, batchCount,
+                batchCount == 0 ? 0.0 : textCount / (double) batchCount,
+                elapsedSeconds <= 0 ? 0.0 : textCount / elapsedSeconds,
+                requestCount == 0 ? 0.0 : queueWaitNanos.sum() / (double) requestCount / 1_000_000.0);
+    }
+
+    private void enqueue(Request request) {
+        ensureOpen();
+        queue.add(request);
+        if (closed.get() && queue.remove(request)) {
+            request.fail(new IllegalStateException("EmbeddingService already closed"));
+        }
+    }
+
+    private void runWorker(Context context) {
+        Embeddings embeddings = context.createEmbeddings();
+        int dim = context.embeddingDim();
+        // single requests reuse this worker's rows instead of a shared matrix per batch
+        Arena arena = Arena.ofConfined();
+        MemorySegment rows = arena.allocateArray(ValueLayout.JAVA_FLOAT, (long) maxBatch * dim);
+        List<Request> batch = new ArrayList<>(maxBatch);
+        List<String> batchTexts = new ArrayList<>(maxBatch);
+        Request carry = null;
+        try {
+            while (!closed.get()) {
+                Request head = carry != null ? carry : queue.take();
+                carry = null;
+                if (head.wantsMatrix) {
+                    execute(embeddings, head);
+                    continue;
+                }
+                batch.add(head);
+                long deadline = System.nanoTime() + batchWindowNanos;
+                while (batch.size() < maxBatch) {
+                    Request next = queue.poll();
+                    if (next == null) {
+                        // only linger when requests already arrive concurrently
+                        long remaining = deadline - System.nanoTime();
+                        if (batch.size() == 1 || remaining <= 0) {
+                            break;
+                        }
+                        next = queue.poll(remaining, TimeUnit.NANOSECONDS);
+                        if (next == null) {
+                            break;
+                        }
+                    }
+                    if (next.wantsMatrix || !next.options.equals(head.options)) {
+                        carry = next;
+                        break;
+                    }
+                    batch.add(next);
+                }
+                executeSingles(context, dim, rows, batch, batchTexts);
+                batch.clear();
+                batchTexts.clear();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            if (carry != null) {
+                carry.fail(new IllegalStateException("EmbeddingService already closed"));
+            }
+            batch.forEach(r -> r.fail(new IllegalStateException("EmbeddingService already closed")));
+            arena.close();
+            context.close();
+        }
+    }
+
+    private void execute(Embeddings embeddings, Request request) {
+        record(request, 1);
+        try {
+            EmbeddingMatrix matrix = embeddings.embedBatch(request.texts, request.options);
+            if (!request.matrix.complete(matrix)) {
+                matrix.close();
+            }
+        } catch (RuntimeException e) {
+            request.fail(e);
+        }
+    }
+
+    private void executeSingles(Context context, int dim, MemorySegment rows, List<Request> batch,
+                                List<String> batchTexts) {
+        for (Request request : batch) {
+            batchTexts.add(request.texts.get(0));
+            record(request, 0);
+        }
+        batches.increment();
+        try {
+            context.computeEmbeddings(batchTexts, batch.get(0).options, dim, rows);
+            for (int i = 0; i < batch.size(); i++) {
+                float[] vector = new float[dim];
+                MemorySegment.copy(rows, ValueLayout.JAVA_FLOAT, (long) i * dim * Float.BYTES, vector, 0, dim);
+                batch.get(i).single.complete(vector);
+            }
+        } catch (RuntimeException e) {
+            LOG.warn("Embedding batch of {} texts failed", batch.size(), e);
+            batch.forEach(r -> r.fail(e));
+        }
+    }
+
+    private void record(Request request, int batchCount) {
+        requests.increment();
+        texts.add(request.texts.size());
+        batches.add(batchCount);
+        queueWaitNanos.add(System.nanoTime() - request.enqueuedNanos);
+    }
+
+    private static <T> T await(CompletableFuture<T> future) {
+        try {
+            return future.join();
+        } catch (CompletionException e) {
+            if (e.getCause() instanceof RuntimeException cause) {
+                throw cause;
+            }
+            throw e;
+        }
+    }
+
+    private void ensureOpen() {
+        if (closed.get()) {
+            throw new IllegalStateException("EmbeddingService already closed");
+        }
+    }
+
+    @Override
+    public void close() {
+        if (closed.compareAndSet(false, true)) {
+            workers.forEach(Thread::interrupt);
+            for (Thread worker : workers) {
+                try {
+                    worker.join();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    break;
+                }
+            }
+            Request request;
+            while ((request = queue.poll()) != null) {
+                request.fail(new IllegalStateException("EmbeddingService already closed"));
+            }
+        }
+    }
+
+    public record Stats(int workers, int queueDepth, long requests, long texts, long batches, double avgBatchSize,
+                        double textsPerSecond, double avgQueueWaitMs) {
+    }
+
+    private static final class Request {
+        private final List<String> texts;
+        private final EmbeddingOptions options;
+        private final boolean wantsMatrix;
+        private final CompletableFuture<float[]> single;
+        private final CompletableFuture<EmbeddingMatrix> matrix;
+        private final long enqueuedNanos = System.nanoTime();
+
+        private Request(List<String> texts, EmbeddingOptions options, boolean wantsMatrix) {
+            this.texts = texts;
+            this.options = options;
+            this.wantsMatrix = wantsMatrix;
+            this.single = wantsMatrix ? null : new CompletableFuture<>();
+            this.matrix = wantsMatrix ? new CompletableFuture<>() : null;
+        }
+
+        private void fail(Throwable error) {
+            if (wantsMatrix) {
+                matrix.completeExceptionally(error);
+            } else {
+                single.completeExceptionally(error);
+            }
+        }
+    }
+}
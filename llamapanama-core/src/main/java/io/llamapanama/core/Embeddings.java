@@ -1,5 +1,55 @@
 package io.llamapanama.core;
 
+import java.lang.foreign.MemorySegment;
+import java.lang.foreign.ValueLayout;
+import java.util.List;
+import java.util.Objects;
+
 public interface Embeddings {
     float[] embed(String text);
+
+    // the pooling embed applies; the default embedBatch only supports this one
+    default Pooling pooling() {
+        return Pooling.MEAN;
+    }
+
+    default EmbeddingMatrix embedBatch(List<String> texts) {
+        return embedBatch(texts, EmbeddingOptions.defaults());
+    }
+
+    default EmbeddingMatrix embedBatch(List<String> texts, EmbeddingOptions options) {
+        Objects.requireNonNull(texts, "texts");
+        Objects.requireNonNull(options, "options");
+        if (texts.isEmpty()) {
+            throw new IllegalArgumentException("texts must not be empty");
+        }
+        if (options.pooling() != pooling()) {
+            throw new IllegalArgumentException("Pooling " + options.pooling() + " is not supported by " + getClass().getName()
+                    + ", which pools with " + pooling());
+        }
+        float[] first = embed(texts.get(0));
+        EmbeddingMatrix matrix = new EmbeddingMatrix(texts.size(), first.length);
+        try {
+            for (int row = 0; row < texts.size(); row++) {
+                float[] vector = row == 0 ? first : embed(texts.get(row));
+                if (options.normalize()) {
+                    double sum = 0;
+                    for (float v : vector) {
+                        sum += (double) v * v;
+                    }
+                    if (sum > 0) {
+                        float scale = (float) (1.0 / Math.sqrt(sum));
+                        for (int i = 0; i < vector.length; i++) {
+                            vector[i] *= scale;
+                        }
+                    }
+                }
+                MemorySegment.copy(vector, 0, matrix.row(row), ValueLayout.JAVA_FLOAT, 0, vector.length);
+            }
+        } catch (RuntimeException e) {
+            matrix.close();
+            throw e;
+        }
+        return matrix;
+    }
 }
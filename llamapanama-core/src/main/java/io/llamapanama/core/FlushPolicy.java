@@ -0,0 +1,65 @@
+package io.llamapanama.core;
+
+import java.time.Duration;
+import java.util.Objects;
+
+@FunctionalInterface
+public interface FlushPolicy {
+    boolean shouldFlush(int pendingTokens, int pendingBytes, long pendingNanos, byte lastByte);
+
+    // whether shouldFlush reads pendingNanos; streams only read the clock for policies that do
+    default boolean timed() {
+        return true;
+    }
+
+    static FlushPolicy defaults() {
+        return everyBytes(32).or(sentenceBoundary());
+    }
+
+    static FlushPolicy everyTokens(int tokens) {
+        if (tokens <= 0) {
+            throw new IllegalArgumentException("tokens must be positive");
+        }
+        return untimed((pendingTokens, pendingBytes, pendingNanos, lastByte) -> pendingTokens >= tokens);
+    }
+
+    static FlushPolicy everyBytes(int bytes) {
+        if (bytes <= 0) {
+            throw new IllegalArgumentException("bytes must be positive");
+        }
+        return untimed((pendingTokens, pendingBytes, pendingNanos, lastByte) -> pendingBytes >= bytes);
+    }
+
+    // only checked as tokens arrive, so a stall between tokens delays the flush
+    static FlushPolicy maxLatency(Duration latency) {
+        long nanos = Objects.requireNonNull(latency, "latency").toNanos();
+        return (pendingTokens, pendingBytes, pendingNanos, lastByte) -> pendingNanos >= nanos;
+    }
+
+    static FlushPolicy sentenceBoundary() {
+        return untimed((pendingTokens, pendingBytes, pendingNanos, lastByte) ->
+                lastByte == '.' || lastByte == '!' || lastByte == '?' || lastByte == '\n');
+    }
+
+    default FlushPolicy or(FlushPolicy other) {
+        Objects.requireNonNull(other, "other");
+        FlushPolicy either = (pendingTokens, pendingBytes, pendingNanos, lastByte) ->
+                shouldFlush(pendingTokens, pendingBytes, pendingNanos, lastByte)
+                        || other.shouldFlush(pendingTokens, pendingBytes, pendingNanos, lastByte);
+        return timed() || other.timed() ? either : untimed(either);
+    }
+
+    private static FlushPolicy untimed(FlushPolicy policy) {
+        return new FlushPolicy() {
+            @Override
+            public boolean shouldFlush(int pendingTokens, int pendingBytes, long pendingNanos, byte lastByte) {
+                return policy.shouldFlush(pendingTokens, pendingBytes, pendingNanos, lastByte);
+            }
+
+            @Override
+            public boolean timed() {
+                return false;
+            }
+        };
+    }
+}
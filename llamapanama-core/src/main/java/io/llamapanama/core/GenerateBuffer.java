@@ -0,0 +1,66 @@
+package io.llamapanama.core;
+
+import java.lang.foreign.Arena;
+import java.lang.foreign.MemorySegment;
+import java.lang.foreign.ValueLayout;
+
+final class GenerateBuffer {
+    static final int STATUS_LIMIT = 0;
+    static final int STATUS_EOS = 1;
+    static final int STATUS_CANCELLED = 2;
+    static final int STATUS_BUFFER_FULL = 3;
+    static final int MAX_PIECE_BYTES = 256;
+    private static final int AVERAGE_PIECE_BYTES = 16;
+    private final int capacity;
+    private final MemorySegment tokens;
+    private final MemorySegment pieceLengths;
+    private final MemorySegment bytes;
+    private final MemorySegment status;
+
+    GenerateBuffer(Arena arena, int capacity) {
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("capacity must be positive");
+        }
+        this.capacity = capacity;
+        this.tokens = arena.allocateArray(ValueLayout.JAVA_INT, capacity);
+        this.pieceLengths = arena.allocateArray(ValueLayout.JAVA_INT, capacity);
+        this.bytes = arena.allocate((long) capacity * AVERAGE_PIECE_BYTES + MAX_PIECE_BYTES);
+        this.status = arena.allocate(ValueLayout.JAVA_INT);
+    }
+
+    int capacity() {
+        return capacity;
+    }
+
+    int token(int index) {
+        return tokens.getAtIndex(ValueLayout.JAVA_INT, index);
+    }
+
+    int pieceLength(int index) {
+        return pieceLengths.getAtIndex(ValueLayout.JAVA_INT, index);
+    }
+
+    int stopReason() {
+        return status.get(ValueLayout.JAVA_INT, 0);
+    }
+
+    MemorySegment tokens() {
+        return tokens;
+    }
+
+    MemorySegment pieceLengths() {
+        return pieceLengths;
+    }
+
+    MemorySegment bytes() {
+        return bytes;
+    }
+
+    int byteCapacity() {
+        return (int) bytes.byteSize();
+    }
+
+    MemorySegment status() {
+        return status;
+    }
+}
@@ -0,0 +1,74 @@
+package io.llamapanama.core;
+
+import java.lang.foreign.Arena;
+import java.lang.foreign.MemorySegment;
+import java.lang.ref.Cleaner;
+import java.lang.ref.Reference;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Objects;
+
+// a natively parsed GBNF grammar, shared per source text through a bounded cache
+public final class Grammar {
+    private static final Cleaner CLEANER = Cleaner.create();
+    private static final int CACHE_SIZE = Integer.getInteger("llamapanama.grammar.cache.size", 64);
+    // access order, so the grammar used least recently is the one dropped
+    private static final LinkedHashMap<String, Grammar> CACHE = new LinkedHashMap<>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Grammar> eldest) {
+            return size() > CACHE_SIZE;
+        }
+    };
+    private final String source;
+    private final MemorySegment handle;
+
+    private Grammar(String source) {
+        MemorySegment nativeHandle;
+        try (Arena arena = Arena.ofConfined()) {
+            nativeHandle = NativeBindings.compileGrammar(source, arena);
+        }
+        this.source = source;
+        this.handle = nativeHandle;
+        CLEANER.register(this, () -> NativeBindings.freeGrammar(nativeHandle));
+    }
+
+    public static Grammar compile(String source) {
+        Objects.requireNonNull(source, "source");
+        synchronized (CACHE) {
+            Grammar cached = CACHE.get(source);
+            if (cached != null) {
+                return cached;
+            }
+        }
+        // parse outside the lock; the first one cached wins a race
+        Grammar compiled = new Grammar(source);
+        synchronized (CACHE) {
+            Grammar raced = CACHE.putIfAbsent(source, compiled);
+            return raced != null ? raced : compiled;
+        }
+    }
+
+    // schema as parsed from JSON: maps, lists, strings, numbers, booleans and null
+    public static Grammar fromJsonSchema(Map<String, ?> schema) {
+        Objects.requireNonNull(schema, "schema");
+        return compile(JsonSchemaGrammar.convert(schema));
+    }
+
+    public String source() {
+        return source;
+    }
+
+    // a null source drops seqId's parse state; the native side copies the grammar
+    static void bind(MemorySegment context, int seqId, String source, MemorySegment errOut) {
+        if (source == null) {
+            NativeBindings.seqSetGrammar(context, seqId, MemorySegment.NULL, errOut);
+            return;
+        }
+        Grammar grammar = compile(source);
+        try {
+            NativeBindings.seqSetGrammar(context, seqId, grammar.handle, errOut);
+        } finally {
+            Reference.reachabilityFence(grammar);
+        }
+    }
+}
@@ -0,0 +1,143 @@
+package io.llamapanama.core;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Enabled;
+import jdk.jfr.Event;
+import jdk.jfr.FlightRecorder;
+import jdk.jfr.FlightRecorderListener;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.Recording;
+import jdk.jfr.RecordingState;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Threshold;
+
+// JFR events for each inference phase; the per-token ones only record steps slower than their threshold by default
+final class InferenceEvents {
+    private static final String CATEGORY = "LlamaPanama";
+    private static volatile boolean recording;
+
+    static {
+        try {
+            FlightRecorder.addListener(new FlightRecorderListener() {
+                @Override
+                public void recorderInitialized(FlightRecorder recorder) {
+                    refresh();
+                }
+
+                @Override
+                public void recordingStateChanged(Recording changed) {
+                    refresh();
+                }
+            });
+            refresh();
+        } catch (RuntimeException | LinkageError e) {
+            recording = false;
+        }
+    }
+
+    private InferenceEvents() {}
+
+    // per-token paths check this before allocating an event
+    static boolean recording() {
+        return recording;
+    }
+
+    private static void refresh() {
+        boolean running = false;
+        if (FlightRecorder.isInitialized()) {
+            for (Recording r : FlightRecorder.getFlightRecorder().getRecordings()) {
+                running |= r.getState() == RecordingState.RUNNING;
+            }
+        }
+        recording = running;
+    }
+
+    @Name("io.llamapanama.ModelLoad")
+    @Label("Model Load")
+    @Category(CATEGORY)
+    static final class ModelLoad extends Event {
+        @Label("Path")
+        String path;
+    }
+
+    @Name("io.llamapanama.ContextCreate")
+    @Label("Context Create")
+    @Category(CATEGORY)
+    static final class ContextCreate extends Event {
+        @Label("Context Tokens")
+        int contextTokens;
+
+        @Label("Threads")
+        int threads;
+
+        @Label("Sequences")
+        int sequences;
+    }
+
+    @Name("io.llamapanama.Tokenize")
+    @Label("Tokenize")
+    @Category(CATEGORY)
+    @StackTrace(false)
+    static final class Tokenize extends Event {
+        @Label("Characters")
+        int characters;
+
+        @Label("Tokens")
+        int tokens;
+    }
+
+    @Name("io.llamapanama.PromptEval")
+    @Label("Prompt Eval")
+    @Category(CATEGORY)
+    @StackTrace(false)
+    static final class PromptEval extends Event {
+        @Label("Tokens Evaluated")
+        int evaluated;
+
+        @Label("Tokens Reused")
+        int reused;
+    }
+
+    @Name("io.llamapanama.Sample")
+    @Label("Sample Step")
+    @Description("One native sampling downcall; fused calls report how many tokens they produced")
+    @Category(CATEGORY)
+    @StackTrace(false)
+    @Threshold("1 ms")
+    static final class Sample extends Event {
+        @Label("Token")
+        int token;
+
+        @Label("Tokens Produced")
+        int produced;
+    }
+
+    @Name("io.llamapanama.Detokenize")
+    @Label("Detokenize")
+    @Category(CATEGORY)
+    @StackTrace(false)
+    @Enabled(false)
+    static final class Detokenize extends Event {
+        @Label("Token")
+        int token;
+
+        @Label("Bytes")
+        @DataAmount
+        int bytes;
+    }
+
+    @Name("io.llamapanama.ListenerCallback")
+    @Label("Listener Callback")
+    @Description("Time spent inside a TokenListener or ByteTokenListener")
+    @Category(CATEGORY)
+    @StackTrace(false)
+    @Threshold("1 ms")
+    static final class ListenerCallback extends Event {
+        @Label("Bytes")
+        @DataAmount
+        int bytes;
+    }
+}
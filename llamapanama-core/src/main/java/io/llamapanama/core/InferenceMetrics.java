@@ -0,0 +1,63 @@
+package io.llamapanama.core;
+
+import java.util.concurrent.atomic.LongAdder;
+
+public final class InferenceMetrics {
+    private static final double NANOS_PER_MS = 1_000_000.0;
+    // tokens/s is kept in milli-tokens per second so the integer histogram keeps three decimals
+    private static final double MILLIS = 1_000.0;
+    private volatile boolean enabled = Boolean.getBoolean("llamapanama.metrics");
+    private final Histogram timeToFirstToken = new Histogram();
+    private final Histogram interToken = new Histogram();
+    private final Histogram tokensPerSecond = new Histogram();
+    private final LongAdder requests = new LongAdder();
+    private final LongAdder tokens = new LongAdder();
+
+    InferenceMetrics() {
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    public void setEnabled(boolean enabled) {
+        this.enabled = enabled;
+    }
+
+    public void reset() {
+        timeToFirstToken.reset();
+        interToken.reset();
+        tokensPerSecond.reset();
+        requests.reset();
+        tokens.reset();
+    }
+
+    public Snapshot snapshot() {
+        return new Snapshot(requests.sum(), tokens.sum(), timeToFirstToken.summary(NANOS_PER_MS),
+                interToken.summary(NANOS_PER_MS), tokensPerSecond.summary(MILLIS));
+    }
+
+    void recordFirstToken(long nanos) {
+        timeToFirstToken.record(nanos);
+    }
+
+    void recordInterToken(long nanos, int count) {
+        // a fused call reports several tokens at once, so spread its time evenly over them
+        long each = nanos / count;
+        for (int i = 0; i < count; i++) {
+            interToken.record(each);
+        }
+    }
+
+    void recordRequest(int produced, long decodeNanos) {
+        requests.increment();
+        tokens.add(produced);
+        if (produced > 0 && decodeNanos > 0) {
+            tokensPerSecond.record(Math.round(produced * 1_000_000_000.0 * MILLIS / decodeNanos));
+        }
+    }
+
+    public record Snapshot(long requests, long tokens, Histogram.Summary timeToFirstTokenMs,
+                           Histogram.Summary interTokenMs, Histogram.Summary tokensPerSecond) {
+    }
+}
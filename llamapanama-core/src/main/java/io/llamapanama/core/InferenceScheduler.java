@@ -0,0 +1,428 @@
+package io.llamapanama.core;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+public final class InferenceScheduler implements AutoCloseable {
+    private static final Logger LOG = LoggerFactory.getLogger(InferenceScheduler.class);
+    public static final String DEFAULT_TENANT = "default";
+    // every complete code point goes out as soon as it is decoded
+    static final FlushPolicy FLUSH_POLICY = FlushPolicy.everyTokens(1);
+    private final int slotsPerContext;
+    private final int ctxTokens;
+    private final InferenceMetrics metrics;
+    private final List<BatchContext> contexts = new ArrayList<>();
+    private final List<Thread> workers = new ArrayList<>();
+    private final FairQueue queue = new FairQueue();
+    private final AtomicBoolean closed = new AtomicBoolean(false);
+    private final LongAdder submitted = new LongAdder();
+    private final LongAdder completed = new LongAdder();
+    private final LongAdder failed = new LongAdder();
+    private final LongAdder cancelled = new LongAdder();
+    private final LongAdder generatedTokens = new LongAdder();
+    private final LongAdder queueNanos = new LongAdder();
+    private final LongAdder firstTokenNanos = new LongAdder();
+    private final LongAdder firstTokens = new LongAdder();
+    private final LongAdder activeSequences = new LongAdder();
+
+    public InferenceScheduler(Model model, int contexts, int ctxTokens, int threads, int slotsPerContext) {
+        Objects.requireNonNull(model, "model");
+        if (contexts <= 0) {
+            throw new IllegalArgumentException("contexts must be positive");
+        }
+        if (slotsPerContext <= 0) {
+            throw new IllegalArgumentException("slotsPerContext must be positive");
+        }
+        this.slotsPerContext = slotsPerContext;
+        this.ctxTokens = ctxTokens;
+        this.metrics = model.metrics();
+        try {
+            for (int i = 0; i < contexts; i++) {
+                this.contexts.add(new BatchContext(model, ctxTokens, threads, slotsPerContext));
+            }
+        } catch (RuntimeException e) {
+            this.contexts.forEach(BatchContext::close);
+            throw e;
+        }
+        for (int i = 0; i < contexts; i++) {
+            BatchContext batch = this.contexts.get(i);
+            Thread thread = new Thread(() -> runWorker(batch), "llamapanama-sched-" + i);
+            thread.setDaemon(true);
+            workers.add(thread);
+        }
+        workers.forEach(Thread::start);
+    }
+
+    public CompletableFuture<RequestMetrics> submit(String prompt, SamplerParams params, TokenListener listener) {
+        return submit(DEFAULT_TENANT, Priority.NORMAL, prompt, params, listener);
+    }
+
+    public CompletableFuture<RequestMetrics> submit(String tenant, Priority priority, String prompt, SamplerParams params,
+                                                    TokenListener listener) {
+        Objects.requireNonNull(listener, "listener");
+        Utf8Stream out = new Utf8Stream();
+        out.begin(listener, FLUSH_POLICY);
+        return enqueue(tenant, priority, prompt, params, out);
+    }
+
+    public CompletableFuture<RequestMetrics> submitBytes(String tenant, Priority priority, String prompt,
+                                                         SamplerParams params, ByteTokenListener listener) {
+        Objects.requireNonNull(listener, "listener");
+        Utf8Stream out = new Utf8Stream();
+        out.begin(listener, FLUSH_POLICY);
+        return enqueue(tenant, priority, prompt, params, out);
+    }
+
+    private CompletableFuture<RequestMetrics> enqueue(String tenant, Priority priority, String prompt,
+                                                      SamplerParams params, Utf8Stream out) {
+        Objects.requireNonNull(tenant, "tenant");
+        Objects.requireNonNull(priority, "priority");
+        Objects.requireNonNull(prompt, "prompt");
+        ensureOpen();
+        SamplerParams sampler = params == null ? SamplerParams.defaults() : params;
+        // tokenize on the caller's thread
+        int[] tokens = contexts.get(0).tokenize(prompt, true);
+        int need = tokens.length + sampler.maxTokens();
+        if (need > ctxTokens) {
+            throw new IllegalArgumentException("Prompt of " + tokens.length + " tokens plus maxTokens " + sampler.maxTokens()
+                    + " exceeds the context window of " + ctxTokens);
+        }
+        Job job = new Job(tenant, priority, tokens, need, sampler, out);
+        submitted.increment();
+        queue.offer(job);
+        if (closed.get() && queue.remove(job)) {
+            job.future.completeExceptionally(new IllegalStateException("InferenceScheduler already closed"));
+        }
+        return job.future;
+    }
+
+    public Stats stats() {
+        long done = completed.sum();
+        long firsts = firstTokens.sum();
+        long admitted = done + failed.sum() + cancelled.sum() + activeSequences.sum();
+        return new Stats(contexts.size(), contexts.size() * slotsPerContext, (int) activeSequences.sum(), queue.size(),
+                submitted.sum(), done, failed.sum(), cancelled.sum(), generatedTokens.sum(),
+                admitted == 0 ? 0.0 : queueNanos.sum() / (double) admitted / 1_000_000.0,
+                firsts == 0 ? 0.0 : firstTokenNanos.sum() / (double) firsts / 1_000_000.0);
+    }
+
+    private void runWorker(BatchContext batch) {
+        List<Job> active = new ArrayList<>(slotsPerContext);
+        int reserved = 0;
+        try {
+            while (!closed.get()) {
+                // admit at token-step boundaries while slots and reserved KV cells allow it
+                Job next;
+                while (active.size() < slotsPerContext && (next = queue.poll(ctxTokens - reserved, active.isEmpty())) != null) {
+                    if (next.future.isDone()) {
+                        continue;
+                    }
+                    try {
+                        next.sequence = batch.openSequence(next.params);
+                        next.sequence.prompt(next.tokens);
+                    } catch (RuntimeException e) {
+                        fail(next, e);
+                        continue;
+                    }
+                    next.admitNanos = System.nanoTime();
+                    queueNanos.add(next.admitNanos - next.submitNanos);
+                    next.active = true;
+                    activeSequences.increment();
+                    reserved += next.need;
+                    active.add(next);
+                }
+                if (active.isEmpty()) {
+                    continue;
+                }
+                try {
+                    batch.step();
+                } catch (RuntimeException e) {
+                    LOG.warn("Batch step with {} sequences failed", active.size(), e);
+                    for (Job job : active) {
+                        fail(job, e);
+                    }
+                    active.clear();
+                    reserved = 0;
+                    continue;
+                }
+                for (Iterator<Job> it = active.iterator(); it.hasNext(); ) {
+                    Job job = it.next();
+                    boolean done = job.future.isDone();
+                    if (!done) {
+                        try {
+                            done = advance(batch, job);
+                        } catch (RuntimeException e) {
+                            fail(job, e);
+                            done = true;
+                        }
+                    } else {
+                        cancelled.increment();
+                        retire(job);
+                    }
+                    if (done) {
+                        reserved -= job.need;
+                        it.remove();
+                    }
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            IllegalStateException error = new IllegalStateException("InferenceScheduler already closed");
+            for (Job job : active) {
+                fail(job, error);
+            }
+            batch.close();
+        }
+    }
+
+    private boolean advance(BatchContext batch, Job job) {
+        BatchContext.Sequence sequence = job.sequence;
+        if (sequence.produced() > job.emitted) {
+            long now = System.nanoTime();
+            if (job.emitted == 0) {
+                job.firstTokenNanos = now;
+                firstTokenNanos.add(now - job.submitNanos);
+                firstTokens.increment();
+                if (metrics.isEnabled()) {
+                    metrics.recordFirstToken(now - job.submitNanos);
+                }
+            } else if (metrics.isEnabled()) {
+                metrics.recordInterToken(now - job.lastTokenNanos, 1);
+            }
+            job.lastTokenNanos = now;
+            job.emitted = sequence.produced();
+            generatedTokens.increment();
+            batch.appendPiece(job.out, sequence.lastToken());
+        }
+        if (!sequence.isFinished()) {
+            return false;
+        }
+        if (job.future.isDone()) {
+            cancelled.increment();
+            retire(job);
+            return true;
+        }
+        job.out.finish();
+        retire(job);
+        completed.increment();
+        long end = System.nanoTime();
+        if (metrics.isEnabled()) {
+            metrics.recordRequest(job.emitted, end - job.admitNanos);
+        }
+        job.future.complete(job.metrics(end));
+        return true;
+    }
+
+    private void fail(Job job, Throwable error) {
+        retire(job);
+        failed.increment();
+        job.future.completeExceptionally(error);
+    }
+
+    // before the future completes, so callers never see a finished job as active
+    private void retire(Job job) {
+        job.release();
+        if (job.active) {
+            job.active = false;
+            activeSequences.decrement();
+        }
+    }
+
+    private void ensureOpen() {
+        if (closed.get()) {
+            throw new IllegalStateException("InferenceScheduler already closed");
+        }
+    }
+
+    @Override
+    public void close() {
+        if (closed.compareAndSet(false, true)) {
+            workers.forEach(Thread::interrupt);
+            for (Thread worker : workers) {
+                try {
+                    worker.join();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    break;
+                }
+            }
+            for (Job job : queue.drain()) {
+                job.future.completeExceptionally(new IllegalStateException("InferenceScheduler already closed"));
+            }
+        }
+    }
+
+    public enum Priority {
+        HIGH,
+        NORMAL,
+        LOW
+    }
+
+    public record RequestMetrics(String tenant, Priority priority, int promptTokens, int tokens, double queueMs,
+                                 double timeToFirstTokenMs, double totalMs, double tokensPerSecond) {
+    }
+
+    // cancelled only counts admitted jobs
+    public record Stats(int contexts, int slots, int activeSequences, int queued, long submitted, long completed,
+                        long failed, long cancelled, long generatedTokens, double avgQueueMs,
+                        double avgTimeToFirstTokenMs) {
+    }
+
+    private static final class Job {
+        private final String tenant;
+        private final Priority priority;
+        private final int[] tokens;
+        private final int need;
+        private final SamplerParams params;
+        // holds back the bytes of a code point split across tokens
+        private final Utf8Stream out;
+        private final CompletableFuture<RequestMetrics> future = new CompletableFuture<>();
+        private final long submitNanos = System.nanoTime();
+        private long admitNanos;
+        private long firstTokenNanos;
+        private long lastTokenNanos;
+        private int emitted;
+        private boolean active;
+        private BatchContext.Sequence sequence;
+
+        private Job(String tenant, Priority priority, int[] tokens, int need, SamplerParams params, Utf8Stream out) {
+            this.tenant = tenant;
+            this.priority = priority;
+            this.tokens = tokens;
+            this.need = need;
+            this.params = params;
+            this.out = out;
+        }
+
+        private void release() {
+            if (sequence != null) {
+                sequence.close();
+                sequence = null;
+            }
+        }
+
+        private RequestMetrics metrics(long endNanos) {
+            double decodeSeconds = (endNanos - admitNanos) / 1_000_000_000.0;
+            return new RequestMetrics(tenant, priority, tokens.length, emitted,
+                    (admitNanos - submitNanos) / 1_000_000.0,
+                    emitted == 0 ? 0.0 : (firstTokenNanos - submitNanos) / 1_000_000.0,
+                    (endNanos - submitNanos) / 1_000_000.0,
+                    decodeSeconds <= 0 ? 0.0 : emitted / decodeSeconds);
+        }
+    }
+
+    // strict priority between classes, round-robin between tenants inside a class
+    private static final class FairQueue {
+        private final ReentrantLock lock = new ReentrantLock();
+        private final Condition available = lock.newCondition();
+        private final List<Map<String, ArrayDeque<Job>>> classes = new ArrayList<>();
+        private int size;
+
+        private FairQueue() {
+            for (int i = 0; i < Priority.values().length; i++) {
+                classes.add(new LinkedHashMap<>());
+            }
+        }
+
+        private void offer(Job job) {
+            lock.lock();
+            try {
+                classes.get(job.priority.ordinal()).computeIfAbsent(job.tenant, t -> new ArrayDeque<>()).add(job);
+                size++;
+                available.signalAll();
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        private Job poll(int budget, boolean block) throws InterruptedException {
+            lock.lockInterruptibly();
+            try {
+                while (true) {
+                    Job job = take(budget);
+                    if (job != null || !block) {
+                        return job;
+                    }
+                    available.await();
+                }
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        private Job take(int budget) {
+            for (Map<String, ArrayDeque<Job>> tenants : classes) {
+                for (Iterator<Map.Entry<String, ArrayDeque<Job>>> it = tenants.entrySet().iterator(); it.hasNext(); ) {
+                    Map.Entry<String, ArrayDeque<Job>> entry = it.next();
+                    ArrayDeque<Job> jobs = entry.getValue();
+                    if (jobs.peek().need > budget) {
+                        continue;
+                    }
+                    Job job = jobs.poll();
+                    size--;
+                    // rotate the tenant to the back so the next poll serves someone else first
+                    it.remove();
+                    if (!jobs.isEmpty()) {
+                        tenants.put(entry.getKey(), jobs);
+                    }
+                    return job;
+                }
+            }
+            return null;
+        }
+
+        private boolean remove(Job job) {
+            lock.lock();
+            try {
+                ArrayDeque<Job> jobs = classes.get(job.priority.ordinal()).get(job.tenant);
+                if (jobs == null || !jobs.remove(job)) {
+                    return false;
+                }
+                size--;
+                if (jobs.isEmpty()) {
+                    classes.get(job.priority.ordinal()).remove(job.tenant);
+                }
+                return true;
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        private List<Job> drain() {
+            lock.lock();
+            try {
+                List<Job> jobs = new ArrayList<>(size);
+                for (Map<String, ArrayDeque<Job>> tenants : classes) {
+                    tenants.values().forEach(jobs::addAll);
+                    tenants.clear();
+                }
+                size = 0;
+                return jobs;
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        private int size() {
+            lock.lock();
+            try {
+                return size;
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+}
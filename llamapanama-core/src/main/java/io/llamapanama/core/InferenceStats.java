@@ -5,12 +5,54 @@ public final class InferenceStats {
     private final double tokensPerSecond;
     private final double totalMs;
     private final int tokensEmitted;
+    private final int promptTokensReused;
+    private final int promptTokensEvaluated;
+    private final int promptTokens;
+    private final double promptEvalMs;
+    private final int decodeTokens;
+    private final double decodeMs;
+    private final long interTokenMinNs;
+    private final long interTokenMeanNs;
+    private final long interTokenP99Ns;
+    private final int kvCellsUsed;
+    private final int kvCellsTotal;
+    private final long ffmCalls;
+    private final int draftTokens;
+    private final int draftTokensAccepted;
 
     public InferenceStats(double firstTokenMs, double tokensPerSecond, double totalMs, int tokensEmitted) {
+        this(firstTokenMs, tokensPerSecond, totalMs, tokensEmitted, 0, 0);
+    }
+
+    public InferenceStats(double firstTokenMs, double tokensPerSecond, double totalMs, int tokensEmitted,
+                          int promptTokensReused, int promptTokensEvaluated) {
+        this(firstTokenMs, tokensPerSecond, totalMs, tokensEmitted, promptTokensReused, promptTokensEvaluated,
+                0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0);
+    }
+
+    public InferenceStats(double firstTokenMs, double tokensPerSecond, double totalMs, int tokensEmitted,
+                          int promptTokensReused, int promptTokensEvaluated, int promptTokens, double promptEvalMs,
+                          int decodeTokens, double decodeMs, long interTokenMinNs, long interTokenMeanNs,
+                          long interTokenP99Ns, int kvCellsUsed, int kvCellsTotal, long ffmCalls, int draftTokens,
+                          int draftTokensAccepted) {
         this.firstTokenMs = firstTokenMs;
         this.tokensPerSecond = tokensPerSecond;
         this.totalMs = totalMs;
         this.tokensEmitted = tokensEmitted;
+        this.promptTokensReused = promptTokensReused;
+        this.promptTokensEvaluated = promptTokensEvaluated;
+        this.promptTokens = promptTokens;
+        this.promptEvalMs = promptEvalMs;
+        this.decodeTokens = decodeTokens;
+        this.decodeMs = decodeMs;
+        this.interTokenMinNs = interTokenMinNs;
+        this.interTokenMeanNs = interTokenMeanNs;
+        this.interTokenP99Ns = interTokenP99Ns;
+        this.kvCellsUsed = kvCellsUsed;
+        this.kvCellsTotal = kvCellsTotal;
+        this.ffmCalls = ffmCalls;
+        this.draftTokens = draftTokens;
+        this.draftTokensAccepted = draftTokensAccepted;
     }
 
     public double firstTokenMs() {
@@ -28,4 +70,74 @@ public final class InferenceStats {
     public int tokensEmitted() {
         return tokensEmitted;
     }
+
+    public int promptTokensReused() {
+        return promptTokensReused;
+    }
+
+    public int promptTokensEvaluated() {
+        return promptTokensEvaluated;
+    }
+
+    // tokens pushed through the native prompt eval, as counted by the backend
+    public int promptTokens() {
+        return promptTokens;
+    }
+
+    public double promptEvalMs() {
+        return promptEvalMs;
+    }
+
+    // decode steps, including the one that produced end-of-sequence
+    public int decodeTokens() {
+        return decodeTokens;
+    }
+
+    public double decodeMs() {
+        return decodeMs;
+    }
+
+    public long interTokenMinNs() {
+        return interTokenMinNs;
+    }
+
+    public long interTokenMeanNs() {
+        return interTokenMeanNs;
+    }
+
+    public long interTokenP99Ns() {
+        return interTokenP99Ns;
+    }
+
+    public int kvCellsUsed() {
+        return kvCellsUsed;
+    }
+
+    public int kvCellsTotal() {
+        return kvCellsTotal;
+    }
+
+    // downcalls made against the context since its last prompt eval
+    public long ffmCalls() {
+        return ffmCalls;
+    }
+
+    // tokens proposed by a speculative draft model; zero when speculation is off
+    public int draftTokens() {
+        return draftTokens;
+    }
+
+    public int draftTokensAccepted() {
+        return draftTokensAccepted;
+    }
+
+    public double acceptanceRate() {
+        return draftTokens == 0 ? 0.0 : (double) draftTokensAccepted / draftTokens;
+    }
+
+    public InferenceStats withPromptCache(int reused, int evaluated) {
+        return new InferenceStats(firstTokenMs, tokensPerSecond, totalMs, tokensEmitted, reused, evaluated,
+                promptTokens, promptEvalMs, decodeTokens, decodeMs, interTokenMinNs, interTokenMeanNs, interTokenP99Ns,
+                kvCellsUsed, kvCellsTotal, ffmCalls, draftTokens, draftTokensAccepted);
+    }
 }
@@ -0,0 +1,181 @@
+package io.llamapanama.core;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+// JSON Schema subset to GBNF; required properties first, unlisted properties rejected
+final class JsonSchemaGrammar {
+    private static final Map<String, String> PRIMITIVES = Map.of(
+            "space", "\" \"?",
+            "value", "object | array | string | number | boolean | null",
+            "object", "\"{\" space ( string \":\" space value ( \",\" space string \":\" space value )* )? \"}\" space",
+            "array", "\"[\" space ( value ( \",\" space value )* )? \"]\" space",
+            "string", "\"\\\"\" ( [^\"\\\\\\x7F\\x00-\\x1F] | \"\\\\\" ( [\"\\\\/bfnrt] | \"u\" [0-9a-fA-F] [0-9a-fA-F] [0-9a-fA-F] [0-9a-fA-F] ) )* \"\\\"\" space",
+            "integral", "\"0\" | [1-9] [0-9]*",
+            "number", "\"-\"? integral ( \".\" [0-9]+ )? ( [eE] [-+]? [0-9]+ )? space",
+            "integer", "\"-\"? integral space",
+            "boolean", "( \"true\" | \"false\" ) space",
+            "null", "\"null\" space");
+    private static final Map<String, List<String>> DEPENDENCIES = Map.of(
+            "value", List.of("object", "array", "string", "number", "boolean", "null"),
+            "object", List.of("space", "string", "value"),
+            "array", List.of("space", "value"),
+            "string", List.of("space"),
+            "number", List.of("space", "integral"),
+            "integer", List.of("space", "integral"),
+            "boolean", List.of("space"),
+            "null", List.of("space"));
+    private final Map<String, String> rules = new LinkedHashMap<>();
+
+    private JsonSchemaGrammar() {
+    }
+
+    static String convert(Map<String, ?> schema) {
+        JsonSchemaGrammar grammar = new JsonSchemaGrammar();
+        grammar.rules.put("root", "");
+        grammar.rules.put("root", grammar.visit(schema, "root"));
+        StringBuilder out = new StringBuilder();
+        grammar.rules.forEach((name, body) -> out.append(name).append(" ::= ").append(body).append('\n'));
+        return out.toString();
+    }
+
+    private String visit(Object node, String name) {
+        if (Boolean.TRUE.equals(node)) {
+            return primitive("value");
+        }
+        if (!(node instanceof Map<?, ?> schema)) {
+            throw new IllegalArgumentException("Schema at " + name + " must be an object");
+        }
+        if (schema.containsKey("$ref")) {
+            throw new IllegalArgumentException("$ref is not supported (at " + name + ")");
+        }
+        if (schema.containsKey("const")) {
+            return literal(schema.get("const")) + " " + primitive("space");
+        }
+        if (schema.get("enum") instanceof List<?> values) {
+            List<String> options = new ArrayList<>();
+            for (Object value : values) {
+                options.add(literal(value));
+            }
+            return "( " + String.join(" | ", options) + " ) " + primitive("space");
+        }
+        Object variants = schema.containsKey("anyOf") ? schema.get("anyOf") : schema.get("oneOf");
+        if (variants instanceof List<?> list) {
+            List<String> options = new ArrayList<>();
+            for (int i = 0; i < list.size(); i++) {
+                options.add(rule(list.get(i), name + "-" + i));
+            }
+            return String.join(" | ", options);
+        }
+        Object type = schema.get("type");
+        if (type instanceof List<?> types) {
+            List<String> options = new ArrayList<>();
+            for (Object each : types) {
+                options.add("( " + visitType(each, schema, name) + " )");
+            }
+            return String.join(" | ", options);
+        }
+        if (type == null) {
+            return schema.containsKey("properties") ? visitType("object", schema, name) : primitive("value");
+        }
+        return visitType(type, schema, name);
+    }
+
+    private String visitType(Object type, Map<?, ?> schema, String name) {
+        if (!(type instanceof String typeName)) {
+            throw new IllegalArgumentException("Schema type at " + name + " must be a string");
+        }
+        return switch (typeName) {
+            case "object" -> object(schema, name);
+            case "array" -> {
+                String item = schema.get("items") == null ? primitive("value") : rule(schema.get("items"), name + "-item");
+                primitive("space");
+                yield "\"[\" space ( " + item + " ( \",\" space " + item + " )* )? \"]\" space";
+            }
+            case "string", "number", "integer", "boolean", "null" -> primitive(typeName);
+            default -> throw new IllegalArgumentException("Unsupported schema type " + typeName + " at " + name);
+        };
+    }
+
+    private String object(Map<?, ?> schema, String name) {
+        if (!(schema.get("properties") instanceof Map<?, ?> properties) || properties.isEmpty()) {
+            return primitive("object");
+        }
+        List<?> required = schema.get("required") instanceof List<?> names ? names : List.of();
+        List<String> mandatory = new ArrayList<>();
+        List<String> optional = new ArrayList<>();
+        for (Map.Entry<?, ?> property : properties.entrySet()) {
+            String key = String.valueOf(property.getKey());
+            String member = literal(key) + " space \":\" space " + rule(property.getValue(), name + "-" + key);
+            (required.contains(key) ? mandatory : optional).add(member);
+        }
+        primitive("space");
+        StringBuilder body = new StringBuilder("\"{\" space ");
+        if (!mandatory.isEmpty()) {
+            body.append(String.join(" \",\" space ", mandatory));
+            for (String member : optional) {
+                body.append(" ( \",\" space ").append(member).append(" )?");
+            }
+        } else {
+            // any in-order subset of the optional members, each alternative naming the first one present
+            body.append("( ");
+            for (int i = 0; i < optional.size(); i++) {
+                body.append(i == 0 ? "" : " | ").append(optional.get(i));
+                for (int j = i + 1; j < optional.size(); j++) {
+                    body.append(" ( \",\" space ").append(optional.get(j)).append(" )?");
+                }
+            }
+            body.append(" )?");
+        }
+        return body.append(" \"}\" space").toString();
+    }
+
+    // a named rule for a nested schema; names follow the property path and stay unique
+    private String rule(Object node, String path) {
+        String base = path.replaceAll("[^A-Za-z0-9-]+", "-");
+        String name = base;
+        for (int i = 1; rules.containsKey(name) || PRIMITIVES.containsKey(name); i++) {
+            name = base + "-" + i;
+        }
+        rules.put(name, "");
+        rules.put(name, visit(node, name));
+        return name;
+    }
+
+    private String primitive(String name) {
+        if (!rules.containsKey(name)) {
+            rules.put(name, PRIMITIVES.get(name));
+            for (String dependency : DEPENDENCIES.getOrDefault(name, List.of())) {
+                primitive(dependency);
+            }
+        }
+        return name;
+    }
+
+    // the value's JSON text as a GBNF string literal
+    private static String literal(Object value) {
+        String json;
+        if (value == null || value instanceof Boolean) {
+            json = String.valueOf(value);
+        } else if (value instanceof Number number) {
+            double d = number.doubleValue();
+            json = d == Math.rint(d) && !Double.isInfinite(d) && Math.abs(d) < 1e15 ? Long.toString((long) d) : number.toString();
+        } else if (value instanceof String text) {
+            json = "\"" + text.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n").replace("\r", "\\r")
+                    .replace("\t", "\\t") + "\"";
+        } else {
+            throw new IllegalArgumentException("enum and const values must be strings, numbers, booleans or null");
+        }
+        StringBuilder out = new StringBuilder("\"");
+        for (int i = 0; i < json.length(); i++) {
+            char c = json.charAt(i);
+            if (c == '"' || c == '\\') {
+                out.append('\\');
+            }
+            out.append(c);
+        }
+        return out.append('"').toString();
+    }
+}
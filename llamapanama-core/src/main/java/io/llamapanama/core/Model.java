@@ -2,22 +2,56 @@ package io.llamapanama.core;
 
 import java.lang.foreign.Arena;
 import java.lang.foreign.MemorySegment;
+import java.lang.foreign.ValueLayout;
 import java.lang.ref.Cleaner;
+import java.util.List;
 import java.util.Objects;
 import java.util.concurrent.atomic.AtomicBoolean;
 
 public final class Model implements AutoCloseable {
     private static final Cleaner CLEANER = Cleaner.create();
     private final MemorySegment handle;
+    private final Arena arena;
     private final Cleaner.Cleanable cleanable;
     private final AtomicBoolean closed = new AtomicBoolean(false);
+    private final InferenceMetrics metrics = new InferenceMetrics();
+    private final ModelParams params;
+    private final long sizeBytes;
+    private final Owner owner;
+    private volatile VocabTable vocab;
 
     public Model(String path) {
+        this(path, ModelParams.defaults());
+    }
+
+    public Model(String path, ModelParams params) {
+        this(path, params, null);
+    }
+
+    Model(String path, ModelParams params, Owner owner) {
         Objects.requireNonNull(path, "path");
+        this.owner = owner;
+        this.params = Objects.requireNonNull(params, "params");
         NativeBindings.backendInit();
+        InferenceEvents.ModelLoad event = new InferenceEvents.ModelLoad();
+        event.begin();
         Arena arena = Arena.ofShared();
-        this.handle = NativeBindings.loadModel(path, arena);
-        this.cleanable = CLEANER.register(this, () -> NativeBindings.freeModel(handle));
+        MemorySegment nativeHandle;
+        try {
+            nativeHandle = NativeBindings.loadModel(path, params, arena);
+        } catch (RuntimeException e) {
+            arena.close();
+            throw e;
+        }
+        event.path = path;
+        event.commit();
+        this.handle = nativeHandle;
+        this.arena = arena;
+        this.cleanable = CLEANER.register(this, () -> {
+            NativeBindings.freeModel(nativeHandle);
+            arena.close();
+        });
+        this.sizeBytes = NativeBindings.modelSize(nativeHandle, arena);
     }
 
     MemorySegment handle() {
@@ -25,16 +59,157 @@ public final class Model implements AutoCloseable {
         return handle;
     }
 
+    public ModelParams params() {
+        return params;
+    }
+
+    // weight bytes the backend keeps resident for this model
+    public long sizeBytes() {
+        return sizeBytes;
+    }
+
+    public InferenceMetrics metrics() {
+        return metrics;
+    }
+
+    public TokenBatch tokenizeBatch(List<String> texts) {
+        return tokenizeBatch(texts, true);
+    }
+
+    public TokenBatch tokenizeBatch(List<String> texts, boolean addBos) {
+        Objects.requireNonNull(texts, "texts");
+        MemorySegment model = handle();
+        InferenceEvents.Tokenize event = InferenceEvents.recording() ? new InferenceEvents.Tokenize() : null;
+        if (event != null) {
+            event.begin();
+        }
+        // the batch returns the scratch on close
+        TokenScratch scratch = TokenScratch.acquire();
+        try (Arena arena = Arena.ofConfined()) {
+            MemorySegment cTexts = utf8Array(texts, arena);
+            MemorySegment offsets = scratch.offsets(texts.size() + 1);
+            MemorySegment out = scratch.tokens(0);
+            int total = NativeBindings.tokenizeBatch(model, cTexts, texts.size(), addBos, out,
+                    (int) Math.min(Integer.MAX_VALUE, out.byteSize() / Integer.BYTES), offsets, scratch.errOut());
+            if (total < 0) {
+                // the scratch keeps its grown size
+                out = scratch.tokens(-total);
+                total = NativeBindings.tokenizeBatch(model, cTexts, texts.size(), addBos, out, -total, offsets, scratch.errOut());
+            }
+            TokenBatch batch = new TokenBatch(scratch, out.asSlice(0, (long) total * Integer.BYTES),
+                    offsets.asSlice(0, (texts.size() + 1L) * Integer.BYTES).toArray(ValueLayout.JAVA_INT));
+            if (event != null && event.shouldCommit()) {
+                int characters = 0;
+                for (String text : texts) {
+                    characters += text.length();
+                }
+                event.characters = characters;
+                event.tokens = total;
+                event.commit();
+            }
+            return batch;
+        } catch (RuntimeException e) {
+            scratch.close();
+            throw e;
+        }
+    }
+
+    // the count-only fast path: no token ids are written or copied
+    public int[] countTokens(List<String> texts, boolean addBos) {
+        Objects.requireNonNull(texts, "texts");
+        MemorySegment model = handle();
+        try (TokenScratch scratch = TokenScratch.acquire(); Arena arena = Arena.ofConfined()) {
+            MemorySegment offsets = scratch.offsets(texts.size() + 1);
+            NativeBindings.tokenizeBatch(model, utf8Array(texts, arena), texts.size(), addBos, MemorySegment.NULL, 0,
+                    offsets, scratch.errOut());
+            int[] counts = new int[texts.size()];
+            int previous = 0;
+            for (int i = 0; i < counts.length; i++) {
+                int next = offsets.getAtIndex(ValueLayout.JAVA_INT, i + 1);
+                counts[i] = next - previous;
+                previous = next;
+            }
+            return counts;
+        }
+    }
+
+    int[] tokenize(String text, boolean addBos, int maxTokens) {
+        MemorySegment model = handle();
+        InferenceEvents.Tokenize event = InferenceEvents.recording() ? new InferenceEvents.Tokenize() : null;
+        if (event != null) {
+            event.begin();
+        }
+        try (TokenScratch scratch = TokenScratch.acquire(); Arena arena = Arena.ofConfined()) {
+            MemorySegment buffer = scratch.tokens(maxTokens);
+            int count = NativeBindings.tokenize(model, text, addBos, buffer, maxTokens, arena);
+            int[] tokens = buffer.asSlice(0, (long) count * Integer.BYTES).toArray(ValueLayout.JAVA_INT);
+            if (event != null && event.shouldCommit()) {
+                event.characters = text.length();
+                event.tokens = count;
+                event.commit();
+            }
+            return tokens;
+        }
+    }
+
+    private static MemorySegment utf8Array(List<String> texts, Arena arena) {
+        MemorySegment cTexts = arena.allocateArray(ValueLayout.ADDRESS, Math.max(1, texts.size()));
+        for (int i = 0; i < texts.size(); i++) {
+            cTexts.setAtIndex(ValueLayout.ADDRESS, i, arena.allocateUtf8String(Objects.requireNonNull(texts.get(i), "text")));
+        }
+        return cTexts;
+    }
+
+    VocabTable vocab() {
+        VocabTable table = vocab;
+        if (table == null) {
+            synchronized (this) {
+                table = vocab;
+                if (table == null) {
+                    table = VocabTable.load(handle(), arena);
+                    vocab = table;
+                }
+            }
+        }
+        return table;
+    }
+
+    // contexts pin the model for their lifetime; for a registry model that holds a lease on it
+    void retain() {
+        if (owner != null) {
+            owner.retain();
+        }
+    }
+
+    void release() {
+        if (owner != null) {
+            owner.release();
+        }
+    }
+
     private void ensureOpen() {
         if (closed.get()) {
             throw new IllegalStateException("Model already closed");
         }
     }
 
+    // a no-op for registry models, which the registry frees
     @Override
     public void close() {
+        if (owner == null) {
+            dispose();
+        }
+    }
+
+    void dispose() {
         if (closed.compareAndSet(false, true)) {
             cleanable.clean();
         }
     }
+
+    interface Owner {
+        void retain();
+
+        void release();
+    }
 }
@@ -0,0 +1,35 @@
+package io.llamapanama.core;
+
+public record ModelParams(
+        int gpuLayers,
+        boolean useMmap,
+        boolean useMlock,
+        boolean vocabOnly
+) {
+    public static ModelParams defaults() {
+        return new ModelParams(0, true, false, false);
+    }
+
+    public ModelParams {
+        if (gpuLayers < 0) {
+            throw new IllegalArgumentException("gpuLayers must be non-negative");
+        }
+    }
+
+    public ModelParams withGpuLayers(int gpuLayers) {
+        return new ModelParams(gpuLayers, useMmap, useMlock, vocabOnly);
+    }
+
+    public ModelParams withMmap(boolean useMmap) {
+        return new ModelParams(gpuLayers, useMmap, useMlock, vocabOnly);
+    }
+
+    public ModelParams withMlock(boolean useMlock) {
+        return new ModelParams(gpuLayers, useMmap, useMlock, vocabOnly);
+    }
+
+    // loads only the tokenizer, enough for tokenize/countTokens but not for a Context
+    public ModelParams withVocabOnly(boolean vocabOnly) {
+        return new ModelParams(gpuLayers, useMmap, useMlock, vocabOnly);
+    }
+}
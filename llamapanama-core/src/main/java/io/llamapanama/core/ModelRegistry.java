@@ -0,0 +1,204 @@
+package io.llamapanama.core;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Path;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+// one Model per path and ModelParams; idle models are evicted least recently used first to meet the budget
+public final class ModelRegistry implements AutoCloseable {
+    private static final Logger LOG = LoggerFactory.getLogger(ModelRegistry.class);
+    private final long memoryBudgetBytes;
+    // access order, so iteration starts at the least recently leased entry
+    private final LinkedHashMap<Key, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+    private final ExecutorService loader = Executors.newCachedThreadPool(
+            Thread.ofPlatform().name("llamapanama-model-loader-", 0).daemon(true).factory());
+    private final AtomicBoolean closed = new AtomicBoolean(false);
+    private long residentBytes;
+    private long loads;
+    private long evictions;
+
+    public ModelRegistry(long memoryBudgetBytes) {
+        if (memoryBudgetBytes <= 0) {
+            throw new IllegalArgumentException("memoryBudgetBytes must be positive");
+        }
+        this.memoryBudgetBytes = memoryBudgetBytes;
+    }
+
+    public Lease acquire(String path) {
+        return acquire(path, ModelParams.defaults());
+    }
+
+    public Lease acquire(String path, ModelParams params) {
+        Key key = key(path, params);
+        Entry entry;
+        synchronized (this) {
+            ensureOpen();
+            entry = entries.computeIfAbsent(key, k -> new Entry());
+            entry.leases++;
+        }
+        Model model;
+        try {
+            model = load(key, entry);
+        } catch (RuntimeException e) {
+            synchronized (this) {
+                entry.leases--;
+                if (entry.model == null && entry.leases == 0) {
+                    entries.remove(key, entry);
+                }
+            }
+            throw e;
+        }
+        return new Lease(entry, model);
+    }
+
+    // loads the model on a background thread and leaves it idle in the registry
+    public CompletableFuture<Void> preload(String path, ModelParams params) {
+        ensureOpen();
+        return CompletableFuture.runAsync(() -> acquire(path, params).close(), loader);
+    }
+
+    public synchronized Stats stats() {
+        int leased = 0;
+        for (Entry entry : entries.values()) {
+            if (entry.leases > 0) {
+                leased++;
+            }
+        }
+        return new Stats(entries.size(), leased, residentBytes, memoryBudgetBytes, loads, evictions);
+    }
+
+    private Model load(Key key, Entry entry) {
+        // concurrent leases of one key wait here for a single load; other keys load in parallel
+        synchronized (entry) {
+            if (entry.model != null) {
+                return entry.model;
+            }
+            Model model = new Model(key.path().toString(), key.params(), entry);
+            synchronized (this) {
+                entry.model = model;
+                residentBytes += model.sizeBytes();
+                loads++;
+                evictIdle();
+            }
+            return model;
+        }
+    }
+
+    // caller holds the registry lock
+    private void evictIdle() {
+        Iterator<Map.Entry<Key, Entry>> leastRecent = entries.entrySet().iterator();
+        while (residentBytes > memoryBudgetBytes && leastRecent.hasNext()) {
+            Map.Entry<Key, Entry> candidate = leastRecent.next();
+            Entry entry = candidate.getValue();
+            if (entry.leases > 0 || entry.model == null) {
+                continue;
+            }
+            leastRecent.remove();
+            residentBytes -= entry.model.sizeBytes();
+            evictions++;
+            LOG.debug("Evicting idle model {} ({} bytes)", candidate.getKey().path(), entry.model.sizeBytes());
+            entry.model.dispose();
+        }
+    }
+
+    private synchronized void release(Entry entry) {
+        entry.leases--;
+        if (!closed.get()) {
+            evictIdle();
+        } else if (entry.leases == 0 && entry.model != null) {
+            entry.model.dispose();
+        }
+    }
+
+    private static Key key(String path, ModelParams params) {
+        Objects.requireNonNull(path, "path");
+        Objects.requireNonNull(params, "params");
+        try {
+            return new Key(Path.of(path).toRealPath(), params);
+        } catch (IOException e) {
+            throw new UncheckedIOException("Cannot resolve model path " + path, e);
+        }
+    }
+
+    private void ensureOpen() {
+        if (closed.get()) {
+            throw new IllegalStateException("ModelRegistry already closed");
+        }
+    }
+
+    // idle models are freed now; leased ones as their last lease closes
+    @Override
+    public void close() {
+        if (closed.compareAndSet(false, true)) {
+            loader.shutdownNow();
+            synchronized (this) {
+                for (Entry entry : entries.values()) {
+                    if (entry.leases == 0 && entry.model != null) {
+                        entry.model.dispose();
+                    }
+                }
+                entries.clear();
+                residentBytes = 0;
+            }
+        }
+    }
+
+    public record Stats(int models, int leased, long residentBytes, long budgetBytes, long loads, long evictions) {
+    }
+
+    private record Key(Path path, ModelParams params) {
+    }
+
+    // contexts built on the model count as leases too
+    private final class Entry implements Model.Owner {
+        private Model model;
+        private int leases;
+
+        @Override
+        public void retain() {
+            synchronized (ModelRegistry.this) {
+                leases++;
+            }
+        }
+
+        @Override
+        public void release() {
+            ModelRegistry.this.release(this);
+        }
+    }
+
+    public final class Lease implements AutoCloseable {
+        private final Entry entry;
+        private final Model model;
+        private final AtomicBoolean returned = new AtomicBoolean(false);
+
+        private Lease(Entry entry, Model model) {
+            this.entry = entry;
+            this.model = model;
+        }
+
+        public Model model() {
+            if (returned.get()) {
+                throw new IllegalStateException("Lease already returned");
+            }
+            return model;
+        }
+
+        @Override
+        public void close() {
+            if (returned.compareAndSet(false, true)) {
+                release(entry);
+            }
+        }
+    }
+}
@@ -11,6 +11,7 @@ import java.lang.foreign.MemoryLayout.PathElement;
 import java.lang.foreign.ValueLayout;
 import java.lang.invoke.MethodHandle;
 import java.nio.file.Path;
+import java.util.List;
 
 final class NativeBindings {
     private static final Linker LINKER = Linker.nativeLinker();
@@ -19,49 +20,74 @@ final class NativeBindings {
     static final MemoryLayout INT = ValueLayout.JAVA_INT;
     static final MemoryLayout ADDRESS = ValueLayout.ADDRESS;
 
-    private static final MethodHandle BACKEND_INIT;
-    private static final MethodHandle MODEL_LOAD;
-    private static final MethodHandle CONTEXT_CREATE;
-    private static final MethodHandle TOKENIZE;
-    private static final MethodHandle EVAL;
-    private static final MethodHandle SAMPLE;
-    private static final MethodHandle SAMPLE_EX;
-    private static final MethodHandle TOKEN_TO_PIECE;
-    private static final MethodHandle EMBEDDINGS_DIM;
-    private static final MethodHandle GET_EMBEDDINGS;
-    private static final MethodHandle GET_LAST_STATS;
-    private static final MethodHandle FREE_MODEL;
-    private static final MethodHandle FREE_CONTEXT;
-    private static final MethodHandle LAST_ERROR;
+    // mirrors lp_inference_stats_ex version 3; the native side copies at most byteSize() bytes
+    static final int STATS_VERSION = 3;
     private static final MemoryLayout STATS_LAYOUT = MemoryLayout.structLayout(
+            ValueLayout.JAVA_INT.withName("version"),
+            ValueLayout.JAVA_INT.withName("size"),
             ValueLayout.JAVA_DOUBLE.withName("first_token_ms"),
             ValueLayout.JAVA_DOUBLE.withName("tokens_per_sec"),
             ValueLayout.JAVA_DOUBLE.withName("total_ms"),
+            ValueLayout.JAVA_DOUBLE.withName("prompt_eval_ms"),
+            ValueLayout.JAVA_DOUBLE.withName("decode_ms"),
+            ValueLayout.JAVA_LONG.withName("inter_token_min_ns"),
+            ValueLayout.JAVA_LONG.withName("inter_token_mean_ns"),
+            ValueLayout.JAVA_LONG.withName("inter_token_p99_ns"),
+            ValueLayout.JAVA_LONG.withName("ffm_calls"),
             ValueLayout.JAVA_INT.withName("tokens_emitted"),
-            MemoryLayout.paddingLayout(4)
+            ValueLayout.JAVA_INT.withName("prompt_tokens"),
+            ValueLayout.JAVA_INT.withName("decode_tokens"),
+            ValueLayout.JAVA_INT.withName("kv_cells_used"),
+            ValueLayout.JAVA_INT.withName("kv_cells_total"),
+            ValueLayout.JAVA_INT.withName("reserved"),
+            ValueLayout.JAVA_INT.withName("draft_tokens"),
+            ValueLayout.JAVA_INT.withName("draft_accepted")
     );
+    static final MemoryLayout SAMPLER_PARAMS_LAYOUT = MemoryLayout.structLayout(
+            ValueLayout.JAVA_FLOAT.withName("temp"),
+            ValueLayout.JAVA_FLOAT.withName("top_p"),
+            ValueLayout.JAVA_INT.withName("top_k"),
+            ValueLayout.JAVA_FLOAT.withName("repeat_penalty"),
+            ValueLayout.JAVA_INT.withName("seed"),
+            ValueLayout.JAVA_INT.withName("state_pos")
+    );
+    private static final MemoryLayout MODEL_PARAMS_LAYOUT = MemoryLayout.structLayout(
+            ValueLayout.JAVA_INT.withName("n_gpu_layers"),
+            ValueLayout.JAVA_INT.withName("use_mmap"),
+            ValueLayout.JAVA_INT.withName("use_mlock"),
+            ValueLayout.JAVA_INT.withName("vocab_only")
+    );
+    private static final long OFFSET_GPU_LAYERS = MODEL_PARAMS_LAYOUT.byteOffset(PathElement.groupElement("n_gpu_layers"));
+    private static final long OFFSET_MMAP = MODEL_PARAMS_LAYOUT.byteOffset(PathElement.groupElement("use_mmap"));
+    private static final long OFFSET_MLOCK = MODEL_PARAMS_LAYOUT.byteOffset(PathElement.groupElement("use_mlock"));
+    private static final long OFFSET_VOCAB_ONLY = MODEL_PARAMS_LAYOUT.byteOffset(PathElement.groupElement("vocab_only"));
+    private static final long OFFSET_TEMP = SAMPLER_PARAMS_LAYOUT.byteOffset(PathElement.groupElement("temp"));
+    private static final long OFFSET_TOP_P = SAMPLER_PARAMS_LAYOUT.byteOffset(PathElement.groupElement("top_p"));
+    private static final long OFFSET_TOP_K = SAMPLER_PARAMS_LAYOUT.byteOffset(PathElement.groupElement("top_k"));
+    private static final long OFFSET_REPEAT = SAMPLER_PARAMS_LAYOUT.byteOffset(PathElement.groupElement("repeat_penalty"));
+    private static final long OFFSET_SEED = SAMPLER_PARAMS_LAYOUT.byteOffset(PathElement.groupElement("seed"));
+    private static final long OFFSET_STATE_POS = SAMPLER_PARAMS_LAYOUT.byteOffset(PathElement.groupElement("state_pos"));
     private static final long OFFSET_FIRST = STATS_LAYOUT.byteOffset(PathElement.groupElement("first_token_ms"));
     private static final long OFFSET_TPS = STATS_LAYOUT.byteOffset(PathElement.groupElement("tokens_per_sec"));
     private static final long OFFSET_TOTAL = STATS_LAYOUT.byteOffset(PathElement.groupElement("total_ms"));
     private static final long OFFSET_EMITTED = STATS_LAYOUT.byteOffset(PathElement.groupElement("tokens_emitted"));
+    private static final long OFFSET_VERSION = STATS_LAYOUT.byteOffset(PathElement.groupElement("version"));
+    private static final long OFFSET_PROMPT_MS = STATS_LAYOUT.byteOffset(PathElement.groupElement("prompt_eval_ms"));
+    private static final long OFFSET_DECODE_MS = STATS_LAYOUT.byteOffset(PathElement.groupElement("decode_ms"));
+    private static final long OFFSET_GAP_MIN = STATS_LAYOUT.byteOffset(PathElement.groupElement("inter_token_min_ns"));
+    private static final long OFFSET_GAP_MEAN = STATS_LAYOUT.byteOffset(PathElement.groupElement("inter_token_mean_ns"));
+    private static final long OFFSET_GAP_P99 = STATS_LAYOUT.byteOffset(PathElement.groupElement("inter_token_p99_ns"));
+    private static final long OFFSET_CALLS = STATS_LAYOUT.byteOffset(PathElement.groupElement("ffm_calls"));
+    private static final long OFFSET_PROMPT_TOKENS = STATS_LAYOUT.byteOffset(PathElement.groupElement("prompt_tokens"));
+    private static final long OFFSET_DECODE_TOKENS = STATS_LAYOUT.byteOffset(PathElement.groupElement("decode_tokens"));
+    private static final long OFFSET_KV_USED = STATS_LAYOUT.byteOffset(PathElement.groupElement("kv_cells_used"));
+    private static final long OFFSET_KV_TOTAL = STATS_LAYOUT.byteOffset(PathElement.groupElement("kv_cells_total"));
+    private static final long OFFSET_DRAFTED = STATS_LAYOUT.byteOffset(PathElement.groupElement("draft_tokens"));
+    private static final long OFFSET_ACCEPTED = STATS_LAYOUT.byteOffset(PathElement.groupElement("draft_accepted"));
 
     static {
         Path path = NativeLibraryLoader.ensureLoaded();
         LOOKUP = SymbolLookup.libraryLookup(path, Arena.global());
-        BACKEND_INIT = downcall("lp_backend_init", FunctionDescriptor.of(ValueLayout.JAVA_INT));
-        MODEL_LOAD = downcall("lp_model_load", FunctionDescriptor.of(ADDRESS, ADDRESS, ValueLayout.JAVA_INT, ADDRESS));
-        CONTEXT_CREATE = downcall("lp_context_create", FunctionDescriptor.of(ADDRESS, ADDRESS, ValueLayout.JAVA_INT, ValueLayout.JAVA_INT, ADDRESS));
-        TOKENIZE = downcall("lp_tokenize", FunctionDescriptor.of(ValueLayout.JAVA_INT, ADDRESS, ADDRESS, ValueLayout.JAVA_INT, ADDRESS, ValueLayout.JAVA_INT, ADDRESS));
-        EVAL = downcall("lp_eval", FunctionDescriptor.of(ValueLayout.JAVA_INT, ADDRESS, ADDRESS, ValueLayout.JAVA_INT, ADDRESS));
-        SAMPLE = downcall("lp_sample", FunctionDescriptor.of(ValueLayout.JAVA_INT, ADDRESS, ValueLayout.JAVA_FLOAT, ValueLayout.JAVA_FLOAT, ValueLayout.JAVA_INT, ValueLayout.JAVA_FLOAT, ValueLayout.JAVA_INT, ADDRESS));
-        SAMPLE_EX = downcall("lp_sample_ex", FunctionDescriptor.of(ValueLayout.JAVA_INT, ADDRESS, ValueLayout.JAVA_FLOAT, ValueLayout.JAVA_FLOAT, ValueLayout.JAVA_INT, ValueLayout.JAVA_FLOAT, ValueLayout.JAVA_INT, ADDRESS, ADDRESS, ADDRESS));
-        TOKEN_TO_PIECE = downcall("lp_token_to_piece", FunctionDescriptor.of(ValueLayout.JAVA_INT, ADDRESS, ValueLayout.JAVA_INT, ADDRESS, ValueLayout.JAVA_INT, ADDRESS));
-        EMBEDDINGS_DIM = downcall("lp_embeddings_dim", FunctionDescriptor.of(ValueLayout.JAVA_INT, ADDRESS, ADDRESS));
-        GET_EMBEDDINGS = downcall("lp_get_embeddings", FunctionDescriptor.of(ValueLayout.JAVA_INT, ADDRESS, ADDRESS, ADDRESS, ValueLayout.JAVA_INT, ADDRESS));
-        FREE_MODEL = downcall("lp_free_model", FunctionDescriptor.ofVoid(ADDRESS));
-        FREE_CONTEXT = downcall("lp_free_context", FunctionDescriptor.ofVoid(ADDRESS));
-        LAST_ERROR = downcall("lp_last_error", FunctionDescriptor.of(ADDRESS));
-        GET_LAST_STATS = downcall("lp_get_last_stats", FunctionDescriptor.of(ValueLayout.JAVA_INT, ADDRESS, STATS_LAYOUT, ADDRESS));
     }
 
     private static MethodHandle downcall(String symbol, FunctionDescriptor descriptor) {
@@ -73,12 +99,20 @@ final class NativeBindings {
         }
     }
 
+    // for functions that also return a 0/1 status
+    static void checkError(int status, MemorySegment errOut) {
+        checkError(errOut);
+        if (status != 0) {
+            throw new IllegalStateException("Native call failed with status " + status);
+        }
+    }
+
     static void checkError(MemorySegment errOut) {
         int code = errOut.get(ValueLayout.JAVA_INT, 0);
         if (code != 0) {
             MemorySegment errPtr;
             try {
-                errPtr = (MemorySegment) LAST_ERROR.invoke();
+                errPtr = (MemorySegment) LastError.HANDLE.invoke();
             } catch (Throwable t) {
                 throw new IllegalStateException("Native error but could not fetch message", t);
             }
@@ -89,18 +123,23 @@ final class NativeBindings {
 
     static void backendInit() {
         try {
-            BACKEND_INIT.invoke();
+            BackendInit.HANDLE.invoke();
         } catch (Throwable t) {
             throw new IllegalStateException("Failed to init backend", t);
         }
     }
 
-    static MemorySegment loadModel(String path, SegmentAllocator allocator) {
+    static MemorySegment loadModel(String path, ModelParams params, SegmentAllocator allocator) {
         MemorySegment errOut = allocator.allocate(ValueLayout.JAVA_INT);
         MemorySegment cPath = allocator.allocateUtf8String(path);
+        MemorySegment cParams = allocator.allocate(MODEL_PARAMS_LAYOUT);
+        cParams.set(ValueLayout.JAVA_INT, OFFSET_GPU_LAYERS, params.gpuLayers());
+        cParams.set(ValueLayout.JAVA_INT, OFFSET_MMAP, params.useMmap() ? 1 : 0);
+        cParams.set(ValueLayout.JAVA_INT, OFFSET_MLOCK, params.useMlock() ? 1 : 0);
+        cParams.set(ValueLayout.JAVA_INT, OFFSET_VOCAB_ONLY, params.vocabOnly() ? 1 : 0);
         MemorySegment result;
         try {
-            result = (MemorySegment) MODEL_LOAD.invoke(cPath, 0, errOut);
+            result = (MemorySegment) ModelLoadEx.HANDLE.invokeExact(cPath, cParams, errOut);
         } catch (Throwable t) {
             throw new IllegalStateException("Failed to load model", t);
         }
@@ -112,7 +151,19 @@ final class NativeBindings {
         MemorySegment errOut = allocator.allocate(ValueLayout.JAVA_INT);
         MemorySegment result;
         try {
-            result = (MemorySegment) CONTEXT_CREATE.invoke(model, ctx, threads, errOut);
+            result = (MemorySegment) ContextCreate.HANDLE.invoke(model, ctx, threads, errOut);
+        } catch (Throwable t) {
+            throw new IllegalStateException("Failed to create context", t);
+        }
+        checkError(errOut);
+        return result;
+    }
+
+    static MemorySegment createContext(MemorySegment model, int ctx, int threads, int maxSequences, SegmentAllocator allocator) {
+        MemorySegment errOut = allocator.allocate(ValueLayout.JAVA_INT);
+        MemorySegment result;
+        try {
+            result = (MemorySegment) ContextCreateEx.HANDLE.invoke(model, ctx, threads, maxSequences, errOut);
         } catch (Throwable t) {
             throw new IllegalStateException("Failed to create context", t);
         }
@@ -125,7 +176,7 @@ final class NativeBindings {
         MemorySegment cText = allocator.allocateUtf8String(text);
         int count;
         try {
-            count = (int) TOKENIZE.invoke(model, cText, addBos ? 1 : 0, outTokens, maxTokens, errOut);
+            count = (int) Tokenize.HANDLE.invoke(model, cText, addBos ? 1 : 0, outTokens, maxTokens, errOut);
         } catch (Throwable t) {
             throw new IllegalStateException("Tokenize failed", t);
         }
@@ -133,21 +184,137 @@ final class NativeBindings {
         return count;
     }
 
+    // returns the total token count, or its negation when outTokens is too small; pass NULL outTokens to only count
+    static int tokenizeBatch(MemorySegment model, MemorySegment cTexts, int count, boolean addBos, MemorySegment outTokens,
+                             int maxTokens, MemorySegment outOffsets, MemorySegment errOut) {
+        int total;
+        try {
+            total = (int) TokenizeBatch.HANDLE.invokeExact(model, cTexts, count, addBos ? 1 : 0, outTokens, maxTokens, outOffsets, errOut);
+        } catch (Throwable t) {
+            throw new IllegalStateException("Batch tokenize failed", t);
+        }
+        checkError(errOut);
+        return total;
+    }
+
     static void eval(MemorySegment context, MemorySegment tokens, int nTokens, SegmentAllocator allocator) {
         MemorySegment errOut = allocator.allocate(ValueLayout.JAVA_INT);
         try {
-            EVAL.invoke(context, tokens, nTokens, errOut);
+            Eval.HANDLE.invoke(context, tokens, nTokens, errOut);
+        } catch (Throwable t) {
+            throw new IllegalStateException("Eval failed", t);
+        }
+        checkError(errOut);
+    }
+
+    static void evalAt(MemorySegment context, MemorySegment tokens, int nTokens, int nPast, SegmentAllocator allocator) {
+        MemorySegment errOut = allocator.allocate(ValueLayout.JAVA_INT);
+        try {
+            EvalAt.HANDLE.invoke(context, tokens, nTokens, nPast, errOut);
         } catch (Throwable t) {
             throw new IllegalStateException("Eval failed", t);
         }
         checkError(errOut);
     }
 
+    static void kvTruncate(MemorySegment context, int pos, SegmentAllocator allocator) {
+        MemorySegment errOut = allocator.allocate(ValueLayout.JAVA_INT);
+        try {
+            KvTruncate.HANDLE.invoke(context, pos, errOut);
+        } catch (Throwable t) {
+            throw new IllegalStateException("KV truncate failed", t);
+        }
+        checkError(errOut);
+    }
+
+    static void kvSeqTruncate(MemorySegment context, int seqId, int pos, SegmentAllocator allocator) {
+        MemorySegment errOut = allocator.allocate(ValueLayout.JAVA_INT);
+        try {
+            KvSeqTruncate.HANDLE.invoke(context, seqId, pos, errOut);
+        } catch (Throwable t) {
+            throw new IllegalStateException("KV truncate failed", t);
+        }
+        checkError(errOut);
+    }
+
+    static void kvSeqCopy(MemorySegment context, int srcSeq, int dstSeq, int p0, int p1, MemorySegment errOut) {
+        int status;
+        try {
+            status = (int) KvSeqCopy.HANDLE.invokeExact(context, srcSeq, dstSeq, p0, p1, errOut);
+        } catch (Throwable t) {
+            throw new IllegalStateException("KV copy failed", t);
+        }
+        checkError(status, errOut);
+    }
+
+    static int seqTopTokens(MemorySegment context, int seqId, int k, MemorySegment outTokens, MemorySegment outLogprobs,
+                            MemorySegment errOut) {
+        int count;
+        try {
+            count = (int) SeqTopTokens.HANDLE.invokeExact(context, seqId, k, outTokens, outLogprobs, errOut);
+        } catch (Throwable t) {
+            throw new IllegalStateException("Reading candidates failed", t);
+        }
+        checkError(errOut);
+        return count;
+    }
+
+    static MemorySegment compileGrammar(String text, SegmentAllocator allocator) {
+        MemorySegment errOut = allocator.allocate(ValueLayout.JAVA_INT);
+        MemorySegment cText = allocator.allocateUtf8String(text);
+        MemorySegment result;
+        try {
+            result = (MemorySegment) GrammarCompile.HANDLE.invokeExact(cText, errOut);
+        } catch (Throwable t) {
+            throw new IllegalStateException("Failed to compile grammar", t);
+        }
+        checkError(errOut);
+        return result;
+    }
+
+    // grammar may be NULL to drop the sequence's parse state
+    static void seqSetGrammar(MemorySegment context, int seqId, MemorySegment grammar, MemorySegment errOut) {
+        int status;
+        try {
+            status = (int) SeqSetGrammar.HANDLE.invokeExact(context, seqId, grammar, errOut);
+        } catch (Throwable t) {
+            throw new IllegalStateException("Setting grammar failed", t);
+        }
+        checkError(status, errOut);
+    }
+
+    static void writeSamplerParams(MemorySegment params, long index, SamplerParams sampler, int statePos) {
+        MemorySegment slot = params.asSlice(index * SAMPLER_PARAMS_LAYOUT.byteSize(), SAMPLER_PARAMS_LAYOUT.byteSize());
+        slot.set(ValueLayout.JAVA_FLOAT, OFFSET_TEMP, sampler.temperature());
+        slot.set(ValueLayout.JAVA_FLOAT, OFFSET_TOP_P, sampler.topP());
+        slot.set(ValueLayout.JAVA_INT, OFFSET_TOP_K, sampler.topK());
+        slot.set(ValueLayout.JAVA_FLOAT, OFFSET_REPEAT, sampler.repeatPenalty());
+        slot.set(ValueLayout.JAVA_INT, OFFSET_SEED, sampler.seed());
+        slot.set(ValueLayout.JAVA_INT, OFFSET_STATE_POS, statePos);
+    }
+
+    static int readSamplerStatePos(MemorySegment params, long index) {
+        return params.get(ValueLayout.JAVA_INT, index * SAMPLER_PARAMS_LAYOUT.byteSize() + OFFSET_STATE_POS);
+    }
+
+    static int decodeBatch(MemorySegment context, MemorySegment seqIds, MemorySegment tokens, MemorySegment positions,
+                           MemorySegment logits, int nEntries, MemorySegment seqParams, MemorySegment outTokens,
+                           MemorySegment errOut) {
+        int sampled;
+        try {
+            sampled = (int) DecodeBatch.HANDLE.invokeExact(context, seqIds, tokens, positions, logits, nEntries, seqParams, outTokens, errOut);
+        } catch (Throwable t) {
+            throw new IllegalStateException("Batch decode failed", t);
+        }
+        checkError(errOut);
+        return sampled;
+    }
+
     static int sample(MemorySegment context, SamplerParams sampler, SegmentAllocator allocator) {
         MemorySegment errOut = allocator.allocate(ValueLayout.JAVA_INT);
         int token;
         try {
-            token = (int) SAMPLE.invoke(context, sampler.temperature(), sampler.topP(), sampler.topK(), sampler.repeatPenalty(), sampler.seed(), errOut);
+            token = (int) Sample.HANDLE.invoke(context, sampler.temperature(), sampler.topP(), sampler.topK(), sampler.repeatPenalty(), sampler.seed(), errOut);
         } catch (Throwable t) {
             throw new IllegalStateException("Sample failed", t);
         }
@@ -156,13 +323,17 @@ final class NativeBindings {
     }
 
     static int sample(MemorySegment context, SamplerParams sampler, SamplerState state, SegmentAllocator allocator) {
-        MemorySegment errOut = allocator.allocate(ValueLayout.JAVA_INT);
         MemorySegment grammar = sampler.grammar() == null ? MemorySegment.NULL : allocator.allocateUtf8String(sampler.grammar());
-        MemorySegment pos = allocator.allocate(ValueLayout.JAVA_INT);
+        return sample(context, sampler, state, grammar, allocator.allocate(ValueLayout.JAVA_INT), allocator.allocate(ValueLayout.JAVA_INT));
+    }
+
+    static int sample(MemorySegment context, SamplerParams sampler, SamplerState state, MemorySegment grammar,
+                      MemorySegment pos, MemorySegment errOut) {
         pos.set(ValueLayout.JAVA_INT, 0, state.nextPosition());
         int token;
         try {
-            token = (int) SAMPLE_EX.invoke(context, sampler.temperature(), sampler.topP(), sampler.topK(), sampler.repeatPenalty(), sampler.seed(), grammar, pos, errOut);
+            token = (int) SampleEx.HANDLE.invokeExact(context, sampler.temperature(), sampler.topP(), sampler.topK(),
+                    sampler.repeatPenalty(), sampler.seed(), grammar, pos, errOut);
         } catch (Throwable t) {
             throw new IllegalStateException("Sample failed", t);
         }
@@ -171,14 +342,50 @@ final class NativeBindings {
         return token;
     }
 
+    static int generate(MemorySegment context, SamplerParams sampler, SamplerState state, MemorySegment grammar,
+                        int maxTokens, MemorySegment cancelFlag, GenerateBuffer out, MemorySegment pos, MemorySegment errOut) {
+        pos.set(ValueLayout.JAVA_INT, 0, state.nextPosition());
+        int produced;
+        try {
+            produced = (int) Generate.HANDLE.invokeExact(context, sampler.temperature(), sampler.topP(), sampler.topK(),
+                    sampler.repeatPenalty(), sampler.seed(), grammar, pos, maxTokens, cancelFlag,
+                    out.tokens(), out.pieceLengths(), out.bytes(), out.byteCapacity(), out.status(), errOut);
+        } catch (Throwable t) {
+            throw new IllegalStateException("Generate failed", t);
+        }
+        state.updatePosition(pos.get(ValueLayout.JAVA_INT, 0));
+        checkError(errOut);
+        return produced;
+    }
+
+    // returns how many target tokens landed in out: the accepted draft prefix followed by the target's own next token
+    static int verifyDraft(MemorySegment context, SamplerParams sampler, SamplerState state, MemorySegment grammar,
+                           MemorySegment draft, int nDraft, MemorySegment out, MemorySegment pos, MemorySegment errOut) {
+        pos.set(ValueLayout.JAVA_INT, 0, state.nextPosition());
+        int count;
+        try {
+            count = (int) VerifyDraft.HANDLE.invokeExact(context, draft, nDraft, sampler.temperature(), sampler.topP(), sampler.topK(),
+                    sampler.repeatPenalty(), sampler.seed(), grammar, pos, out, errOut);
+        } catch (Throwable t) {
+            throw new IllegalStateException("Draft verification failed", t);
+        }
+        checkError(errOut);
+        state.updatePosition(pos.get(ValueLayout.JAVA_INT, 0));
+        return count;
+    }
+
     static int tokenToPieceBytes(MemorySegment model, int token, MemorySegment buffer, int bufferLen, SegmentAllocator allocator) {
-        MemorySegment errOut = allocator.allocate(ValueLayout.JAVA_INT);
+        return tokenToPieceBytes(model, token, buffer, bufferLen, allocator.allocate(ValueLayout.JAVA_INT));
+    }
+
+    static int tokenToPieceBytes(MemorySegment model, int token, MemorySegment buffer, int bufferLen, MemorySegment errOut) {
+        int status;
         try {
-            TOKEN_TO_PIECE.invoke(model, token, buffer, bufferLen, errOut);
+            status = (int) TokenToPiece.HANDLE.invokeExact(model, token, buffer, bufferLen, errOut);
         } catch (Throwable t) {
             throw new IllegalStateException("token_to_piece failed", t);
         }
-        checkError(errOut);
+        checkError(status, errOut);
         int len = 0;
         while (len < bufferLen && buffer.get(ValueLayout.JAVA_BYTE, len) != 0) {
             len++;
@@ -195,11 +402,35 @@ final class NativeBindings {
         return buffer.asSlice(0, len).reinterpret(Long.MAX_VALUE).getUtf8String(0);
     }
 
+    static int vocabSize(MemorySegment model, SegmentAllocator allocator) {
+        MemorySegment errOut = allocator.allocate(ValueLayout.JAVA_INT);
+        int size;
+        try {
+            size = (int) VocabSize.HANDLE.invoke(model, errOut);
+        } catch (Throwable t) {
+            throw new IllegalStateException("Failed to fetch vocabulary size", t);
+        }
+        checkError(errOut);
+        return size;
+    }
+
+    static int vocabDump(MemorySegment model, MemorySegment outBytes, int bytesCap, MemorySegment outOffsets, int nOffsets, SegmentAllocator allocator) {
+        MemorySegment errOut = allocator.allocate(ValueLayout.JAVA_INT);
+        int total;
+        try {
+            total = (int) VocabDump.HANDLE.invoke(model, outBytes, bytesCap, outOffsets, nOffsets, errOut);
+        } catch (Throwable t) {
+            throw new IllegalStateException("Failed to dump vocabulary", t);
+        }
+        checkError(errOut);
+        return total;
+    }
+
     static int embeddingsDim(MemorySegment model, SegmentAllocator allocator) {
         MemorySegment errOut = allocator.allocate(ValueLayout.JAVA_INT);
         int dim;
         try {
-            dim = (int) EMBEDDINGS_DIM.invoke(model, errOut);
+            dim = (int) EmbeddingsDim.HANDLE.invoke(model, errOut);
         } catch (Throwable t) {
             throw new IllegalStateException("Failed to fetch embeddings dim", t);
         }
@@ -212,7 +443,7 @@ final class NativeBindings {
         MemorySegment cText = allocator.allocateUtf8String(text);
         int written;
         try {
-            written = (int) GET_EMBEDDINGS.invoke(context, cText, out, maxLen, errOut);
+            written = (int) GetEmbeddings.HANDLE.invoke(context, cText, out, maxLen, errOut);
         } catch (Throwable t) {
             throw new IllegalStateException("Embeddings failed", t);
         }
@@ -220,25 +451,110 @@ final class NativeBindings {
         return written;
     }
 
+    static int computeEmbeddingsBatch(MemorySegment context, List<String> texts, int from, int to, EmbeddingOptions options,
+                                      MemorySegment out, SegmentAllocator allocator) {
+        MemorySegment errOut = allocator.allocate(ValueLayout.JAVA_INT);
+        int count = to - from;
+        MemorySegment cTexts = allocator.allocateArray(ADDRESS, count);
+        for (int i = 0; i < count; i++) {
+            cTexts.setAtIndex(ValueLayout.ADDRESS, i, allocator.allocateUtf8String(texts.get(from + i)));
+        }
+        int maxFloats = (int) Math.min(Integer.MAX_VALUE, out.byteSize() / Float.BYTES);
+        int dim;
+        try {
+            dim = (int) GetEmbeddingsBatch.HANDLE.invokeExact(context, cTexts, count, options.pooling().nativeCode(),
+                    options.normalize() ? 1 : 0, out, maxFloats, errOut);
+        } catch (Throwable t) {
+            throw new IllegalStateException("Batch embeddings failed", t);
+        }
+        checkError(errOut);
+        return dim;
+    }
+
     static InferenceStats fetchStats(MemorySegment context, SegmentAllocator allocator) {
         MemorySegment errOut = allocator.allocate(ValueLayout.JAVA_INT);
         MemorySegment stats = allocator.allocate(STATS_LAYOUT);
+        int status;
         try {
-            GET_LAST_STATS.invoke(context, stats, errOut);
+            status = (int) GetStatsEx.HANDLE.invokeExact(context, stats, (int) STATS_LAYOUT.byteSize(), errOut);
         } catch (Throwable t) {
             throw new IllegalStateException("Failed to load stats", t);
         }
+        checkError(status, errOut);
+        int version = stats.get(ValueLayout.JAVA_INT, OFFSET_VERSION);
+        if (version < STATS_VERSION) {
+            throw new IllegalStateException("Native library reports stats version " + version + ", expected " + STATS_VERSION);
+        }
+        return new InferenceStats(
+                stats.get(ValueLayout.JAVA_DOUBLE, OFFSET_FIRST),
+                stats.get(ValueLayout.JAVA_DOUBLE, OFFSET_TPS),
+                stats.get(ValueLayout.JAVA_DOUBLE, OFFSET_TOTAL),
+                stats.get(ValueLayout.JAVA_INT, OFFSET_EMITTED),
+                0,
+                0,
+                stats.get(ValueLayout.JAVA_INT, OFFSET_PROMPT_TOKENS),
+                stats.get(ValueLayout.JAVA_DOUBLE, OFFSET_PROMPT_MS),
+                stats.get(ValueLayout.JAVA_INT, OFFSET_DECODE_TOKENS),
+                stats.get(ValueLayout.JAVA_DOUBLE, OFFSET_DECODE_MS),
+                stats.get(ValueLayout.JAVA_LONG, OFFSET_GAP_MIN),
+                stats.get(ValueLayout.JAVA_LONG, OFFSET_GAP_MEAN),
+                stats.get(ValueLayout.JAVA_LONG, OFFSET_GAP_P99),
+                stats.get(ValueLayout.JAVA_INT, OFFSET_KV_USED),
+                stats.get(ValueLayout.JAVA_INT, OFFSET_KV_TOTAL),
+                stats.get(ValueLayout.JAVA_LONG, OFFSET_CALLS),
+                stats.get(ValueLayout.JAVA_INT, OFFSET_DRAFTED),
+                stats.get(ValueLayout.JAVA_INT, OFFSET_ACCEPTED));
+    }
+
+    static long modelSize(MemorySegment model, SegmentAllocator allocator) {
+        MemorySegment errOut = allocator.allocate(ValueLayout.JAVA_INT);
+        long size;
+        try {
+            size = (long) ModelSize.HANDLE.invokeExact(model, errOut);
+        } catch (Throwable t) {
+            throw new IllegalStateException("model_size failed", t);
+        }
+        checkError(errOut);
+        return size;
+    }
+
+    static long stateSize(MemorySegment context, MemorySegment errOut) {
+        long size;
+        try {
+            size = (long) StateSize.HANDLE.invokeExact(context, errOut);
+        } catch (Throwable t) {
+            throw new IllegalStateException("state_size failed", t);
+        }
         checkError(errOut);
-        double first = stats.get(ValueLayout.JAVA_DOUBLE, OFFSET_FIRST);
-        double tps = stats.get(ValueLayout.JAVA_DOUBLE, OFFSET_TPS);
-        double total = stats.get(ValueLayout.JAVA_DOUBLE, OFFSET_TOTAL);
-        int emitted = stats.get(ValueLayout.JAVA_INT, OFFSET_EMITTED);
-        return new InferenceStats(first, tps, total, emitted);
+        return size;
+    }
+
+    // dst and src may be file mappings; the native side reads and writes them in place
+    static long stateWrite(MemorySegment context, MemorySegment dst, MemorySegment errOut) {
+        long written;
+        try {
+            written = (long) StateWrite.HANDLE.invokeExact(context, dst, dst.byteSize(), errOut);
+        } catch (Throwable t) {
+            throw new IllegalStateException("state_write failed", t);
+        }
+        checkError(errOut);
+        return written;
+    }
+
+    static long stateRead(MemorySegment context, MemorySegment src, MemorySegment errOut) {
+        long read;
+        try {
+            read = (long) StateRead.HANDLE.invokeExact(context, src, src.byteSize(), errOut);
+        } catch (Throwable t) {
+            throw new IllegalStateException("state_read failed", t);
+        }
+        checkError(errOut);
+        return read;
     }
 
     static void freeModel(MemorySegment model) {
         try {
-            FREE_MODEL.invoke(model);
+            FreeModel.HANDLE.invoke(model);
         } catch (Throwable t) {
             throw new IllegalStateException("Failed to free model", t);
         }
@@ -246,9 +562,157 @@ final class NativeBindings {
 
     static void freeContext(MemorySegment ctx) {
         try {
-            FREE_CONTEXT.invoke(ctx);
+            FreeContext.HANDLE.invoke(ctx);
         } catch (Throwable t) {
             throw new IllegalStateException("Failed to free context", t);
         }
     }
+
+    static void freeGrammar(MemorySegment grammar) {
+        try {
+            GrammarFree.HANDLE.invokeExact(grammar);
+        } catch (Throwable t) {
+            throw new IllegalStateException("Failed to free grammar", t);
+        }
+    }
+
+    // one holder per symbol, linked on first call
+    private static final class BackendInit {
+        static final MethodHandle HANDLE = downcall("lp_backend_init", FunctionDescriptor.of(ValueLayout.JAVA_INT));
+    }
+
+    private static final class ModelLoadEx {
+        static final MethodHandle HANDLE = downcall("lp_model_load_ex", FunctionDescriptor.of(ADDRESS, ADDRESS, ADDRESS, ADDRESS));
+    }
+
+    private static final class ModelSize {
+        static final MethodHandle HANDLE = downcall("lp_model_size", FunctionDescriptor.of(ValueLayout.JAVA_LONG, ADDRESS, ADDRESS));
+    }
+
+    private static final class ContextCreate {
+        static final MethodHandle HANDLE = downcall("lp_context_create", FunctionDescriptor.of(ADDRESS, ADDRESS, ValueLayout.JAVA_INT, ValueLayout.JAVA_INT, ADDRESS));
+    }
+
+    private static final class ContextCreateEx {
+        static final MethodHandle HANDLE = downcall("lp_context_create_ex", FunctionDescriptor.of(ADDRESS, ADDRESS, ValueLayout.JAVA_INT, ValueLayout.JAVA_INT, ValueLayout.JAVA_INT, ADDRESS));
+    }
+
+    private static final class Tokenize {
+        static final MethodHandle HANDLE = downcall("lp_tokenize", FunctionDescriptor.of(ValueLayout.JAVA_INT, ADDRESS, ADDRESS, ValueLayout.JAVA_INT, ADDRESS, ValueLayout.JAVA_INT, ADDRESS));
+    }
+
+    private static final class TokenizeBatch {
+        static final MethodHandle HANDLE = downcall("lp_tokenize_batch", FunctionDescriptor.of(ValueLayout.JAVA_INT, ADDRESS, ADDRESS, ValueLayout.JAVA_INT,
+                ValueLayout.JAVA_INT, ADDRESS, ValueLayout.JAVA_INT, ADDRESS, ADDRESS));
+    }
+
+    private static final class Eval {
+        static final MethodHandle HANDLE = downcall("lp_eval", FunctionDescriptor.of(ValueLayout.JAVA_INT, ADDRESS, ADDRESS, ValueLayout.JAVA_INT, ADDRESS));
+    }
+
+    private static final class EvalAt {
+        static final MethodHandle HANDLE = downcall("lp_eval_at", FunctionDescriptor.of(ValueLayout.JAVA_INT, ADDRESS, ADDRESS, ValueLayout.JAVA_INT, ValueLayout.JAVA_INT, ADDRESS));
+    }
+
+    private static final class KvTruncate {
+        static final MethodHandle HANDLE = downcall("lp_kv_truncate", FunctionDescriptor.of(ValueLayout.JAVA_INT, ADDRESS, ValueLayout.JAVA_INT, ADDRESS));
+    }
+
+    private static final class KvSeqTruncate {
+        static final MethodHandle HANDLE = downcall("lp_kv_seq_truncate", FunctionDescriptor.of(ValueLayout.JAVA_INT, ADDRESS, ValueLayout.JAVA_INT, ValueLayout.JAVA_INT, ADDRESS));
+    }
+
+    private static final class KvSeqCopy {
+        static final MethodHandle HANDLE = downcall("lp_kv_seq_copy", FunctionDescriptor.of(ValueLayout.JAVA_INT, ADDRESS, ValueLayout.JAVA_INT, ValueLayout.JAVA_INT, ValueLayout.JAVA_INT, ValueLayout.JAVA_INT, ADDRESS));
+    }
+
+    private static final class SeqTopTokens {
+        static final MethodHandle HANDLE = downcall("lp_seq_top_tokens", FunctionDescriptor.of(ValueLayout.JAVA_INT, ADDRESS, ValueLayout.JAVA_INT, ValueLayout.JAVA_INT, ADDRESS, ADDRESS, ADDRESS));
+    }
+
+    private static final class GrammarCompile {
+        static final MethodHandle HANDLE = downcall("lp_grammar_compile", FunctionDescriptor.of(ADDRESS, ADDRESS, ADDRESS));
+    }
+
+    private static final class SeqSetGrammar {
+        static final MethodHandle HANDLE = downcall("lp_seq_set_grammar", FunctionDescriptor.of(ValueLayout.JAVA_INT, ADDRESS, ValueLayout.JAVA_INT, ADDRESS, ADDRESS));
+    }
+
+    private static final class DecodeBatch {
+        static final MethodHandle HANDLE = downcall("lp_decode_batch", FunctionDescriptor.of(ValueLayout.JAVA_INT, ADDRESS, ADDRESS, ADDRESS, ADDRESS, ADDRESS, ValueLayout.JAVA_INT, ADDRESS, ADDRESS, ADDRESS));
+    }
+
+    private static final class Sample {
+        static final MethodHandle HANDLE = downcall("lp_sample", FunctionDescriptor.of(ValueLayout.JAVA_INT, ADDRESS, ValueLayout.JAVA_FLOAT, ValueLayout.JAVA_FLOAT, ValueLayout.JAVA_INT, ValueLayout.JAVA_FLOAT, ValueLayout.JAVA_INT, ADDRESS));
+    }
+
+    private static final class SampleEx {
+        static final MethodHandle HANDLE = downcall("lp_sample_ex", FunctionDescriptor.of(ValueLayout.JAVA_INT, ADDRESS, ValueLayout.JAVA_FLOAT, ValueLayout.JAVA_FLOAT, ValueLayout.JAVA_INT, ValueLayout.JAVA_FLOAT, ValueLayout.JAVA_INT, ADDRESS, ADDRESS, ADDRESS));
+    }
+
+    private static final class Generate {
+        static final MethodHandle HANDLE = downcall("lp_generate", FunctionDescriptor.of(ValueLayout.JAVA_INT, ADDRESS, ValueLayout.JAVA_FLOAT, ValueLayout.JAVA_FLOAT, ValueLayout.JAVA_INT, ValueLayout.JAVA_FLOAT, ValueLayout.JAVA_INT, ADDRESS, ADDRESS, ValueLayout.JAVA_INT, ADDRESS, ADDRESS, ADDRESS, ADDRESS, ValueLayout.JAVA_INT, ADDRESS, ADDRESS));
+    }
+
+    private static final class VerifyDraft {
+        static final MethodHandle HANDLE = downcall("lp_verify_draft", FunctionDescriptor.of(ValueLayout.JAVA_INT, ADDRESS, ADDRESS, ValueLayout.JAVA_INT, ValueLayout.JAVA_FLOAT,
+                ValueLayout.JAVA_FLOAT, ValueLayout.JAVA_INT, ValueLayout.JAVA_FLOAT, ValueLayout.JAVA_INT, ADDRESS, ADDRESS, ADDRESS, ADDRESS));
+    }
+
+    private static final class TokenToPiece {
+        static final MethodHandle HANDLE = downcall("lp_token_to_piece", FunctionDescriptor.of(ValueLayout.JAVA_INT, ADDRESS, ValueLayout.JAVA_INT, ADDRESS, ValueLayout.JAVA_INT, ADDRESS));
+    }
+
+    private static final class VocabSize {
+        static final MethodHandle HANDLE = downcall("lp_vocab_size", FunctionDescriptor.of(ValueLayout.JAVA_INT, ADDRESS, ADDRESS));
+    }
+
+    private static final class VocabDump {
+        static final MethodHandle HANDLE = downcall("lp_vocab_dump", FunctionDescriptor.of(ValueLayout.JAVA_INT, ADDRESS, ADDRESS, ValueLayout.JAVA_INT, ADDRESS, ValueLayout.JAVA_INT, ADDRESS));
+    }
+
+    private static final class EmbeddingsDim {
+        static final MethodHandle HANDLE = downcall("lp_embeddings_dim", FunctionDescriptor.of(ValueLayout.JAVA_INT, ADDRESS, ADDRESS));
+    }
+
+    private static final class GetEmbeddings {
+        static final MethodHandle HANDLE = downcall("lp_get_embeddings", FunctionDescriptor.of(ValueLayout.JAVA_INT, ADDRESS, ADDRESS, ADDRESS, ValueLayout.JAVA_INT, ADDRESS));
+    }
+
+    private static final class GetEmbeddingsBatch {
+        static final MethodHandle HANDLE = downcall("lp_get_embeddings_batch", FunctionDescriptor.of(ValueLayout.JAVA_INT, ADDRESS, ADDRESS, ValueLayout.JAVA_INT,
+                ValueLayout.JAVA_INT, ValueLayout.JAVA_INT, ADDRESS, ValueLayout.JAVA_INT, ADDRESS));
+    }
+
+    private static final class FreeModel {
+        static final MethodHandle HANDLE = downcall("lp_free_model", FunctionDescriptor.ofVoid(ADDRESS));
+    }
+
+    private static final class FreeContext {
+        static final MethodHandle HANDLE = downcall("lp_free_context", FunctionDescriptor.ofVoid(ADDRESS));
+    }
+
+    private static final class GrammarFree {
+        static final MethodHandle HANDLE = downcall("lp_grammar_free", FunctionDescriptor.ofVoid(ADDRESS));
+    }
+
+    private static final class LastError {
+        static final MethodHandle HANDLE = downcall("lp_last_error", FunctionDescriptor.of(ADDRESS));
+    }
+
+    private static final class StateSize {
+        static final MethodHandle HANDLE = downcall("lp_state_size", FunctionDescriptor.of(ValueLayout.JAVA_LONG, ADDRESS, ADDRESS));
+    }
+
+    private static final class StateWrite {
+        static final MethodHandle HANDLE = downcall("lp_state_write", FunctionDescriptor.of(ValueLayout.JAVA_LONG, ADDRESS, ADDRESS, ValueLayout.JAVA_LONG, ADDRESS));
+    }
+
+    private static final class StateRead {
+        static final MethodHandle HANDLE = downcall("lp_state_read", FunctionDescriptor.of(ValueLayout.JAVA_LONG, ADDRESS, ADDRESS, ValueLayout.JAVA_LONG, ADDRESS));
+    }
+
+    private static final class GetStatsEx {
+        static final MethodHandle HANDLE = downcall("lp_get_stats_ex", FunctionDescriptor.of(ValueLayout.JAVA_INT, ADDRESS, ADDRESS, ValueLayout.JAVA_INT, ADDRESS));
+    }
 }
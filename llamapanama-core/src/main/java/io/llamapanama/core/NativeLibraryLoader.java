@@ -2,15 +2,25 @@ package io.llamapanama.core;
 
 import java.io.IOException;
 import java.io.InputStream;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AccessDeniedException;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.FileAlreadyExistsException;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HexFormat;
 import java.util.Locale;
 import java.util.Objects;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.regex.Pattern;
 
 final class NativeLibraryLoader {
     private static final AtomicBoolean LOADED = new AtomicBoolean(false);
+    private static final Pattern SHA256_HEX = Pattern.compile("[0-9a-f]{64}");
     private static Path loadedPath;
     private NativeLibraryLoader() {}
 
@@ -58,18 +68,117 @@ final class NativeLibraryLoader {
         return osPart + "-" + arch + "/" + lib;
     }
 
+    // cached under the build-time SHA-256 shipped beside it; falls back to a temp directory when the cache is not writable
     private static Path extractLibrary(String mapped) throws IOException {
         String resourcePath = "/" + mapped;
-        try (InputStream in = NativeLibraryLoader.class.getResourceAsStream(resourcePath)) {
-            if (in == null) {
-                throw new IOException("Native library resource not found: " + resourcePath);
+        URL resource = NativeLibraryLoader.class.getResource(resourcePath);
+        if (resource == null) {
+            throw new IOException("Native library resource not found: " + resourcePath);
+        }
+        String fileName = mapped.substring(mapped.lastIndexOf('/') + 1);
+        byte[] bytes = null;
+        String digest = bundledDigest(resourcePath);
+        if (digest == null) {
+            bytes = read(resource);
+            digest = sha256(bytes);
+        }
+        long size = resource.openConnection().getContentLengthLong();
+        try {
+            Path dir = Files.createDirectories(cacheRoot().resolve(digest));
+            Path target = dir.resolve(fileName);
+            if (isIntact(target, size, digest)) {
+                return target;
+            }
+            // only a fresh extraction reads and hashes the whole library
+            if (bytes == null) {
+                bytes = read(resource);
+                if (!sha256(bytes).equals(digest)) {
+                    throw new IllegalStateException("Native library " + resourcePath + " does not match its bundled digest");
+                }
+            }
+            Path partial = Files.createTempFile(dir, fileName, ".part");
+            try {
+                Files.write(partial, bytes);
+                moveIntoPlace(partial, target);
+            } finally {
+                Files.deleteIfExists(partial);
+            }
+            // another process may have won the rename
+            if (!isIntact(target, bytes.length, digest)) {
+                throw new IOException("Cached native library failed verification: " + target);
+            }
+            return target;
+        } catch (IOException | SecurityException e) {
+            if (bytes == null) {
+                bytes = read(resource);
             }
             Path tempDir = Files.createTempDirectory("llamapanama");
-            Path target = tempDir.resolve(mapped.substring(mapped.lastIndexOf('/') + 1));
-            Files.copy(in, target, StandardCopyOption.REPLACE_EXISTING);
+            Path target = tempDir.resolve(fileName);
+            Files.write(target, bytes);
             target.toFile().deleteOnExit();
             Objects.requireNonNull(tempDir.toFile()).deleteOnExit();
             return target;
         }
     }
+
+    // null when the library was bundled without its .sha256, e.g. by an IDE build
+    private static String bundledDigest(String resourcePath) throws IOException {
+        try (InputStream in = NativeLibraryLoader.class.getResourceAsStream(resourcePath + ".sha256")) {
+            if (in == null) {
+                return null;
+            }
+            String digest = new String(in.readAllBytes(), StandardCharsets.US_ASCII).strip().split("\\s+")[0];
+            return SHA256_HEX.matcher(digest).matches() ? digest : null;
+        }
+    }
+
+    private static byte[] read(URL resource) throws IOException {
+        try (InputStream in = resource.openStream()) {
+            return in.readAllBytes();
+        }
+    }
+
+    private static Path cacheRoot() {
+        String configured = System.getProperty("llamapanama.cache.dir");
+        if (configured != null && !configured.isBlank()) {
+            return Path.of(configured);
+        }
+        String os = System.getProperty("os.name").toLowerCase(Locale.ROOT);
+        String home = System.getProperty("user.home");
+        if (os.contains("win")) {
+            String local = System.getenv("LOCALAPPDATA");
+            return (local != null ? Path.of(local) : Path.of(home, "AppData", "Local")).resolve("llamapanama");
+        }
+        if (os.contains("mac") || os.contains("darwin")) {
+            return Path.of(home, "Library", "Caches", "llamapanama");
+        }
+        String xdg = System.getenv("XDG_CACHE_HOME");
+        return (xdg != null && !xdg.isBlank() ? Path.of(xdg) : Path.of(home, ".cache")).resolve("llamapanama");
+    }
+
+    private static void moveIntoPlace(Path source, Path target) throws IOException {
+        try {
+            Files.move(source, target, StandardCopyOption.ATOMIC_MOVE);
+        } catch (AtomicMoveNotSupportedException e) {
+            Files.move(source, target, StandardCopyOption.REPLACE_EXISTING);
+        } catch (FileAlreadyExistsException | AccessDeniedException e) {
+            // Windows refuses to replace a loaded library
+        }
+    }
+
+    // a file under its digest directory only needs its size checked; hash it when the resource size is unknown
+    private static boolean isIntact(Path file, long size, String digest) throws IOException {
+        if (!Files.isRegularFile(file)) {
+            return false;
+        }
+        return size >= 0 ? Files.size(file) == size : sha256(Files.readAllBytes(file)).equals(digest);
+    }
+
+    private static String sha256(byte[] bytes) {
+        try {
+            return HexFormat.of().formatHex(MessageDigest.getInstance("SHA-256").digest(bytes));
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 not available", e);
+        }
+    }
 }
@@ -0,0 +1,11 @@
+package io.llamapanama.core;
+
+public enum Pooling {
+    MEAN,
+    CLS,
+    LAST;
+
+    int nativeCode() {
+        return ordinal();
+    }
+}
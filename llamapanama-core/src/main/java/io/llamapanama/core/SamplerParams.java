@@ -1,5 +1,7 @@
 package io.llamapanama.core;
 
+import java.util.Objects;
+
 public record SamplerParams(
         float temperature,
         float topP,
@@ -21,6 +23,11 @@ public record SamplerParams(
         return new SamplerParams(temperature, topP, topK, repeatPenalty, seed, maxTokens, grammar);
     }
 
+    // resolved through the shared Grammar cache
+    public SamplerParams withGrammar(Grammar grammar) {
+        return withGrammar(Objects.requireNonNull(grammar, "grammar").source());
+    }
+
     public SamplerParams withSeed(int seed) {
         return new SamplerParams(temperature, topP, topK, repeatPenalty, seed, maxTokens, grammar);
     }
@@ -0,0 +1,66 @@
+package io.llamapanama.core;
+
+import java.lang.foreign.MemorySegment;
+import java.lang.foreign.ValueLayout;
+import java.util.Objects;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+// text i spans [offset(i), offset(i + 1)); segments are only valid until close
+public final class TokenBatch implements AutoCloseable {
+    private final int[] offsets;
+    private final TokenScratch scratch;
+    private final MemorySegment data;
+    private final AtomicBoolean closed = new AtomicBoolean(false);
+
+    TokenBatch(TokenScratch scratch, MemorySegment data, int[] offsets) {
+        this.offsets = offsets;
+        this.scratch = scratch;
+        this.data = data;
+    }
+
+    public int size() {
+        return offsets.length - 1;
+    }
+
+    public int totalTokens() {
+        return offsets[offsets.length - 1];
+    }
+
+    public int offset(int index) {
+        Objects.checkIndex(index, offsets.length);
+        return offsets[index];
+    }
+
+    public int count(int index) {
+        Objects.checkIndex(index, size());
+        return offsets[index + 1] - offsets[index];
+    }
+
+    public int[] tokens(int index) {
+        return segment(index).toArray(ValueLayout.JAVA_INT);
+    }
+
+    public MemorySegment segment() {
+        ensureOpen();
+        return data.asSlice(0, (long) totalTokens() * Integer.BYTES);
+    }
+
+    public MemorySegment segment(int index) {
+        ensureOpen();
+        int count = count(index);
+        return data.asSlice((long) offsets[index] * Integer.BYTES, (long) count * Integer.BYTES);
+    }
+
+    private void ensureOpen() {
+        if (closed.get()) {
+            throw new IllegalStateException("TokenBatch already closed");
+        }
+    }
+
+    @Override
+    public void close() {
+        if (closed.compareAndSet(false, true)) {
+            scratch.close();
+        }
+    }
+}
@@ -0,0 +1,12 @@
+package io.llamapanama.core;
+
+import java.util.Objects;
+
+public record TokenChunk(long index, String text) {
+    public TokenChunk {
+        if (index < 0) {
+            throw new IllegalArgumentException("index must be non-negative");
+        }
+        Objects.requireNonNull(text, "text");
+    }
+}
@@ -0,0 +1,177 @@
+package io.llamapanama.core;
+
+import java.util.ArrayDeque;
+import java.util.Objects;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Flow;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BiFunction;
+
+final class TokenPublisher implements Flow.Publisher<TokenChunk> {
+    // platform threads, since native downcalls pin virtual ones
+    static final ExecutorService DECODE_EXECUTOR = Executors.newFixedThreadPool(
+            Math.max(2, Runtime.getRuntime().availableProcessors()),
+            Thread.ofPlatform().name("llamapanama-decode-", 0).daemon(true).factory());
+    private final BiFunction<TokenListener, CancellationToken, Generation> starter;
+    private final Executor executor;
+    private final AtomicBoolean subscribed = new AtomicBoolean(false);
+
+    TokenPublisher(BiFunction<TokenListener, CancellationToken, Generation> starter, Executor executor) {
+        this.starter = starter;
+        this.executor = executor;
+    }
+
+    @Override
+    public void subscribe(Flow.Subscriber<? super TokenChunk> subscriber) {
+        Objects.requireNonNull(subscriber, "subscriber");
+        if (!subscribed.compareAndSet(false, true)) {
+            subscriber.onSubscribe(new Flow.Subscription() {
+                @Override
+                public void request(long n) {
+                }
+
+                @Override
+                public void cancel() {
+                }
+            });
+            subscriber.onError(new IllegalStateException("Publisher supports a single subscriber"));
+            return;
+        }
+        Subscription subscription = new Subscription(subscriber);
+        subscriber.onSubscribe(subscription);
+    }
+
+    // step returns false once nothing is left to decode
+    interface Generation {
+        boolean step();
+
+        void finish();
+    }
+
+    private final class Subscription implements Flow.Subscription, Runnable {
+        private final Flow.Subscriber<? super TokenChunk> subscriber;
+        private final CancellationToken token = new CancellationToken();
+        private final AtomicLong demand = new AtomicLong();
+        // signals since the drain loop last looked; raising it from 0 schedules
+        private final AtomicInteger pending = new AtomicInteger();
+        // pieces decoded but not yet requested; one decode step can flush several
+        private final ArrayDeque<String> ready = new ArrayDeque<>();
+        private volatile Throwable invalidRequest;
+        private Generation generation;
+        private boolean decoded;
+        private boolean terminated;
+        private long index;
+
+        private Subscription(Flow.Subscriber<? super TokenChunk> subscriber) {
+            this.subscriber = subscriber;
+        }
+
+        @Override
+        public void request(long n) {
+            if (n <= 0) {
+                invalidRequest = new IllegalArgumentException("request must be positive (rule 3.9)");
+                token.cancel();
+            } else {
+                demand.accumulateAndGet(n, (current, added) -> current + added < 0 ? Long.MAX_VALUE : current + added);
+            }
+            schedule();
+        }
+
+        @Override
+        public void cancel() {
+            token.cancel();
+            schedule();
+        }
+
+        private void schedule() {
+            if (pending.getAndIncrement() != 0) {
+                return;
+            }
+            try {
+                executor.execute(this);
+            } catch (RejectedExecutionException e) {
+                token.cancel();
+                if (!terminated) {
+                    terminated = true;
+                    subscriber.onError(e);
+                }
+            }
+        }
+
+        @Override
+        public void run() {
+            int missed = 1;
+            do {
+                drain();
+                missed = pending.addAndGet(-missed);
+            } while (missed != 0);
+        }
+
+        // delivers and decodes while there is demand, then returns instead of waiting for more
+        private void drain() {
+            if (terminated) {
+                return;
+            }
+            try {
+                while (true) {
+                    Throwable invalid = invalidRequest;
+                    if (invalid != null) {
+                        finish();
+                        terminate(invalid);
+                        return;
+                    }
+                    if (token.isCancelled()) {
+                        terminated = true;
+                        finish();
+                        return;
+                    }
+                    if (!ready.isEmpty()) {
+                        if (demand.get() == 0) {
+                            return;
+                        }
+                        if (demand.get() != Long.MAX_VALUE) {
+                            demand.decrementAndGet();
+                        }
+                        subscriber.onNext(new TokenChunk(index++, ready.poll()));
+                        continue;
+                    }
+                    if (decoded) {
+                        terminated = true;
+                        subscriber.onComplete();
+                        return;
+                    }
+                    if (demand.get() == 0) {
+                        return;
+                    }
+                    if (generation == null) {
+                        generation = starter.apply(ready::add, token);
+                    }
+                    if (!generation.step() && !token.isCancelled()) {
+                        finish();
+                    }
+                }
+            } catch (RuntimeException | Error e) {
+                terminate(e);
+            }
+        }
+
+        // cancelled generations still record their stats and metrics
+        private void finish() {
+            if (generation != null && !decoded) {
+                decoded = true;
+                generation.finish();
+            }
+        }
+
+        private void terminate(Throwable failure) {
+            token.cancel();
+            terminated = true;
+            subscriber.onError(failure);
+        }
+    }
+}
@@ -0,0 +1,61 @@
+package io.llamapanama.core;
+
+import java.lang.foreign.Arena;
+import java.lang.foreign.MemorySegment;
+import java.lang.foreign.ValueLayout;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// pooled tokenizer buffers; request threads are virtual, so thread locals would not be reused
+final class TokenScratch implements AutoCloseable {
+    private static final int INITIAL_TOKENS = 1024;
+    private static final int MAX_IDLE = Math.max(4, Runtime.getRuntime().availableProcessors() * 2);
+    private static final ConcurrentLinkedQueue<TokenScratch> IDLE = new ConcurrentLinkedQueue<>();
+    private static final AtomicInteger IDLE_COUNT = new AtomicInteger();
+    private final MemorySegment errOut = Arena.ofAuto().allocate(ValueLayout.JAVA_INT);
+    private MemorySegment tokens = MemorySegment.NULL;
+    private MemorySegment offsets = MemorySegment.NULL;
+
+    private TokenScratch() {
+    }
+
+    // segments from it must not be used after close
+    static TokenScratch acquire() {
+        TokenScratch scratch = IDLE.poll();
+        if (scratch == null) {
+            return new TokenScratch();
+        }
+        IDLE_COUNT.decrementAndGet();
+        return scratch;
+    }
+
+    MemorySegment errOut() {
+        return errOut;
+    }
+
+    MemorySegment tokens(int capacity) {
+        if (tokens.byteSize() == 0 || tokens.byteSize() < (long) capacity * Integer.BYTES) {
+            // the old segment is reclaimed once unreachable
+            long grown = Math.max(Math.max(capacity, INITIAL_TOKENS), tokens.byteSize() / Integer.BYTES * 2);
+            tokens = Arena.ofAuto().allocateArray(ValueLayout.JAVA_INT, grown);
+        }
+        return tokens;
+    }
+
+    MemorySegment offsets(int count) {
+        if (offsets.byteSize() < (long) count * Integer.BYTES) {
+            offsets = Arena.ofAuto().allocateArray(ValueLayout.JAVA_INT, Math.max(count, offsets.byteSize() / Integer.BYTES * 2));
+        }
+        return offsets;
+    }
+
+    @Override
+    public void close() {
+        // past the idle limit the scratch is left to the GC
+        if (IDLE_COUNT.incrementAndGet() <= MAX_IDLE) {
+            IDLE.offer(this);
+        } else {
+            IDLE_COUNT.decrementAndGet();
+        }
+    }
+}
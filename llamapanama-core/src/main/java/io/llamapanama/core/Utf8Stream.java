@@ -0,0 +1,135 @@
+package io.llamapanama.core;
+
+import java.lang.foreign.MemorySegment;
+import java.lang.foreign.ValueLayout;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+final class Utf8Stream {
+    private static final int INITIAL_BYTES = 4096;
+    private byte[] buffer = new byte[INITIAL_BYTES];
+    private ByteBuffer view = ByteBuffer.wrap(buffer).asReadOnlyBuffer();
+    private int length;
+    private int pendingTokens;
+    private long pendingSince;
+    private FlushPolicy policy;
+    private boolean timed;
+    private TokenListener textListener;
+    private ByteTokenListener byteListener;
+
+    void begin(TokenListener listener, FlushPolicy flushPolicy) {
+        clear();
+        this.policy = flushPolicy;
+        this.timed = flushPolicy.timed();
+        this.textListener = listener;
+    }
+
+    void begin(ByteTokenListener listener, FlushPolicy flushPolicy) {
+        clear();
+        this.policy = flushPolicy;
+        this.timed = flushPolicy.timed();
+        this.byteListener = listener;
+    }
+
+    void clear() {
+        textListener = null;
+        byteListener = null;
+        length = 0;
+        pendingTokens = 0;
+    }
+
+    byte[] reserve(int bytes) {
+        if (length + bytes > buffer.length) {
+            buffer = Arrays.copyOf(buffer, Math.max(length + bytes, buffer.length * 2));
+            view = ByteBuffer.wrap(buffer).asReadOnlyBuffer();
+        }
+        return buffer;
+    }
+
+    int length() {
+        return length;
+    }
+
+    void append(MemorySegment source, long offset, int bytes) {
+        reserve(bytes);
+        MemorySegment.copy(source, ValueLayout.JAVA_BYTE, offset, buffer, length, bytes);
+        tokenAppended(bytes);
+    }
+
+    void appendPiece(VocabTable vocab, int token) {
+        reserve(vocab.pieceLength(token));
+        tokenAppended(vocab.copyPiece(token, buffer, length));
+    }
+
+    void tokenAppended(int bytes) {
+        if (timed && pendingTokens == 0) {
+            pendingSince = System.nanoTime();
+        }
+        length += bytes;
+        pendingTokens++;
+        int complete = completePrefix(buffer, length);
+        if (complete == 0) {
+            return;
+        }
+        long waited = timed ? System.nanoTime() - pendingSince : 0;
+        if (policy.shouldFlush(pendingTokens, complete, waited, buffer[complete - 1])) {
+            emit(complete);
+        }
+    }
+
+    void finish() {
+        if (length > 0) {
+            emit(length);
+        }
+    }
+
+    private void emit(int bytes) {
+        InferenceEvents.ListenerCallback event = InferenceEvents.recording() ? new InferenceEvents.ListenerCallback() : null;
+        if (event != null) {
+            event.begin();
+        }
+        if (byteListener != null) {
+            view.limit(bytes).position(0);
+            byteListener.onBytes(view);
+        } else if (textListener != null) {
+            textListener.onToken(new String(buffer, 0, bytes, StandardCharsets.UTF_8));
+        }
+        if (event != null && event.shouldCommit()) {
+            event.bytes = bytes;
+            event.commit();
+        }
+        int remaining = length - bytes;
+        if (remaining > 0) {
+            System.arraycopy(buffer, bytes, buffer, 0, remaining);
+        }
+        length = remaining;
+        pendingTokens = 0;
+    }
+
+    static int completePrefix(byte[] bytes, int length) {
+        int i = length - 1;
+        int continuation = 0;
+        while (i >= 0 && continuation < 3 && (bytes[i] & 0xC0) == 0x80) {
+            i--;
+            continuation++;
+        }
+        if (i < 0) {
+            return length;
+        }
+        int lead = bytes[i] & 0xFF;
+        int needed;
+        if (lead < 0x80) {
+            needed = 1;
+        } else if ((lead & 0xE0) == 0xC0) {
+            needed = 2;
+        } else if ((lead & 0xF0) == 0xE0) {
+            needed = 3;
+        } else if ((lead & 0xF8) == 0xF0) {
+            needed = 4;
+        } else {
+            needed = 1;
+        }
+        return length - i < needed ? i : length;
+    }
+}
@@ -0,0 +1,59 @@
+package io.llamapanama.core;
+
+import java.lang.foreign.Arena;
+import java.lang.foreign.MemorySegment;
+import java.lang.foreign.ValueLayout;
+
+final class VocabTable {
+    private final MemorySegment bytes;
+    private final int[] offsets;
+
+    VocabTable(MemorySegment bytes, int[] offsets) {
+        this.bytes = bytes;
+        this.offsets = offsets;
+    }
+
+    static VocabTable load(MemorySegment model, Arena arena) {
+        try (Arena scratch = Arena.ofConfined()) {
+            int size = NativeBindings.vocabSize(model, scratch);
+            int total = NativeBindings.vocabDump(model, MemorySegment.NULL, 0, MemorySegment.NULL, 0, scratch);
+            MemorySegment bytes = arena.allocate(Math.max(total, 1));
+            MemorySegment nativeOffsets = scratch.allocateArray(ValueLayout.JAVA_INT, size + 1L);
+            NativeBindings.vocabDump(model, bytes, total, nativeOffsets, size + 1, scratch);
+            return new VocabTable(bytes.asSlice(0, total), nativeOffsets.toArray(ValueLayout.JAVA_INT));
+        }
+    }
+
+    int size() {
+        return offsets.length - 1;
+    }
+
+    boolean contains(int token) {
+        return token >= 0 && token < offsets.length - 1;
+    }
+
+    int pieceLength(int token) {
+        return offsets[token + 1] - offsets[token];
+    }
+
+    int copyPiece(int token, byte[] buffer, int bufferOffset) {
+        int start = offsets[token];
+        int len = offsets[token + 1] - start;
+        if (len > buffer.length - bufferOffset) {
+            throw new IllegalStateException("Buffer too small for token " + token + " (" + len + " bytes)");
+        }
+        MemorySegment.copy(bytes, ValueLayout.JAVA_BYTE, start, buffer, bufferOffset, len);
+        return len;
+    }
+
+    int copyPiece(int token, MemorySegment target, long targetOffset) {
+        int start = offsets[token];
+        int len = offsets[token + 1] - start;
+        MemorySegment.copy(bytes, start, target, targetOffset, len);
+        return len;
+    }
+
+    long byteSize() {
+        return bytes.byteSize();
+    }
+}
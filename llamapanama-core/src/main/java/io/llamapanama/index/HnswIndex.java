@@ -0,0 +1,717 @@
+package io.llamapanama.index;
+
+import io.llamapanama.core.EmbeddingMatrix;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.lang.foreign.Arena;
+import java.lang.foreign.MemorySegment;
+import java.lang.foreign.ValueLayout;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.lang.ref.Cleaner;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+public final class HnswIndex implements AutoCloseable {
+    private static final Cleaner CLEANER = Cleaner.create();
+    private static final int FILE_MAGIC = 0x4C50484E;
+    private static final int FILE_VERSION = 1;
+    private static final long FILE_HEADER_BYTES = 64;
+    private static final int MAX_LEVEL = 16;
+    private static final int LOCK_STRIPES = 1024;
+    private static final int DEFAULT_M = 16;
+    private static final int DEFAULT_EF_CONSTRUCTION = 200;
+    private static final int DEFAULT_EF_SEARCH = 64;
+    private static final VarHandle LINK_COUNT = ValueLayout.JAVA_INT.arrayElementVarHandle();
+    private static final VarHandle UPPER_COUNT = MethodHandles.arrayElementVarHandle(int[].class);
+    private final int dim;
+    private final Metric metric;
+    private final int capacity;
+    private final int m;
+    private final int maxLinks0;
+    private final int efConstruction;
+    private final double levelMultiplier;
+    private final MemorySegment vectors;
+    private final MemorySegment links0;
+    private final byte[] levels;
+    private final int[][][] upperLinks;
+    private final Object[] locks = new Object[LOCK_STRIPES];
+    private final Object entryLock = new Object();
+    private final ReentrantReadWriteLock structure = new ReentrantReadWriteLock();
+    private final AtomicInteger nextId;
+    private final AtomicInteger size;
+    // pooled, so virtual threads reuse them
+    private final ConcurrentLinkedQueue<Scratch> scratch = new ConcurrentLinkedQueue<>();
+    private final Cleaner.Cleanable cleanable;
+    private final AtomicBoolean closed = new AtomicBoolean(false);
+    private volatile Entry entry;
+    private volatile int efSearch = DEFAULT_EF_SEARCH;
+
+    public HnswIndex(int dim, Metric metric, int capacity) {
+        this(dim, metric, capacity, DEFAULT_M, DEFAULT_EF_CONSTRUCTION);
+    }
+
+    public HnswIndex(int dim, Metric metric, int capacity, int m, int efConstruction) {
+        this(dim, metric, capacity, m, efConstruction, Arena.ofShared(), null, null, 0);
+    }
+
+    private HnswIndex(int dim, Metric metric, int capacity, int m, int efConstruction, Arena arena,
+                      MemorySegment vectors, MemorySegment links0, int size) {
+        Objects.requireNonNull(metric, "metric");
+        if (dim <= 0 || capacity <= 0) {
+            arena.close();
+            throw new IllegalArgumentException("dim and capacity must be positive");
+        }
+        if (m < 2 || efConstruction < m) {
+            arena.close();
+            throw new IllegalArgumentException("m must be >= 2 and efConstruction >= m");
+        }
+        this.dim = dim;
+        this.metric = metric;
+        this.capacity = capacity;
+        this.m = m;
+        this.maxLinks0 = 2 * m;
+        this.efConstruction = efConstruction;
+        this.levelMultiplier = 1.0 / Math.log(m);
+        this.vectors = vectors != null ? vectors : arena.allocate((long) capacity * dim * Float.BYTES, 64);
+        this.links0 = links0 != null ? links0 : arena.allocate((long) capacity * (maxLinks0 + 1) * Integer.BYTES, 64);
+        this.levels = new byte[capacity];
+        this.upperLinks = new int[capacity][][];
+        for (int i = 0; i < locks.length; i++) {
+            locks[i] = new Object();
+        }
+        this.nextId = new AtomicInteger(size);
+        this.size = new AtomicInteger(size);
+        this.cleanable = CLEANER.register(this, arena::close);
+    }
+
+    public int dim() {
+        return dim;
+    }
+
+    public Metric metric() {
+        return metric;
+    }
+
+    public int capacity() {
+        return capacity;
+    }
+
+    public int size() {
+        return size.get();
+    }
+
+    public int getEfSearch() {
+        return efSearch;
+    }
+
+    public void setEfSearch(int efSearch) {
+        if (efSearch <= 0) {
+            throw new IllegalArgumentException("efSearch must be positive");
+        }
+        this.efSearch = efSearch;
+    }
+
+    public int add(float[] vector) {
+        Objects.requireNonNull(vector, "vector");
+        checkDim(vector.length);
+        return insert(null, vector);
+    }
+
+    public int add(MemorySegment vector) {
+        Objects.requireNonNull(vector, "vector");
+        checkDim(vector.byteSize() / Float.BYTES);
+        return insert(vector, null);
+    }
+
+    public int addAll(EmbeddingMatrix matrix) {
+        Objects.requireNonNull(matrix, "matrix");
+        checkDim(matrix.dim());
+        int first = -1;
+        for (int row = 0; row < matrix.rows(); row++) {
+            int id = insert(matrix.row(row), null);
+            if (first < 0) {
+                first = id;
+            }
+        }
+        return first;
+    }
+
+    public float[] vector(int id) {
+        ensureOpen();
+        Objects.checkIndex(id, size.get());
+        float[] out = new float[dim];
+        MemorySegment.copy(vectors, ValueLayout.JAVA_FLOAT, vectorOffset(id), out, 0, dim);
+        return out;
+    }
+
+    MemorySegment vectors() {
+        ensureOpen();
+        return vectors;
+    }
+
+    public List<Neighbor> search(float[] query, int k) {
+        return search(query, k, efSearch);
+    }
+
+    public List<Neighbor> search(float[] query, int k, int ef) {
+        Objects.requireNonNull(query, "query");
+        checkDim(query.length);
+        if (k <= 0) {
+            throw new IllegalArgumentException("k must be positive");
+        }
+        ensureOpen();
+        Entry start = entry;
+        if (start == null) {
+            return List.of();
+        }
+        Scratch s = acquireScratch();
+        try {
+            float[] q = s.query;
+            System.arraycopy(query, 0, q, 0, dim);
+            if (metric == Metric.COSINE) {
+                VectorKernels.normalize(q);
+            }
+            int current = start.node;
+            float currentDistance = distance(q, current);
+            for (int level = start.level; level > 0; level--) {
+                current = greedy(q, current, currentDistance, level);
+                currentDistance = distance(q, current);
+            }
+            NodeHeap results = searchLayer(s, q, current, Math.max(ef, k), 0);
+            while (results.size() > k) {
+                results.pop();
+            }
+            Neighbor[] sorted = new Neighbor[results.size()];
+            for (int i = sorted.length - 1; i >= 0; i--) {
+                float d = results.topDistance();
+                sorted[i] = new Neighbor(results.pop(), d);
+            }
+            return List.of(sorted);
+        } finally {
+            scratch.offer(s);
+        }
+    }
+
+    public void save(Path path) {
+        Objects.requireNonNull(path, "path");
+        ensureOpen();
+        structure.writeLock().lock();
+        try (Arena arena = Arena.ofConfined();
+             FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                     StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            int count = size.get();
+            long upperInts = 0;
+            for (int node = 0; node < count; node++) {
+                upperInts += (long) levels[node] * (m + 1);
+            }
+            long vectorBytes = (long) count * dim * Float.BYTES;
+            long linkBytes = (long) count * (maxLinks0 + 1) * Integer.BYTES;
+            long levelBytes = align(count, Integer.BYTES);
+            long total = FILE_HEADER_BYTES + vectorBytes + linkBytes + levelBytes + upperInts * Integer.BYTES;
+            MemorySegment file = channel.map(FileChannel.MapMode.READ_WRITE, 0, total, arena);
+            Entry start = entry;
+            file.set(ValueLayout.JAVA_INT, 0, FILE_MAGIC);
+            file.set(ValueLayout.JAVA_INT, 4, FILE_VERSION);
+            file.set(ValueLayout.JAVA_INT, 8, dim);
+            file.set(ValueLayout.JAVA_INT, 12, metric.ordinal());
+            file.set(ValueLayout.JAVA_INT, 16, m);
+            file.set(ValueLayout.JAVA_INT, 20, efConstruction);
+            file.set(ValueLayout.JAVA_INT, 24, count);
+            file.set(ValueLayout.JAVA_INT, 28, start == null ? -1 : start.node);
+            file.set(ValueLayout.JAVA_INT, 32, start == null ? 0 : start.level);
+            long offset = FILE_HEADER_BYTES;
+            MemorySegment.copy(vectors, 0, file, offset, vectorBytes);
+            offset += vectorBytes;
+            MemorySegment.copy(links0, 0, file, offset, linkBytes);
+            offset += linkBytes;
+            MemorySegment.copy(levels, 0, file, ValueLayout.JAVA_BYTE, offset, count);
+            offset += levelBytes;
+            for (int node = 0; node < count; node++) {
+                for (int level = 1; level <= levels[node]; level++) {
+                    int[] links = upperLinks[node][level - 1];
+                    MemorySegment.copy(links, 0, file, ValueLayout.JAVA_INT, offset, links.length);
+                    offset += (long) links.length * Integer.BYTES;
+                }
+            }
+            file.force();
+        } catch (IOException e) {
+            throw new UncheckedIOException("Failed to save index to " + path, e);
+        } finally {
+            structure.writeLock().unlock();
+        }
+    }
+
+    public static HnswIndex load(Path path) {
+        return load(path, 0);
+    }
+
+    public static HnswIndex load(Path path, int capacity) {
+        Objects.requireNonNull(path, "path");
+        Arena arena = Arena.ofShared();
+        // private mappings need a writable channel even though changes never reach the file
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            MemorySegment file = channel.map(FileChannel.MapMode.PRIVATE, 0, channel.size(), arena);
+            if (file.byteSize() < FILE_HEADER_BYTES || file.get(ValueLayout.JAVA_INT, 0) != FILE_MAGIC
+                    || file.get(ValueLayout.JAVA_INT, 4) != FILE_VERSION) {
+                throw new IllegalStateException("Not an index file: " + path);
+            }
+            int dim = file.get(ValueLayout.JAVA_INT, 8);
+            int ordinal = file.get(ValueLayout.JAVA_INT, 12);
+            int m = file.get(ValueLayout.JAVA_INT, 16);
+            int efConstruction = file.get(ValueLayout.JAVA_INT, 20);
+            int count = file.get(ValueLayout.JAVA_INT, 24);
+            int entryNode = file.get(ValueLayout.JAVA_INT, 28);
+            int entryLevel = file.get(ValueLayout.JAVA_INT, 32);
+            int maxLinks0 = 2 * m;
+            long vectorBytes = (long) count * dim * Float.BYTES;
+            long linkBytes = (long) count * (maxLinks0 + 1) * Integer.BYTES;
+            if (ordinal < 0 || ordinal >= Metric.values().length || dim <= 0 || m < 2 || m > 1 << 16 || count < 0
+                    || entryNode >= count || entryLevel < 0 || entryLevel > MAX_LEVEL
+                    || FILE_HEADER_BYTES + vectorBytes + linkBytes + align(count, Integer.BYTES) > file.byteSize()) {
+                throw new IllegalStateException("Corrupt index header: " + path);
+            }
+            Metric metric = Metric.values()[ordinal];
+            long offset = FILE_HEADER_BYTES;
+            MemorySegment savedVectors = file.asSlice(offset, vectorBytes);
+            offset += vectorBytes;
+            MemorySegment savedLinks = file.asSlice(offset, linkBytes);
+            offset += linkBytes;
+            int targetCapacity = Math.max(capacity, Math.max(count, 1));
+            MemorySegment vectors = null;
+            MemorySegment links0 = null;
+            if (targetCapacity == count) {
+                // the private mapping is copy-on-write
+                vectors = savedVectors;
+                links0 = savedLinks;
+            }
+            HnswIndex index = new HnswIndex(dim, metric, targetCapacity, m, efConstruction, arena, vectors, links0, count);
+            if (vectors == null) {
+                MemorySegment.copy(savedVectors, 0, index.vectors, 0, vectorBytes);
+                MemorySegment.copy(savedLinks, 0, index.links0, 0, linkBytes);
+            }
+            MemorySegment.copy(file, ValueLayout.JAVA_BYTE, offset, index.levels, 0, count);
+            offset += align(count, Integer.BYTES);
+            for (int node = 0; node < count; node++) {
+                int level = index.levels[node];
+                if (level > 0) {
+                    int[][] links = new int[level][];
+                    for (int l = 0; l < level; l++) {
+                        links[l] = new int[m + 1];
+                        MemorySegment.copy(file, ValueLayout.JAVA_INT, offset, links[l], 0, m + 1);
+                        offset += (long) (m + 1) * Integer.BYTES;
+                    }
+                    index.upperLinks[node] = links;
+                }
+            }
+            if (entryNode >= 0) {
+                index.entry = new Entry(entryNode, entryLevel);
+            }
+            return index;
+        } catch (IOException e) {
+            arena.close();
+            throw new UncheckedIOException("Failed to load index from " + path, e);
+        } catch (RuntimeException e) {
+            if (arena.scope().isAlive()) {
+                arena.close();
+            }
+            throw e;
+        }
+    }
+
+    private int insert(MemorySegment source, float[] array) {
+        ensureOpen();
+        structure.readLock().lock();
+        try {
+            int node = nextId.getAndIncrement();
+            if (node >= capacity) {
+                nextId.decrementAndGet();
+                throw new IllegalStateException("Index is full (" + capacity + " vectors)");
+            }
+            long offset = vectorOffset(node);
+            if (source != null) {
+                MemorySegment.copy(source, 0, vectors, offset, (long) dim * Float.BYTES);
+            } else {
+                MemorySegment.copy(array, 0, vectors, ValueLayout.JAVA_FLOAT, offset, dim);
+            }
+            if (metric == Metric.COSINE) {
+                VectorKernels.normalize(vectors, offset, dim);
+            }
+            Scratch s = acquireScratch();
+            try {
+                link(s, node);
+            } finally {
+                scratch.offer(s);
+            }
+            size.incrementAndGet();
+            return node;
+        } finally {
+            structure.readLock().unlock();
+        }
+    }
+
+    private Scratch acquireScratch() {
+        Scratch s = scratch.poll();
+        return s != null ? s : new Scratch(dim, efConstruction);
+    }
+
+    private void link(Scratch s, int node) {
+        int level = randomLevel();
+        levels[node] = (byte) level;
+        if (level > 0) {
+            int[][] links = new int[level][];
+            for (int l = 0; l < level; l++) {
+                links[l] = new int[m + 1];
+            }
+            upperLinks[node] = links;
+        }
+        Entry start = entry;
+        if (start == null) {
+            synchronized (entryLock) {
+                if (entry == null) {
+                    entry = new Entry(node, level);
+                    return;
+                }
+                start = entry;
+            }
+        }
+        float[] q = s.query;
+        MemorySegment.copy(vectors, ValueLayout.JAVA_FLOAT, vectorOffset(node), q, 0, dim);
+        int current = start.node;
+        float currentDistance = distance(q, current);
+        for (int l = start.level; l > level; l--) {
+            current = greedy(q, current, currentDistance, l);
+            currentDistance = distance(q, current);
+        }
+        for (int l = Math.min(level, start.level); l >= 0; l--) {
+            NodeHeap found = searchLayer(s, q, current, efConstruction, l);
+            int count = found.size();
+            int[] candidates = s.candidates(count);
+            float[] distances = s.candidateDistances(count);
+            for (int i = count - 1; i >= 0; i--) {
+                distances[i] = found.topDistance();
+                candidates[i] = found.pop();
+            }
+            current = candidates[0];
+            int maxLinks = l == 0 ? maxLinks0 : m;
+            int selected = selectNeighbors(candidates, distances, count, m);
+            synchronized (lockFor(node)) {
+                if (linkCount(node, l) == 0) {
+                    writeLinks(node, l, candidates, selected);
+                } else {
+                    // other inserts already linked back to it; keep their links
+                    for (int i = 0; i < selected; i++) {
+                        addLink(node, candidates[i], l, maxLinks);
+                    }
+                }
+            }
+            for (int i = 0; i < selected; i++) {
+                addLink(candidates[i], node, l, maxLinks);
+            }
+        }
+        if (level > start.level) {
+            synchronized (entryLock) {
+                if (level > entry.level) {
+                    entry = new Entry(node, level);
+                }
+            }
+        }
+    }
+
+    private void addLink(int node, int neighbor, int level, int maxLinks) {
+        synchronized (lockFor(node)) {
+            int count = linkCount(node, level);
+            for (int i = 0; i < count; i++) {
+                if (linkAt(node, level, i) == neighbor) {
+                    return;
+                }
+            }
+            if (count < maxLinks) {
+                setLinkAt(node, level, count, neighbor);
+                publishCount(node, level, count + 1);
+                return;
+            }
+            long base = vectorOffset(node);
+            int[] candidates = new int[count + 1];
+            float[] distances = new float[count + 1];
+            for (int i = 0; i < count; i++) {
+                candidates[i] = linkAt(node, level, i);
+            }
+            candidates[count] = neighbor;
+            for (int i = 0; i <= count; i++) {
+                distances[i] = metric.distance(vectors, base, vectorOffset(candidates[i]), dim);
+            }
+            sortByDistance(candidates, distances, count + 1);
+            int selected = selectNeighbors(candidates, distances, count + 1, maxLinks);
+            writeLinks(node, level, candidates, selected);
+        }
+    }
+
+    private int selectNeighbors(int[] candidates, float[] distances, int count, int max) {
+        int selected = 0;
+        for (int i = 0; i < count && selected < max; i++) {
+            int candidate = candidates[i];
+            long candidateOffset = vectorOffset(candidate);
+            boolean keep = true;
+            for (int j = 0; j < selected; j++) {
+                if (metric.distance(vectors, candidateOffset, vectorOffset(candidates[j]), dim) < distances[i]) {
+                    keep = false;
+                    break;
+                }
+            }
+            if (keep) {
+                candidates[selected] = candidate;
+                distances[selected] = distances[i];
+                selected++;
+            }
+        }
+        return selected;
+    }
+
+    private NodeHeap searchLayer(Scratch s, float[] q, int start, int ef, int level) {
+        s.clearVisited();
+        NodeHeap candidates = s.candidateHeap;
+        NodeHeap results = s.resultHeap;
+        candidates.clear();
+        results.clear();
+        float startDistance = distance(q, start);
+        candidates.push(start, startDistance);
+        results.push(start, startDistance);
+        s.visit(start);
+        while (!candidates.isEmpty()) {
+            float closest = candidates.topDistance();
+            if (results.size() >= ef && closest > results.topDistance()) {
+                break;
+            }
+            int node = candidates.pop();
+            int count = linkCount(node, level);
+            for (int i = 0; i < count; i++) {
+                int neighbor = linkAt(node, level, i);
+                if (!s.visit(neighbor)) {
+                    continue;
+                }
+                float d = distance(q, neighbor);
+                if (results.size() < ef || d < results.topDistance()) {
+                    candidates.push(neighbor, d);
+                    results.push(neighbor, d);
+                    if (results.size() > ef) {
+                        results.pop();
+                    }
+                }
+            }
+        }
+        return results;
+    }
+
+    private int greedy(float[] q, int start, float startDistance, int level) {
+        int current = start;
+        float best = startDistance;
+        boolean changed = true;
+        while (changed) {
+            changed = false;
+            int node = current;
+            int count = linkCount(node, level);
+            for (int i = 0; i < count; i++) {
+                int neighbor = linkAt(node, level, i);
+                float d = distance(q, neighbor);
+                if (d < best) {
+                    best = d;
+                    current = neighbor;
+                    changed = true;
+                }
+            }
+        }
+        return current;
+    }
+
+    private int linkCount(int node, int level) {
+        if (level == 0) {
+            return (int) LINK_COUNT.getAcquire(links0, (long) node * (maxLinks0 + 1));
+        }
+        int[][] links = upperLinks[node];
+        return links == null || links.length < level ? 0 : (int) UPPER_COUNT.getAcquire(links[level - 1], 0);
+    }
+
+    private int linkAt(int node, int level, int i) {
+        if (level == 0) {
+            return links0.getAtIndex(ValueLayout.JAVA_INT, (long) node * (maxLinks0 + 1) + 1 + i);
+        }
+        return upperLinks[node][level - 1][1 + i];
+    }
+
+    private void setLinkAt(int node, int level, int i, int neighbor) {
+        if (level == 0) {
+            links0.setAtIndex(ValueLayout.JAVA_INT, (long) node * (maxLinks0 + 1) + 1 + i, neighbor);
+        } else {
+            upperLinks[node][level - 1][1 + i] = neighbor;
+        }
+    }
+
+    private void publishCount(int node, int level, int count) {
+        if (level == 0) {
+            LINK_COUNT.setRelease(links0, (long) node * (maxLinks0 + 1), count);
+        } else {
+            UPPER_COUNT.setRelease(upperLinks[node][level - 1], 0, count);
+        }
+    }
+
+    private void writeLinks(int node, int level, int[] neighbors, int count) {
+        for (int i = 0; i < count; i++) {
+            setLinkAt(node, level, i, neighbors[i]);
+        }
+        publishCount(node, level, count);
+    }
+
+    private float distance(float[] q, int node) {
+        return metric.distance(q, vectors, vectorOffset(node), dim);
+    }
+
+    private long vectorOffset(int node) {
+        return (long) node * dim * Float.BYTES;
+    }
+
+    private Object lockFor(int node) {
+        return locks[node & (LOCK_STRIPES - 1)];
+    }
+
+    private int randomLevel() {
+        double r = ThreadLocalRandom.current().nextDouble();
+        return Math.min((int) (-Math.log(1.0 - r) * levelMultiplier), MAX_LEVEL);
+    }
+
+    private void checkDim(long actual) {
+        if (actual != dim) {
+            throw new IllegalArgumentException("Expected " + dim + " dimensions but got " + actual);
+        }
+    }
+
+    private static void sortByDistance(int[] nodes, float[] distances, int count) {
+        for (int i = 1; i < count; i++) {
+            int node = nodes[i];
+            float d = distances[i];
+            int j = i - 1;
+            while (j >= 0 && distances[j] > d) {
+                nodes[j + 1] = nodes[j];
+                distances[j + 1] = distances[j];
+                j--;
+            }
+            nodes[j + 1] = node;
+            distances[j + 1] = d;
+        }
+    }
+
+    private static long align(long value, int alignment) {
+        return (value + alignment - 1) / alignment * alignment;
+    }
+
+    private void ensureOpen() {
+        if (closed.get()) {
+            throw new IllegalStateException("HnswIndex already closed");
+        }
+    }
+
+    @Override
+    public void close() {
+        if (closed.compareAndSet(false, true)) {
+            structure.writeLock().lock();
+            try {
+                cleanable.clean();
+            } finally {
+                structure.writeLock().unlock();
+            }
+        }
+    }
+
+    private record Entry(int node, int level) {
+    }
+
+    private static final class Scratch {
+        private static final int INITIAL_VISITED = 1024;
+        private final float[] query;
+        private final NodeHeap candidateHeap;
+        private final NodeHeap resultHeap;
+        private int[] candidates;
+        private float[] candidateDistances;
+        // open-addressed visited set; slots from older marks count as empty
+        private int[] visitedNodes = new int[INITIAL_VISITED];
+        private int[] visitedMarks = new int[INITIAL_VISITED];
+        private int visitedCount;
+        private int mark;
+
+        private Scratch(int dim, int ef) {
+            this.query = new float[dim];
+            this.candidateHeap = new NodeHeap(false, ef * 2);
+            this.resultHeap = new NodeHeap(true, ef + 1);
+            this.candidates = new int[ef + 1];
+            this.candidateDistances = new float[ef + 1];
+        }
+
+        private void clearVisited() {
+            if (++mark == 0) {
+                Arrays.fill(visitedMarks, 0);
+                mark = 1;
+            }
+            visitedCount = 0;
+        }
+
+        // false if node was already visited since the last clear
+        private boolean visit(int node) {
+            if ((visitedCount + 1) * 2 > visitedNodes.length) {
+                growVisited();
+            }
+            int mask = visitedNodes.length - 1;
+            int slot = (node * 0x9E3779B9) >>> 7 & mask;
+            while (visitedMarks[slot] == mark) {
+                if (visitedNodes[slot] == node) {
+                    return false;
+                }
+                slot = (slot + 1) & mask;
+            }
+            visitedMarks[slot] = mark;
+            visitedNodes[slot] = node;
+            visitedCount++;
+            return true;
+        }
+
+        private void growVisited() {
+            int[] nodes = visitedNodes;
+            int[] marks = visitedMarks;
+            visitedNodes = new int[nodes.length * 2];
+            visitedMarks = new int[nodes.length * 2];
+            int mask = visitedNodes.length - 1;
+            for (int i = 0; i < nodes.length; i++) {
+                if (marks[i] == mark) {
+                    int slot = (nodes[i] * 0x9E3779B9) >>> 7 & mask;
+                    while (visitedMarks[slot] == mark) {
+                        slot = (slot + 1) & mask;
+                    }
+                    visitedMarks[slot] = mark;
+                    visitedNodes[slot] = nodes[i];
+                }
+            }
+        }
+
+        private int[] candidates(int count) {
+            if (candidates.length < count) {
+                candidates = new int[count];
+            }
+            return candidates;
+        }
+
+        private float[] candidateDistances(int count) {
+            if (candidateDistances.length < count) {
+                candidateDistances = new float[count];
+            }
+            return candidateDistances;
+        }
+    }
+}
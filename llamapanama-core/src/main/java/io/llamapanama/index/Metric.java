@@ -0,0 +1,43 @@
+package io.llamapanama.index;
+
+import java.lang.foreign.MemorySegment;
+
+public enum Metric {
+    L2 {
+        @Override
+        float distance(float[] query, MemorySegment data, long offset, int dim) {
+            return VectorKernels.squaredDistance(query, data, offset, dim);
+        }
+
+        @Override
+        float distance(MemorySegment data, long a, long b, int dim) {
+            return VectorKernels.squaredDistance(data, a, b, dim);
+        }
+    },
+    DOT {
+        @Override
+        float distance(float[] query, MemorySegment data, long offset, int dim) {
+            return -VectorKernels.dot(query, data, offset, dim);
+        }
+
+        @Override
+        float distance(MemorySegment data, long a, long b, int dim) {
+            return -VectorKernels.dot(data, a, b, dim);
+        }
+    },
+    COSINE {
+        @Override
+        float distance(float[] query, MemorySegment data, long offset, int dim) {
+            return 1f - VectorKernels.dot(query, data, offset, dim);
+        }
+
+        @Override
+        float distance(MemorySegment data, long a, long b, int dim) {
+            return 1f - VectorKernels.dot(data, a, b, dim);
+        }
+    };
+
+    abstract float distance(float[] query, MemorySegment data, long offset, int dim);
+
+    abstract float distance(MemorySegment data, long a, long b, int dim);
+}
@@ -0,0 +1,4 @@
+package io.llamapanama.index;
+
+public record Neighbor(int id, float distance) {
+}
@@ -0,0 +1,6 @@
+package io.llamapanama.index;
+
+public enum Quantization {
+    INT8,
+    BINARY
+}
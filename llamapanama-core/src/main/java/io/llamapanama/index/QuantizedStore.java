@@ -0,0 +1,307 @@
+package io.llamapanama.index;
+
+import io.llamapanama.core.EmbeddingMatrix;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.lang.foreign.Arena;
+import java.lang.foreign.MemorySegment;
+import java.lang.foreign.ValueLayout;
+import java.lang.ref.Cleaner;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+import java.util.Objects;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+public final class QuantizedStore implements AutoCloseable {
+    private static final Cleaner CLEANER = Cleaner.create();
+    private static final int FILE_MAGIC = 0x4C505153;
+    private static final int FILE_VERSION = 1;
+    private static final long FILE_HEADER_BYTES = 64;
+    private static final long COUNT_OFFSET = 20;
+    private final int dim;
+    private final Metric metric;
+    private final Quantization quantization;
+    private final int capacity;
+    private final MemorySegment floats;
+    private final MemorySegment codes;
+    private final float[] scales;
+    private final long codeStride;
+    private final byte[] int8Scratch;
+    private final long[] binaryScratch;
+    private final float[] vectorScratch;
+    private final Cleaner.Cleanable cleanable;
+    private final AtomicBoolean closed = new AtomicBoolean(false);
+    private volatile int size;
+
+    public QuantizedStore(Path file, int dim, Metric metric, Quantization quantization, int capacity) {
+        // validate before truncating the file
+        this(map(file, FILE_HEADER_BYTES + (long) checkArguments(dim, metric, quantization, capacity) * dim * Float.BYTES, true),
+                dim, metric, quantization, capacity, 0);
+        floats.set(ValueLayout.JAVA_INT, 0, FILE_MAGIC);
+        floats.set(ValueLayout.JAVA_INT, 4, FILE_VERSION);
+        floats.set(ValueLayout.JAVA_INT, 8, dim);
+        floats.set(ValueLayout.JAVA_INT, 12, metric.ordinal());
+        floats.set(ValueLayout.JAVA_INT, 16, capacity);
+        floats.set(ValueLayout.JAVA_INT, COUNT_OFFSET, 0);
+    }
+
+    private QuantizedStore(Mapping mapping, int dim, Metric metric, Quantization quantization, int capacity, int size) {
+        Arena arena = mapping.arena;
+        try {
+            checkArguments(dim, metric, quantization, capacity);
+            this.dim = dim;
+            this.metric = metric;
+            this.quantization = quantization;
+            this.capacity = capacity;
+            this.floats = mapping.segment;
+            this.codeStride = quantization == Quantization.INT8 ? dim : (long) words(dim) * Long.BYTES;
+            this.codes = arena.allocate(codeStride * capacity, Long.BYTES);
+            this.scales = quantization == Quantization.INT8 ? new float[capacity] : null;
+            this.int8Scratch = new byte[dim];
+            this.binaryScratch = new long[words(dim)];
+            this.vectorScratch = new float[dim];
+        } catch (RuntimeException e) {
+            arena.close();
+            throw e;
+        }
+        this.cleanable = CLEANER.register(this, arena::close);
+        for (int id = 0; id < size; id++) {
+            MemorySegment.copy(floats, ValueLayout.JAVA_FLOAT, vectorOffset(id), vectorScratch, 0, dim);
+            encode(id, vectorScratch);
+        }
+        this.size = size;
+    }
+
+    public static QuantizedStore open(Path file, Quantization quantization) {
+        Mapping mapping = map(file, -1, false);
+        MemorySegment header = mapping.segment;
+        if (header.byteSize() < FILE_HEADER_BYTES || header.get(ValueLayout.JAVA_INT, 0) != FILE_MAGIC
+                || header.get(ValueLayout.JAVA_INT, 4) != FILE_VERSION) {
+            mapping.arena.close();
+            throw new IllegalStateException("Not a quantized store file: " + file);
+        }
+        int dim = header.get(ValueLayout.JAVA_INT, 8);
+        int ordinal = header.get(ValueLayout.JAVA_INT, 12);
+        int capacity = header.get(ValueLayout.JAVA_INT, 16);
+        int count = header.get(ValueLayout.JAVA_INT, COUNT_OFFSET);
+        if (ordinal < 0 || ordinal >= Metric.values().length || dim <= 0 || capacity <= 0 || count < 0 || count > capacity
+                || header.byteSize() < FILE_HEADER_BYTES + (long) capacity * dim * Float.BYTES) {
+            mapping.arena.close();
+            throw new IllegalStateException("Corrupt quantized store header: " + file);
+        }
+        return new QuantizedStore(mapping, dim, Metric.values()[ordinal], quantization, capacity, count);
+    }
+
+    public int dim() {
+        return dim;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public Quantization quantization() {
+        return quantization;
+    }
+
+    public long codeBytes() {
+        return size * (codeStride + (scales == null ? 0 : Float.BYTES));
+    }
+
+    public long vectorBytes() {
+        return (long) size * dim * Float.BYTES;
+    }
+
+    public int add(float[] vector) {
+        Objects.requireNonNull(vector, "vector");
+        checkDim(vector.length);
+        synchronized (this) {
+            System.arraycopy(vector, 0, vectorScratch, 0, dim);
+            return append();
+        }
+    }
+
+    public int addAll(EmbeddingMatrix matrix) {
+        Objects.requireNonNull(matrix, "matrix");
+        checkDim(matrix.dim());
+        int first = -1;
+        synchronized (this) {
+            for (int row = 0; row < matrix.rows(); row++) {
+                matrix.copyRow(row, vectorScratch, 0);
+                int id = append();
+                if (first < 0) {
+                    first = id;
+                }
+            }
+        }
+        return first;
+    }
+
+    public List<Neighbor> search(float[] query, int k, int rerank) {
+        Objects.requireNonNull(query, "query");
+        checkDim(query.length);
+        if (k <= 0 || rerank < k) {
+            throw new IllegalArgumentException("k must be positive and rerank >= k");
+        }
+        ensureOpen();
+        float[] q = prepare(query);
+        int count = size;
+        NodeHeap coarse = new NodeHeap(true, rerank + 1);
+        if (quantization == Quantization.INT8) {
+            byte[] qCodes = new byte[dim];
+            float qScale = VectorKernels.quantizeInt8(q, qCodes);
+            for (int id = 0; id < count; id++) {
+                float score = VectorKernels.dotInt8(qCodes, codes, id * codeStride, dim) * qScale * scales[id];
+                offer(coarse, id, -score, rerank);
+            }
+        } else {
+            long[] qBits = new long[words(dim)];
+            VectorKernels.quantizeBinary(q, qBits);
+            for (int id = 0; id < count; id++) {
+                offer(coarse, id, VectorKernels.hamming(qBits, codes, id * codeStride, qBits.length), rerank);
+            }
+        }
+        NodeHeap exact = new NodeHeap(true, k + 1);
+        while (!coarse.isEmpty()) {
+            int id = coarse.pop();
+            offer(exact, id, metric.distance(q, floats, vectorOffset(id), dim), k);
+        }
+        return drain(exact);
+    }
+
+    public List<Neighbor> searchExact(float[] query, int k) {
+        Objects.requireNonNull(query, "query");
+        checkDim(query.length);
+        if (k <= 0) {
+            throw new IllegalArgumentException("k must be positive");
+        }
+        ensureOpen();
+        float[] q = prepare(query);
+        int count = size;
+        NodeHeap exact = new NodeHeap(true, k + 1);
+        for (int id = 0; id < count; id++) {
+            offer(exact, id, metric.distance(q, floats, vectorOffset(id), dim), k);
+        }
+        return drain(exact);
+    }
+
+    private int append() {
+        ensureOpen();
+        int id = size;
+        if (id >= capacity) {
+            throw new IllegalStateException("Store is full (" + capacity + " vectors)");
+        }
+        if (metric == Metric.COSINE) {
+            VectorKernels.normalize(vectorScratch);
+        }
+        MemorySegment.copy(vectorScratch, 0, floats, ValueLayout.JAVA_FLOAT, vectorOffset(id), dim);
+        encode(id, vectorScratch);
+        floats.set(ValueLayout.JAVA_INT, COUNT_OFFSET, id + 1);
+        size = id + 1;
+        return id;
+    }
+
+    private void encode(int id, float[] vector) {
+        long offset = id * codeStride;
+        if (quantization == Quantization.INT8) {
+            scales[id] = VectorKernels.quantizeInt8(vector, int8Scratch);
+            MemorySegment.copy(int8Scratch, 0, codes, ValueLayout.JAVA_BYTE, offset, dim);
+        } else {
+            VectorKernels.quantizeBinary(vector, binaryScratch);
+            MemorySegment.copy(binaryScratch, 0, codes, ValueLayout.JAVA_LONG_UNALIGNED, offset, binaryScratch.length);
+        }
+    }
+
+    private float[] prepare(float[] query) {
+        float[] q = query.clone();
+        if (metric == Metric.COSINE) {
+            VectorKernels.normalize(q);
+        }
+        return q;
+    }
+
+    private static void offer(NodeHeap heap, int id, float distance, int limit) {
+        if (heap.size() < limit) {
+            heap.push(id, distance);
+        } else if (distance < heap.topDistance()) {
+            heap.pop();
+            heap.push(id, distance);
+        }
+    }
+
+    private static List<Neighbor> drain(NodeHeap heap) {
+        Neighbor[] sorted = new Neighbor[heap.size()];
+        for (int i = sorted.length - 1; i >= 0; i--) {
+            float distance = heap.topDistance();
+            sorted[i] = new Neighbor(heap.pop(), distance);
+        }
+        return List.of(sorted);
+    }
+
+    private long vectorOffset(int id) {
+        return FILE_HEADER_BYTES + (long) id * dim * Float.BYTES;
+    }
+
+    private void checkDim(int actual) {
+        if (actual != dim) {
+            throw new IllegalArgumentException("Expected " + dim + " dimensions but got " + actual);
+        }
+    }
+
+    private static int words(int dim) {
+        return (dim + 63) >>> 6;
+    }
+
+    // returns capacity for the this(...) call
+    private static int checkArguments(int dim, Metric metric, Quantization quantization, int capacity) {
+        Objects.requireNonNull(metric, "metric");
+        Objects.requireNonNull(quantization, "quantization");
+        if (metric == Metric.L2) {
+            throw new IllegalArgumentException("Quantized search supports DOT and COSINE metrics");
+        }
+        if (dim <= 0) {
+            throw new IllegalArgumentException("dim must be positive");
+        }
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("capacity must be positive");
+        }
+        return capacity;
+    }
+
+    private static Mapping map(Path file, long size, boolean truncate) {
+        Objects.requireNonNull(file, "file");
+        Arena arena = Arena.ofShared();
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                StandardOpenOption.WRITE)) {
+            if (truncate) {
+                channel.truncate(0);
+            }
+            long length = size < 0 ? channel.size() : size;
+            return new Mapping(arena, channel.map(FileChannel.MapMode.READ_WRITE, 0, length, arena));
+        } catch (IOException e) {
+            arena.close();
+            throw new UncheckedIOException("Failed to map " + file, e);
+        }
+    }
+
+    private void ensureOpen() {
+        if (closed.get()) {
+            throw new IllegalStateException("QuantizedStore already closed");
+        }
+    }
+
+    @Override
+    public void close() {
+        if (closed.compareAndSet(false, true)) {
+            synchronized (this) {
+                floats.force();
+                cleanable.clean();
+            }
+        }
+    }
+
+    private record Mapping(Arena arena, MemorySegment segment) {
+    }
+}
@@ -0,0 +1,172 @@
+package io.llamapanama.index;
+
+import java.lang.foreign.MemorySegment;
+import java.lang.foreign.ValueLayout;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+import jdk.incubator.vector.ByteVector;
+import jdk.incubator.vector.FloatVector;
+import jdk.incubator.vector.IntVector;
+import jdk.incubator.vector.LongVector;
+import jdk.incubator.vector.VectorOperators;
+import jdk.incubator.vector.VectorSpecies;
+
+final class VectorKernels {
+    private static final VectorSpecies<Float> SPECIES = FloatVector.SPECIES_PREFERRED;
+    private static final VectorSpecies<Byte> BYTE_SPECIES = ByteVector.SPECIES_64;
+    private static final VectorSpecies<Integer> INT_SPECIES = IntVector.SPECIES_256;
+    private static final VectorSpecies<Long> LONG_SPECIES = LongVector.SPECIES_PREFERRED;
+    private static final ByteOrder ORDER = ByteOrder.nativeOrder();
+
+    private VectorKernels() {}
+
+    static float dot(float[] query, MemorySegment data, long offset, int dim) {
+        FloatVector acc = FloatVector.zero(SPECIES);
+        int bound = SPECIES.loopBound(dim);
+        int i = 0;
+        for (; i < bound; i += SPECIES.length()) {
+            FloatVector q = FloatVector.fromArray(SPECIES, query, i);
+            FloatVector v = FloatVector.fromMemorySegment(SPECIES, data, offset + (long) i * Float.BYTES, ORDER);
+            acc = q.fma(v, acc);
+        }
+        float sum = acc.reduceLanes(VectorOperators.ADD);
+        for (; i < dim; i++) {
+            sum += query[i] * data.get(ValueLayout.JAVA_FLOAT, offset + (long) i * Float.BYTES);
+        }
+        return sum;
+    }
+
+    static float dot(MemorySegment data, long a, long b, int dim) {
+        FloatVector acc = FloatVector.zero(SPECIES);
+        int bound = SPECIES.loopBound(dim);
+        int i = 0;
+        for (; i < bound; i += SPECIES.length()) {
+            long step = (long) i * Float.BYTES;
+            FloatVector x = FloatVector.fromMemorySegment(SPECIES, data, a + step, ORDER);
+            FloatVector y = FloatVector.fromMemorySegment(SPECIES, data, b + step, ORDER);
+            acc = x.fma(y, acc);
+        }
+        float sum = acc.reduceLanes(VectorOperators.ADD);
+        for (; i < dim; i++) {
+            long step = (long) i * Float.BYTES;
+            sum += data.get(ValueLayout.JAVA_FLOAT, a + step) * data.get(ValueLayout.JAVA_FLOAT, b + step);
+        }
+        return sum;
+    }
+
+    static float squaredDistance(float[] query, MemorySegment data, long offset, int dim) {
+        FloatVector acc = FloatVector.zero(SPECIES);
+        int bound = SPECIES.loopBound(dim);
+        int i = 0;
+        for (; i < bound; i += SPECIES.length()) {
+            FloatVector q = FloatVector.fromArray(SPECIES, query, i);
+            FloatVector v = FloatVector.fromMemorySegment(SPECIES, data, offset + (long) i * Float.BYTES, ORDER);
+            FloatVector diff = q.sub(v);
+            acc = diff.fma(diff, acc);
+        }
+        float sum = acc.reduceLanes(VectorOperators.ADD);
+        for (; i < dim; i++) {
+            float diff = query[i] - data.get(ValueLayout.JAVA_FLOAT, offset + (long) i * Float.BYTES);
+            sum += diff * diff;
+        }
+        return sum;
+    }
+
+    static float squaredDistance(MemorySegment data, long a, long b, int dim) {
+        FloatVector acc = FloatVector.zero(SPECIES);
+        int bound = SPECIES.loopBound(dim);
+        int i = 0;
+        for (; i < bound; i += SPECIES.length()) {
+            long step = (long) i * Float.BYTES;
+            FloatVector diff = FloatVector.fromMemorySegment(SPECIES, data, a + step, ORDER)
+                    .sub(FloatVector.fromMemorySegment(SPECIES, data, b + step, ORDER));
+            acc = diff.fma(diff, acc);
+        }
+        float sum = acc.reduceLanes(VectorOperators.ADD);
+        for (; i < dim; i++) {
+            long step = (long) i * Float.BYTES;
+            float diff = data.get(ValueLayout.JAVA_FLOAT, a + step) - data.get(ValueLayout.JAVA_FLOAT, b + step);
+            sum += diff * diff;
+        }
+        return sum;
+    }
+
+    static void normalize(float[] vector) {
+        double sum = 0;
+        for (float v : vector) {
+            sum += (double) v * v;
+        }
+        if (sum > 0) {
+            float inv = (float) (1.0 / Math.sqrt(sum));
+            for (int i = 0; i < vector.length; i++) {
+                vector[i] *= inv;
+            }
+        }
+    }
+
+    static void normalize(MemorySegment data, long offset, int dim) {
+        float sum = dot(data, offset, offset, dim);
+        if (sum > 0) {
+            float inv = (float) (1.0 / Math.sqrt(sum));
+            for (int i = 0; i < dim; i++) {
+                long at = offset + (long) i * Float.BYTES;
+                data.set(ValueLayout.JAVA_FLOAT, at, data.get(ValueLayout.JAVA_FLOAT, at) * inv);
+            }
+        }
+    }
+
+    static int dotInt8(byte[] query, MemorySegment codes, long offset, int dim) {
+        IntVector acc = IntVector.zero(INT_SPECIES);
+        int bound = BYTE_SPECIES.loopBound(dim);
+        int i = 0;
+        for (; i < bound; i += BYTE_SPECIES.length()) {
+            IntVector q = (IntVector) ByteVector.fromArray(BYTE_SPECIES, query, i)
+                    .convertShape(VectorOperators.B2I, INT_SPECIES, 0);
+            IntVector c = (IntVector) ByteVector.fromMemorySegment(BYTE_SPECIES, codes, offset + i, ORDER)
+                    .convertShape(VectorOperators.B2I, INT_SPECIES, 0);
+            acc = q.mul(c).add(acc);
+        }
+        int sum = acc.reduceLanes(VectorOperators.ADD);
+        for (; i < dim; i++) {
+            sum += query[i] * codes.get(ValueLayout.JAVA_BYTE, offset + i);
+        }
+        return sum;
+    }
+
+    static int hamming(long[] query, MemorySegment codes, long offset, int words) {
+        LongVector acc = LongVector.zero(LONG_SPECIES);
+        int bound = LONG_SPECIES.loopBound(words);
+        int i = 0;
+        for (; i < bound; i += LONG_SPECIES.length()) {
+            LongVector q = LongVector.fromArray(LONG_SPECIES, query, i);
+            LongVector c = LongVector.fromMemorySegment(LONG_SPECIES, codes, offset + (long) i * Long.BYTES, ORDER);
+            acc = acc.add(q.lanewise(VectorOperators.XOR, c).lanewise(VectorOperators.BIT_COUNT));
+        }
+        long sum = acc.reduceLanes(VectorOperators.ADD);
+        for (; i < words; i++) {
+            sum += Long.bitCount(query[i] ^ codes.get(ValueLayout.JAVA_LONG_UNALIGNED, offset + (long) i * Long.BYTES));
+        }
+        return (int) sum;
+    }
+
+    static float quantizeInt8(float[] vector, byte[] out) {
+        float max = 0f;
+        for (float v : vector) {
+            max = Math.max(max, Math.abs(v));
+        }
+        float scale = max == 0f ? 1f : max / 127f;
+        for (int i = 0; i < vector.length; i++) {
+            out[i] = (byte) Math.round(vector[i] / scale);
+        }
+        return scale;
+    }
+
+    static void quantizeBinary(float[] vector, long[] out) {
+        Arrays.fill(out, 0L);
+        for (int i = 0; i < vector.length; i++) {
+            if (vector[i] > 0f) {
+                out[i >>> 6] |= 1L << (i & 63);
+            }
+        }
+    }
+}
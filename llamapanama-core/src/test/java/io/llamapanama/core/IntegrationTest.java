@@ -1,6 +1,27 @@
 package io.llamapanama.core;
 
+import java.io.ByteArrayOutputStream;
+import java.lang.foreign.MemorySegment;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Flow;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import jdk.jfr.Recording;
+import jdk.jfr.consumer.RecordedEvent;
+import jdk.jfr.consumer.RecordingFile;
 import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
 
 import static org.junit.jupiter.api.Assertions.*;
 
@@ -35,6 +56,539 @@ class IntegrationTest {
         }
     }
 
+    @Test
+    void batchEmbeddingsMatchSingleEmbeddings() {
+        String modelPath = System.getenv("MODEL_PATH");
+        if (modelPath == null || modelPath.isBlank()) {
+            return; // skipped
+        }
+        try (Model model = new Model(modelPath); Context context = new Context(model, 128, 1)) {
+            Embeddings embeddings = context.createEmbeddings();
+            List<String> texts = new ArrayList<>();
+            for (int i = 0; i < 100; i++) {
+                texts.add("chunk " + "x".repeat(i));
+            }
+            try (EmbeddingMatrix matrix = embeddings.embedBatch(texts)) {
+                assertEquals(texts.size(), matrix.rows());
+                for (int i = 0; i < texts.size(); i++) {
+                    assertArrayEquals(embeddings.embed(texts.get(i)), matrix.rowArray(i));
+                }
+            }
+            try (EmbeddingMatrix normalized = embeddings.embedBatch(texts, EmbeddingOptions.defaults().withPooling(Pooling.LAST).withNormalize(true))) {
+                float[] row = normalized.rowArray(3);
+                double norm = 0;
+                for (float v : row) {
+                    norm += v * v;
+                }
+                assertEquals(1.0, norm, 1e-4);
+            }
+        }
+    }
+
+    @Test
+    void embeddingServiceCoalescesConcurrentRequests() throws Exception {
+        String modelPath = System.getenv("MODEL_PATH");
+        if (modelPath == null || modelPath.isBlank()) {
+            return; // skipped
+        }
+        try (Model model = new Model(modelPath);
+             Context context = new Context(model, 128, 1);
+             EmbeddingService service = new EmbeddingService(model, 2, 128, 1, 16, Duration.ofMillis(5), EmbeddingOptions.defaults())) {
+            Embeddings reference = context.createEmbeddings();
+            List<CompletableFuture<float[]>> futures = new ArrayList<>();
+            for (int i = 0; i < 200; i++) {
+                futures.add(service.submit("text " + i));
+            }
+            for (int i = 0; i < futures.size(); i++) {
+                assertArrayEquals(reference.embed("text " + i), futures.get(i).get(5, TimeUnit.SECONDS));
+            }
+            try (EmbeddingMatrix matrix = service.embedBatch(List.of("Hello", "world"))) {
+                assertEquals(2, matrix.rows());
+            }
+            EmbeddingService.Stats stats = service.stats();
+            assertEquals(201, stats.requests());
+            assertTrue(stats.batches() < stats.requests());
+        }
+    }
+
+    @Test
+    void cachingEmbeddingsServesRepeatsAndSurvivesReopen(@TempDir Path dir) throws Exception {
+        AtomicInteger computed = new AtomicInteger();
+        Embeddings counting = text -> {
+            computed.incrementAndGet();
+            return new float[]{text.length(), 1f, 2f, 3f};
+        };
+        Path file = dir.resolve("embeddings.cache");
+        try (CachingEmbeddings cache = new CachingEmbeddings(counting, "stub", 2 * 40, file)) {
+            float[] first = cache.embed("alpha");
+            assertArrayEquals(first, cache.embed("alpha"));
+            cache.embed("beta");
+            cache.embed("gamma");
+            CachingEmbeddings.Stats stats = cache.stats();
+            assertEquals(1, stats.hits());
+            assertEquals(3, stats.misses());
+            assertEquals(1, stats.evictions());
+            assertEquals(2, stats.entries());
+        }
+        assertEquals(3, computed.get());
+        try (CachingEmbeddings reopened = new CachingEmbeddings(counting, "stub", 2 * 40, file)) {
+            assertArrayEquals(new float[]{5f, 1f, 2f, 3f}, reopened.embed("gamma"));
+            // embed and embedBatch with the default options share entries
+            try (EmbeddingMatrix matrix = reopened.embedBatch(List.of("beta", "beta", "delta"))) {
+                assertEquals(3, matrix.rows());
+                assertEquals(4f, matrix.get(1, 0));
+            }
+            assertEquals(3, reopened.stats().hits());
+            // other poolings are refused up front
+            assertThrows(IllegalArgumentException.class,
+                    () -> reopened.embedBatch(List.of("epsilon"), EmbeddingOptions.defaults().withPooling(Pooling.CLS)));
+        }
+        assertEquals(4, computed.get());
+        // a smaller budget on reopen evicts down to it and shrinks the file
+        try (CachingEmbeddings shrunk = new CachingEmbeddings(counting, "stub", 40, file)) {
+            assertEquals(1, shrunk.stats().entries());
+            assertEquals(1, shrunk.stats().evictions());
+            assertArrayEquals(new float[]{5f, 1f, 2f, 3f}, shrunk.embed("delta"));
+        }
+        assertEquals(4, computed.get());
+        assertEquals(64 + 40, Files.size(file));
+    }
+
+    @Test
+    void promptPrefixIsReusedAcrossTurns() {
+        String modelPath = System.getenv("MODEL_PATH");
+        if (modelPath == null || modelPath.isBlank()) {
+            return; // skipped
+        }
+        try (Model model = new Model(modelPath); ChatSession session = new ChatSession(model, SamplerParams.defaults(), 128, 1)) {
+            session.generate("Hello");
+            InferenceStats first = session.getLastStats();
+            assertEquals(0, first.promptTokensReused());
+            assertTrue(first.promptTokensEvaluated() > 0);
+
+            session.generate("Hello world");
+            InferenceStats second = session.getLastStats();
+            assertTrue(second.promptTokensReused() > 0);
+            assertTrue(second.promptTokensEvaluated() > 0);
+        }
+    }
+
+    @Test
+    void statsSplitPromptEvalFromDecode() {
+        String modelPath = System.getenv("MODEL_PATH");
+        if (modelPath == null || modelPath.isBlank()) {
+            return; // skipped
+        }
+        try (Model model = new Model(modelPath); ChatSession session = new ChatSession(model, SamplerParams.defaults(), 128, 1)) {
+            session.generate("Hello world");
+            InferenceStats stats = session.getLastStats();
+            assertEquals(stats.promptTokensEvaluated(), stats.promptTokens());
+            assertTrue(stats.decodeTokens() >= stats.tokensEmitted());
+            assertTrue(stats.promptEvalMs() >= 0 && stats.decodeMs() >= 0);
+            assertTrue(stats.totalMs() >= stats.decodeMs());
+            assertTrue(stats.interTokenMinNs() <= stats.interTokenMeanNs());
+            assertTrue(stats.interTokenMeanNs() <= stats.interTokenP99Ns());
+            assertEquals(128, stats.kvCellsTotal());
+            assertEquals(stats.promptTokens() + stats.tokensEmitted(), stats.kvCellsUsed());
+            assertTrue(stats.ffmCalls() >= 2);
+        }
+    }
+
+    @Test
+    void tokenizeBatchMatchesSingleTextsAcrossThreads() throws Exception {
+        String modelPath = System.getenv("MODEL_PATH");
+        if (modelPath == null || modelPath.isBlank()) {
+            return; // skipped
+        }
+        List<String> texts = new ArrayList<>();
+        for (int i = 0; i < 3000; i++) {
+            texts.add(i % 3 == 0 ? "" : "Hello world " + "token ".repeat(i % 7));
+        }
+        // virtual threads, like the server's request threads
+        try (Model model = new Model(modelPath); ExecutorService threads = Executors.newVirtualThreadPerTaskExecutor()) {
+            int[] counts = model.countTokens(texts, true);
+            List<CompletableFuture<Void>> futures = new ArrayList<>();
+            for (int t = 0; t < 4; t++) {
+                futures.add(CompletableFuture.runAsync(() -> {
+                    TokenBatch closed;
+                    try (TokenBatch batch = model.tokenizeBatch(texts)) {
+                        closed = batch;
+                        assertEquals(texts.size(), batch.size());
+                        int total = 0;
+                        for (int i = 0; i < texts.size(); i++) {
+                            int[] expected = model.tokenize(texts.get(i), true, 512);
+                            assertArrayEquals(expected, batch.tokens(i));
+                            assertEquals(counts[i], batch.count(i));
+                            assertEquals(total, batch.offset(i));
+                            total += counts[i];
+                        }
+                        assertEquals(total, batch.totalTokens());
+                        assertEquals((long) total * Integer.BYTES, batch.segment().byteSize());
+                    }
+                    // closed batches refuse their segment
+                    assertThrows(IllegalStateException.class, closed::segment);
+                }, threads));
+            }
+            CompletableFuture.allOf(futures.toArray(CompletableFuture[]::new)).get(30, TimeUnit.SECONDS);
+        }
+    }
+
+    @Test
+    void speculativeDecodingMatchesPlainGreedyOutput() {
+        String modelPath = System.getenv("MODEL_PATH");
+        if (modelPath == null || modelPath.isBlank()) {
+            return; // skipped
+        }
+        SamplerParams greedy = new SamplerParams(0f, 1f, 1, 1f, 42, 32, null);
+        try (Model model = new Model(modelPath); Model draftModel = new Model(modelPath);
+             Context draft = new Context(draftModel, 256, 1);
+             ChatSession session = new ChatSession(model, greedy, 256, 1)) {
+            String plain = session.generate("Hello world");
+            assertFalse(plain.isEmpty());
+            assertEquals(0, session.getLastStats().draftTokens());
+
+            session.setDraft(draft, 4);
+            assertEquals(plain, session.generate("Hello world"));
+            InferenceStats agreeing = session.getLastStats();
+            assertTrue(agreeing.draftTokens() > 0);
+            assertEquals(1.0, agreeing.acceptanceRate());
+
+            // a draft with another seed disagrees, so the target rolls the rejected tokens back
+            session.setDraft(draft, greedy.withSeed(43), 4);
+            assertEquals(plain, session.generate("Hello world"));
+            InferenceStats rejecting = session.getLastStats();
+            assertTrue(rejecting.draftTokens() > 0);
+            assertTrue(rejecting.acceptanceRate() < 1.0);
+            assertEquals(rejecting.promptTokens() + rejecting.tokensEmitted() + rejecting.promptTokensReused(),
+                    rejecting.kvCellsUsed());
+
+            session.clearDraft();
+            assertEquals(plain, session.generate("Hello world"));
+        }
+    }
+
+    @Test
+    void contextStateResumesWithoutReevaluatingHistory(@TempDir Path dir) {
+        String modelPath = System.getenv("MODEL_PATH");
+        if (modelPath == null || modelPath.isBlank()) {
+            return; // skipped
+        }
+        Path file = dir.resolve("session.state");
+        try (Model model = new Model(modelPath)) {
+            String expected;
+            try (ChatSession original = new ChatSession(model, SamplerParams.defaults(), 128, 1)) {
+                original.generate("Hello world");
+                original.saveState(file);
+                expected = original.generate("Hello world");
+            }
+            try (ChatSession resumed = new ChatSession(model, SamplerParams.defaults(), 128, 1)) {
+                resumed.restoreState(file);
+                assertEquals(expected, resumed.generate("Hello world"));
+                InferenceStats stats = resumed.getLastStats();
+                assertTrue(stats.promptTokensReused() > 0);
+                assertEquals(1, stats.promptTokensEvaluated());
+            }
+            try (Context context = new Context(model, 128, 1)) {
+                SamplerState state = new SamplerState(42);
+                state.updatePosition(7);
+                context.saveState(file, state);
+                SamplerState restored = new SamplerState(42);
+                context.restoreState(file, restored);
+                assertEquals(7, restored.nextPosition());
+            }
+            try (Context small = new Context(model, 2, 1)) {
+                try (ChatSession original = new ChatSession(model, SamplerParams.defaults(), 128, 1)) {
+                    original.generate("Hello world");
+                    original.saveState(file);
+                }
+                assertThrows(IllegalStateException.class, () -> small.restoreState(file));
+            }
+        }
+    }
+
+    @Test
+    void batchDecodeAdvancesEverySequence() {
+        String modelPath = System.getenv("MODEL_PATH");
+        if (modelPath == null || modelPath.isBlank()) {
+            return; // skipped
+        }
+        try (Model model = new Model(modelPath); BatchContext batch = new BatchContext(model, 256, 1, 3)) {
+            BatchContext.Sequence[] sequences = new BatchContext.Sequence[3];
+            for (int i = 0; i < sequences.length; i++) {
+                sequences[i] = batch.openSequence(SamplerParams.defaults().withSeed(i));
+                sequences[i].prompt("Hello");
+            }
+            int steps = 0;
+            while (batch.activeSequences() > 0 && steps++ < 256) {
+                assertTrue(batch.step() > 0);
+            }
+            for (BatchContext.Sequence sequence : sequences) {
+                assertTrue(sequence.isFinished());
+                assertTrue(sequence.position() > 0);
+                sequence.close();
+            }
+            assertEquals(256, batch.freeCells());
+        }
+    }
+
+    @Test
+    void failedStepLeavesPositionsUntouched() {
+        String modelPath = System.getenv("MODEL_PATH");
+        if (modelPath == null || modelPath.isBlank()) {
+            return; // skipped
+        }
+        try (Model model = new Model(modelPath); BatchContext batch = new BatchContext(model, 8, 1, 3, 4)) {
+            int t = batch.tokenize("Hello", false)[0];
+            BatchContext.Sequence a = batch.openSequence(SamplerParams.defaults());
+            BatchContext.Sequence b = batch.openSequence(SamplerParams.defaults());
+            BatchContext.Sequence c = batch.openSequence(SamplerParams.defaults());
+            a.append(new int[]{t, t, t});
+            batch.step();
+            b.append(new int[]{t, t, t});
+            batch.step();
+            // c and a would take the context from 6 to 10 cells
+            c.append(new int[]{t});
+            a.append(new int[]{t, t, t, t, t});
+            assertThrows(IllegalStateException.class, batch::step);
+            assertEquals(3, a.position());
+            assertEquals(0, c.position());
+            b.close();
+            // a fills the whole batch, so c is not part of this step and must not advance
+            batch.step();
+            assertEquals(7, a.position());
+            assertEquals(0, c.position());
+            assertEquals(1, batch.freeCells());
+        }
+    }
+
+    @Test
+    void forkedBranchesShareThePromptCells() {
+        String modelPath = System.getenv("MODEL_PATH");
+        if (modelPath == null || modelPath.isBlank()) {
+            return; // skipped
+        }
+        try (Model model = new Model(modelPath); BatchContext batch = new BatchContext(model, 256, 1, 4)) {
+            int[] prompt = batch.tokenize("Hello world", true);
+            BatchContext.Sequence root = batch.openSequence(SamplerParams.defaults());
+            root.append(prompt);
+            batch.step();
+            int free = batch.freeCells();
+            BatchContext.Sequence child = root.fork(SamplerParams.defaults().withSeed(7));
+            assertEquals(free, batch.freeCells());
+            assertEquals(root.position(), child.position());
+            root.close();
+            assertEquals(free, batch.freeCells());
+            child.close();
+            assertEquals(256, batch.freeCells());
+
+            int before = batch.getLastStats().promptTokens();
+            assertEquals(1, batch.generateN("Hello world", 1).size());
+            int single = batch.getLastStats().promptTokens() - before;
+            List<String> samples = batch.generateN("Hello world", 3, SamplerParams.defaults().withSeed(1));
+            assertEquals(3, samples.size());
+            assertNotEquals(samples.get(0), samples.get(1));
+            // more branches decode no more of the prompt
+            assertEquals(single, batch.getLastStats().promptTokens() - before - single);
+            assertEquals(256, batch.freeCells());
+
+            List<Beam> beams = batch.beamSearch("Hello world", 2, 8);
+            assertEquals(2, beams.size());
+            assertTrue(beams.get(0).logProbability() >= beams.get(1).logProbability());
+            assertEquals(4, batch.maxSequences() - batch.activeSequences());
+            assertEquals(256, batch.freeCells());
+        }
+    }
+
+    @Test
+    void modelRegistrySharesLoadsAndEvictsIdleModels() throws Exception {
+        String modelPath = System.getenv("MODEL_PATH");
+        if (modelPath == null || modelPath.isBlank()) {
+            return; // skipped
+        }
+        long size;
+        try (ModelRegistry registry = new ModelRegistry(Long.MAX_VALUE)) {
+            try (ModelRegistry.Lease a = registry.acquire(modelPath);
+                 ModelRegistry.Lease b = registry.acquire(Path.of(modelPath).toAbsolutePath().toString())) {
+                assertSame(a.model(), b.model());
+                assertEquals(1, registry.stats().leased());
+                size = a.model().sizeBytes();
+            }
+            assertEquals(1, registry.stats().loads());
+        }
+        assertTrue(size > 0);
+        try (ModelRegistry registry = new ModelRegistry(size)) {
+            Model first;
+            try (ModelRegistry.Lease lease = registry.acquire(modelPath)) {
+                first = lease.model();
+            }
+            assertEquals(1, registry.stats().models());
+            registry.preload(modelPath, ModelParams.defaults().withVocabOnly(true)).get(5, TimeUnit.SECONDS);
+            try (ModelRegistry.Lease locked = registry.acquire(modelPath, ModelParams.defaults().withMlock(true))) {
+                assertNotSame(first, locked.model());
+                ModelRegistry.Stats stats = registry.stats();
+                assertEquals(3, stats.loads());
+                assertEquals(1, stats.evictions());
+                assertTrue(stats.residentBytes() <= stats.budgetBytes());
+                assertThrows(IllegalStateException.class, () -> first.countTokens(List.of("Hello"), true));
+            }
+        }
+    }
+
+    @Test
+    void registryModelsOutliveTheirLeasesWhileContextsUseThem() {
+        String modelPath = System.getenv("MODEL_PATH");
+        if (modelPath == null || modelPath.isBlank()) {
+            return; // skipped
+        }
+        try (ModelRegistry registry = new ModelRegistry(1)) {
+            Model model;
+            try (ModelRegistry.Lease lease = registry.acquire(modelPath)) {
+                model = lease.model();
+                model.close();
+            }
+            assertEquals(1, registry.stats().evictions());
+            try (ModelRegistry.Lease lease = registry.acquire(modelPath)) {
+                model = lease.model();
+                model.close();
+                try (ChatSession session = new ChatSession(model, SamplerParams.defaults(), 128, 1)) {
+                    lease.close();
+                    registry.acquire(modelPath, ModelParams.defaults().withMlock(true)).close();
+                    assertEquals(2, registry.stats().evictions());
+                    assertFalse(session.generate("Hello").isEmpty());
+                }
+            }
+            assertEquals(3, registry.stats().evictions());
+            Model evicted = model;
+            assertThrows(IllegalStateException.class, () -> evicted.countTokens(List.of("Hello"), true));
+        }
+    }
+
+    @Test
+    void compiledGrammarsAreCachedAndBoundOnce(@TempDir Path dir) {
+        String modelPath = System.getenv("MODEL_PATH");
+        if (modelPath == null || modelPath.isBlank()) {
+            return; // skipped
+        }
+        Map<String, Object> schema = Map.of(
+                "type", "object",
+                "properties", Map.of("name", Map.of("type", "string")),
+                "required", List.of("name"));
+        Grammar grammar = Grammar.fromJsonSchema(schema);
+        assertSame(grammar, Grammar.fromJsonSchema(schema));
+        assertSame(grammar, Grammar.compile(new String(grammar.source())));
+        assertTrue(grammar.source().startsWith("root ::= \"{\" space \"\\\"name\\\"\" space \":\" space root-name"),
+                grammar.source());
+        assertThrows(IllegalStateException.class, () -> Grammar.compile("value ::= \"x\""));
+
+        try (Model model = new Model(modelPath);
+             ChatSession plain = new ChatSession(model, SamplerParams.defaults(), 128, 1);
+             ChatSession constrained = new ChatSession(model, SamplerParams.defaults().withGrammar(grammar), 128, 1)) {
+            assertEquals(plain.generate("Hello"), constrained.generate("Hello"));
+            // binding the grammar is the only extra downcall, and it happens once per session
+            assertEquals(plain.getLastStats().ffmCalls() + 1, constrained.getLastStats().ffmCalls());
+            assertEquals(plain.generate("Hello"), constrained.generate("Hello"));
+            assertEquals(plain.getLastStats().ffmCalls(), constrained.getLastStats().ffmCalls());
+            // a restored context has no parse state, so the grammar is bound again
+            Path file = dir.resolve("constrained.state");
+            constrained.saveState(file);
+            constrained.restoreState(file);
+            assertEquals(plain.generate("Hello"), constrained.generate("Hello"));
+            assertEquals(plain.getLastStats().ffmCalls() + 1, constrained.getLastStats().ffmCalls());
+        }
+    }
+
+    @Test
+    void contextPoolReusesLeasedContexts() {
+        String modelPath = System.getenv("MODEL_PATH");
+        if (modelPath == null || modelPath.isBlank()) {
+            return; // skipped
+        }
+        try (Model model = new Model(modelPath); ContextPool pool = new ContextPool(model, 128, 1, 1)) {
+            try (ContextPool.Lease lease = pool.lease(Duration.ofSeconds(1))) {
+                ChatSession session = new ChatSession(lease.context(), SamplerParams.defaults());
+                assertFalse(session.generate("Hello").isEmpty());
+                assertThrows(IllegalStateException.class, () -> pool.lease(Duration.ofMillis(10)));
+            }
+            try (ContextPool.Lease lease = pool.lease(Duration.ofSeconds(1))) {
+                assertEquals(0, lease.context().cachedTokenCount());
+            }
+            ContextPool.Stats stats = pool.stats();
+            assertEquals(1, stats.created());
+            assertEquals(0, stats.leased());
+            assertEquals(1, stats.idle());
+        }
+    }
+
+    @Test
+    void fusedDecodeMatchesPerTokenDecode() {
+        String modelPath = System.getenv("MODEL_PATH");
+        if (modelPath == null || modelPath.isBlank()) {
+            return; // skipped
+        }
+        try (Model model = new Model(modelPath);
+             ChatSession perToken = new ChatSession(model, SamplerParams.defaults(), 128, 1);
+             ChatSession fused = new ChatSession(model, SamplerParams.defaults(), 128, 1)) {
+            fused.setTokensPerCall(8);
+            assertEquals(perToken.generate("Hello"), fused.generate("Hello"));
+            assertEquals(perToken.getLastStats().tokensEmitted(), fused.getLastStats().tokensEmitted());
+        }
+    }
+
+    @Test
+    void byteStreamMatchesTextStream() {
+        String modelPath = System.getenv("MODEL_PATH");
+        if (modelPath == null || modelPath.isBlank()) {
+            return; // skipped
+        }
+        try (Model model = new Model(modelPath);
+             ChatSession text = new ChatSession(model, SamplerParams.defaults(), 128, 1);
+             ChatSession bytes = new ChatSession(model, SamplerParams.defaults(), 128, 1)) {
+            List<String> chunks = new ArrayList<>();
+            text.setFlushPolicy(FlushPolicy.everyTokens(1));
+            text.stream("Hello", chunks::add);
+            assertTrue(chunks.size() > 1);
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            bytes.streamBytes("Hello", buffer -> {
+                assertTrue(buffer.isReadOnly());
+                byte[] copy = new byte[buffer.remaining()];
+                buffer.get(copy);
+                out.writeBytes(copy);
+            });
+            assertEquals(String.join("", chunks), out.toString(StandardCharsets.UTF_8));
+        }
+    }
+
+    @Test
+    void utf8StreamHoldsBackSplitCodePoints() {
+        byte[] euro = "\u20ac".getBytes(StandardCharsets.UTF_8);
+        List<String> chunks = new ArrayList<>();
+        Utf8Stream stream = new Utf8Stream();
+        stream.begin((TokenListener) chunks::add, FlushPolicy.everyTokens(1));
+        for (byte b : euro) {
+            stream.reserve(1)[stream.length()] = b;
+            stream.tokenAppended(1);
+        }
+        stream.finish();
+        assertEquals(List.of("\u20ac"), chunks);
+        // only latency policies read the clock
+        assertFalse(FlushPolicy.defaults().timed());
+        assertTrue(FlushPolicy.everyTokens(1).or(FlushPolicy.maxLatency(Duration.ofMillis(5))).timed());
+    }
+
+    @Test
+    void schedulerPiecesJoinCodePointsSplitAcrossTokens() {
+        byte[] accented = "\u00e9".getBytes(StandardCharsets.UTF_8);
+        VocabTable vocab = new VocabTable(MemorySegment.ofArray(accented), new int[] {0, 1, 2});
+        List<String> chunks = new ArrayList<>();
+        Utf8Stream stream = new Utf8Stream();
+        stream.begin((TokenListener) chunks::add, InferenceScheduler.FLUSH_POLICY);
+        stream.appendPiece(vocab, 0);
+        assertEquals(List.of(), chunks);
+        stream.appendPiece(vocab, 1);
+        stream.finish();
+        assertEquals(List.of("\u00e9"), chunks);
+    }
+
     @Test
     void cancellationStopsStreaming() {
         String modelPath = System.getenv("MODEL_PATH");
@@ -51,4 +605,301 @@ class IntegrationTest {
             assertFalse(builder.toString().isEmpty());
         }
     }
+
+    @Test
+    void publisherHonoursDemandAndCancellation() throws Exception {
+        String modelPath = System.getenv("MODEL_PATH");
+        if (modelPath == null || modelPath.isBlank()) {
+            return; // skipped
+        }
+        try (Model model = new Model(modelPath); ChatSession session = new ChatSession(model, SamplerParams.defaults(), 128, 1)) {
+            session.setFlushPolicy(FlushPolicy.everyTokens(1));
+            String expected = session.generate("Hello");
+            List<TokenChunk> chunks = new ArrayList<>();
+            CompletableFuture<Void> done = new CompletableFuture<>();
+            session.publish("Hello").subscribe(new Flow.Subscriber<>() {
+                private Flow.Subscription subscription;
+
+                @Override
+                public void onSubscribe(Flow.Subscription subscription) {
+                    this.subscription = subscription;
+                    subscription.request(1);
+                }
+
+                @Override
+                public void onNext(TokenChunk item) {
+                    chunks.add(item);
+                    subscription.request(1);
+                }
+
+                @Override
+                public void onError(Throwable throwable) {
+                    done.completeExceptionally(throwable);
+                }
+
+                @Override
+                public void onComplete() {
+                    done.complete(null);
+                }
+            });
+            done.get(30, TimeUnit.SECONDS);
+            assertTrue(chunks.size() > 1);
+            assertEquals(expected, chunks.stream().map(TokenChunk::text).reduce("", String::concat));
+            for (int i = 0; i < chunks.size(); i++) {
+                assertEquals(i, chunks.get(i).index());
+            }
+
+            CompletableFuture<TokenChunk> first = new CompletableFuture<>();
+            AtomicInteger terminal = new AtomicInteger();
+            session.publish("Hello").subscribe(new Flow.Subscriber<>() {
+                private Flow.Subscription subscription;
+
+                @Override
+                public void onSubscribe(Flow.Subscription subscription) {
+                    this.subscription = subscription;
+                    subscription.request(1);
+                }
+
+                @Override
+                public void onNext(TokenChunk item) {
+                    subscription.cancel();
+                    first.complete(item);
+                }
+
+                @Override
+                public void onError(Throwable throwable) {
+                    terminal.incrementAndGet();
+                }
+
+                @Override
+                public void onComplete() {
+                    terminal.incrementAndGet();
+                }
+            });
+            assertEquals(0, first.get(30, TimeUnit.SECONDS).index());
+            // decode is serialised per session, so this waits for the cancelled loop to unwind
+            assertEquals(expected, session.generate("Hello"));
+            assertEquals(0, terminal.get());
+        }
+    }
+
+    @Test
+    void cancelledPublisherFinishesTheGenerationOnce() {
+        AtomicInteger finished = new AtomicInteger();
+        TokenPublisher publisher = new TokenPublisher((listener, token) -> new TokenPublisher.Generation() {
+            @Override
+            public boolean step() {
+                listener.onToken("x");
+                return true;
+            }
+
+            @Override
+            public void finish() {
+                finished.incrementAndGet();
+            }
+        }, Runnable::run);
+        List<TokenChunk> chunks = new ArrayList<>();
+        publisher.subscribe(new Flow.Subscriber<>() {
+            private Flow.Subscription subscription;
+
+            @Override
+            public void onSubscribe(Flow.Subscription subscription) {
+                this.subscription = subscription;
+                subscription.request(1);
+            }
+
+            @Override
+            public void onNext(TokenChunk item) {
+                chunks.add(item);
+                subscription.cancel();
+                subscription.cancel();
+            }
+
+            @Override
+            public void onError(Throwable throwable) {
+                fail(throwable);
+            }
+
+            @Override
+            public void onComplete() {
+                fail("cancelled publisher completed");
+            }
+        });
+        assertEquals(1, chunks.size());
+        assertEquals(1, finished.get());
+    }
+
+    @Test
+    void pausedSubscriberReleasesTheSession() throws Exception {
+        String modelPath = System.getenv("MODEL_PATH");
+        if (modelPath == null || modelPath.isBlank()) {
+            return; // skipped
+        }
+        try (Model model = new Model(modelPath); ChatSession session = new ChatSession(model, SamplerParams.defaults(), 128, 1)) {
+            session.setFlushPolicy(FlushPolicy.everyTokens(1));
+            String expected = session.generate("Hello");
+            List<TokenChunk> chunks = new CopyOnWriteArrayList<>();
+            CompletableFuture<Flow.Subscription> paused = new CompletableFuture<>();
+            CompletableFuture<Void> done = new CompletableFuture<>();
+            session.publish("Hello").subscribe(new Flow.Subscriber<>() {
+                private Flow.Subscription subscription;
+
+                @Override
+                public void onSubscribe(Flow.Subscription subscription) {
+                    this.subscription = subscription;
+                    subscription.request(1);
+                }
+
+                @Override
+                public void onNext(TokenChunk item) {
+                    chunks.add(item);
+                    paused.complete(subscription);
+                }
+
+                @Override
+                public void onError(Throwable throwable) {
+                    done.completeExceptionally(throwable);
+                }
+
+                @Override
+                public void onComplete() {
+                    done.complete(null);
+                }
+            });
+            Flow.Subscription subscription = paused.get(30, TimeUnit.SECONDS);
+            // no demand left: the publisher must not hold the session while it waits
+            CompletableFuture<String> other = CompletableFuture.supplyAsync(() -> session.generate("Goodbye"));
+            assertFalse(other.get(30, TimeUnit.SECONDS).isEmpty());
+            subscription.request(Long.MAX_VALUE);
+            done.get(30, TimeUnit.SECONDS);
+            assertEquals(expected, chunks.stream().map(TokenChunk::text).reduce("", String::concat));
+        }
+    }
+
+    @Test
+    void schedulerServesPriorityThenTenantsRoundRobin() throws Exception {
+        String modelPath = System.getenv("MODEL_PATH");
+        if (modelPath == null || modelPath.isBlank()) {
+            return; // skipped
+        }
+        try (Model model = new Model(modelPath); InferenceScheduler scheduler = new InferenceScheduler(model, 1, 256, 1, 1)) {
+            CountDownLatch started = new CountDownLatch(1);
+            CountDownLatch release = new CountDownLatch(1);
+            List<String> order = new CopyOnWriteArrayList<>();
+            CompletableFuture<InferenceScheduler.RequestMetrics> blocker = scheduler.submit("Hello", SamplerParams.defaults(), piece -> {
+                started.countDown();
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            });
+            assertTrue(started.await(30, TimeUnit.SECONDS));
+            List<CompletableFuture<InferenceScheduler.RequestMetrics>> futures = new ArrayList<>();
+            String[][] requests = {{"a", "LOW"}, {"a", "LOW"}, {"c", "LOW"}, {"b", "HIGH"}};
+            for (String[] request : requests) {
+                String label = request[0] + "-" + request[1];
+                StringBuilder text = new StringBuilder();
+                futures.add(scheduler.submit(request[0], InferenceScheduler.Priority.valueOf(request[1]), "Hello",
+                        SamplerParams.defaults(), text::append).thenApply(metrics -> {
+                            order.add(label);
+                            assertFalse(text.isEmpty());
+                            return metrics;
+                        }));
+            }
+            assertEquals(4, scheduler.stats().queued());
+            release.countDown();
+            assertTrue(blocker.get(30, TimeUnit.SECONDS).tokens() > 0);
+            for (CompletableFuture<InferenceScheduler.RequestMetrics> future : futures) {
+                InferenceScheduler.RequestMetrics metrics = future.get(30, TimeUnit.SECONDS);
+                assertTrue(metrics.tokens() > 0);
+                assertTrue(metrics.timeToFirstTokenMs() >= metrics.queueMs());
+            }
+            assertEquals(List.of("b-HIGH", "a-LOW", "c-LOW", "a-LOW"), order);
+            InferenceScheduler.Stats stats = scheduler.stats();
+            assertEquals(5, stats.completed());
+            assertEquals(0, stats.activeSequences());
+            CountDownLatch streaming = new CountDownLatch(1);
+            CountDownLatch resume = new CountDownLatch(1);
+            CompletableFuture<InferenceScheduler.RequestMetrics> abandoned = scheduler.submit("Hello", SamplerParams.defaults(), piece -> {
+                streaming.countDown();
+                try {
+                    resume.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            });
+            assertTrue(streaming.await(30, TimeUnit.SECONDS));
+            abandoned.cancel(false);
+            resume.countDown();
+            long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(30);
+            while (scheduler.stats().activeSequences() > 0 && System.nanoTime() < deadline) {
+                Thread.sleep(10);
+            }
+            stats = scheduler.stats();
+            assertEquals(1, stats.cancelled());
+            assertEquals(stats.submitted(), stats.completed() + stats.failed() + stats.cancelled() + stats.activeSequences());
+            assertThrows(IllegalArgumentException.class,
+                    () -> scheduler.submit("Hello", new SamplerParams(0.8f, 0.95f, 40, 1.1f, 42, 1024, null), piece -> { }));
+        }
+    }
+
+    @Test
+    void histogramPercentilesStayWithinBucketError() {
+        Histogram histogram = new Histogram();
+        for (long v = 1; v <= 100_000; v++) {
+            histogram.record(v * 1_000);
+        }
+        assertEquals(100_000, histogram.count());
+        assertEquals(50_000_000, histogram.percentile(50), 50_000_000 * 0.035);
+        assertEquals(99_000_000, histogram.percentile(99), 99_000_000 * 0.035);
+        assertEquals(100_000_000, histogram.percentile(100));
+        Histogram.Summary summary = histogram.summary(1_000_000.0);
+        assertEquals(50.0005, summary.mean(), 1e-9);
+        assertEquals(0.001, summary.min(), 1e-12);
+        for (long v : new long[]{0, 1, 63, 64, 65, 1L << 40, Long.MAX_VALUE}) {
+            int index = Histogram.index(v);
+            assertTrue(Histogram.highestEquivalent(index) >= v);
+            assertTrue(index == 0 || Histogram.highestEquivalent(index - 1) < v);
+        }
+    }
+
+    @Test
+    void metricsAndJfrEventsCoverEveryPhase(@TempDir Path dir) throws Exception {
+        String modelPath = System.getenv("MODEL_PATH");
+        if (modelPath == null || modelPath.isBlank()) {
+            return; // skipped
+        }
+        Path dump = dir.resolve("inference.jfr");
+        try (Recording recording = new Recording()) {
+            for (String event : List.of("ModelLoad", "ContextCreate", "Tokenize", "PromptEval", "Sample", "Detokenize", "ListenerCallback")) {
+                recording.enable("io.llamapanama." + event).withThreshold(Duration.ZERO);
+            }
+            recording.start();
+            try (Model model = new Model(modelPath); ChatSession session = new ChatSession(model, SamplerParams.defaults(), 128, 1)) {
+                session.generate("Hello");
+                assertEquals(0, model.metrics().snapshot().requests());
+                model.metrics().setEnabled(true);
+                session.generate("Hello");
+                session.setTokensPerCall(4);
+                session.generate("Hello");
+                InferenceMetrics.Snapshot snapshot = model.metrics().snapshot();
+                assertEquals(2, snapshot.requests());
+                assertEquals(4, snapshot.tokens());
+                assertEquals(2, snapshot.timeToFirstTokenMs().count());
+                assertEquals(2, snapshot.interTokenMs().count());
+                assertTrue(snapshot.tokensPerSecond().p50() > 0);
+            }
+            recording.stop();
+            recording.dump(dump);
+        }
+        List<String> seen = new ArrayList<>();
+        for (RecordedEvent event : RecordingFile.readAllEvents(dump)) {
+            String name = event.getEventType().getName();
+            if (name.startsWith("io.llamapanama.") && !seen.contains(name)) {
+                seen.add(name);
+            }
+        }
+        assertEquals(7, seen.size(), seen.toString());
+    }
 }
@@ -0,0 +1,53 @@
+package io.llamapanama.core;
+
+import java.lang.management.ManagementFactory;
+import org.junit.jupiter.api.Assumptions;
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class SamplingAllocationTest {
+    private static final int WARMUP_TOKENS = 30_000;
+    private static final int MEASURED_TOKENS = 10_000;
+    private static final long ALLOWED_BYTES = 1024;
+
+    @Test
+    void steadyStateSamplingDoesNotAllocate() {
+        String modelPath = System.getenv("MODEL_PATH");
+        if (modelPath == null || modelPath.isBlank()) {
+            return; // skipped
+        }
+        Assumptions.assumeTrue(ManagementFactory.getThreadMXBean() instanceof com.sun.management.ThreadMXBean,
+                "Per-thread allocation counters not available");
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        Assumptions.assumeTrue(threads.isThreadAllocatedMemorySupported(), "Per-thread allocation counters not supported");
+        threads.setThreadAllocatedMemoryEnabled(true);
+
+        SamplerParams params = SamplerParams.defaults().withGrammar("root ::= [a-z]+");
+        int ctx = WARMUP_TOKENS + MEASURED_TOKENS + 16;
+        try (Model model = new Model(modelPath); Context context = new Context(model, ctx, 1)) {
+            SamplerState state = context.newSamplerState(params);
+            byte[] piece = new byte[512];
+            context.eval(context.tokenize("Hello", true));
+            decode(context, params, state, piece, WARMUP_TOKENS);
+
+            long threadId = Thread.currentThread().threadId();
+            long before = threads.getThreadAllocatedBytes(threadId);
+            long checksum = decode(context, params, state, piece, MEASURED_TOKENS);
+            long allocated = threads.getThreadAllocatedBytes(threadId) - before;
+
+            assertTrue(checksum >= 0);
+            assertTrue(allocated < ALLOWED_BYTES,
+                    "Expected no per-token allocation but saw " + allocated + " bytes over " + MEASURED_TOKENS + " tokens");
+        }
+    }
+
+    private static long decode(Context context, SamplerParams params, SamplerState state, byte[] piece, int count) {
+        long checksum = 0;
+        for (int i = 0; i < count; i++) {
+            int token = context.sample(params, state);
+            checksum += context.tokenToPieceBytes(token, piece);
+        }
+        return checksum;
+    }
+}
@@ -0,0 +1,120 @@
+package io.llamapanama.index;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class HnswIndexTest {
+    private static final int DIM = 32;
+    private static final int COUNT = 4000;
+
+    @Test
+    void recallAgainstBruteForce() throws Exception {
+        float[][] data = randomVectors(COUNT, 1);
+        try (HnswIndex index = new HnswIndex(DIM, Metric.L2, COUNT)) {
+            ExecutorService pool = Executors.newFixedThreadPool(4);
+            try {
+                List<Future<?>> inserts = new ArrayList<>();
+                for (int t = 0; t < 4; t++) {
+                    int from = t * COUNT / 4;
+                    int to = (t + 1) * COUNT / 4;
+                    inserts.add(pool.submit(() -> {
+                        for (int i = from; i < to; i++) {
+                            index.add(data[i]);
+                        }
+                    }));
+                }
+                for (Future<?> insert : inserts) {
+                    insert.get();
+                }
+            } finally {
+                pool.shutdown();
+            }
+            assertEquals(COUNT, index.size());
+            float[][] stored = new float[COUNT][];
+            for (int i = 0; i < COUNT; i++) {
+                stored[i] = index.vector(i);
+            }
+            assertTrue(recall(index, stored, randomVectors(50, 2)) >= 0.9);
+        }
+    }
+
+    @Test
+    void saveAndLoadRoundTrip(@TempDir Path dir) throws IOException {
+        float[][] data = randomVectors(1000, 3);
+        Path file = dir.resolve("index.hnsw");
+        float[] query = randomVectors(1, 4)[0];
+        List<Neighbor> expected;
+        try (HnswIndex index = new HnswIndex(DIM, Metric.COSINE, 1000)) {
+            for (float[] vector : data) {
+                index.add(vector);
+            }
+            expected = index.search(query, 10);
+            index.save(file);
+        }
+        try (HnswIndex loaded = HnswIndex.load(file)) {
+            assertEquals(1000, loaded.size());
+            assertEquals(expected, loaded.search(query, 10));
+            assertThrows(IllegalStateException.class, () -> loaded.add(query));
+        }
+        try (HnswIndex grown = HnswIndex.load(file, 2000)) {
+            assertEquals(expected, grown.search(query, 10));
+            assertEquals(1000, grown.add(query));
+        }
+        byte[] bytes = Files.readAllBytes(file);
+        ByteBuffer.wrap(bytes).order(ByteOrder.nativeOrder()).putInt(12, Metric.values().length);
+        Files.write(file, bytes);
+        assertThrows(IllegalStateException.class, () -> HnswIndex.load(file));
+    }
+
+    private static double recall(HnswIndex index, float[][] stored, float[][] queries) {
+        int found = 0;
+        for (float[] query : queries) {
+            Integer[] ids = new Integer[stored.length];
+            for (int i = 0; i < ids.length; i++) {
+                ids[i] = i;
+            }
+            Arrays.sort(ids, (a, b) -> Float.compare(l2(query, stored[a]), l2(query, stored[b])));
+            List<Integer> truth = Arrays.asList(ids).subList(0, 10);
+            for (Neighbor neighbor : index.search(query, 10)) {
+                if (truth.contains(neighbor.id())) {
+                    found++;
+                }
+            }
+        }
+        return found / (double) (queries.length * 10);
+    }
+
+    private static float l2(float[] a, float[] b) {
+        float sum = 0;
+        for (int i = 0; i < a.length; i++) {
+            float d = a[i] - b[i];
+            sum += d * d;
+        }
+        return sum;
+    }
+
+    private static float[][] randomVectors(int count, long seed) {
+        Random random = new Random(seed);
+        float[][] out = new float[count][DIM];
+        for (float[] vector : out) {
+            for (int i = 0; i < DIM; i++) {
+                vector[i] = random.nextFloat() * 2 - 1;
+            }
+        }
+        return out;
+    }
+}
@@ -0,0 +1,85 @@
+package io.llamapanama.index;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Random;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class QuantizedStoreTest {
+    private static final int DIM = 96;
+    private static final int COUNT = 3000;
+
+    @Test
+    void rerankedSearchFindsExactNeighbours(@TempDir Path dir) {
+        for (Quantization quantization : Quantization.values()) {
+            Path file = dir.resolve(quantization + ".vec");
+            float[][] data = randomVectors(COUNT, 1);
+            float[][] queries = randomVectors(20, 2);
+            try (QuantizedStore store = new QuantizedStore(file, DIM, Metric.COSINE, quantization, COUNT)) {
+                for (float[] vector : data) {
+                    store.add(vector);
+                }
+                assertTrue(store.codeBytes() * 3 < store.vectorBytes());
+                Random noise = new Random(3);
+                for (int target = 0; target < COUNT; target += 150) {
+                    float[] query = data[target].clone();
+                    for (int i = 0; i < DIM; i++) {
+                        query[i] += (float) noise.nextGaussian() * 0.1f;
+                    }
+                    assertEquals(target, store.search(query, 10, 100).get(0).id(), quantization.name());
+                }
+                if (quantization == Quantization.INT8) {
+                    int hits = 0;
+                    for (float[] query : queries) {
+                        List<Neighbor> exact = store.searchExact(query, 10);
+                        for (Neighbor neighbor : store.search(query, 10, 100)) {
+                            if (exact.contains(neighbor)) {
+                                hits++;
+                            }
+                        }
+                    }
+                    assertTrue(hits >= queries.length * 10 * 0.9, "int8 recall " + hits);
+                }
+            }
+            try (QuantizedStore reopened = QuantizedStore.open(file, quantization)) {
+                assertEquals(COUNT, reopened.size());
+                assertEquals(7, reopened.searchExact(data[7], 1).get(0).id());
+            }
+            // rejected arguments leave the existing file as it was
+            assertThrows(IllegalArgumentException.class, () -> new QuantizedStore(file, DIM, Metric.L2, quantization, COUNT));
+            try (QuantizedStore reopened = QuantizedStore.open(file, quantization)) {
+                assertEquals(COUNT, reopened.size());
+            }
+        }
+    }
+
+    @Test
+    void openRejectsAnUnknownMetric(@TempDir Path dir) throws IOException {
+        Path file = dir.resolve("store.vec");
+        try (QuantizedStore store = new QuantizedStore(file, DIM, Metric.DOT, Quantization.INT8, 4)) {
+            store.add(randomVectors(1, 1)[0]);
+        }
+        byte[] bytes = Files.readAllBytes(file);
+        ByteBuffer.wrap(bytes).order(ByteOrder.nativeOrder()).putInt(12, Metric.values().length);
+        Files.write(file, bytes);
+        assertThrows(IllegalStateException.class, () -> QuantizedStore.open(file, Quantization.INT8));
+    }
+
+    private static float[][] randomVectors(int count, long seed) {
+        Random random = new Random(seed);
+        float[][] out = new float[count][DIM];
+        for (float[] vector : out) {
+            for (int i = 0; i < DIM; i++) {
+                vector[i] = (float) random.nextGaussian();
+            }
+        }
+        return out;
+    }
+}
@@ -21,3 +21,50 @@ java {
 tasks.named<com.github.jengelman.gradle.plugins.shadow.tasks.ShadowJar>("shadowJar") {
     archiveClassifier.set("all")
 }
+
+// AppCDS: cdsTrain records the classes one example run loads, cdsStartup times startup with and without them.
+// -Pexamples.model=/path/to/model.gguf picks the model both tasks load. CDS only archives classes from jars,
+// so both run from the jar rather than the classes directory
+val cdsClasspath = files(tasks.jar, configurations.runtimeClasspath)
+val cdsArchive = layout.buildDirectory.file("cds/llamapanama-examples.jsa")
+val exampleModel = providers.gradleProperty("examples.model")
+val exampleArgs = exampleModel.map { listOf("--model", it, "--maxTokens", "1", "--threads", "1") }
+
+tasks.register<JavaExec>("cdsTrain") {
+    description = "Runs the example once and dumps the classes it loaded into a dynamic AppCDS archive."
+    classpath = cdsClasspath
+    mainClass.set(application.mainClass)
+    argumentProviders.add(CommandLineArgumentProvider { exampleArgs.get() })
+    jvmArgs("--enable-native-access=ALL-UNNAMED", "-Xlog:cds=off")
+    jvmArgumentProviders.add(CommandLineArgumentProvider { listOf("-XX:ArchiveClassesAtExit=" + cdsArchive.get().asFile.absolutePath) })
+    outputs.file(cdsArchive)
+    doFirst { cdsArchive.get().asFile.parentFile.mkdirs() }
+}
+
+tasks.register("cdsStartup") {
+    description = "Prints the median wall time of example runs with and without the AppCDS archive (-Pcds.runs, default 5)."
+    dependsOn("cdsTrain")
+    val launcher = javaToolchains.launcherFor { languageVersion.set(JavaLanguageVersion.of(21)) }
+    val runs = providers.gradleProperty("cds.runs").map { it.toInt() }.orElse(5)
+    val main = application.mainClass
+    doLast {
+        val java = launcher.get().executablePath.asFile.absolutePath
+        fun medianMs(extra: List<String>): Double {
+            val times = (1..runs.get()).map {
+                val command = listOf(java, "--enable-preview", "--enable-native-access=ALL-UNNAMED", "--add-modules", "jdk.incubator.vector") +
+                        extra + listOf("-cp", cdsClasspath.asPath, main.get()) + exampleArgs.get()
+                val start = System.nanoTime()
+                val process = ProcessBuilder(command).redirectErrorStream(true).redirectOutput(ProcessBuilder.Redirect.DISCARD).start()
+                if (process.waitFor() != 0) {
+                    throw GradleException("Example run failed: " + command.joinToString(" "))
+                }
+                (System.nanoTime() - start) / 1_000_000.0
+            }.sorted()
+            return times[times.size / 2]
+        }
+        val plain = medianMs(listOf("-Xshare:auto"))
+        val archived = medianMs(listOf("-XX:SharedArchiveFile=" + cdsArchive.get().asFile.absolutePath))
+        logger.lifecycle(String.format("startup median over %d runs: %.1f ms default CDS, %.1f ms with the AppCDS archive (%+.1f%%)",
+                runs.get(), plain, archived, (archived - plain) / plain * 100))
+    }
+}
@@ -67,6 +67,9 @@ public final class Main {
                     if (stats != null) {
                         System.out.printf("first_token=%.2fms tokens_per_sec=%.2f total=%.2fms emitted=%d%n",
                                 stats.firstTokenMs(), stats.tokensPerSecond(), stats.totalMs(), stats.tokensEmitted());
+                        System.out.printf("prompt=%d tok/%.2fms decode=%d tok/%.2fms p99_gap=%.3fms kv=%d/%d%n",
+                                stats.promptTokens(), stats.promptEvalMs(), stats.decodeTokens(), stats.decodeMs(),
+                                stats.interTokenP99Ns() / 1_000_000.0, stats.kvCellsUsed(), stats.kvCellsTotal());
                     }
                 }
             }
@@ -2,22 +2,61 @@
 #include <stdlib.h>
 #include <string.h>
 #include <stdio.h>
+#include <math.h>
 #include <time.h>
+#ifdef _WIN32
+#include <windows.h>
+#endif
+
+// inter-token gaps go into log-linear buckets, 32 per power of two up to 2^40 ns, so p99 needs no sample buffer
+#define GAP_SUB_BITS 5
+#define GAP_SUB_BUCKETS (1 << GAP_SUB_BITS)
+#define GAP_BUCKETS ((40 - GAP_SUB_BITS) * GAP_SUB_BUCKETS)
 
 struct lp_model {
     char *path;
+    lp_model_params params;
+    long long size;
 };
 
+// the stub only checks for a root rule and counts rules
+struct lp_grammar {
+    int n_rules;
+};
+
+typedef struct lp_grammar_state {
+    int n_rules;
+    int accepted;
+} lp_grammar_state;
+
 struct lp_context {
     lp_model *model;
     int ctx;
     int threads;
+    int n_seq_max;
+    int *seq_n_past;
+    int *seq_shared;
+    int *seq_src;
+    lp_grammar_state *seq_grammar;
     int step;
     int seed;
     int sampler_state;
-    double eval_start_ms;
+    long long eval_start_ns;
+    long long last_token_ns;
+    long long last_activity_ns;
     double first_token_ms;
     int tokens_emitted;
+    int prompt_tokens;
+    long long prompt_eval_ns;
+    int decode_tokens;
+    long long decode_ns;
+    long long calls;
+    int draft_tokens;
+    int draft_accepted;
+    long long gap_count;
+    long long gap_sum;
+    long long gap_min;
+    unsigned int gap_buckets[GAP_BUCKETS];
 };
 
 static _Thread_local char last_error[256];
@@ -39,19 +78,113 @@ int lp_backend_init() {
     return 0;
 }
 
-static double now_ms() {
+// monotonic so wall-clock adjustments never show up as negative or inflated latencies
+static long long now_ns() {
 #ifdef _WIN32
-    struct timespec ts;
-    timespec_get(&ts, TIME_UTC);
+    static LARGE_INTEGER frequency;
+    LARGE_INTEGER counter;
+    if (frequency.QuadPart == 0) {
+        QueryPerformanceFrequency(&frequency);
+    }
+    QueryPerformanceCounter(&counter);
+    return (long long)((double)counter.QuadPart * 1.0e9 / (double)frequency.QuadPart);
 #else
     struct timespec ts;
-    clock_gettime(CLOCK_REALTIME, &ts);
+    clock_gettime(CLOCK_MONOTONIC, &ts);
+    return (long long)ts.tv_sec * 1000000000LL + (long long)ts.tv_nsec;
 #endif
-    return (double)ts.tv_sec * 1000.0 + (double)ts.tv_nsec / 1.0e6;
+}
+
+static int gap_index(long long value) {
+    if (value < 2 * GAP_SUB_BUCKETS) {
+        return (int)value;
+    }
+    int msb = 0;
+    while ((value >> (msb + 1)) != 0) {
+        msb++;
+    }
+    int shift = msb - GAP_SUB_BITS;
+    int index = (shift + 1) * GAP_SUB_BUCKETS + (int)((value >> shift) - GAP_SUB_BUCKETS);
+    return index < GAP_BUCKETS ? index : GAP_BUCKETS - 1;
+}
+
+static long long gap_highest_equivalent(int index) {
+    if (index < 2 * GAP_SUB_BUCKETS) {
+        return index;
+    }
+    int shift = index / GAP_SUB_BUCKETS - 1;
+    long long mantissa = index % GAP_SUB_BUCKETS + GAP_SUB_BUCKETS;
+    return ((mantissa + 1) << shift) - 1;
+}
+
+static void reset_stats(lp_context* context) {
+    context->eval_start_ns = 0;
+    context->last_token_ns = 0;
+    context->last_activity_ns = 0;
+    context->first_token_ms = 0.0;
+    context->tokens_emitted = 0;
+    context->prompt_tokens = 0;
+    context->prompt_eval_ns = 0;
+    context->decode_tokens = 0;
+    context->decode_ns = 0;
+    context->calls = 0;
+    context->draft_tokens = 0;
+    context->draft_accepted = 0;
+    context->gap_count = 0;
+    context->gap_sum = 0;
+    context->gap_min = 0;
+    memset(context->gap_buckets, 0, sizeof(context->gap_buckets));
+}
+
+static void record_gap(lp_context* context, long long gap) {
+    if (gap < 0) gap = 0;
+    if (context->gap_count == 0 || gap < context->gap_min) {
+        context->gap_min = gap;
+    }
+    context->gap_count++;
+    context->gap_sum += gap;
+    context->gap_buckets[gap_index(gap)]++;
+}
+
+// a step producing several tokens spreads its time evenly over them
+static void record_tokens(lp_context* context, long long now, int n) {
+    if (n <= 0) return;
+    if (context->last_token_ns == 0) {
+        context->first_token_ms = (double)(now - context->eval_start_ns) / 1.0e6;
+        // the rest arrived together with the first token
+        for (int i = 1; i < n; i++) {
+            record_gap(context, 0);
+        }
+    } else {
+        long long each = (now - context->last_token_ns) / n;
+        for (int i = 0; i < n; i++) {
+            record_gap(context, each);
+        }
+    }
+    context->last_token_ns = now;
 }
 
 lp_model* lp_model_load(const char* path, int n_gpu_layers, int* err) {
-    (void)n_gpu_layers;
+    lp_model_params params = {n_gpu_layers, 1, 0, 0};
+    return lp_model_load_ex(path, &params, err);
+}
+
+// the stub keeps no weights, so it reports the file size as what a real load would keep resident
+static long long stub_model_size(const char* path) {
+    FILE *file = fopen(path, "rb");
+    if (!file) {
+        return 0;
+    }
+    long long size = 0;
+    if (fseek(file, 0, SEEK_END) == 0) {
+        long end = ftell(file);
+        size = end < 0 ? 0 : (long long)end;
+    }
+    fclose(file);
+    return size;
+}
+
+lp_model* lp_model_load_ex(const char* path, const lp_model_params* params, int* err) {
     set_error(NULL);
     if (err) *err = 0;
     lp_model *model = (lp_model*)calloc(1, sizeof(lp_model));
@@ -71,10 +204,31 @@ lp_model* lp_model_load(const char* path, int n_gpu_layers, int* err) {
         }
         memcpy(model->path, path, len + 1);
     }
+    if (params) {
+        model->params = *params;
+    } else {
+        model->params.use_mmap = 1;
+    }
+    model->size = model->params.vocab_only || !path ? 0 : stub_model_size(path);
     return model;
 }
 
+long long lp_model_size(lp_model* model, int* err) {
+    set_error(NULL);
+    if (err) *err = 0;
+    if (!model) {
+        if (err) *err = 1;
+        set_error("Model is null");
+        return 0;
+    }
+    return model->size;
+}
+
 lp_context* lp_context_create(lp_model* model, int ctx, int threads, int* err) {
+    return lp_context_create_ex(model, ctx, threads, 1, err);
+}
+
+lp_context* lp_context_create_ex(lp_model* model, int ctx, int threads, int n_seq_max, int* err) {
     set_error(NULL);
     if (err) *err = 0;
     if (!model) {
@@ -82,24 +236,92 @@ lp_context* lp_context_create(lp_model* model, int ctx, int threads, int* err) {
         set_error("Model is null");
         return NULL;
     }
+    if (n_seq_max <= 0) {
+        if (err) *err = 1;
+        set_error("n_seq_max must be positive");
+        return NULL;
+    }
     lp_context *context = (lp_context*)calloc(1, sizeof(lp_context));
     if (!context) {
         if (err) *err = 1;
         set_error("Out of memory");
         return NULL;
     }
+    context->seq_n_past = (int*)calloc((size_t)n_seq_max, sizeof(int));
+    context->seq_shared = (int*)calloc((size_t)n_seq_max, sizeof(int));
+    context->seq_src = (int*)malloc((size_t)n_seq_max * sizeof(int));
+    context->seq_grammar = (lp_grammar_state*)calloc((size_t)n_seq_max, sizeof(lp_grammar_state));
+    if (!context->seq_n_past || !context->seq_shared || !context->seq_src || !context->seq_grammar) {
+        free(context->seq_n_past);
+        free(context->seq_shared);
+        free(context->seq_src);
+        free(context->seq_grammar);
+        free(context);
+        if (err) *err = 1;
+        set_error("Out of memory");
+        return NULL;
+    }
     context->model = model;
     context->ctx = ctx;
     context->threads = threads;
+    context->n_seq_max = n_seq_max;
+    for (int i = 0; i < n_seq_max; i++) {
+        context->seq_src[i] = -1;
+    }
     context->step = 0;
     context->seed = 0;
     context->sampler_state = 0;
-    context->eval_start_ms = 0.0;
-    context->first_token_ms = 0.0;
-    context->tokens_emitted = 0;
+    reset_stats(context);
     return context;
 }
 
+// the first seq_shared cells of a sequence were copied from seq_src and are counted once, by their owner
+static int kv_used(const lp_context* context) {
+    int used = 0;
+    for (int i = 0; i < context->n_seq_max; i++) {
+        used += context->seq_n_past[i] - context->seq_shared[i];
+    }
+    return used;
+}
+
+static int kv_owned(const lp_context* context, int seq) {
+    return context->seq_n_past[seq] - context->seq_shared[seq];
+}
+
+// cells still shared by a fork stay alive under the fork sharing the most of them
+static void kv_release(lp_context* context, int seq, int pos) {
+    if (pos >= context->seq_n_past[seq]) {
+        return;
+    }
+    int heir = -1;
+    for (int i = 0; i < context->n_seq_max; i++) {
+        if (i != seq && context->seq_src[i] == seq && context->seq_shared[i] > pos
+                && (heir < 0 || context->seq_shared[i] > context->seq_shared[heir])) {
+            heir = i;
+        }
+    }
+    if (heir >= 0) {
+        for (int i = 0; i < context->n_seq_max; i++) {
+            if (i != seq && i != heir && context->seq_src[i] == seq && context->seq_shared[i] > pos) {
+                context->seq_src[i] = heir;
+            }
+        }
+        if (pos > context->seq_shared[seq]) {
+            context->seq_shared[heir] = pos;
+        } else {
+            context->seq_shared[heir] = context->seq_shared[seq];
+            context->seq_src[heir] = context->seq_src[seq];
+        }
+    }
+    if (context->seq_shared[seq] > pos) {
+        context->seq_shared[seq] = pos;
+    }
+    if (context->seq_shared[seq] == 0) {
+        context->seq_src[seq] = -1;
+    }
+    context->seq_n_past[seq] = pos;
+}
+
 static int fake_vocab_token(const char* text) {
     if (!text) return 0;
     if (strncmp(text, "Hello", 5) == 0) {
@@ -111,6 +333,24 @@ static int fake_vocab_token(const char* text) {
     return 4;
 }
 
+// returns the full count; writes at most max_tokens when out is non-null
+static int tokenize_text(const char* text, int add_bos, int* out, int max_tokens) {
+    int count = 0;
+    if (add_bos) {
+        if (out && count < max_tokens) out[count] = 3; // use 3 as BOS
+        count++;
+    }
+    const char *p = text;
+    while (*p) {
+        while (*p == ' ') p++;
+        if (!*p) break;
+        if (out && count < max_tokens) out[count] = fake_vocab_token(p);
+        count++;
+        while (*p && *p != ' ') p++;
+    }
+    return count;
+}
+
 int lp_tokenize(lp_model* model, const char* text, int add_bos, int* out_tokens, int max_tokens, int* err) {
     (void)model;
     set_error(NULL);
@@ -120,29 +360,44 @@ int lp_tokenize(lp_model* model, const char* text, int add_bos, int* out_tokens,
         set_error("Invalid arguments");
         return 0;
     }
-    int count = 0;
-    if (add_bos && count < max_tokens) {
-        out_tokens[count++] = 3; // use 3 as BOS
-    }
-    const char *delim = " ";
-    char *copy = strdup(text);
-    if (!copy) {
+    int count = tokenize_text(text, add_bos, out_tokens, max_tokens);
+    return count < max_tokens ? count : max_tokens;
+}
+
+int lp_tokenize_batch(lp_model* model, const char* const* texts, int n_texts, int add_bos, int* out_tokens, int max_tokens,
+                      int* out_offsets, int* err) {
+    set_error(NULL);
+    if (err) *err = 0;
+    if (!model || !texts || !out_offsets || n_texts < 0 || (out_tokens && max_tokens < 0)) {
         if (err) *err = 1;
-        set_error("Out of memory");
+        set_error("Invalid arguments");
         return 0;
     }
-    char *token = strtok(copy, delim);
-    while (token && count < max_tokens) {
-        out_tokens[count++] = fake_vocab_token(token);
-        token = strtok(NULL, delim);
+    int total = 0;
+    for (int t = 0; t < n_texts; t++) {
+        if (!texts[t]) {
+            if (err) *err = 1;
+            set_error("Null text in batch");
+            return 0;
+        }
+        out_offsets[t] = total;
+        int room = out_tokens && total < max_tokens ? max_tokens - total : 0;
+        total += tokenize_text(texts[t], add_bos, room > 0 ? out_tokens + total : NULL, room);
     }
-    free(copy);
-    return count;
+    out_offsets[n_texts] = total;
+    // like llama_tokenize, a negative result is the required capacity
+    if (out_tokens && total > max_tokens) {
+        return -total;
+    }
+    return total;
 }
 
 int lp_eval(lp_context* context, const int* tokens, int n_tokens, int* err) {
+    return lp_eval_at(context, tokens, n_tokens, 0, err);
+}
+
+int lp_eval_at(lp_context* context, const int* tokens, int n_tokens, int n_past, int* err) {
     (void)tokens;
-    (void)n_tokens;
     set_error(NULL);
     if (err) *err = 0;
     if (!context) {
@@ -150,16 +405,168 @@ int lp_eval(lp_context* context, const int* tokens, int n_tokens, int* err) {
         set_error("Context is null");
         return 1;
     }
+    if (n_tokens < 0 || n_past < 0 || n_past > context->seq_n_past[0]) {
+        if (err) *err = 1;
+        set_error("Invalid eval position");
+        return 1;
+    }
+    int shared = context->seq_shared[0] < n_past ? context->seq_shared[0] : n_past;
+    if (kv_used(context) - kv_owned(context, 0) + n_past + n_tokens - shared > context->ctx) {
+        if (err) *err = 1;
+        set_error("Context window exhausted");
+        return 1;
+    }
+    long long start = now_ns();
+    reset_stats(context);
+    context->eval_start_ns = start;
+    context->calls = 1;
+    kv_release(context, 0, n_past);
+    context->seq_n_past[0] = n_past + n_tokens;
     context->step = 0;
     context->sampler_state = 0;
-    context->first_token_ms = 0.0;
-    context->tokens_emitted = 0;
-    context->eval_start_ms = now_ms();
+    context->seq_grammar[0].accepted = 0;
+    context->prompt_tokens = n_tokens;
+    context->last_activity_ns = now_ns();
+    context->prompt_eval_ns = context->last_activity_ns - start;
+    return 0;
+}
+
+int lp_kv_truncate(lp_context* context, int pos, int* err) {
+    return lp_kv_seq_truncate(context, 0, pos, err);
+}
+
+int lp_kv_seq_truncate(lp_context* context, int seq_id, int pos, int* err) {
+    set_error(NULL);
+    if (err) *err = 0;
+    if (!context) {
+        if (err) *err = 1;
+        set_error("Context is null");
+        return 1;
+    }
+    if (seq_id < 0 || seq_id >= context->n_seq_max || pos < 0) {
+        if (err) *err = 1;
+        set_error("Invalid truncate position");
+        return 1;
+    }
+    context->calls++;
+    kv_release(context, seq_id, pos);
+    return 0;
+}
+
+int lp_kv_seq_copy(lp_context* context, int src_seq, int dst_seq, int p0, int p1, int* err) {
+    set_error(NULL);
+    if (err) *err = 0;
+    if (!context) {
+        if (err) *err = 1;
+        set_error("Context is null");
+        return 1;
+    }
+    if (src_seq < 0 || src_seq >= context->n_seq_max || dst_seq < 0 || dst_seq >= context->n_seq_max
+            || src_seq == dst_seq) {
+        if (err) *err = 1;
+        set_error("Invalid sequence id");
+        return 1;
+    }
+    // the stub tracks fill levels rather than cells, so it can only share a prefix
+    if (p0 != 0) {
+        if (err) *err = 1;
+        set_error("Only prefix copies are supported");
+        return 1;
+    }
+    context->calls++;
+    int end = p1 < 0 || p1 > context->seq_n_past[src_seq] ? context->seq_n_past[src_seq] : p1;
+    kv_release(context, dst_seq, 0);
+    context->seq_n_past[dst_seq] = end;
+    context->seq_shared[dst_seq] = end;
+    context->seq_src[dst_seq] = end > 0 ? src_seq : -1;
+    // the fork continues the parse from wherever its source stands
+    context->seq_grammar[dst_seq] = context->seq_grammar[src_seq];
     return 0;
 }
 
+lp_grammar* lp_grammar_compile(const char* text, int* err) {
+    set_error(NULL);
+    if (err) *err = 0;
+    if (!text) {
+        if (err) *err = 1;
+        set_error("Grammar is null");
+        return NULL;
+    }
+    int n_rules = 0;
+    int has_root = 0;
+    const char *line = text;
+    while (line) {
+        const char *p = line;
+        while (*p == ' ' || *p == '\t') p++;
+        const char *name = p;
+        while ((*p >= 'a' && *p <= 'z') || (*p >= 'A' && *p <= 'Z') || (*p >= '0' && *p <= '9') || *p == '-' || *p == '_') p++;
+        size_t len = (size_t)(p - name);
+        while (*p == ' ' || *p == '\t') p++;
+        if (len > 0 && strncmp(p, "::=", 3) == 0) {
+            n_rules++;
+            if (len == 4 && strncmp(name, "root", 4) == 0) {
+                has_root = 1;
+            }
+        }
+        line = strchr(line, '\n');
+        if (line) line++;
+    }
+    if (!has_root) {
+        if (err) *err = 1;
+        set_error("Grammar has no root rule");
+        return NULL;
+    }
+    lp_grammar *grammar = (lp_grammar*)calloc(1, sizeof(lp_grammar));
+    if (!grammar) {
+        if (err) *err = 1;
+        set_error("Out of memory");
+        return NULL;
+    }
+    grammar->n_rules = n_rules;
+    return grammar;
+}
+
+void lp_grammar_free(lp_grammar* grammar) {
+    free(grammar);
+}
+
+int lp_seq_set_grammar(lp_context* context, int seq_id, const lp_grammar* grammar, int* err) {
+    set_error(NULL);
+    if (err) *err = 0;
+    if (!context) {
+        if (err) *err = 1;
+        set_error("Context is null");
+        return 1;
+    }
+    if (seq_id < 0 || seq_id >= context->n_seq_max) {
+        if (err) *err = 1;
+        set_error("Invalid sequence id");
+        return 1;
+    }
+    context->calls++;
+    context->seq_grammar[seq_id].n_rules = grammar ? grammar->n_rules : 0;
+    context->seq_grammar[seq_id].accepted = 0;
+    return 0;
+}
+
+// a real backend advances the sequence's grammar sampler here
+static void grammar_accept(lp_context* context, int seq, int token) {
+    lp_grammar_state *state = &context->seq_grammar[seq];
+    if (state->n_rules > 0 && token != 0) {
+        state->accepted++;
+    }
+}
+
+static int stub_token(int seed, int state_pos) {
+    int sequence[] = {2, 5, 0};
+    int seq_len = (int)(sizeof(sequence) / sizeof(sequence[0]));
+    int index = (seed + state_pos) % seq_len;
+    if (index < 0) index = 0;
+    return sequence[index];
+}
+
 static int sample_internal(lp_context* context, float temp, float top_p, int top_k, float repeat_penalty, int seed, const char* grammar, int* state_pos, int* err) {
-    (void)temp; (void)top_p; (void)top_k; (void)repeat_penalty; (void)grammar;
+    (void)temp; (void)top_p; (void)top_k; (void)repeat_penalty;
     set_error(NULL);
     if (err) *err = 0;
     if (!context) {
@@ -167,39 +574,256 @@ static int sample_internal(lp_context* context, float temp, float top_p, int top
         set_error("Context is null");
         return 0;
     }
-    if (state_pos) {
-        context->sampler_state = *state_pos;
+    long long start = now_ns();
+    int sampler_state = state_pos ? *state_pos : context->sampler_state;
+    int token = stub_token(seed, sampler_state);
+    // a failed sample leaves the context and the caller's position as they were
+    if (token != 0 && kv_used(context) >= context->ctx) {
+        if (err) *err = 1;
+        set_error("Context window exhausted");
+        return 0;
     }
     context->seed = seed;
-    int sequence[] = {2, 5, 0};
-    int seq_len = (int)(sizeof(sequence) / sizeof(sequence[0]));
-    int index = (context->seed + context->sampler_state) % seq_len;
+    context->sampler_state = sampler_state;
+    if (!grammar) {
+        grammar_accept(context, 0, token);
+    }
     context->step++;
     context->sampler_state++;
     if (state_pos) {
         *state_pos = context->sampler_state;
     }
-    if (context->tokens_emitted == 0) {
-        double now = now_ms();
-        context->first_token_ms = now - context->eval_start_ms;
-    }
-    if (index < 0) index = 0;
-    if (index >= seq_len) index = index % seq_len;
-    int token = sequence[index];
     if (token != 0) {
+        // the sampled token is decoded into the KV cache so the next step can build on it
+        context->seq_n_past[0]++;
         context->tokens_emitted++;
     }
+    long long end = now_ns();
+    context->decode_tokens++;
+    context->decode_ns += end - start;
+    context->last_activity_ns = end;
+    record_tokens(context, end, 1);
     return token;
 }
 
 int lp_sample(lp_context* context, float temp, float top_p, int top_k, float repeat_penalty, int seed, int* err) {
+    if (context) context->calls++;
     return sample_internal(context, temp, top_p, top_k, repeat_penalty, seed, NULL, NULL, err);
 }
 
 int lp_sample_ex(lp_context* context, float temp, float top_p, int top_k, float repeat_penalty, int seed, const char* grammar, int* state_pos, int* err) {
+    if (context) context->calls++;
     return sample_internal(context, temp, top_p, top_k, repeat_penalty, seed, grammar, state_pos, err);
 }
 
+int lp_decode_batch(lp_context* context, const int* seq_ids, const int* tokens, const int* positions, const int* logits, int n_entries, lp_sampler_params* seq_params, int* out_tokens, int* err) {
+    (void)tokens;
+    set_error(NULL);
+    if (err) *err = 0;
+    if (!context || !seq_ids || !tokens || !positions || !logits || !seq_params || !out_tokens || n_entries < 0) {
+        if (err) *err = 1;
+        set_error("Invalid arguments");
+        return 0;
+    }
+    for (int i = 0; i < n_entries; i++) {
+        int seq = seq_ids[i];
+        if (seq < 0 || seq >= context->n_seq_max || positions[i] < 0) {
+            if (err) *err = 1;
+            set_error("Invalid batch entry");
+            return 0;
+        }
+    }
+    for (int i = 0; i < context->n_seq_max; i++) {
+        out_tokens[i] = -1;
+    }
+    long long start = now_ns();
+    if (context->eval_start_ns == 0) {
+        context->eval_start_ns = start;
+    }
+    context->calls++;
+    int sampled = 0;
+    int prompt = 0;
+    for (int i = 0; i < n_entries; i++) {
+        int seq = seq_ids[i];
+        if (positions[i] > context->seq_n_past[seq]) {
+            if (err) *err = 1;
+            set_error("Batch position leaves a gap in the sequence");
+            return sampled;
+        }
+        int shared = context->seq_shared[seq] < positions[i] ? context->seq_shared[seq] : positions[i];
+        int used = kv_used(context) - kv_owned(context, seq) + positions[i] + 1 - shared;
+        if (used > context->ctx) {
+            if (err) *err = 1;
+            set_error("Context window exhausted");
+            return sampled;
+        }
+        kv_release(context, seq, positions[i]);
+        context->seq_n_past[seq] = positions[i] + 1;
+        if (!logits[i]) {
+            prompt++;
+            continue;
+        }
+        lp_sampler_params *params = &seq_params[seq];
+        int token = stub_token(params->seed, params->state_pos);
+        params->state_pos++;
+        grammar_accept(context, seq, token);
+        out_tokens[seq] = token;
+        sampled++;
+        if (token != 0) {
+            context->tokens_emitted++;
+        }
+    }
+    // one batch is one forward pass, so its time is charged to decode as soon as it samples anything
+    long long end = now_ns();
+    context->prompt_tokens += prompt;
+    if (sampled > 0) {
+        context->decode_tokens += sampled;
+        context->decode_ns += end - start;
+        record_tokens(context, end, 1);
+    } else {
+        context->prompt_eval_ns += end - start;
+    }
+    context->last_activity_ns = end;
+    return sampled;
+}
+
+// a real backend runs log-softmax over the sequence's last logits row
+int lp_seq_top_tokens(lp_context* context, int seq_id, int k, int* out_tokens, float* out_logprobs, int* err) {
+    static const int ring[] = {2, 5, 4, 1, 0};
+    static const float probs[] = {0.5f, 0.25f, 0.15f, 0.07f, 0.03f};
+    set_error(NULL);
+    if (err) *err = 0;
+    if (!context || !out_tokens || !out_logprobs || k <= 0) {
+        if (err) *err = 1;
+        set_error("Invalid arguments");
+        return 0;
+    }
+    if (seq_id < 0 || seq_id >= context->n_seq_max || context->seq_n_past[seq_id] == 0) {
+        if (err) *err = 1;
+        set_error("Sequence has no logits");
+        return 0;
+    }
+    context->calls++;
+    int n = (int)(sizeof(ring) / sizeof(ring[0]));
+    int count = k < n ? k : n;
+    int shift = context->seq_n_past[seq_id] % n;
+    for (int i = 0; i < count; i++) {
+        out_tokens[i] = ring[(shift + i) % n];
+        out_logprobs[i] = logf(probs[i]);
+    }
+    return count;
+}
+
+int lp_verify_draft(lp_context* context, const int* draft, int n_draft, float temp, float top_p, int top_k, float repeat_penalty, int seed, const char* grammar, int* state_pos, int* out_tokens, int* err) {
+    (void)temp; (void)top_p; (void)top_k; (void)repeat_penalty;
+    set_error(NULL);
+    if (err) *err = 0;
+    if (!context || !out_tokens || n_draft < 0 || (n_draft > 0 && !draft)) {
+        if (err) *err = 1;
+        set_error("Invalid arguments");
+        return 0;
+    }
+    context->calls++;
+    if (kv_used(context) + n_draft + 1 > context->ctx) {
+        if (err) *err = 1;
+        set_error("Context window exhausted");
+        return 0;
+    }
+    long long start = now_ns();
+    int base = context->seq_n_past[0];
+    // the whole draft goes through one forward pass with logits kept at every position
+    context->seq_n_past[0] = base + n_draft;
+    int pos = state_pos ? *state_pos : context->sampler_state;
+    int count = 0;
+    for (int i = 0; i <= n_draft; i++) {
+        int token = stub_token(seed, pos + i);
+        out_tokens[count++] = token;
+        if (token == 0 || i == n_draft || token != draft[i]) {
+            break;
+        }
+    }
+    int accepted = count - 1;
+    int last = out_tokens[count - 1];
+    for (int i = 0; i < count && !grammar; i++) {
+        grammar_accept(context, 0, out_tokens[i]);
+    }
+    // drop the rejected tail from the KV cache; the target's own token takes the first rejected slot
+    context->seq_n_past[0] = base + accepted;
+    if (last != 0) {
+        context->seq_n_past[0]++;
+    }
+    context->seed = seed;
+    context->sampler_state = pos + count;
+    context->step += count;
+    if (state_pos) {
+        *state_pos = context->sampler_state;
+    }
+    long long end = now_ns();
+    context->tokens_emitted += last != 0 ? count : count - 1;
+    context->decode_tokens += count;
+    context->decode_ns += end - start;
+    context->draft_tokens += n_draft;
+    context->draft_accepted += accepted;
+    context->last_activity_ns = end;
+    record_tokens(context, end, count);
+    return count;
+}
+
+static const char* stub_piece(int token) {
+    switch (token) {
+        case 0: return "";
+        case 1: return "Hello";
+        case 2: return " world";
+        case 3: return "<BOS>";
+        case 4: return " token";
+        case 5: return "!";
+        default: return "?";
+    }
+}
+
+int lp_generate(lp_context* context, float temp, float top_p, int top_k, float repeat_penalty, int seed, const char* grammar, int* state_pos, int max_tokens, const volatile int* cancel_flag, int* out_tokens, int* out_piece_lens, char* out_bytes, int out_bytes_cap, int* out_status, int* err) {
+    set_error(NULL);
+    if (err) *err = 0;
+    if (!context || !out_tokens || !out_piece_lens || !out_bytes || !out_status || max_tokens < 0 || out_bytes_cap < 0) {
+        if (err) *err = 1;
+        set_error("Invalid arguments");
+        return 0;
+    }
+    context->calls++;
+    int produced = 0;
+    int written = 0;
+    *out_status = LP_GENERATE_LIMIT;
+    while (produced < max_tokens) {
+        if (cancel_flag && *cancel_flag) {
+            *out_status = LP_GENERATE_CANCELLED;
+            break;
+        }
+        if (out_bytes_cap - written < LP_MAX_PIECE_BYTES) {
+            *out_status = LP_GENERATE_BUFFER_FULL;
+            break;
+        }
+        // a local flag, so failures stop the loop even without err
+        int failed = 0;
+        int token = sample_internal(context, temp, top_p, top_k, repeat_penalty, seed, grammar, state_pos, &failed);
+        if (failed) {
+            if (err) *err = 1;
+            return produced;
+        }
+        if (token == 0) {
+            *out_status = LP_GENERATE_EOS;
+            break;
+        }
+        const char *piece = stub_piece(token);
+        int len = (int)strlen(piece);
+        memcpy(out_bytes + written, piece, (size_t)len);
+        out_tokens[produced] = token;
+        out_piece_lens[produced] = len;
+        written += len;
+        produced++;
+    }
+    return produced;
+}
+
 int lp_token_to_piece(lp_model* model, int token, char* out, int out_len, int* err) {
     (void)model;
     set_error(NULL);
@@ -209,16 +833,7 @@ int lp_token_to_piece(lp_model* model, int token, char* out, int out_len, int* e
         set_error("Invalid buffer");
         return 1;
     }
-    const char* piece = "";
-    switch (token) {
-        case 0: piece = ""; break;
-        case 1: piece = "Hello"; break;
-        case 2: piece = " world"; break;
-        case 3: piece = "<BOS>"; break;
-        case 4: piece = " token"; break;
-        case 5: piece = "!"; break;
-        default: piece = "?"; break;
-    }
+    const char* piece = stub_piece(token);
     size_t len = strlen(piece);
     if ((int)len >= out_len) {
         if (err) *err = 1;
@@ -229,6 +844,51 @@ int lp_token_to_piece(lp_model* model, int token, char* out, int out_len, int* e
     return 0;
 }
 
+#define STUB_VOCAB_SIZE 6
+
+int lp_vocab_size(lp_model* model, int* err) {
+    set_error(NULL);
+    if (err) *err = 0;
+    if (!model) {
+        if (err) *err = 1;
+        set_error("Model is null");
+        return 0;
+    }
+    return STUB_VOCAB_SIZE;
+}
+
+int lp_vocab_dump(lp_model* model, char* out_bytes, int out_bytes_cap, int* out_offsets, int n_offsets, int* err) {
+    set_error(NULL);
+    if (err) *err = 0;
+    if (!model) {
+        if (err) *err = 1;
+        set_error("Model is null");
+        return 0;
+    }
+    int total = 0;
+    for (int token = 0; token < STUB_VOCAB_SIZE; token++) {
+        total += (int)strlen(stub_piece(token));
+    }
+    if (!out_bytes || !out_offsets) {
+        return total;
+    }
+    if (out_bytes_cap < total || n_offsets < STUB_VOCAB_SIZE + 1) {
+        if (err) *err = 1;
+        set_error("Buffer too small for vocabulary");
+        return total;
+    }
+    int offset = 0;
+    for (int token = 0; token < STUB_VOCAB_SIZE; token++) {
+        const char *piece = stub_piece(token);
+        int len = (int)strlen(piece);
+        out_offsets[token] = offset;
+        memcpy(out_bytes + offset, piece, (size_t)len);
+        offset += len;
+    }
+    out_offsets[STUB_VOCAB_SIZE] = offset;
+    return total;
+}
+
 void lp_free_model(lp_model* model) {
     if (!model) return;
     free(model->path);
@@ -237,6 +897,10 @@ void lp_free_model(lp_model* model) {
 
 void lp_free_context(lp_context* context) {
     if (!context) return;
+    free(context->seq_n_past);
+    free(context->seq_shared);
+    free(context->seq_src);
+    free(context->seq_grammar);
     free(context);
 }
 
@@ -247,44 +911,210 @@ int lp_embeddings_dim(lp_model* model, int* err) {
     return 8;
 }
 
+static void stub_embedding(const char* text, int pooling, int normalize, float* out, int dim) {
+    size_t text_len = text ? strlen(text) : 0;
+    size_t seed = text_len;
+    if (pooling == LP_POOLING_CLS) {
+        seed = text_len > 0 ? (unsigned char)text[0] : 0;
+    } else if (pooling == LP_POOLING_LAST) {
+        seed = text_len > 0 ? (unsigned char)text[text_len - 1] : 0;
+    }
+    float norm = 0.0f;
+    for (int i = 0; i < dim; i++) {
+        out[i] = (float)((seed + i) % 7) / 7.0f;
+        norm += out[i] * out[i];
+    }
+    if (normalize && norm > 0.0f) {
+        float inv = 1.0f / sqrtf(norm);
+        for (int i = 0; i < dim; i++) {
+            out[i] *= inv;
+        }
+    }
+}
+
 int lp_get_embeddings(lp_context* context, const char* text, float* out, int max_len, int* err) {
+    return lp_get_embeddings_batch(context, &text, 1, LP_POOLING_MEAN, 0, out, max_len, err);
+}
+
+int lp_get_embeddings_batch(lp_context* context, const char* const* texts, int n_texts, int pooling, int normalize,
+                            float* out, int max_floats, int* err) {
     set_error(NULL);
     if (err) *err = 0;
-    if (!context || !out || max_len <= 0) {
+    if (!context || !texts || !out || n_texts <= 0 || max_floats <= 0) {
         if (err) *err = 1;
         set_error("Invalid buffer");
         return 0;
     }
+    if (pooling < LP_POOLING_MEAN || pooling > LP_POOLING_LAST) {
+        if (err) *err = 1;
+        set_error("Unknown pooling mode");
+        return 0;
+    }
+    context->calls++;
     int dim = lp_embeddings_dim(context->model, err);
-    if (dim > max_len) {
+    if ((long)dim * n_texts > max_floats) {
         if (err) *err = 1;
         set_error("Buffer too small for embeddings");
         return 0;
     }
-    size_t text_len = text ? strlen(text) : 0;
-    for (int i = 0; i < dim; i++) {
-        out[i] = (float)((text_len + i) % 7) / 7.0f;
+    // a real backend packs every text into one llama_batch
+    for (int t = 0; t < n_texts; t++) {
+        stub_embedding(texts[t], pooling, normalize, out + (long)t * dim, dim);
     }
     return dim;
 }
 
 int lp_get_last_stats(lp_context* context, lp_inference_stats* out, int* err) {
+    if (!out) {
+        set_error("Invalid arguments");
+        if (err) *err = 1;
+        return 1;
+    }
+    lp_inference_stats_ex ex;
+    if (lp_get_stats_ex(context, &ex, (int)sizeof(ex), err) != 0) {
+        return 1;
+    }
+    out->first_token_ms = ex.first_token_ms;
+    out->tokens_per_sec = ex.tokens_per_sec;
+    out->total_ms = ex.total_ms;
+    out->tokens_emitted = ex.tokens_emitted;
+    return 0;
+}
+
+int lp_get_stats_ex(lp_context* context, lp_inference_stats_ex* out, int out_size, int* err) {
     set_error(NULL);
     if (err) *err = 0;
-    if (!context || !out) {
+    if (!context || !out || out_size < (int)(2 * sizeof(int))) {
         if (err) *err = 1;
         set_error("Invalid arguments");
         return 1;
     }
-    double end_ms = now_ms();
-    double total_ms = context->eval_start_ms > 0 ? (end_ms - context->eval_start_ms) : 0.0;
-    out->first_token_ms = context->first_token_ms;
-    out->tokens_emitted = context->tokens_emitted;
-    if (total_ms > 0 && context->tokens_emitted > 0) {
-        out->tokens_per_sec = (double)context->tokens_emitted / (total_ms / 1000.0);
-    } else {
-        out->tokens_per_sec = 0.0;
+    lp_inference_stats_ex stats;
+    memset(&stats, 0, sizeof(stats));
+    stats.version = LP_STATS_VERSION;
+    stats.size = (int)sizeof(stats);
+    // measured up to the last token, not to this call
+    if (context->eval_start_ns > 0 && context->last_activity_ns > context->eval_start_ns) {
+        stats.total_ms = (double)(context->last_activity_ns - context->eval_start_ns) / 1.0e6;
+    }
+    stats.first_token_ms = context->first_token_ms;
+    stats.tokens_emitted = context->tokens_emitted;
+    if (stats.total_ms > 0 && context->tokens_emitted > 0) {
+        stats.tokens_per_sec = (double)context->tokens_emitted / (stats.total_ms / 1000.0);
+    }
+    stats.prompt_tokens = context->prompt_tokens;
+    stats.prompt_eval_ms = (double)context->prompt_eval_ns / 1.0e6;
+    stats.decode_tokens = context->decode_tokens;
+    stats.decode_ms = (double)context->decode_ns / 1.0e6;
+    if (context->gap_count > 0) {
+        stats.inter_token_min_ns = context->gap_min;
+        stats.inter_token_mean_ns = context->gap_sum / context->gap_count;
+        long long rank = (context->gap_count * 99 + 99) / 100;
+        long long seen = 0;
+        for (int i = 0; i < GAP_BUCKETS; i++) {
+            seen += context->gap_buckets[i];
+            if (seen >= rank) {
+                stats.inter_token_p99_ns = gap_highest_equivalent(i);
+                break;
+            }
+        }
+        if (stats.inter_token_p99_ns < stats.inter_token_min_ns) {
+            stats.inter_token_p99_ns = stats.inter_token_min_ns;
+        }
     }
-    out->total_ms = total_ms;
+    stats.kv_cells_used = kv_used(context);
+    stats.kv_cells_total = context->ctx;
+    stats.ffm_calls = context->calls;
+    stats.draft_tokens = context->draft_tokens;
+    stats.draft_accepted = context->draft_accepted;
+    size_t copy = (size_t)out_size < sizeof(stats) ? (size_t)out_size : sizeof(stats);
+    memcpy(out, &stats, copy);
     return 0;
 }
+
+#define STATE_MAGIC 0x4C505354
+#define STATE_VERSION 1
+#define STATE_HEADER_INTS 8
+
+// a real backend appends llama_state_get_data here
+long long lp_state_size(lp_context* context, int* err) {
+    set_error(NULL);
+    if (err) *err = 0;
+    if (!context) {
+        if (err) *err = 1;
+        set_error("Context is null");
+        return 0;
+    }
+    context->calls++;
+    return (long long)(STATE_HEADER_INTS + context->n_seq_max) * (long long)sizeof(int);
+}
+
+long long lp_state_write(lp_context* context, unsigned char* dst, long long capacity, int* err) {
+    long long size = lp_state_size(context, err);
+    if (err && *err) {
+        return 0;
+    }
+    if (!dst || capacity < size) {
+        if (err) *err = 1;
+        set_error("Buffer too small for state");
+        return 0;
+    }
+    int header[STATE_HEADER_INTS] = {STATE_MAGIC, STATE_VERSION, context->ctx, context->n_seq_max,
+                                     context->step, context->seed, context->sampler_state, 0};
+    memcpy(dst, header, sizeof(header));
+    memcpy(dst + sizeof(header), context->seq_n_past, (size_t)context->n_seq_max * sizeof(int));
+    return size;
+}
+
+long long lp_state_read(lp_context* context, const unsigned char* src, long long size, int* err) {
+    set_error(NULL);
+    if (err) *err = 0;
+    int header[STATE_HEADER_INTS];
+    if (!context || !src || size < (long long)sizeof(header)) {
+        if (err) *err = 1;
+        set_error("Invalid state buffer");
+        return 0;
+    }
+    context->calls++;
+    memcpy(header, src, sizeof(header));
+    if (header[0] != STATE_MAGIC || header[1] != STATE_VERSION) {
+        if (err) *err = 1;
+        set_error("Unrecognised state format");
+        return 0;
+    }
+    int n_seq = header[3];
+    long long needed = (long long)(STATE_HEADER_INTS + n_seq) * (long long)sizeof(int);
+    if (n_seq != context->n_seq_max || size < needed) {
+        if (err) *err = 1;
+        set_error("State was saved from a context with a different sequence layout");
+        return 0;
+    }
+    int used = 0;
+    const unsigned char *cells = src + sizeof(header);
+    for (int i = 0; i < n_seq; i++) {
+        int n_past;
+        memcpy(&n_past, cells + (size_t)i * sizeof(int), sizeof(int));
+        if (n_past < 0) {
+            if (err) *err = 1;
+            set_error("Corrupt state");
+            return 0;
+        }
+        used += n_past;
+    }
+    if (used > context->ctx) {
+        if (err) *err = 1;
+        set_error("State does not fit in this context");
+        return 0;
+    }
+    memcpy(context->seq_n_past, cells, (size_t)n_seq * sizeof(int));
+    for (int i = 0; i < n_seq; i++) {
+        context->seq_shared[i] = 0;
+        context->seq_src[i] = -1;
+    }
+    // parse states are not saved, so a restored context starts with no grammar bound
+    memset(context->seq_grammar, 0, (size_t)n_seq * sizeof(lp_grammar_state));
+    context->step = header[4];
+    context->seed = header[5];
+    context->sampler_state = header[6];
+    return needed;
+}
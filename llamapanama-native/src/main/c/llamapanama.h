@@ -15,8 +15,20 @@
 extern "C" {
 #endif
 
+#define LP_MAX_PIECE_BYTES 256
+
+#define LP_GENERATE_LIMIT 0
+#define LP_GENERATE_EOS 1
+#define LP_GENERATE_CANCELLED 2
+#define LP_GENERATE_BUFFER_FULL 3
+
+#define LP_POOLING_MEAN 0
+#define LP_POOLING_CLS 1
+#define LP_POOLING_LAST 2
+
 typedef struct lp_model lp_model;
 typedef struct lp_context lp_context;
+typedef struct lp_grammar lp_grammar;
 
 typedef struct lp_inference_stats {
     double first_token_ms;
@@ -25,20 +37,95 @@ typedef struct lp_inference_stats {
     int tokens_emitted;
 } lp_inference_stats;
 
+#define LP_STATS_VERSION 3
+
+// callers pass sizeof(lp_inference_stats_ex) they were built against; newer fields are only ever appended
+typedef struct lp_inference_stats_ex {
+    int version;
+    int size;
+    double first_token_ms;
+    double tokens_per_sec;
+    double total_ms;
+    double prompt_eval_ms;
+    double decode_ms;
+    long long inter_token_min_ns;
+    long long inter_token_mean_ns;
+    long long inter_token_p99_ns;
+    long long ffm_calls;
+    int tokens_emitted;
+    int prompt_tokens;
+    int decode_tokens;
+    int kv_cells_used;
+    int kv_cells_total;
+    int reserved;
+    /* version 3 */
+    int draft_tokens;
+    int draft_accepted;
+} lp_inference_stats_ex;
+
+typedef struct lp_sampler_params {
+    float temp;
+    float top_p;
+    int top_k;
+    float repeat_penalty;
+    int seed;
+    int state_pos;
+} lp_sampler_params;
+
+typedef struct lp_model_params {
+    int n_gpu_layers;
+    int use_mmap;
+    int use_mlock;
+    int vocab_only;
+} lp_model_params;
+
 LP_API int lp_backend_init();
 LP_API lp_model* lp_model_load(const char* path, int n_gpu_layers, int* err);
+// params may be NULL for the defaults: mmap on, mlock off, full weights, CPU only
+LP_API lp_model* lp_model_load_ex(const char* path, const lp_model_params* params, int* err);
+// bytes of weights the model keeps resident, as llama_model_size reports them
+LP_API long long lp_model_size(lp_model* model, int* err);
 LP_API lp_context* lp_context_create(lp_model* model, int ctx, int threads, int* err);
+LP_API lp_context* lp_context_create_ex(lp_model* model, int ctx, int threads, int n_seq_max, int* err);
 LP_API int lp_tokenize(lp_model* model, const char* text, int add_bos, int* out_tokens, int max_tokens, int* err);
+// out_offsets holds n_texts + 1 entries; pass out_tokens = NULL to only count
+LP_API int lp_tokenize_batch(lp_model* model, const char* const* texts, int n_texts, int add_bos, int* out_tokens, int max_tokens,
+                             int* out_offsets, int* err);
 LP_API int lp_eval(lp_context* context, const int* tokens, int n_tokens, int* err);
+LP_API int lp_eval_at(lp_context* context, const int* tokens, int n_tokens, int n_past, int* err);
+LP_API int lp_kv_truncate(lp_context* context, int pos, int* err);
+LP_API int lp_kv_seq_truncate(lp_context* context, int seq_id, int pos, int* err);
+// dst_seq shares the src_seq cells in [p0, p1) without copying them; p1 < 0 means up to the end of src_seq
+LP_API int lp_kv_seq_copy(lp_context* context, int src_seq, int dst_seq, int p0, int p1, int* err);
+LP_API int lp_decode_batch(lp_context* context, const int* seq_ids, const int* tokens, const int* positions, const int* logits, int n_entries, lp_sampler_params* seq_params, int* out_tokens, int* err);
+// the k most likely next tokens for seq_id after its last decoded entry, best first; returns how many were written
+LP_API int lp_seq_top_tokens(lp_context* context, int seq_id, int k, int* out_tokens, float* out_logprobs, int* err);
+// parses GBNF once into an immutable handle that any number of contexts and threads may share
+LP_API lp_grammar* lp_grammar_compile(const char* text, int* err);
+LP_API void lp_grammar_free(lp_grammar* grammar);
+// a NULL grammar drops seq_id's parse state; the state is copied, so the grammar may be freed afterwards
+LP_API int lp_seq_set_grammar(lp_context* context, int seq_id, const lp_grammar* grammar, int* err);
 LP_API int lp_sample(lp_context* context, float temp, float top_p, int top_k, float repeat_penalty, int seed, int* err);
 LP_API int lp_sample_ex(lp_context* context, float temp, float top_p, int top_k, float repeat_penalty, int seed, const char* grammar, int* state_pos, int* err);
+// out_tokens needs n_draft + 1 slots: the accepted prefix plus the target's next token
+LP_API int lp_verify_draft(lp_context* context, const int* draft, int n_draft, float temp, float top_p, int top_k, float repeat_penalty, int seed, const char* grammar, int* state_pos, int* out_tokens, int* err);
+LP_API int lp_generate(lp_context* context, float temp, float top_p, int top_k, float repeat_penalty, int seed, const char* grammar, int* state_pos, int max_tokens, const volatile int* cancel_flag, int* out_tokens, int* out_piece_lens, char* out_bytes, int out_bytes_cap, int* out_status, int* err);
 LP_API int lp_token_to_piece(lp_model* model, int token, char* out, int out_len, int* err);
+LP_API int lp_vocab_size(lp_model* model, int* err);
+LP_API int lp_vocab_dump(lp_model* model, char* out_bytes, int out_bytes_cap, int* out_offsets, int n_offsets, int* err);
 LP_API int lp_embeddings_dim(lp_model* model, int* err);
 LP_API int lp_get_embeddings(lp_context* context, const char* text, float* out, int max_len, int* err);
+LP_API int lp_get_embeddings_batch(lp_context* context, const char* const* texts, int n_texts, int pooling, int normalize,
+                                   float* out, int max_floats, int* err);
 LP_API void lp_free_model(lp_model* model);
 LP_API void lp_free_context(lp_context* context);
 LP_API const char* lp_last_error();
 LP_API int lp_get_last_stats(lp_context* context, lp_inference_stats* out, int* err);
+// KV cache and sampler state as one blob; read leaves every sequence without a grammar
+LP_API long long lp_state_size(lp_context* context, int* err);
+LP_API long long lp_state_write(lp_context* context, unsigned char* dst, long long capacity, int* err);
+LP_API long long lp_state_read(lp_context* context, const unsigned char* src, long long size, int* err);
+LP_API int lp_get_stats_ex(lp_context* context, lp_inference_stats_ex* out, int out_size, int* err);
 
 #ifdef __cplusplus
 }
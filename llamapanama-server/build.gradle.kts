@@ -0,0 +1,21 @@
+plugins {
+    application
+    id("com.github.johnrengelman.shadow") version "8.1.1"
+}
+
+dependencies {
+    implementation(project(":llamapanama-core"))
+    runtimeOnly("org.slf4j:slf4j-simple:2.0.13")
+    testImplementation(platform("org.junit:junit-bom:5.11.3"))
+    testImplementation("org.junit.jupiter:junit-jupiter")
+}
+
+application {
+    mainClass.set("io.llamapanama.server.Server")
+    applicationDefaultJvmArgs = listOf("--enable-preview", "--enable-native-access=ALL-UNNAMED",
+            "--add-modules", "jdk.incubator.vector")
+}
+
+tasks.named<com.github.jengelman.gradle.plugins.shadow.tasks.ShadowJar>("shadowJar") {
+    archiveClassifier.set("all")
+}
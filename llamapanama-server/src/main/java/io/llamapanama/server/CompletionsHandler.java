@@ -0,0 +1,255 @@
+package io.llamapanama.server;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import io.llamapanama.core.Grammar;
+import io.llamapanama.core.InferenceScheduler;
+import io.llamapanama.core.SamplerParams;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+final class CompletionsHandler implements HttpHandler {
+    private static final Logger LOG = LoggerFactory.getLogger(CompletionsHandler.class);
+    private static final Object END = new Object();
+    private static final AtomicLong IDS = new AtomicLong();
+    private final InferenceScheduler scheduler;
+    private final String modelId;
+    private final boolean chat;
+    private final int maxRequestBytes;
+
+    CompletionsHandler(InferenceScheduler scheduler, String modelId, boolean chat, int maxRequestBytes) {
+        this.scheduler = scheduler;
+        this.modelId = modelId;
+        this.chat = chat;
+        this.maxRequestBytes = maxRequestBytes;
+    }
+
+    @Override
+    public void handle(HttpExchange exchange) throws IOException {
+        try (exchange) {
+            if (!"POST".equals(exchange.getRequestMethod())) {
+                Server.sendError(exchange, 405, "invalid_request_error", "Only POST is supported");
+                return;
+            }
+            String prompt;
+            SamplerParams params;
+            boolean stream;
+            String tenant;
+            InferenceScheduler.Priority priority;
+            String text = Server.readBody(exchange, maxRequestBytes);
+            if (text == null) {
+                return;
+            }
+            try {
+                Map<String, Object> body = Json.parseObject(text);
+                prompt = chat ? chatPrompt(body.get("messages")) : requireString(body, "prompt");
+                params = samplerParams(body);
+                stream = Boolean.TRUE.equals(body.get("stream"));
+                tenant = body.get("user") instanceof String user ? user : InferenceScheduler.DEFAULT_TENANT;
+                String header = exchange.getRequestHeaders().getFirst("X-Priority");
+                priority = header == null ? InferenceScheduler.Priority.NORMAL
+                        : InferenceScheduler.Priority.valueOf(header.trim().toUpperCase(Locale.ROOT));
+            } catch (IllegalArgumentException e) {
+                Server.sendError(exchange, 400, "invalid_request_error", e.getMessage());
+                return;
+            }
+            LinkedBlockingQueue<Object> pieces = new LinkedBlockingQueue<>();
+            CompletableFuture<InferenceScheduler.RequestMetrics> future;
+            try {
+                // the scheduler only emits complete code points; the view is copied because it is reused
+                future = scheduler.submitBytes(tenant, priority, prompt, params, utf8 -> {
+                    byte[] piece = new byte[utf8.remaining()];
+                    utf8.get(piece);
+                    pieces.add(piece);
+                });
+            } catch (IllegalArgumentException e) {
+                Server.sendError(exchange, 400, "invalid_request_error", e.getMessage());
+                return;
+            } catch (IllegalStateException e) {
+                Server.sendError(exchange, 503, "server_error", e.getMessage());
+                return;
+            }
+            future.whenComplete((metrics, error) -> pieces.add(END));
+            String id = (chat ? "chatcmpl-" : "cmpl-") + IDS.incrementAndGet();
+            long created = System.currentTimeMillis() / 1000;
+            try {
+                if (stream) {
+                    streamResponse(exchange, pieces, future, params, id, created);
+                } else {
+                    fullResponse(exchange, pieces, future, params, id, created);
+                }
+            } catch (IOException e) {
+                // client went away; free the batch slot at the next step boundary
+                future.cancel(false);
+                LOG.debug("Client disconnected from {}", id, e);
+            } catch (InterruptedException e) {
+                future.cancel(false);
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    private void streamResponse(HttpExchange exchange, LinkedBlockingQueue<Object> pieces,
+                                CompletableFuture<InferenceScheduler.RequestMetrics> future, SamplerParams params,
+                                String id, long created) throws IOException, InterruptedException {
+        exchange.getResponseHeaders().set("Content-Type", "text/event-stream");
+        exchange.getResponseHeaders().set("Cache-Control", "no-cache");
+        exchange.sendResponseHeaders(200, 0);
+        OutputStream out = exchange.getResponseBody();
+        boolean first = true;
+        Object piece;
+        while ((piece = pieces.take()) != END) {
+            StringBuilder event = chunk(id, created);
+            if (chat) {
+                event.append("\"delta\":{");
+                if (first) {
+                    event.append("\"role\":\"assistant\",");
+                }
+                Json.quote(event.append("\"content\":"), new String((byte[]) piece, StandardCharsets.UTF_8)).append('}');
+            } else {
+                Json.quote(event.append("\"text\":"), new String((byte[]) piece, StandardCharsets.UTF_8));
+            }
+            first = false;
+            writeEvent(out, event.append(",\"finish_reason\":null}]}").toString());
+        }
+        InferenceScheduler.RequestMetrics metrics;
+        try {
+            metrics = future.join();
+        } catch (CompletionException e) {
+            StringBuilder error = new StringBuilder("{\"error\":{\"message\":");
+            Json.quote(error, String.valueOf(e.getCause().getMessage())).append(",\"type\":\"server_error\"}}");
+            writeEvent(out, error.toString());
+            return;
+        }
+        StringBuilder last = chunk(id, created).append(chat ? "\"delta\":{}," : "\"text\":\"\",");
+        Json.quote(last.append("\"finish_reason\":"), finishReason(metrics, params)).append("}]}");
+        writeEvent(out, last.toString());
+        writeEvent(out, "[DONE]");
+        out.close();
+    }
+
+    private void fullResponse(HttpExchange exchange, LinkedBlockingQueue<Object> pieces,
+                              CompletableFuture<InferenceScheduler.RequestMetrics> future, SamplerParams params,
+                              String id, long created) throws IOException, InterruptedException {
+        ByteArrayOutputStream text = new ByteArrayOutputStream();
+        Object piece;
+        while ((piece = pieces.take()) != END) {
+            text.writeBytes((byte[]) piece);
+        }
+        InferenceScheduler.RequestMetrics metrics;
+        try {
+            metrics = future.join();
+        } catch (CompletionException e) {
+            Server.sendError(exchange, 500, "server_error", e.getCause().getMessage());
+            return;
+        }
+        StringBuilder body = new StringBuilder("{\"id\":\"").append(id).append("\",\"object\":\"")
+                .append(chat ? "chat.completion" : "text_completion").append("\",\"created\":").append(created)
+                .append(",\"model\":");
+        Json.quote(body, modelId).append(",\"choices\":[{\"index\":0,");
+        if (chat) {
+            Json.quote(body.append("\"message\":{\"role\":\"assistant\",\"content\":"), text.toString(StandardCharsets.UTF_8)).append('}');
+        } else {
+            Json.quote(body.append("\"text\":"), text.toString(StandardCharsets.UTF_8));
+        }
+        Json.quote(body.append(",\"finish_reason\":"), finishReason(metrics, params)).append("}],\"usage\":{")
+                .append("\"prompt_tokens\":").append(metrics.promptTokens())
+                .append(",\"completion_tokens\":").append(metrics.tokens())
+                .append(",\"total_tokens\":").append(metrics.promptTokens() + metrics.tokens()).append("}}");
+        Server.sendJson(exchange, 200, body.toString());
+    }
+
+    private StringBuilder chunk(String id, long created) {
+        StringBuilder event = new StringBuilder("{\"id\":\"").append(id).append("\",\"object\":\"")
+                .append(chat ? "chat.completion.chunk" : "text_completion").append("\",\"created\":").append(created)
+                .append(",\"model\":");
+        return Json.quote(event, modelId).append(",\"choices\":[{\"index\":0,");
+    }
+
+    private static void writeEvent(OutputStream out, String data) throws IOException {
+        out.write(("data: " + data + "\n\n").getBytes(StandardCharsets.UTF_8));
+        out.flush();
+    }
+
+    private static String finishReason(InferenceScheduler.RequestMetrics metrics, SamplerParams params) {
+        return metrics.tokens() >= params.maxTokens() ? "length" : "stop";
+    }
+
+    // plain role-prefixed transcript; model-specific chat templates are left to the prompt author
+    private static String chatPrompt(Object messages) {
+        if (!(messages instanceof List<?> list) || list.isEmpty()) {
+            throw new IllegalArgumentException("messages must be a non-empty array");
+        }
+        StringBuilder prompt = new StringBuilder();
+        for (Object entry : list) {
+            if (!(entry instanceof Map<?, ?> message) || !(message.get("content") instanceof String content)) {
+                throw new IllegalArgumentException("each message needs a string content");
+            }
+            Object role = message.get("role");
+            prompt.append(role instanceof String r ? r : "user").append(": ").append(content).append('\n');
+        }
+        return prompt.append("assistant:").toString();
+    }
+
+    private static SamplerParams samplerParams(Map<String, Object> body) {
+        SamplerParams defaults = SamplerParams.defaults();
+        return new SamplerParams(
+                (float) number(body, "temperature", defaults.temperature()),
+                (float) number(body, "top_p", defaults.topP()),
+                (int) number(body, "top_k", defaults.topK()),
+                (float) number(body, "repeat_penalty", defaults.repeatPenalty()),
+                (int) number(body, "seed", defaults.seed()),
+                (int) number(body, "max_tokens", defaults.maxTokens()),
+                grammar(body));
+    }
+
+    // an explicit GBNF grammar wins over response_format
+    @SuppressWarnings("unchecked")
+    private static String grammar(Map<String, Object> body) {
+        if (body.get("grammar") instanceof String grammar) {
+            return grammar;
+        }
+        if (!(body.get("response_format") instanceof Map<?, ?> format) || "text".equals(format.get("type"))) {
+            return null;
+        }
+        if ("json_object".equals(format.get("type"))) {
+            return Grammar.fromJsonSchema(Map.of("type", "object")).source();
+        }
+        if ("json_schema".equals(format.get("type"))) {
+            if (format.get("json_schema") instanceof Map<?, ?> spec && spec.get("schema") instanceof Map<?, ?> schema) {
+                return Grammar.fromJsonSchema((Map<String, ?>) schema).source();
+            }
+            throw new IllegalArgumentException("response_format json_schema needs a schema object");
+        }
+        throw new IllegalArgumentException("Unsupported response_format type " + format.get("type"));
+    }
+
+    private static double number(Map<String, Object> body, String key, double fallback) {
+        Object value = body.get(key);
+        if (value == null) {
+            return fallback;
+        }
+        if (value instanceof Number number) {
+            return number.doubleValue();
+        }
+        throw new IllegalArgumentException(key + " must be a number");
+    }
+
+    private static String requireString(Map<String, Object> body, String key) {
+        if (body.get(key) instanceof String value) {
+            return value;
+        }
+        throw new IllegalArgumentException(key + " must be a string");
+    }
+}
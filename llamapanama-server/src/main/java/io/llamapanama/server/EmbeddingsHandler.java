@@ -0,0 +1,92 @@
+package io.llamapanama.server;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import io.llamapanama.core.EmbeddingMatrix;
+import io.llamapanama.core.EmbeddingService;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+final class EmbeddingsHandler implements HttpHandler {
+    private static final Logger LOG = LoggerFactory.getLogger(EmbeddingsHandler.class);
+    private final EmbeddingService embeddings;
+    private final String modelId;
+    private final int maxRequestBytes;
+
+    EmbeddingsHandler(EmbeddingService embeddings, String modelId, int maxRequestBytes) {
+        this.embeddings = embeddings;
+        this.modelId = modelId;
+        this.maxRequestBytes = maxRequestBytes;
+    }
+
+    @Override
+    public void handle(HttpExchange exchange) throws IOException {
+        try (exchange) {
+            if (!"POST".equals(exchange.getRequestMethod())) {
+                Server.sendError(exchange, 405, "invalid_request_error", "Only POST is supported");
+                return;
+            }
+            String text = Server.readBody(exchange, maxRequestBytes);
+            if (text == null) {
+                return;
+            }
+            List<String> inputs;
+            try {
+                Map<String, Object> body = Json.parseObject(text);
+                inputs = inputs(body.get("input"));
+            } catch (IllegalArgumentException e) {
+                Server.sendError(exchange, 400, "invalid_request_error", e.getMessage());
+                return;
+            }
+            StringBuilder body = new StringBuilder("{\"object\":\"list\",\"data\":[");
+            try (EmbeddingMatrix matrix = embeddings.embedBatch(inputs)) {
+                for (int row = 0; row < matrix.rows(); row++) {
+                    if (row > 0) {
+                        body.append(',');
+                    }
+                    body.append("{\"object\":\"embedding\",\"index\":").append(row).append(",\"embedding\":[");
+                    for (int col = 0; col < matrix.dim(); col++) {
+                        if (col > 0) {
+                            body.append(',');
+                        }
+                        body.append(matrix.get(row, col));
+                    }
+                    body.append("]}");
+                }
+            } catch (IllegalArgumentException e) {
+                Server.sendError(exchange, 400, "invalid_request_error", e.getMessage());
+                return;
+            } catch (IllegalStateException e) {
+                Server.sendError(exchange, 503, "server_error", e.getMessage());
+                return;
+            } catch (RuntimeException e) {
+                LOG.warn("Embedding request failed", e);
+                Server.sendError(exchange, 500, "server_error", e.getMessage());
+                return;
+            }
+            Json.quote(body.append("],\"model\":"), modelId).append('}');
+            Server.sendJson(exchange, 200, body.toString());
+        }
+    }
+
+    private static List<String> inputs(Object input) {
+        if (input instanceof String text) {
+            return List.of(text);
+        }
+        if (input instanceof List<?> list && !list.isEmpty()) {
+            List<String> texts = new ArrayList<>(list.size());
+            for (Object item : list) {
+                if (!(item instanceof String text)) {
+                    throw new IllegalArgumentException("input must contain only strings");
+                }
+                texts.add(text);
+            }
+            return texts;
+        }
+        throw new IllegalArgumentException("input must be a string or a non-empty array of strings");
+    }
+}
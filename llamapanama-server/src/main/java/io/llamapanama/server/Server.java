@@ -0,0 +1,189 @@
+package io.llamapanama.server;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import io.llamapanama.core.EmbeddingService;
+import io.llamapanama.core.InferenceScheduler;
+import io.llamapanama.core.Model;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+public final class Server implements AutoCloseable {
+    private static final Logger LOG = LoggerFactory.getLogger(Server.class);
+    private final InferenceScheduler scheduler;
+    private final EmbeddingService embeddings;
+    private final ExecutorService executor;
+    private final HttpServer http;
+    private final AtomicBoolean closed = new AtomicBoolean(false);
+
+    public Server(Model model, String modelId, Options options) {
+        Objects.requireNonNull(model, "model");
+        Objects.requireNonNull(modelId, "modelId");
+        Objects.requireNonNull(options, "options");
+        this.scheduler = new InferenceScheduler(model, options.contexts(), options.ctxTokens(), options.threads(),
+                options.slotsPerContext());
+        try {
+            this.embeddings = new EmbeddingService(model, options.embedWorkers(), options.ctxTokens(), options.threads());
+        } catch (RuntimeException e) {
+            scheduler.close();
+            throw e;
+        }
+        // request threads only tokenize natively; decoding and embedding stay on platform threads
+        this.executor = Executors.newVirtualThreadPerTaskExecutor();
+        try {
+            this.http = HttpServer.create(new InetSocketAddress(options.host(), options.port()), options.backlog());
+        } catch (IOException e) {
+            close();
+            throw new UncheckedIOException("Failed to bind " + options.host() + ":" + options.port(), e);
+        }
+        http.setExecutor(executor);
+        int maxRequestBytes = options.maxRequestBytes();
+        http.createContext("/v1/completions", new CompletionsHandler(scheduler, modelId, false, maxRequestBytes));
+        http.createContext("/v1/chat/completions", new CompletionsHandler(scheduler, modelId, true, maxRequestBytes));
+        http.createContext("/v1/embeddings", new EmbeddingsHandler(embeddings, modelId, maxRequestBytes));
+    }
+
+    public static void main(String[] args) throws InterruptedException {
+        Map<String, String> opts = parseArgs(args);
+        String modelPath = opts.get("model");
+        if (modelPath == null) {
+            System.err.println("Usage: java -jar ... --model <path> [--port 8080] [--contexts 1] [--slots 8] "
+                    + "[--ctx 2048] [--threads N] [--embedWorkers 1] [--maxRequestBytes 1048576]");
+            System.exit(1);
+        }
+        Options defaults = Options.defaults();
+        Options options = new Options(
+                opts.getOrDefault("host", defaults.host()),
+                Integer.parseInt(opts.getOrDefault("port", String.valueOf(defaults.port()))),
+                defaults.backlog(),
+                Integer.parseInt(opts.getOrDefault("ctx", String.valueOf(defaults.ctxTokens()))),
+                Integer.parseInt(opts.getOrDefault("threads", String.valueOf(defaults.threads()))),
+                Integer.parseInt(opts.getOrDefault("contexts", String.valueOf(defaults.contexts()))),
+                Integer.parseInt(opts.getOrDefault("slots", String.valueOf(defaults.slotsPerContext()))),
+                Integer.parseInt(opts.getOrDefault("embedWorkers", String.valueOf(defaults.embedWorkers()))),
+                Integer.parseInt(opts.getOrDefault("maxRequestBytes", String.valueOf(defaults.maxRequestBytes()))));
+        String modelId = opts.getOrDefault("modelId", Path.of(modelPath).getFileName().toString());
+        Model model = new Model(modelPath);
+        Server server = new Server(model, modelId, options);
+        CountDownLatch stopped = new CountDownLatch(1);
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            server.close();
+            model.close();
+            stopped.countDown();
+        }, "llamapanama-server-shutdown"));
+        server.start();
+        LOG.info("Serving {} on http://{}:{}/v1", modelId, options.host(), server.port());
+        stopped.await();
+    }
+
+    public void start() {
+        http.start();
+    }
+
+    public int port() {
+        return http.getAddress().getPort();
+    }
+
+    public InferenceScheduler.Stats schedulerStats() {
+        return scheduler.stats();
+    }
+
+    public EmbeddingService.Stats embeddingStats() {
+        return embeddings.stats();
+    }
+
+    // the body as text, or null after answering 413 when it is larger than maxBytes
+    static String readBody(HttpExchange exchange, int maxBytes) throws IOException {
+        byte[] bytes = exchange.getRequestBody().readNBytes(maxBytes + 1);
+        if (bytes.length > maxBytes) {
+            sendError(exchange, 413, "invalid_request_error", "Request body exceeds " + maxBytes + " bytes");
+            return null;
+        }
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    static void sendJson(HttpExchange exchange, int status, String body) throws IOException {
+        byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().set("Content-Type", "application/json");
+        exchange.sendResponseHeaders(status, bytes.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(bytes);
+        }
+    }
+
+    static void sendError(HttpExchange exchange, int status, String type, String message) throws IOException {
+        StringBuilder body = new StringBuilder("{\"error\":{\"message\":");
+        Json.quote(body, message == null ? type : message).append(",\"type\":");
+        Json.quote(body, type).append("}}");
+        sendJson(exchange, status, body.toString());
+    }
+
+    private static Map<String, String> parseArgs(String[] args) {
+        Map<String, String> opts = new HashMap<>();
+        for (int i = 0; i < args.length; i++) {
+            String arg = args[i];
+            if (arg.startsWith("--")) {
+                String key = arg.substring(2);
+                if (i + 1 < args.length && !args[i + 1].startsWith("--")) {
+                    opts.put(key, args[i + 1]);
+                    i++;
+                }
+            }
+        }
+        return opts;
+    }
+
+    @Override
+    public void close() {
+        if (closed.compareAndSet(false, true)) {
+            if (http != null) {
+                http.stop(0);
+            }
+            executor.shutdownNow();
+            scheduler.close();
+            embeddings.close();
+        }
+    }
+
+    public record Options(String host, int port, int backlog, int ctxTokens, int threads, int contexts,
+                          int slotsPerContext, int embedWorkers, int maxRequestBytes) {
+        public static Options defaults() {
+            return new Options("localhost", 8080, 0, 2048, Runtime.getRuntime().availableProcessors(), 1, 8, 1, 1 << 20);
+        }
+
+        public Options {
+            Objects.requireNonNull(host, "host");
+            if (maxRequestBytes <= 0 || maxRequestBytes == Integer.MAX_VALUE) {
+                throw new IllegalArgumentException("maxRequestBytes must be positive and below Integer.MAX_VALUE");
+            }
+        }
+
+        public Options withPort(int port) {
+            return new Options(host, port, backlog, ctxTokens, threads, contexts, slotsPerContext, embedWorkers,
+                    maxRequestBytes);
+        }
+
+        public Options withCtxTokens(int ctxTokens) {
+            return new Options(host, port, backlog, ctxTokens, threads, contexts, slotsPerContext, embedWorkers,
+                    maxRequestBytes);
+        }
+
+        public Options withMaxRequestBytes(int maxRequestBytes) {
+            return new Options(host, port, backlog, ctxTokens, threads, contexts, slotsPerContext, embedWorkers,
+                    maxRequestBytes);
+        }
+    }
+}
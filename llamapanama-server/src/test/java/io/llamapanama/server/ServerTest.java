@@ -0,0 +1,102 @@
+package io.llamapanama.server;
+
+import io.llamapanama.core.Model;
+import java.io.BufferedReader;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class ServerTest {
+
+    @Test
+    void jsonRoundTripsRequestShapes() {
+        Map<String, Object> body = Json.parseObject(
+                "{\"messages\":[{\"role\":\"user\",\"content\":\"hi \\\"there\\\"\\u00e9\"}],\"max_tokens\":16,\"stream\":true,\"stop\":null}");
+        List<?> messages = (List<?>) body.get("messages");
+        assertEquals("hi \"there\"\u00e9", ((Map<?, ?>) messages.get(0)).get("content"));
+        assertEquals(16.0, body.get("max_tokens"));
+        assertEquals(Boolean.TRUE, body.get("stream"));
+        assertTrue(body.containsKey("stop"));
+        assertEquals("\"a\\nb\\u0001\"", Json.quote(new StringBuilder(), "a\nb\u0001").toString());
+        assertThrows(IllegalArgumentException.class, () -> Json.parse("{\"a\":1,}"));
+        assertThrows(IllegalArgumentException.class, () -> Json.parseObject("[1]"));
+        String nested = "[".repeat(Json.MAX_DEPTH) + "]".repeat(Json.MAX_DEPTH);
+        assertEquals(1, ((List<?>) Json.parse(nested)).size());
+        assertThrows(IllegalArgumentException.class, () -> Json.parse("[" + nested + "]"));
+    }
+
+    @Test
+    void servesCompletionsChatAndEmbeddings() throws Exception {
+        String modelPath = System.getenv("MODEL_PATH");
+        if (modelPath == null || modelPath.isBlank()) {
+            return; // skipped
+        }
+        try (Model model = new Model(modelPath);
+             Server server = new Server(model, "stub", Server.Options.defaults().withPort(0).withCtxTokens(256).withMaxRequestBytes(4096))) {
+            server.start();
+            HttpClient client = HttpClient.newHttpClient();
+            String base = "http://localhost:" + server.port() + "/v1/";
+
+            HttpResponse<String> completion = client.send(post(base + "completions",
+                    "{\"prompt\":\"Hello\",\"max_tokens\":8}"), HttpResponse.BodyHandlers.ofString());
+            assertEquals(200, completion.statusCode());
+            Map<String, Object> body = Json.parseObject(completion.body());
+            Map<?, ?> choice = (Map<?, ?>) ((List<?>) body.get("choices")).get(0);
+            assertFalse(((String) choice.get("text")).isEmpty());
+            assertEquals("stop", choice.get("finish_reason"));
+
+            HttpResponse<InputStream> stream = client.send(post(base + "chat/completions",
+                    "{\"messages\":[{\"role\":\"user\",\"content\":\"Hello\"}],\"stream\":true}"),
+                    HttpResponse.BodyHandlers.ofInputStream());
+            assertEquals("text/event-stream", stream.headers().firstValue("Content-Type").orElse(null));
+            List<String> events = new ArrayList<>();
+            try (BufferedReader reader = new BufferedReader(new InputStreamReader(stream.body(), StandardCharsets.UTF_8))) {
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    if (line.startsWith("data: ")) {
+                        events.add(line.substring(6));
+                    }
+                }
+            }
+            assertEquals("[DONE]", events.get(events.size() - 1));
+            StringBuilder streamed = new StringBuilder();
+            for (String event : events.subList(0, events.size() - 2)) {
+                Map<?, ?> delta = (Map<?, ?>) ((Map<?, ?>) ((List<?>) Json.parseObject(event).get("choices")).get(0)).get("delta");
+                streamed.append(delta.get("content"));
+            }
+            assertEquals(choice.get("text"), streamed.toString());
+
+            HttpResponse<String> embeddings = client.send(post(base + "embeddings",
+                    "{\"input\":[\"Hello\",\"world\"]}"), HttpResponse.BodyHandlers.ofString());
+            assertEquals(200, embeddings.statusCode());
+            List<?> data = (List<?>) Json.parseObject(embeddings.body()).get("data");
+            assertEquals(2, data.size());
+            assertEquals(8, ((List<?>) ((Map<?, ?>) data.get(1)).get("embedding")).size());
+
+            HttpResponse<String> invalid = client.send(post(base + "completions", "{\"prompt\":"),
+                    HttpResponse.BodyHandlers.ofString());
+            assertEquals(400, invalid.statusCode());
+            HttpResponse<String> oversized = client.send(post(base + "embeddings",
+                    "{\"input\":\"" + "x".repeat(4096) + "\"}"), HttpResponse.BodyHandlers.ofString());
+            assertEquals(413, oversized.statusCode());
+            assertEquals(2, server.schedulerStats().completed());
+        }
+    }
+
+    private static HttpRequest post(String uri, String json) {
+        return HttpRequest.newBuilder(URI.create(uri))
+                .header("Content-Type", "application/json")
+                .POST(HttpRequest.BodyPublishers.ofString(json))
+                .build();
+    }
+}
@@ -6,3 +6,5 @@ rootProject.name = "LlamaPanama"
 include("llamapanama-core")
 include("llamapanama-native")
 include("llamapanama-examples")
+include("llamapanama-bench")
+include("llamapanama-server")